@@ -0,0 +1,142 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link CharSequence} view of bytes encoded in a single-byte, ASCII-compatible character encoding,
+ * namely {@link StandardCharsets#ISO_8859_1} or {@link StandardCharsets#US_ASCII}.
+ *
+ * <p>
+ * In these encodings every character is exactly one byte, so characters are decoded one at a time as they are accessed,
+ * and no characters are copied except by {@link #toString}. The bytes are decoded exactly as {@link String#String(byte[],
+ * int, int, Charset)} would decode them; in particular, {@link StandardCharsets#US_ASCII} bytes greater than 0x7f
+ * decode as {@code U+FFFD}. The underlying byte array must not change.
+ */
+final class ByteCharSequence implements CharSequence {
+
+    private static final char REPLACEMENT_CHAR = '\ufffd';
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+    private final boolean ascii;
+
+    /**
+     * Constructor.
+     *
+     * @param bytes encoded characters
+     * @param offset starting offset in {@code bytes}
+     * @param length number of bytes
+     * @param ascii true for {@link StandardCharsets#US_ASCII}, false for {@link StandardCharsets#ISO_8859_1}
+     * @throws IndexOutOfBoundsException if {@code offset} and/or {@code length} are invalid
+     */
+    ByteCharSequence(byte[] bytes, int offset, int length, boolean ascii) {
+        if (offset < 0 || length < 0 || offset > bytes.length - length)
+            throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length + ", array length=" + bytes.length);
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.ascii = ascii;
+    }
+
+    /**
+     * Wrap the given encoded text as a {@link CharSequence}. If the character encoding is one supported by this class,
+     * the bytes are not copied and so must not change afterward; otherwise, they are decoded into a {@link String}.
+     *
+     * @param bytes encoded characters
+     * @param offset starting offset in {@code bytes}
+     * @param length number of bytes
+     * @param charset character encoding
+     * @return decoded characters
+     * @throws IndexOutOfBoundsException if {@code offset} and/or {@code length} are invalid
+     */
+    static CharSequence wrap(byte[] bytes, int offset, int length, Charset charset) {
+        if (StandardCharsets.ISO_8859_1.equals(charset))
+            return new ByteCharSequence(bytes, offset, length, false);
+        if (StandardCharsets.US_ASCII.equals(charset))
+            return new ByteCharSequence(bytes, offset, length, true);
+        return new String(bytes, offset, length, charset);
+    }
+
+    /**
+     * Get the underlying byte array.
+     *
+     * @return encoded characters
+     */
+    byte[] getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Get the offset of this sequence in the underlying byte array.
+     *
+     * @return starting offset
+     */
+    int getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * Determine whether the given character is encoded as the byte {@code (byte)ch}.
+     *
+     * @param ch character
+     * @return true if {@code ch} is encoded as a single byte having the same value
+     */
+    boolean isSingleByte(char ch) {
+        return ch < (this.ascii ? 0x80 : 0x100);
+    }
+
+    /**
+     * Determine whether the first {@code length} characters of this sequence are encoded in the given character encoding
+     * exactly as they are in this sequence, i.e., whether the bytes can be copied rather than decoded and re-encoded.
+     *
+     * @param charset character encoding
+     * @param length number of characters
+     * @return true if the bytes may be copied
+     */
+    boolean isEncodedAs(Charset charset, int length) {
+        if (!this.ascii)
+            return StandardCharsets.ISO_8859_1.equals(charset);
+        if (!StandardCharsets.US_ASCII.equals(charset))
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (this.bytes[this.offset + i] < 0)                        // decodes as U+FFFD, which encodes as '?'
+                return false;
+        }
+        return true;
+    }
+
+// CharSequence
+
+    @Override
+    public int length() {
+        return this.length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= this.length)
+            throw new IndexOutOfBoundsException("index=" + index);
+        final byte b = this.bytes[this.offset + index];
+        return this.ascii && b < 0 ? REPLACEMENT_CHAR : (char)(b & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end < start || end > this.length)
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end);
+        return new ByteCharSequence(this.bytes, this.offset + start, end - start, this.ascii);
+    }
+
+    @Override
+    public String toString() {
+        return new String(this.bytes, this.offset, this.length,
+          this.ascii ? StandardCharsets.US_ASCII : StandardCharsets.ISO_8859_1);
+    }
+}
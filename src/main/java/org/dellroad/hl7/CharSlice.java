@@ -0,0 +1,117 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.io.IOException;
+
+/**
+ * A {@link CharSequence} view of a range of characters in some other, underlying {@link CharSequence}.
+ *
+ * <p>
+ * No characters are copied, except by {@link #toString}. The underlying {@link CharSequence} must not change.
+ */
+final class CharSlice implements CharSequence {
+
+    private final CharSequence text;
+    private final int start;
+    private final int end;
+
+    /**
+     * Constructor.
+     *
+     * @param text underlying text
+     * @param start starting offset in {@code text} (inclusive)
+     * @param end ending offset in {@code text} (exclusive)
+     * @throws IndexOutOfBoundsException if {@code start} and/or {@code end} are invalid
+     */
+    CharSlice(CharSequence text, int start, int end) {
+        if (start < 0 || end < start || end > text.length())
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + text.length());
+        this.text = text;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Get the underlying text.
+     *
+     * @return underlying text
+     */
+    CharSequence getText() {
+        return this.text;
+    }
+
+    /**
+     * Get the starting offset of this slice in the underlying text.
+     *
+     * @return starting offset (inclusive)
+     */
+    int getStart() {
+        return this.start;
+    }
+
+    /**
+     * Get the ending offset of this slice in the underlying text.
+     *
+     * @return ending offset (exclusive)
+     */
+    int getEnd() {
+        return this.end;
+    }
+
+    /**
+     * Determine whether this instance contains the same characters as the given instance.
+     *
+     * @param that other slice
+     * @return true if the characters are the same
+     */
+    boolean contentEquals(CharSlice that) {
+        final int length = this.end - this.start;
+        if (that.end - that.start != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (this.text.charAt(this.start + i) != that.text.charAt(that.start + i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Append the characters in this slice to the given output.
+     *
+     * @param out destination
+     * @throws IOException if an I/O error occurs
+     */
+    void appendTo(Appendable out) throws IOException {
+        out.append(this.text, this.start, this.end);
+    }
+
+// CharSequence
+
+    @Override
+    public int length() {
+        return this.end - this.start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= this.end - this.start)
+            throw new IndexOutOfBoundsException("index=" + index);
+        return this.text.charAt(this.start + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if (from < 0 || to < from || to > this.end - this.start)
+            throw new IndexOutOfBoundsException("from=" + from + ", to=" + to);
+        return new CharSlice(this.text, this.start + from, this.start + to);
+    }
+
+    @Override
+    public String toString() {
+        return this.text.subSequence(this.start, this.end).toString();
+    }
+}
@@ -0,0 +1,153 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * An {@link Appendable} that collects characters in a fixed size buffer and writes them out in chunks, either to a
+ * {@link Writer}, or to an {@link OutputStream} via a {@link CharsetEncoder}. This avoids both per-character invocations
+ * of the underlying output and intermediate {@link String}s.
+ *
+ * <p>
+ * {@link #finish} must be invoked after the last character has been appended; it does not flush the underlying output.
+ */
+final class ChunkedOutput implements Appendable {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private final char[] chars = new char[CHUNK_SIZE];
+    private final Writer writer;
+    private final OutputStream output;
+    private final CharsetEncoder encoder;
+    private final CharBuffer charBuf;
+    private final ByteBuffer byteBuf;
+    private int len;
+
+    /**
+     * Constructor for character output.
+     *
+     * @param writer destination
+     */
+    ChunkedOutput(Writer writer) {
+        this.writer = writer;
+        this.output = null;
+        this.encoder = null;
+        this.charBuf = null;
+        this.byteBuf = null;
+    }
+
+    /**
+     * Constructor for byte output. The encoder is {@linkplain CharsetEncoder#reset reset} by this constructor.
+     *
+     * @param output destination
+     * @param encoder character encoder
+     */
+    ChunkedOutput(OutputStream output, CharsetEncoder encoder) {
+        this.writer = null;
+        this.output = output;
+        this.encoder = encoder.reset();
+        this.charBuf = CharBuffer.wrap(this.chars);
+        this.byteBuf = ByteBuffer.allocate((int)Math.ceil(CHUNK_SIZE * encoder.maxBytesPerChar()));
+    }
+
+    @Override
+    public ChunkedOutput append(char ch) throws IOException {
+        if (this.len == CHUNK_SIZE)
+            this.drain(false);
+        this.chars[this.len++] = ch;
+        return this;
+    }
+
+    @Override
+    public ChunkedOutput append(CharSequence csq) throws IOException {
+        return csq != null ? this.append(csq, 0, csq.length()) : this.append("null");
+    }
+
+    @Override
+    public ChunkedOutput append(CharSequence csq, int start, int end) throws IOException {
+        if (csq == null)
+            return this.append("null", start, end);
+        if (start < 0 || end < start || end > csq.length())
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + csq.length());
+        while (start < end) {
+            if (this.len == CHUNK_SIZE)
+                this.drain(false);
+            final int count = Math.min(end - start, CHUNK_SIZE - this.len);
+            if (csq instanceof String)
+                ((String)csq).getChars(start, start + count, this.chars, this.len);
+            else {
+                for (int i = 0; i < count; i++)
+                    this.chars[this.len + i] = csq.charAt(start + i);
+            }
+            this.len += count;
+            start += count;
+        }
+        return this;
+    }
+
+    /**
+     * Discard any buffered characters and reset the encoder, if any, so this instance may be reused.
+     */
+    void reset() {
+        if (this.encoder != null)
+            this.encoder.reset();
+        this.len = 0;
+    }
+
+    /**
+     * Write out any remaining characters.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void finish() throws IOException {
+        this.drain(true);
+    }
+
+    private void drain(boolean last) throws IOException {
+
+        // Handle character output
+        if (this.writer != null) {
+            this.writer.write(this.chars, 0, this.len);
+            this.len = 0;
+            return;
+        }
+
+        // Encode characters
+        this.charBuf.limit(this.len).position(0);
+        while (true) {
+            final CoderResult result = this.encoder.encode(this.charBuf, this.byteBuf, last);
+            if (result.isOverflow()) {
+                this.writeBytes();
+                continue;
+            }
+            if (result.isError())
+                result.throwException();
+            break;
+        }
+        if (last) {
+            while (this.encoder.flush(this.byteBuf).isOverflow())
+                this.writeBytes();
+        }
+        this.writeBytes();
+
+        // Retain any characters not yet encoded, e.g., a high surrogate at the end of the chunk
+        final int remaining = this.charBuf.remaining();
+        System.arraycopy(this.chars, this.charBuf.position(), this.chars, 0, remaining);
+        this.len = remaining;
+    }
+
+    private void writeBytes() throws IOException {
+        this.output.write(this.byteBuf.array(), 0, this.byteBuf.position());
+        this.byteBuf.clear();
+    }
+}
@@ -0,0 +1,462 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compact binary encoding for {@link HL7Message}s, suitable for queues, caches, and the like.
+ *
+ * <p>
+ * The encoding is much smaller, and much faster to create and decode, than Java serialization; in fact,
+ * {@link HL7Message} instances are serialized in this form (via a serialization proxy). Field values are stored decoded,
+ * so the encoding is independent of any escaping, and a decoded message is always {@linkplain HL7Message#equals equal}
+ * to the original. However, because custom escapes are not retained, its string form may not be identical.
+ *
+ * <p>
+ * The format begins with a {@linkplain #FORMAT_VERSION version} byte. All lengths, counts, and other values are
+ * unsigned varints (seven bits per byte, least significant first). Separators are stored once, in each MSH segment.
+ * Short strings are stored once per message, in a string table built on the fly; subsequent occurrences are stored as
+ * references to the table. The layout of each field (simple value, simple repeats, or components and sub-components)
+ * is combined into a single varint with either its value or its number of repeats, so that in the common cases,
+ * the encoding of a field is no longer than its text.
+ */
+public final class HL7BinaryCodec {
+
+    /** Version of the encoding created by this class. */
+    public static final int FORMAT_VERSION = 1;
+
+    // Strings up to this length are added to the string table by both the encoder and the decoder
+    private static final int MAX_SHARED_LENGTH = 32;
+
+    // Maximum string length; all string tokens, shifted left by one, must fit in 32 bits
+    private static final int MAX_STRING_LENGTH = (1 << 29) - 1;
+
+    // String tokens: table index times two, or else new string length times four plus ASCII_FLAG plus NEW_FLAG
+    private static final int NEW_FLAG = 1;
+    private static final int ASCII_FLAG = 2;
+
+    // Field headers: simple value string token times two, or else number of repeats times eight plus layout plus REPEATS_FLAG
+    private static final int REPEATS_FLAG = 1;
+    private static final int SIMPLE_REPEATS = 0 << 1;
+    private static final int COMPONENTS = 1 << 1;
+    private static final int SUBCOMPONENTS = 2 << 1;
+    private static final int LAYOUT_MASK = 3 << 1;
+    private static final int LAYOUT_BITS = 3;
+
+    // Initial encoding buffer size
+    private static final int INITIAL_SIZE = 256;
+
+    private HL7BinaryCodec() {
+    }
+
+    /**
+     * Encode a message.
+     *
+     * @param msg message to encode
+     * @return encoded message
+     * @throws IllegalArgumentException if {@code msg} is null
+     */
+    public static byte[] encode(HL7Message msg) {
+        if (msg == null)
+            throw new IllegalArgumentException("null msg");
+        final Encoder encoder = new Encoder();
+        encoder.writeMessage(msg);
+        return Arrays.copyOf(encoder.buf, encoder.len);
+    }
+
+    /**
+     * Encode a message into the given buffer, starting at its current position.
+     *
+     * <p>
+     * On return, the buffer's position is just past the encoded message.
+     *
+     * @param msg message to encode
+     * @param buf destination buffer
+     * @throws BufferOverflowException if {@code buf} does not have enough room remaining; its position is not changed
+     * @throws java.nio.ReadOnlyBufferException if {@code buf} is read-only
+     * @throws IllegalArgumentException if either parameter is null
+     */
+    public static void encode(HL7Message msg, ByteBuffer buf) {
+        if (msg == null)
+            throw new IllegalArgumentException("null msg");
+        if (buf == null)
+            throw new IllegalArgumentException("null buf");
+        final Encoder encoder = new Encoder();
+        encoder.writeMessage(msg);
+        if (encoder.len > buf.remaining())
+            throw new BufferOverflowException();
+        buf.put(encoder.buf, 0, encoder.len);
+    }
+
+    /**
+     * Decode a message.
+     *
+     * @param buf encoded message
+     * @return decoded message
+     * @throws HL7ContentException if {@code buf} does not contain exactly one valid encoded message
+     * @throws IllegalArgumentException if {@code buf} is null
+     */
+    public static HL7Message decode(byte[] buf) throws HL7ContentException {
+        if (buf == null)
+            throw new IllegalArgumentException("null buf");
+        return HL7BinaryCodec.decode(buf, 0, buf.length);
+    }
+
+    /**
+     * Decode a message from a region of a byte array.
+     *
+     * @param buf buffer containing encoded message
+     * @param off offset of encoded message
+     * @param len length of encoded message
+     * @return decoded message
+     * @throws HL7ContentException if the region does not contain exactly one valid encoded message
+     * @throws IllegalArgumentException if {@code buf} is null
+     * @throws IndexOutOfBoundsException if {@code off} or {@code len} is out of bounds
+     */
+    public static HL7Message decode(byte[] buf, int off, int len) throws HL7ContentException {
+        if (buf == null)
+            throw new IllegalArgumentException("null buf");
+        final ByteBuffer input = ByteBuffer.wrap(buf, off, len);
+        final HL7Message msg = HL7BinaryCodec.decode(input);
+        if (input.hasRemaining())
+            throw new HL7ContentException("extra bytes after encoded message");
+        return msg;
+    }
+
+    /**
+     * Decode a message from the given buffer, starting at its current position.
+     *
+     * <p>
+     * On successful return, the buffer's position is just past the encoded message, so multiple encoded messages
+     * may be read from one buffer. If an exception is thrown, the buffer's position is unspecified.
+     *
+     * @param buf buffer containing encoded message
+     * @return decoded message
+     * @throws HL7ContentException if {@code buf} does not contain a valid encoded message
+     * @throws IllegalArgumentException if {@code buf} is null
+     */
+    public static HL7Message decode(ByteBuffer buf) throws HL7ContentException {
+        if (buf == null)
+            throw new IllegalArgumentException("null buf");
+        try {
+            return new Decoder(buf).readMessage();
+        } catch (BufferUnderflowException e) {
+            throw new HL7ContentException("truncated encoded message", e);
+        }
+    }
+
+// Encoder
+
+    private static final class Encoder {
+
+        private final HashMap<String, Integer> table = new HashMap<>();
+
+        byte[] buf = new byte[INITIAL_SIZE];
+        int len;
+
+        Encoder() {
+            this.table.put("", 0);
+        }
+
+        void writeMessage(HL7Message msg) {
+            final HL7SegmentList segments = msg.getSegments();
+            this.writeByte(FORMAT_VERSION);
+            this.writeVarint(segments.size());
+            for (int i = 0; i < segments.size(); i++)
+                this.writeSegment(segments.get(i));
+        }
+
+        // Segment header is the number of fields, times two, plus one if an MSHSegment; zero for a null segment
+        private void writeSegment(HL7Segment segment) {
+            if (segment == null) {
+                this.writeVarint(0);
+                return;
+            }
+            final int numFields = segment.getNumFields();
+            if (segment instanceof MSHSegment) {
+                this.writeVarint((numFields << 1) | 1);
+                final HL7Seps seps = ((MSHSegment)segment).getHL7Seps();
+                this.writeVarint(seps.getFieldSep());
+                this.writeVarint(seps.getCompSep());
+                this.writeVarint(seps.getRepSep());
+                this.writeVarint(seps.getEscChar());
+                this.writeVarint(seps.getSubSep());
+                for (int i = 3; i < numFields; i++)
+                    this.writeField(segment.getField(i));
+                return;
+            }
+            this.writeVarint(numFields << 1);
+            for (int i = 0; i < numFields; i++)
+                this.writeField(segment.getField(i));
+        }
+
+        private void writeField(HL7Field field) {
+            final Object value = field.decode();
+            if (value instanceof String) {
+                final String string = (String)value;
+                final int token = this.token(string);
+                this.writeVarint(token << 1);
+                this.writeChars(string, token);
+                return;
+            }
+            if (value instanceof String[]) {
+                final String[] repeats = (String[])value;
+                this.writeVarint((repeats.length << LAYOUT_BITS) | SIMPLE_REPEATS | REPEATS_FLAG);
+                for (String repeat : repeats)
+                    this.writeString(repeat);
+                return;
+            }
+            final String[][][] repeats = (String[][][])value;
+            boolean subs = false;
+            for (int i = 0; i < repeats.length && !subs; i++) {
+                for (int j = 0; j < repeats[i].length && !subs; j++)
+                    subs = repeats[i][j].length > 1;
+            }
+            this.writeVarint((repeats.length << LAYOUT_BITS) | (subs ? SUBCOMPONENTS : COMPONENTS) | REPEATS_FLAG);
+            for (String[][] repeat : repeats) {
+                this.writeVarint(repeat.length);
+                for (String[] comp : repeat) {
+                    if (!subs) {
+                        this.writeString(comp[0]);
+                        continue;
+                    }
+                    this.writeVarint(comp.length);
+                    for (String sub : comp)
+                        this.writeString(sub);
+                }
+            }
+        }
+
+        private void writeString(String string) {
+            final int token = this.token(string);
+            this.writeVarint(token);
+            this.writeChars(string, token);
+        }
+
+        // Get the token for a string, adding it to the string table if appropriate
+        private int token(String string) {
+            final int length = string.length();
+            if (length > MAX_STRING_LENGTH)
+                throw new IllegalArgumentException("string too long");
+            if (length <= MAX_SHARED_LENGTH) {
+                final Integer index = this.table.putIfAbsent(string, this.table.size());
+                if (index != null)
+                    return index << 1;
+            }
+            boolean ascii = true;
+            for (int i = 0; i < length && ascii; i++)
+                ascii = string.charAt(i) < 0x80;
+            return (length << 2) | (ascii ? ASCII_FLAG : 0) | NEW_FLAG;
+        }
+
+        // Write the characters of a string following its token, if the token is for a new string
+        private void writeChars(String string, int token) {
+            if ((token & NEW_FLAG) == 0)
+                return;
+            final int length = string.length();
+            if ((token & ASCII_FLAG) != 0) {
+                this.ensureRoom(length);
+                for (int i = 0; i < length; i++)
+                    this.buf[this.len++] = (byte)string.charAt(i);
+                return;
+            }
+            for (int i = 0; i < length; i++)
+                this.writeVarint(string.charAt(i));
+        }
+
+        private void writeVarint(int value) {
+            this.ensureRoom(5);
+            while ((value & ~0x7f) != 0) {
+                this.buf[this.len++] = (byte)(value | 0x80);
+                value >>>= 7;
+            }
+            this.buf[this.len++] = (byte)value;
+        }
+
+        private void writeByte(int value) {
+            this.ensureRoom(1);
+            this.buf[this.len++] = (byte)value;
+        }
+
+        private void ensureRoom(int room) {
+            if (this.len + room > this.buf.length)
+                this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.len + room));
+        }
+    }
+
+// Decoder
+
+    private static final class Decoder {
+
+        private final ArrayList<String> table = new ArrayList<>();
+        private final ByteBuffer buf;
+
+        Decoder(ByteBuffer buf) {
+            this.buf = buf;
+            this.table.add("");
+        }
+
+        HL7Message readMessage() throws HL7ContentException {
+            final int version = this.buf.get() & 0xff;
+            if (version != FORMAT_VERSION)
+                throw new HL7ContentException("unsupported encoding version " + version);
+            final int numSegments = this.readCount();
+            if (numSegments == 0)
+                throw new HL7ContentException("no MSH segment");
+            final HL7Segment msh = this.readSegment();
+            if (!(msh instanceof MSHSegment))
+                throw new HL7ContentException("first segment is not an MSH segment");
+            final HL7SegmentList segments = new HL7SegmentList((MSHSegment)msh);
+            segments.ensureCapacity(numSegments);
+            for (int i = 1; i < numSegments; i++)
+                segments.add(this.readSegment());
+            return new HL7Message(segments);
+        }
+
+        private HL7Segment readSegment() throws HL7ContentException {
+            final int header = this.readVarint();
+            final int numFields = this.checkCount(header >>> 1);
+            if ((header & 1) != 0) {
+                if (numFields < 3)
+                    throw new HL7ContentException("invalid MSH segment field count " + numFields);
+                final HL7Seps seps = new HL7Seps(this.readChar(), this.readChar(), this.readChar(),
+                  this.readChar(), this.readChar());
+                final MSHSegment msh = new MSHSegment(seps);
+                msh.fields.ensureCapacity(numFields);
+                for (int i = 3; i < numFields; i++)
+                    msh.fields.add(this.readField());
+                return msh;
+            }
+            if (numFields == 0)
+                return null;
+            final HL7Segment segment = new HL7Segment();
+            segment.fields.ensureCapacity(numFields);
+            for (int i = 0; i < numFields; i++)
+                segment.fields.add(this.readField());
+            final String name = segment.getName();
+            if (name.length() != 3)
+                throw new HL7ContentException("invalid segment name `" + name + "'");
+            return segment;
+        }
+
+        private HL7Field readField() throws HL7ContentException {
+            final int header = this.readVarint();
+            if ((header & REPEATS_FLAG) == 0) {
+                final String value = this.readString(header >>> 1);
+                return value.isEmpty() ? HL7Field.EMPTY : new HL7Field(value);
+            }
+            final int numRepeats = this.checkCount(header >>> LAYOUT_BITS);
+            switch (header & LAYOUT_MASK) {
+            case SIMPLE_REPEATS:
+            {
+                if (numRepeats < 2)
+                    throw new HL7ContentException("invalid field header " + header);
+                final String[] repeats = new String[numRepeats];
+                for (int i = 0; i < numRepeats; i++)
+                    repeats[i] = this.readString(this.readVarint());
+                return new HL7Field(repeats);
+            }
+            case COMPONENTS:
+            case SUBCOMPONENTS:
+            {
+                if (numRepeats == 0)
+                    throw new HL7ContentException("invalid field header " + header);
+                final boolean subs = (header & LAYOUT_MASK) == SUBCOMPONENTS;
+                final String[][][] repeats = new String[numRepeats][][];
+                for (int i = 0; i < numRepeats; i++) {
+                    final int numComps = this.readNonZeroCount();
+                    repeats[i] = new String[numComps][];
+                    for (int j = 0; j < numComps; j++) {
+                        final int numSubs = subs ? this.readNonZeroCount() : 1;
+                        repeats[i][j] = new String[numSubs];
+                        for (int k = 0; k < numSubs; k++)
+                            repeats[i][j][k] = this.readString(this.readVarint());
+                    }
+                }
+                return new HL7Field(repeats, false);
+            }
+            default:
+                throw new HL7ContentException("invalid field header " + header);
+            }
+        }
+
+        // Read the string having the given token
+        private String readString(int token) throws HL7ContentException {
+            if ((token & NEW_FLAG) == 0) {
+                final int index = token >>> 1;
+                if (index >= this.table.size())
+                    throw new HL7ContentException("invalid string reference " + index);
+                return this.table.get(index);
+            }
+            final int length = this.checkCount(token >>> 2);
+            final String string;
+            if ((token & ASCII_FLAG) != 0) {
+                if (this.buf.hasArray()) {
+                    final int posn = this.buf.position();
+                    string = new String(this.buf.array(), this.buf.arrayOffset() + posn, length, StandardCharsets.ISO_8859_1);
+                    this.buf.position(posn + length);
+                } else {
+                    final char[] chars = new char[length];
+                    for (int i = 0; i < length; i++)
+                        chars[i] = (char)(this.buf.get() & 0xff);
+                    string = new String(chars);
+                }
+            } else {
+                final char[] chars = new char[length];
+                for (int i = 0; i < length; i++)
+                    chars[i] = this.readChar();
+                string = new String(chars);
+            }
+            if (length <= MAX_SHARED_LENGTH)
+                this.table.add(string);
+            return string;
+        }
+
+        private char readChar() throws HL7ContentException {
+            final int value = this.readVarint();
+            if (value > Character.MAX_VALUE)
+                throw new HL7ContentException("invalid character value " + value);
+            return (char)value;
+        }
+
+        // Read a count of items, each of which requires at least one byte
+        private int readCount() throws HL7ContentException {
+            return this.checkCount(this.readVarint());
+        }
+
+        // Sanity check a count of items, each of which requires at least one byte, to avoid huge allocations
+        private int checkCount(int count) {
+            if (count < 0 || count > this.buf.remaining())
+                throw new BufferUnderflowException();
+            return count;
+        }
+
+        private int readNonZeroCount() throws HL7ContentException {
+            final int count = this.readCount();
+            if (count == 0)
+                throw new HL7ContentException("invalid zero count");
+            return count;
+        }
+
+        private int readVarint() throws HL7ContentException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                final int b = this.buf.get();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new HL7ContentException("invalid varint");
+        }
+    }
+}
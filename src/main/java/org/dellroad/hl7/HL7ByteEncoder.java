@@ -0,0 +1,212 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Encodes {@link HL7Message}s into bytes using a fixed character encoding, reusing the same encoder and output buffer
+ * for every message.
+ *
+ * <p>
+ * Messages are written as by {@link HL7Message#toString()}, i.e., using the separators defined by the MSH segment,
+ * and characters that cannot be encoded are replaced with the character set's default replacement,
+ * exactly as {@link java.io.OutputStreamWriter} would. Characters are encoded in chunks by a cached
+ * {@link java.nio.charset.CharsetEncoder}, which for common single byte character sets such as
+ * {@link java.nio.charset.StandardCharsets#ISO_8859_1} is typically optimized by the JVM. If the message is unmodified
+ * since being parsed from bytes in the same single byte encoding, the original bytes are simply copied.
+ *
+ * <p>
+ * The encoded bytes are available from {@link #getBuffer} until the next message is encoded. Space may be reserved
+ * before and after the message, e.g., for framing bytes, so that the framed message can be written in a single operation.
+ *
+ * <p>
+ * Instances are not thread safe.
+ */
+public final class HL7ByteEncoder {
+
+    // Initial buffer size
+    private static final int INITIAL_SIZE = 1024;
+
+    // Buffers larger than this are discarded before the next message is encoded
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    private final Charset charset;
+    private final ChunkedOutput output;
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int len;
+
+    /**
+     * Constructor.
+     *
+     * @param charset character encoding
+     * @throws IllegalArgumentException if {@code charset} is null
+     * @throws UnsupportedOperationException if {@code charset} does not support encoding
+     */
+    public HL7ByteEncoder(Charset charset) {
+        if (charset == null)
+            throw new IllegalArgumentException("null charset");
+        this.charset = charset;
+        this.output = new ChunkedOutput(new Sink(), charset.newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+
+    /**
+     * Get the character encoding used by this instance.
+     *
+     * @return character encoding
+     */
+    public Charset getCharset() {
+        return this.charset;
+    }
+
+    /**
+     * Encode a message into this instance's buffer, starting at offset zero.
+     *
+     * <p>
+     * Equivalent to: {@link #encode(HL7Message, int, int) encode}{@code (msg, 0, 0)}.
+     *
+     * @param msg message to encode
+     * @return length of the encoded message
+     * @throws IllegalArgumentException if {@code msg} is null
+     */
+    public int encode(HL7Message msg) {
+        return this.encode(msg, 0, 0);
+    }
+
+    /**
+     * Encode a message into this instance's buffer, reserving space before and after it.
+     *
+     * <p>
+     * On return, the message occupies the {@link #getBuffer buffer} starting at offset {@code prefix}, and the buffer
+     * has room for at least {@code suffix} additional bytes after the message. The contents of the reserved space
+     * are unspecified; the caller is expected to fill it in.
+     *
+     * @param msg message to encode
+     * @param prefix number of bytes to reserve before the message
+     * @param suffix number of bytes to reserve after the message
+     * @return length of the encoded message, not including {@code prefix} or {@code suffix}
+     * @throws IllegalArgumentException if {@code msg} is null
+     * @throws IllegalArgumentException if {@code prefix} or {@code suffix} is negative
+     */
+    public int encode(HL7Message msg, int prefix, int suffix) {
+        if (msg == null)
+            throw new IllegalArgumentException("null msg");
+        if (prefix < 0 || suffix < 0)
+            throw new IllegalArgumentException("prefix=" + prefix + ", suffix=" + suffix);
+        if (this.buf.length > MAX_RETAINED_SIZE)
+            this.buf = new byte[INITIAL_SIZE];
+        this.len = 0;
+        this.ensureCapacity(prefix);
+        this.len = prefix;
+
+        // Copy the original bytes of an unmodified message if possible
+        final CharSequence original = msg.getCleanText(null);
+        if (original instanceof ByteCharSequence) {
+            final ByteCharSequence bytes = (ByteCharSequence)original;
+            final int length = msg.getCleanTextLength();
+            if (bytes.isEncodedAs(this.charset, length)) {
+                this.ensureCapacity(length + 1 + suffix);
+                System.arraycopy(bytes.getBytes(), bytes.getOffset(), this.buf, this.len, length);
+                this.buf[this.len + length] = (byte)HL7Message.SEGMENT_TERMINATOR;
+                this.len += length + 1;
+                return length + 1;
+            }
+        }
+
+        // Encode characters
+        try {
+            this.output.reset();
+            msg.writeTo(this.output);
+            this.output.finish();
+        } catch (IOException e) {
+            throw new RuntimeException("impossible", e);
+        }
+        this.ensureCapacity(suffix);
+        return this.len - prefix;
+    }
+
+    /**
+     * Encode a message into the given buffer, starting at its current position.
+     *
+     * <p>
+     * On return, the buffer's position is just past the encoded message.
+     *
+     * @param msg message to encode
+     * @param dest destination buffer
+     * @return length of the encoded message
+     * @throws BufferOverflowException if {@code dest} does not have enough room remaining; its position is not changed
+     * @throws java.nio.ReadOnlyBufferException if {@code dest} is read-only
+     * @throws IllegalArgumentException if either parameter is null
+     */
+    public int encode(HL7Message msg, ByteBuffer dest) {
+        if (dest == null)
+            throw new IllegalArgumentException("null dest");
+        final int length = this.encode(msg, 0, 0);
+        if (length > dest.remaining())
+            throw new BufferOverflowException();
+        dest.put(this.buf, 0, length);
+        return length;
+    }
+
+    /**
+     * Encode a message into a new byte array.
+     *
+     * @param msg message to encode
+     * @return encoded message
+     * @throws IllegalArgumentException if {@code msg} is null
+     */
+    public byte[] toByteArray(HL7Message msg) {
+        return Arrays.copyOf(this.buf, this.encode(msg, 0, 0));
+    }
+
+    /**
+     * Get this instance's buffer, containing the most recently encoded message.
+     *
+     * <p>
+     * The returned array is owned by this instance, and its contents are only valid until the next message is encoded.
+     *
+     * @return internal buffer
+     */
+    public byte[] getBuffer() {
+        return this.buf;
+    }
+
+    private void ensureCapacity(int extra) {
+        final int required = this.len + extra;
+        if (required < 0)
+            throw new OutOfMemoryError("required array size too large");
+        if (required > this.buf.length)
+            this.buf = Arrays.copyOf(this.buf, Math.max(required, Math.min(this.buf.length * 2, Integer.MAX_VALUE - 8)));
+    }
+
+// Sink
+
+    // Receives bytes from a CharsetEncoder
+    private final class Sink extends OutputStream {
+
+        @Override
+        public void write(int b) {
+            HL7ByteEncoder.this.ensureCapacity(1);
+            HL7ByteEncoder.this.buf[HL7ByteEncoder.this.len++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] data, int off, int count) {
+            HL7ByteEncoder.this.ensureCapacity(count);
+            System.arraycopy(data, off, HL7ByteEncoder.this.buf, HL7ByteEncoder.this.len, count);
+            HL7ByteEncoder.this.len += count;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+/**
+ * Callback interface for "push" style parsing of HL7 messages using {@link HL7Parser}.
+ *
+ * <p>
+ * For each message, the parser generates these events:
+ *  <ul>
+ *  <li>{@link #startMessage startMessage()}</li>
+ *  <li>For each segment:
+ *      <ul>
+ *      <li>{@link #startSegment startSegment()}</li>
+ *      <li>For each field, starting with field number one:
+ *          <ul>
+ *          <li>{@link #field field()}</li>
+ *          <li>For each repeat:
+ *              <ul>
+ *              <li>{@link #repeat repeat()}</li>
+ *              <li>For each component:
+ *                  <ul>
+ *                  <li>{@link #component component()}</li>
+ *                  <li>For each sub-component: {@link #subComponent subComponent()}</li>
+ *                  </ul>
+ *              </li>
+ *              </ul>
+ *          </li>
+ *          </ul>
+ *      </li>
+ *      <li>{@link #endSegment endSegment()}</li>
+ *      </ul>
+ *  </li>
+ *  <li>{@link #endMessage endMessage()}</li>
+ *  </ul>
+ *
+ * <p>
+ * Every field has at least one repeat, every repeat at least one component, and every component at least one
+ * sub-component, exactly as with {@link HL7Field#getValue}; empty values are reported as empty sequences.
+ * The first segment is always {@code MSH}, whose fields {@code MSH.1} and {@code MSH.2} are reported just as
+ * {@link MSHSegment} represents them.
+ *
+ * <p>
+ * {@link CharSequence} parameters are only valid for the duration of the callback and may refer to a buffer that
+ * is reused afterward; use {@link CharSequence#toString toString()} to retain a value.
+ *
+ * <p>
+ * All methods have default implementations that do nothing, so implementations need only override the events they need.
+ * To abort parsing, throw an {@link HL7ContentException}.
+ *
+ * @see HL7Parser
+ */
+public interface HL7ContentHandler {
+
+    /**
+     * Start a new message.
+     *
+     * @param seps separator and escape characters from {@code MSH.1} and {@code MSH.2}
+     * @throws HL7ContentException to abort parsing
+     */
+    default void startMessage(HL7Seps seps) throws HL7ContentException {
+    }
+
+    /**
+     * Start a new segment.
+     *
+     * <p>
+     * By returning false, this method may elect to skip the segment entirely, which is cheaper than ignoring its
+     * events; in that case, the next event will be {@link #endSegment}.
+     *
+     * @param name segment name (not decoded)
+     * @return true to receive events for the fields in this segment, false to skip them
+     * @throws HL7ContentException to abort parsing
+     */
+    default boolean startSegment(CharSequence name) throws HL7ContentException {
+        return true;
+    }
+
+    /**
+     * Start a new field.
+     *
+     * @param index field number (one-based, as in {@code PID.3})
+     * @throws HL7ContentException to abort parsing
+     */
+    default void field(int index) throws HL7ContentException {
+    }
+
+    /**
+     * Start a new repeat within the current field.
+     *
+     * @param index repeat number (zero-based)
+     * @throws HL7ContentException to abort parsing
+     */
+    default void repeat(int index) throws HL7ContentException {
+    }
+
+    /**
+     * Start a new component within the current repeat.
+     *
+     * @param index component number (zero-based)
+     * @throws HL7ContentException to abort parsing
+     */
+    default void component(int index) throws HL7ContentException {
+    }
+
+    /**
+     * Report a sub-component within the current component.
+     *
+     * @param index sub-component number (zero-based)
+     * @param value decoded (i.e., unescaped) sub-component value
+     * @throws HL7ContentException to abort parsing
+     */
+    default void subComponent(int index, CharSequence value) throws HL7ContentException {
+    }
+
+    /**
+     * End the current segment.
+     *
+     * @throws HL7ContentException to abort parsing
+     */
+    default void endSegment() throws HL7ContentException {
+    }
+
+    /**
+     * End the current message.
+     *
+     * @throws HL7ContentException to abort parsing
+     */
+    default void endMessage() throws HL7ContentException {
+    }
+}
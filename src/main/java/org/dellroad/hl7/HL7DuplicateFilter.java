@@ -0,0 +1,221 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects retransmitted duplicate messages, and remembers the acknowlegement originally generated for each message
+ * so that it can be replayed to the sender without processing the duplicate again.
+ *
+ * <p>
+ * Messages are identified by their {@link HL7Fingerprint} together with their control ID (MSH.10). Either parsed messages
+ * or the raw bytes of received messages may be used, but not both with the same instance, because the two forms generally
+ * have different fingerprints. Typical usage:
+ *
+ * <blockquote><pre>
+ * HL7Message ack = filter.getACK(msg);
+ * if (ack == null) {
+ *     ack = process(msg);
+ *     filter.putACK(msg, ack);
+ * }
+ * send(ack);
+ * </pre></blockquote>
+ *
+ * <p>
+ * Acknowlegements are retained for at most the configured maximum age, and only the most recently recorded ones are retained
+ * once the configured maximum number is reached. Recorded acknowlegements are {@linkplain HL7Message#freeze frozen}
+ * (copying them first if necessary), so the same instance may be replayed any number of times by any number of threads.
+ *
+ * <p>
+ * Instances are thread safe. Lookups do not block; recording an acknowlegement acquires a lock briefly. If two copies
+ * of the same message are processed concurrently, both may miss; callers that must prevent this should serialize processing
+ * of each sender's messages, as a single LLP connection does naturally.
+ */
+public class HL7DuplicateFilter {
+
+    private static final int CONTROL_ID_FIELD = 10;
+
+    private final int maxSize;
+    private final long maxAge;
+    private final boolean excludeTimestamp;
+    private final ConcurrentHashMap<Key, Entry> map = new ConcurrentHashMap<>();
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();             // in order of insertion; guarded by itself
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize maximum number of acknowlegements to retain
+     * @param maxAge maximum time to retain each acknowlegement in milliseconds
+     * @param excludeTimestamp true to ignore MSH.7 when comparing messages, because some senders regenerate it
+     *  when retransmitting
+     * @throws IllegalArgumentException if {@code maxSize} or {@code maxAge} is not positive
+     */
+    public HL7DuplicateFilter(int maxSize, long maxAge, boolean excludeTimestamp) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("maxSize=" + maxSize);
+        if (maxAge <= 0)
+            throw new IllegalArgumentException("maxAge=" + maxAge);
+        this.maxSize = maxSize;
+        this.maxAge = TimeUnit.MILLISECONDS.toNanos(maxAge);
+        this.excludeTimestamp = excludeTimestamp;
+    }
+
+    /**
+     * Get the acknowlegement previously recorded for the given message, if any.
+     *
+     * @param msg received message
+     * @return frozen acknowlegement to replay if {@code msg} is a duplicate, otherwise null
+     * @throws IllegalArgumentException if {@code msg} is null
+     */
+    public HL7Message getACK(HL7Message msg) {
+        return this.get(this.keyOf(msg));
+    }
+
+    /**
+     * Record the acknowlegement generated for the given message.
+     *
+     * @param msg received message
+     * @param ack acknowlegement of {@code msg}
+     * @throws IllegalArgumentException if either parameter is null
+     */
+    public void putACK(HL7Message msg, HL7Message ack) {
+        this.put(this.keyOf(msg), ack);
+    }
+
+    /**
+     * Get the acknowlegement previously recorded for the given encoded message, if any.
+     *
+     * @param buf buffer containing the encoded message
+     * @param off offset of the message in {@code buf}
+     * @param len length of the message
+     * @return frozen acknowlegement to replay if the message is a duplicate, otherwise null
+     * @throws IllegalArgumentException if {@code buf} is null
+     * @throws IndexOutOfBoundsException if {@code off} or {@code len} is out of bounds
+     */
+    public HL7Message getACK(byte[] buf, int off, int len) {
+        return this.get(this.keyOf(buf, off, len));
+    }
+
+    /**
+     * Record the acknowlegement generated for the given encoded message.
+     *
+     * @param buf buffer containing the encoded message
+     * @param off offset of the message in {@code buf}
+     * @param len length of the message
+     * @param ack acknowlegement of the message
+     * @throws IllegalArgumentException if {@code buf} or {@code ack} is null
+     * @throws IndexOutOfBoundsException if {@code off} or {@code len} is out of bounds
+     */
+    public void putACK(byte[] buf, int off, int len, HL7Message ack) {
+        this.put(this.keyOf(buf, off, len), ack);
+    }
+
+    /**
+     * Get the number of acknowlegements currently retained, including any that have expired but not yet been discarded.
+     *
+     * @return number of retained acknowlegements
+     */
+    public int size() {
+        return this.map.size();
+    }
+
+    /**
+     * Forget all recorded acknowlegements.
+     */
+    public void clear() {
+        synchronized (this.queue) {
+            this.queue.clear();
+            this.map.clear();
+        }
+    }
+
+    private HL7Message get(Key key) {
+        final Entry entry = this.map.get(key);
+        if (entry == null || System.nanoTime() - entry.time >= this.maxAge)
+            return null;
+        return entry.ack;
+    }
+
+    private void put(Key key, HL7Message ack) {
+        if (ack == null)
+            throw new IllegalArgumentException("null ack");
+        final Entry entry = new Entry(key, ack.isFrozen() ? ack : new HL7Message(ack).freeze(), System.nanoTime());
+        synchronized (this.queue) {
+            this.map.put(key, entry);
+            this.queue.addLast(entry);
+
+            // Evict the oldest entries; entries superseded by a later one for the same key still count toward the limit
+            while (true) {
+                final Entry oldest = this.queue.peekFirst();
+                if (this.queue.size() <= this.maxSize && entry.time - oldest.time < this.maxAge)
+                    break;
+                this.queue.removeFirst();
+                this.map.remove(oldest.key, oldest);
+            }
+        }
+    }
+
+    private Key keyOf(HL7Message msg) {
+        if (msg == null)
+            throw new IllegalArgumentException("null msg");
+        final HL7Field controlID = msg.getMSHSegment().getControlID();
+        return new Key(HL7Fingerprint.of(msg, this.excludeTimestamp), controlID != null ? controlID.toString() : "");
+    }
+
+    private Key keyOf(byte[] buf, int off, int len) {
+        final HL7Fingerprint fingerprint = HL7Fingerprint.of(buf, off, len, this.excludeTimestamp);
+        final int[] controlID = HL7Fingerprint.findMSHField(buf, off, off + len, CONTROL_ID_FIELD);
+        return new Key(fingerprint, controlID != null ?
+          new String(buf, controlID[0], controlID[1] - controlID[0], StandardCharsets.ISO_8859_1) : "");
+    }
+
+// Key
+
+    private static final class Key {
+
+        final HL7Fingerprint fingerprint;
+        final String controlID;
+
+        Key(HL7Fingerprint fingerprint, String controlID) {
+            this.fingerprint = fingerprint;
+            this.controlID = controlID;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            final Key that = (Key)obj;
+            return this.fingerprint.equals(that.fingerprint) && this.controlID.equals(that.controlID);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.fingerprint.hashCode() ^ this.controlID.hashCode();
+        }
+    }
+
+// Entry
+
+    private static final class Entry {
+
+        final Key key;
+        final HL7Message ack;
+        final long time;
+
+        Entry(Key key, HL7Message ack, long time) {
+            this.key = key;
+            this.ack = ack;
+            this.time = time;
+        }
+    }
+}
@@ -5,6 +5,11 @@
 
 package org.dellroad.hl7;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.Arrays;
 
@@ -15,8 +20,18 @@ import java.util.Arrays;
  * Instances of this class are "immutable"; however, for this to be
  * true the calling application must not alter the arrays passed to
  * the constructor or returned from any of the methods.
+ *
+ * <p>
+ * Fields belonging to lazily parsed segments (see {@link HL7Segment}) are <i>views</i> of the original message text:
+ * {@link #get get()} and {@link #getCharSequence getCharSequence()} locate the requested sub-component by scanning the
+ * text directly, and the full value array is only built if {@link #getValue} (or {@link #equals equals()}, etc.) is invoked.
+ * Like lazy segments, view instances are not safe for concurrent access by multiple threads, unless
+ * {@linkplain HL7Segment#freeze frozen}.
+ *
+ * <p>
+ * Most fields in real messages are simple values, or repeats of simple values, so instances store these compactly
+ * rather than as nested arrays; the full array form returned by {@link #getValue} is only created when needed.
  */
-@SuppressWarnings("serial")
 public final class HL7Field implements Serializable {
 
     /**
@@ -24,10 +39,29 @@ public final class HL7Field implements Serializable {
      */
     public static final HL7Field EMPTY = new HL7Field("");
 
+    // Same as computed for version 1.3.2, so fields serialized by that version can still be read
+    private static final long serialVersionUID = -2309075357503449908L;
+
+    // The serialized form is always the full array, regardless of layout
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("value", String[][][].class)
+    };
+
     /**
-     * Field value, with dimensions being: repeats, components, and sub-components.
+     * Field value, in the most compact of three layouts: a {@link String} if the field has a single repeat containing
+     * a single component containing a single sub-component, a {@code String[]} if the field has two or more repeats
+     * of that form, or otherwise a {@code String[][][]} with dimensions being repeats, components, and sub-components.
+     * Null until needed for views.
      */
-    protected final String[][][] value;
+    private transient Object value;
+
+    // View state: the encoded field and its separators
+    private transient CharSlice raw;
+    private transient HL7Seps rawSeps;
+
+    // Cached hash code, once frozen; "frozen" is volatile because instances may be shared by segments in different threads
+    private transient int hash;
+    private transient volatile boolean frozen;
 
     /**
      * Constructor.
@@ -35,7 +69,7 @@ public final class HL7Field implements Serializable {
      * @param value simple string value for this field; null is treated like the empty string
      */
     public HL7Field(String value) {
-        this(new String[][][] { { { value } } });
+        this.value = value != null ? value : "";
     }
 
     /**
@@ -48,10 +82,21 @@ public final class HL7Field implements Serializable {
      * @throws IllegalArgumentException if <code>repeats</code> array has length zero
      */
     public HL7Field(String[] repeats) {
-        this.value = new String[repeats.length][1][1];
-        for (int i = 0; i < repeats.length; i++)
-            this.value[i][0][0] = repeats[i];
-        this.checkLengthsAndReplaceNulls();
+        if (repeats.length == 0)
+            throw new IllegalArgumentException("zero length array");
+        if (repeats.length == 1) {
+            this.value = repeats[0] != null ? repeats[0] : "";
+            return;
+        }
+        String[] array = repeats;
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == null) {
+                if (array == repeats)
+                    array = repeats.clone();
+                array[i] = "";
+            }
+        }
+        this.value = array;
     }
 
     /**
@@ -67,8 +112,40 @@ public final class HL7Field implements Serializable {
      * @throws IllegalArgumentException if <code>repeats</code> array or any sub-array has length zero
      */
     public HL7Field(String[][][] repeats) {
-        this.value = repeats;
-        this.checkLengthsAndReplaceNulls();
+        this(repeats, true);
+    }
+
+    /**
+     * Internal constructor.
+     *
+     * @param repeats repeat array, each containing a component array, each containing a sub-component array
+     * @param check true to validate array lengths and replace nulls, false if {@code repeats} is already known to be valid
+     */
+    HL7Field(String[][][] repeats, boolean check) {
+        if (check)
+            HL7Field.checkLengthsAndReplaceNulls(repeats);
+        this.value = HL7Field.compact(repeats);
+    }
+
+    /**
+     * View constructor.
+     *
+     * <p>
+     * The encoded field is not decoded or copied; {@code text} must not change afterward.
+     *
+     * @param text encoded text
+     * @param start starting offset of the field in {@code text} (inclusive)
+     * @param end ending offset of the field in {@code text} (exclusive)
+     * @param seps HL7 separator characters
+     */
+    HL7Field(CharSequence text, int start, int end, HL7Seps seps) {
+        this.raw = new CharSlice(text, start, end);
+        this.rawSeps = seps;
+    }
+
+    // Constructor for decodeField()
+    private HL7Field(Object value) {
+        this.value = value;
     }
 
     /**
@@ -82,28 +159,29 @@ public final class HL7Field implements Serializable {
      */
     public HL7Field(String field, HL7Seps seps) {
         int[] repSeps = HL7Util.find(field, seps.getRepSep());
-        this.value = new String[repSeps.length][][];
+        final String[][][] array = new String[repSeps.length][][];
         int repPosn = 0;
         for (int i = 0; i < repSeps.length; i++) {
             int[] compSeps = HL7Util.find(field, seps.getCompSep(), repPosn, repSeps[i]);
-            this.value[i] = new String[compSeps.length][];
+            array[i] = new String[compSeps.length][];
             int compPosn = repPosn;
             for (int j = 0; j < compSeps.length; j++) {
-                if (!seps.hasSubcomponentSeparator()) {
-                    this.value[i][j] = new String[] { seps.unescape(field.substring(compPosn, compSeps[j])) };
-                    continue;
-                }
-                int[] subSeps = HL7Util.find(field, seps.getSubSep(), compPosn, compSeps[j]);
-                this.value[i][j] = new String[subSeps.length];
-                int subPosn = compPosn;
-                for (int k = 0; k < subSeps.length; k++) {
-                    this.value[i][j][k] = seps.unescape(field.substring(subPosn, subSeps[k]));
-                    subPosn = subSeps[k] + 1;
+                if (!seps.hasSubcomponentSeparator())
+                    array[i][j] = new String[] { seps.unescape(field.substring(compPosn, compSeps[j])) };
+                else {
+                    int[] subSeps = HL7Util.find(field, seps.getSubSep(), compPosn, compSeps[j]);
+                    array[i][j] = new String[subSeps.length];
+                    int subPosn = compPosn;
+                    for (int k = 0; k < subSeps.length; k++) {
+                        array[i][j][k] = seps.unescape(field.substring(subPosn, subSeps[k]));
+                        subPosn = subSeps[k] + 1;
+                    }
                 }
                 compPosn = compSeps[j] + 1;
             }
             repPosn = repSeps[i] + 1;
         }
+        this.value = HL7Field.compact(array);
     }
 
     /**
@@ -115,12 +193,14 @@ public final class HL7Field implements Serializable {
      * @param field field to copy
      */
     public HL7Field(HL7Field field) {
-        this.value = field.value.clone();
-        for (int i = 0; i < this.value.length; i++) {
-            this.value[i] = this.value[i].clone();
-            for (int j = 0; j < this.value.length; j++)
-                this.value[i][j] = this.value[i][j].clone();
-        }
+        this.raw = field.raw;
+        this.rawSeps = field.rawSeps;
+        if (field.value instanceof String[])
+            this.value = ((String[])field.value).clone();
+        else if (field.value instanceof String[][][])
+            this.value = HL7Field.deepCopy((String[][][])field.value);
+        else
+            this.value = field.value;
     }
 
     /**
@@ -131,12 +211,25 @@ public final class HL7Field implements Serializable {
      * is guaranteed to be at least one.
      *
      * <p>
-     * Note: the returned array is not a copy, so the caller should not modify it.
+     * Note: the returned array may not be a copy, so the caller should not modify it. For simple fields, and fields
+     * having only simple repeats, the array is created on each invocation; use {@link #get get()} to access individual
+     * values without creating it. If this field belongs to a {@linkplain HL7Segment#freeze frozen} segment, the returned
+     * array is always a copy.
      *
      * @return array of repeats, each an array of components, each an array of sub-components, each a non-null String.
      */
     public String[][][] getValue() {
-        return this.value;
+        final Object decoded = this.decode();
+        if (decoded instanceof String)
+            return new String[][][] { { { (String)decoded } } };
+        if (decoded instanceof String[]) {
+            final String[] repeats = (String[])decoded;
+            final String[][][] array = new String[repeats.length][][];
+            for (int i = 0; i < repeats.length; i++)
+                array[i] = new String[][] { { repeats[i] } };
+            return array;
+        }
+        return this.frozen ? HL7Field.deepCopy((String[][][])decoded) : (String[][][])decoded;
     }
 
     /**
@@ -145,7 +238,14 @@ public final class HL7Field implements Serializable {
      * @return true if this field is empty, otherwise false
      */
     public boolean isEmpty() {
-        return EMPTY.equals(this);
+        if (this.value == null) {
+            if (this.raw.length() == 0)
+                return true;
+            if (!this.rawSeps.hasEscapeCharacter()
+              || HL7Util.indexOf(this.raw.getText(), this.rawSeps.getEscChar(), this.raw.getStart(), this.raw.getEnd()) == -1)
+                return false;
+        }
+        return "".equals(this.decode());
     }
 
     /**
@@ -158,13 +258,33 @@ public final class HL7Field implements Serializable {
      * @throws IllegalArgumentException if any parameter is negative
      */
     public String get(int repnum, int compnum, int subnum) {
+        final CharSequence leaf = this.getCharSequence(repnum, compnum, subnum);
+        return leaf != null ? leaf.toString() : null;
+    }
+
+    /**
+     * Get a specific field sub-component as a {@link CharSequence}.
+     *
+     * <p>
+     * For fields that are views of the original message text, this avoids copying any characters
+     * unless the sub-component contains escape sequences.
+     *
+     * @param repnum repeat number (zero-based)
+     * @param compnum component number (zero-based)
+     * @param subnum sub-component number (zero-based)
+     * @return specified sub-component, or null if it does not exist
+     * @throws IllegalArgumentException if any parameter is negative
+     */
+    public CharSequence getCharSequence(int repnum, int compnum, int subnum) {
         if (repnum < 0 || compnum < 0 || subnum < 0)
             throw new IllegalArgumentException("negative index");
-        try {
-            return this.value[repnum][compnum][subnum];
-        } catch (ArrayIndexOutOfBoundsException e) {
+        if (this.value == null)
+            return this.findLeaf(repnum, compnum, subnum);
+        if (repnum >= this.numRepeats()
+          || compnum >= this.numComponents(repnum)
+          || subnum >= this.numSubComponents(repnum, compnum))
             return null;
-        }
+        return this.leaf(repnum, compnum, subnum);
     }
 
     /**
@@ -175,16 +295,43 @@ public final class HL7Field implements Serializable {
      * @param seps HL7 separator and escape characters
      */
     public void append(StringBuilder buf, HL7Seps seps) {
-        for (int i = 0; i < this.value.length; i++) {
+        try {
+            this.writeTo(buf, seps);
+        } catch (IOException e) {
+            throw new RuntimeException("impossible", e);
+        }
+    }
+
+    /**
+     * Write the encoding of this field, using the given separator and escape characters, to the given output.
+     *
+     * @param out destination
+     * @param seps HL7 separator and escape characters
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(Appendable out, HL7Seps seps) throws IOException {
+        if (this.raw != null && seps.equals(this.rawSeps)) {
+            this.raw.appendTo(out);
+            return;
+        }
+        final Object decoded = this.decode();
+        if (decoded instanceof String) {
+            seps.escape((String)decoded, out);
+            return;
+        }
+        final int numRepeats = this.numRepeats();
+        for (int i = 0; i < numRepeats; i++) {
             if (i > 0)
-                buf.append(seps.getRepSep());
-            for (int j = 0; j < this.value[i].length; j++) {
+                out.append(seps.getRepSep());
+            final int numComponents = this.numComponents(i);
+            for (int j = 0; j < numComponents; j++) {
                 if (j > 0)
-                    buf.append(seps.getCompSep());
-                for (int k = 0; k < this.value[i][j].length; k++) {
+                    out.append(seps.getCompSep());
+                final int numSubComponents = this.numSubComponents(i, j);
+                for (int k = 0; k < numSubComponents; k++) {
                     if (k > 0)
-                        buf.append(seps.getSubSep());
-                    seps.escape(this.value[i][j][k], buf);
+                        out.append(seps.getSubSep());
+                    seps.escape(this.leaf(i, j, k), out);
                 }
             }
         }
@@ -212,29 +359,285 @@ public final class HL7Field implements Serializable {
 
     @Override
     public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
         if (!(obj instanceof HL7Field))
             return false;
         HL7Field that = (HL7Field)obj;
-        return Arrays.deepEquals(this.value, that.value);
+        if (this.frozen && that.frozen && this.hash != that.hash)
+            return false;
+        if (this.raw != null && that.raw != null && this.rawSeps.equals(that.rawSeps) && this.raw.contentEquals(that.raw))
+            return true;
+        final Object thisValue = this.decode();
+        final Object thatValue = that.decode();
+        if (thisValue instanceof String)
+            return thisValue.equals(thatValue);                             // layouts are canonical
+        if (thisValue instanceof String[])
+            return thatValue instanceof String[] && Arrays.equals((String[])thisValue, (String[])thatValue);
+        return thatValue instanceof String[][][] && Arrays.deepEquals((String[][][])thisValue, (String[][][])thatValue);
     }
 
+    // This is equal to Arrays.deepHashCode(this.getValue()), without creating the array
     @Override
     public int hashCode() {
-        return Arrays.deepHashCode(this.value);
+        if (this.frozen)
+            return this.hash;
+        final Object decoded = this.decode();
+        if (decoded instanceof String)
+            return 93 + decoded.hashCode();
+        if (decoded instanceof String[]) {
+            int hash = 1;
+            for (String repeat : (String[])decoded)
+                hash = 31 * hash + 62 + repeat.hashCode();
+            return hash;
+        }
+        return Arrays.deepHashCode((String[][][])decoded);
+    }
+
+    /**
+     * Decode this instance and cache its hash code, so that it is never modified afterward.
+     */
+    void freeze() {
+        if (this.frozen)
+            return;
+        this.decode();
+        this.hash = this.hashCode();
+        this.frozen = true;
+    }
+
+    /**
+     * Decode a view instance, if not already decoded.
+     *
+     * @return field value in its internal layout
+     */
+    Object decode() {
+        if (this.value == null)
+            this.value = HL7Field.decodeValue(this.raw.getText(), this.raw.getStart(), this.raw.getEnd(), this.rawSeps);
+        return this.value;
+    }
+
+    /**
+     * Decode an encoded field into a new instance that is not a view.
+     *
+     * @param text encoded text
+     * @param start starting offset of the field in {@code text} (inclusive)
+     * @param end maximum ending offset of the field in {@code text} (exclusive)
+     * @param seps HL7 separator characters
+     * @return decoded field
+     */
+    static HL7Field decodeField(CharSequence text, int start, int end, HL7Seps seps) {
+        final Object value = HL7Field.decodeValue(text, start, end, seps);
+        return "".equals(value) ? HL7Field.EMPTY : new HL7Field(value);
+    }
+
+    /**
+     * Decode an encoded field, ending at the first field separator or segment terminator (if any), directly into the
+     * layout used by {@link #value}. The result is the same as parsing the field using {@link HL7Parser} and
+     * {@link HL7MessageBuilder}, but nothing is allocated other than the decoded value itself.
+     */
+    private static Object decodeValue(CharSequence text, int start, int end, HL7Seps seps) {
+        final char fieldSep = seps.getFieldSep();
+        final char repSep = seps.getRepSep();
+        final char compSep = seps.getCompSep();
+        final char subSep = seps.getSubSep();
+        final boolean hasSubSep = seps.hasSubcomponentSeparator();
+
+        // Find the end of the field, and determine whether any repeat has more than one component or sub-component
+        int numRepeats = 1;
+        boolean simple = true;
+        int stop;
+        for (stop = start; stop < end; stop++) {
+            final char ch = text.charAt(stop);
+            if (ch == fieldSep || ch == HL7Message.SEGMENT_TERMINATOR)
+                break;
+            if (ch == repSep)
+                numRepeats++;
+            else if (ch == compSep || (hasSubSep && ch == subSep))
+                simple = false;
+        }
+
+        // Handle simple values and repeats of simple values, which are the most common
+        if (simple && numRepeats == 1)
+            return HL7Field.decodeLeaf(text, start, stop, seps);
+        int posn = start;
+        if (simple) {
+            final String[] repeats = new String[numRepeats];
+            for (int i = 0; i < numRepeats; i++) {
+                final int repEnd = i < numRepeats - 1 ? HL7Util.indexOf(text, repSep, posn, stop) : stop;
+                repeats[i] = HL7Field.decodeLeaf(text, posn, repEnd, seps);
+                posn = repEnd + 1;
+            }
+            return repeats;
+        }
+
+        // Build the full array
+        final String[][][] repeats = new String[numRepeats][][];
+        for (int i = 0; i < numRepeats; i++) {
+            final int repEnd = i < numRepeats - 1 ? HL7Util.indexOf(text, repSep, posn, stop) : stop;
+            final String[][] comps = new String[HL7Field.count(text, compSep, posn, repEnd) + 1][];
+            for (int j = 0; j < comps.length; j++) {
+                final int compEnd = j < comps.length - 1 ? HL7Util.indexOf(text, compSep, posn, repEnd) : repEnd;
+                final String[] subs = new String[hasSubSep ? HL7Field.count(text, subSep, posn, compEnd) + 1 : 1];
+                for (int k = 0; k < subs.length; k++) {
+                    final int subEnd = k < subs.length - 1 ? HL7Util.indexOf(text, subSep, posn, compEnd) : compEnd;
+                    subs[k] = HL7Field.decodeLeaf(text, posn, subEnd, seps);
+                    posn = subEnd + 1;
+                }
+                comps[j] = subs;
+            }
+            repeats[i] = comps;
+        }
+        return repeats;
+    }
+
+    private static String decodeLeaf(CharSequence text, int start, int end, HL7Seps seps) {
+        final String value = text.subSequence(start, end).toString();
+        return seps.hasEscapeCharacter() && value.indexOf(seps.getEscChar()) != -1 ? seps.unescape(value) : value;
+    }
+
+    private static int count(CharSequence text, char ch, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == ch)
+                count++;
+        }
+        return count;
+    }
+
+    private static String[][][] deepCopy(String[][][] value) {
+        final String[][][] array = value.clone();
+        for (int i = 0; i < array.length; i++) {
+            array[i] = array[i].clone();
+            for (int j = 0; j < array[i].length; j++)
+                array[i][j] = array[i][j].clone();
+        }
+        return array;
+    }
+
+    // Access the decoded value independent of layout
+
+    private int numRepeats() {
+        if (this.value instanceof String)
+            return 1;
+        if (this.value instanceof String[])
+            return ((String[])this.value).length;
+        return ((String[][][])this.value).length;
+    }
+
+    private int numComponents(int repnum) {
+        return this.value instanceof String[][][] ? ((String[][][])this.value)[repnum].length : 1;
+    }
+
+    private int numSubComponents(int repnum, int compnum) {
+        return this.value instanceof String[][][] ? ((String[][][])this.value)[repnum][compnum].length : 1;
+    }
+
+    private String leaf(int repnum, int compnum, int subnum) {
+        if (this.value instanceof String)
+            return (String)this.value;
+        if (this.value instanceof String[])
+            return ((String[])this.value)[repnum];
+        return ((String[][][])this.value)[repnum][compnum][subnum];
+    }
+
+    /**
+     * Convert a valid field value array into the most compact layout.
+     */
+    private static Object compact(String[][][] repeats) {
+        for (String[][] repeat : repeats) {
+            if (repeat.length != 1 || repeat[0].length != 1)
+                return repeats;
+        }
+        if (repeats.length == 1)
+            return repeats[0][0][0];
+        final String[] array = new String[repeats.length];
+        for (int i = 0; i < repeats.length; i++)
+            array[i] = repeats[i][0][0];
+        return array;
+    }
+
+    /**
+     * Locate a sub-component in the encoded text of a view instance.
+     *
+     * @return specified sub-component, or null if it does not exist
+     */
+    private CharSequence findLeaf(int repnum, int compnum, int subnum) {
+
+        // Get separators
+        final CharSequence text = this.raw.getText();
+        final int end = this.raw.getEnd();
+        final char repSep = this.rawSeps.getRepSep();
+        final char compSep = this.rawSeps.getCompSep();
+        final char subSep = this.rawSeps.getSubSep();
+        final char escChar = this.rawSeps.getEscChar();
+        final boolean hasSubSep = this.rawSeps.hasSubcomponentSeparator();
+        final boolean hasEscChar = this.rawSeps.hasEscapeCharacter();
+
+        // Find the start of the sub-component, giving up as soon as we pass the containing repeat or component
+        int start = this.raw.getStart();
+        int r = 0;
+        int c = 0;
+        int s = 0;
+        while (r != repnum || c != compnum || s != subnum) {
+            if (start == end)
+                return null;
+            final char ch = text.charAt(start++);
+            if (ch == repSep) {
+                if (r == repnum)
+                    return null;
+                r++;
+                c = 0;
+                s = 0;
+            } else if (ch == compSep) {
+                if (r == repnum && c == compnum)
+                    return null;
+                c++;
+                s = 0;
+            } else if (hasSubSep && ch == subSep)
+                s++;
+        }
+
+        // Find the end of the sub-component
+        boolean escaped = false;
+        int i;
+        for (i = start; i < end; i++) {
+            final char ch = text.charAt(i);
+            if (ch == repSep || ch == compSep || (hasSubSep && ch == subSep))
+                break;
+            if (hasEscChar && ch == escChar)
+                escaped = true;
+        }
+        return escaped ? this.rawSeps.unescape(text.subSequence(start, i).toString()) : new CharSlice(text, start, i);
+    }
+
+    // All instances, including views, are serialized in the full array form
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        output.putFields().put("value", this.getValue());
+        output.writeFields();
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        final String[][][] array = (String[][][])input.readFields().get("value", null);
+        try {
+            HL7Field.checkLengthsAndReplaceNulls(array);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw (InvalidObjectException)new InvalidObjectException("invalid field value").initCause(e);
+        }
+        this.value = HL7Field.compact(array);
     }
 
-    private void checkLengthsAndReplaceNulls() {
-        if (this.value.length == 0)
+    private static void checkLengthsAndReplaceNulls(String[][][] value) {
+        if (value.length == 0)
             throw new IllegalArgumentException("zero length array");
-        for (int i = 0; i < this.value.length; i++) {
-            if (this.value[i].length == 0)
+        for (int i = 0; i < value.length; i++) {
+            if (value[i].length == 0)
                 throw new IllegalArgumentException("zero length sub-array");
-            for (int j = 0; j < this.value[i].length; j++) {
-                if (this.value[i][j].length == 0)
+            for (int j = 0; j < value[i].length; j++) {
+                if (value[i][j].length == 0)
                     throw new IllegalArgumentException("zero length sub-array");
-                for (int k = 0; k < this.value[i][j].length; k++) {
-                    String s = this.value[i][j][k];
-                    this.value[i][j][k] = s != null ? s : "";
+                for (int k = 0; k < value[i][j].length; k++) {
+                    String s = value[i][j][k];
+                    value[i][j][k] = s != null ? s : "";
                 }
             }
         }
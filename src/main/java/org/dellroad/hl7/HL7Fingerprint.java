@@ -0,0 +1,358 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A 128-bit hash of the content of an HL7 message, suitable for detecting retransmitted duplicates.
+ *
+ * <p>
+ * The fingerprint of an {@link HL7Message} is computed over its canonical form, i.e., its UTF-8 encoding using
+ * {@link HL7Seps#DEFAULT} with each segment terminated by a single carriage return, so messages that differ only in their
+ * choice of separators or escape sequences have the same fingerprint. Fingerprints may also be computed directly over the
+ * raw bytes of a received message, before it is parsed; the raw bytes are hashed as is, except that trailing carriage
+ * returns and newlines are normalized to a single carriage return. Therefore, the two agree when the raw bytes are the
+ * message's canonical UTF-8 (or ASCII) encoding.
+ *
+ * <p>
+ * Senders often regenerate the timestamp (MSH.7) when retransmitting a message, so it may optionally be excluded;
+ * in that case, MSH.7 is hashed as if it were empty.
+ *
+ * <p>
+ * The hash function is MurmurHash3 (x64, 128-bit variant) with seed zero. It is fast but not cryptographically secure,
+ * so fingerprints should not be relied upon to detect deliberately forged messages. Where 64 bits suffice, either half
+ * of the fingerprint may be used alone.
+ *
+ * <p>
+ * Instances are immutable.
+ */
+@SuppressWarnings("serial")
+public final class HL7Fingerprint implements Serializable {
+
+    private static final int TIMESTAMP_FIELD = 7;
+
+    private final long msb;
+    private final long lsb;
+
+    /**
+     * Constructor.
+     *
+     * @param msb most significant 64 bits
+     * @param lsb least significant 64 bits
+     */
+    public HL7Fingerprint(long msb, long lsb) {
+        this.msb = msb;
+        this.lsb = lsb;
+    }
+
+    /**
+     * Compute the fingerprint of the canonical form of the given message, including MSH.7.
+     *
+     * <p>
+     * Equivalent to: {@link #of(HL7Message, boolean) of}{@code (msg, false)}.
+     *
+     * @param msg message
+     * @return message fingerprint
+     * @throws IllegalArgumentException if {@code msg} is null
+     */
+    public static HL7Fingerprint of(HL7Message msg) {
+        return HL7Fingerprint.of(msg, false);
+    }
+
+    /**
+     * Compute the fingerprint of the canonical form of the given message.
+     *
+     * @param msg message
+     * @param excludeTimestamp true to hash MSH.7 as if it were empty
+     * @return message fingerprint
+     * @throws IllegalArgumentException if {@code msg} is null
+     */
+    public static HL7Fingerprint of(HL7Message msg, boolean excludeTimestamp) {
+        if (msg == null)
+            throw new IllegalArgumentException("null msg");
+        final HL7Seps seps = HL7Seps.DEFAULT;
+        final Hasher hasher = new Hasher();
+        try {
+            for (HL7Segment segment : msg.getSegments()) {
+                if (segment instanceof MSHSegment && excludeTimestamp) {
+                    final int numFields = segment.getNumFields();
+                    hasher.append(MSHSegment.MSH_SEGMENT_NAME).append(seps.toString());
+                    for (int i = 3; i < numFields; i++) {
+                        hasher.append(seps.getFieldSep());
+                        if (i != TIMESTAMP_FIELD)
+                            segment.getField(i).writeTo(hasher, seps);
+                    }
+                } else
+                    segment.encode(hasher, seps);
+                hasher.append(HL7Message.SEGMENT_TERMINATOR);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("impossible", e);
+        }
+        return hasher.finish();
+    }
+
+    /**
+     * Compute the fingerprint of the raw bytes of an encoded message.
+     *
+     * <p>
+     * If {@code excludeTimestamp} is true and the bytes start with an MSH segment, then MSH.7 is hashed as if it were empty.
+     *
+     * @param buf buffer containing the encoded message
+     * @param off offset of the message in {@code buf}
+     * @param len length of the message
+     * @param excludeTimestamp true to hash MSH.7 as if it were empty
+     * @return message fingerprint
+     * @throws IllegalArgumentException if {@code buf} is null
+     * @throws IndexOutOfBoundsException if {@code off} or {@code len} is out of bounds
+     */
+    public static HL7Fingerprint of(byte[] buf, int off, int len, boolean excludeTimestamp) {
+        if (buf == null)
+            throw new IllegalArgumentException("null buf");
+        if (off < 0 || len < 0 || off > buf.length - len)
+            throw new IndexOutOfBoundsException("off=" + off + ", len=" + len + ", length=" + buf.length);
+
+        // Ignore trailing segment terminators
+        int end = off + len;
+        while (end > off && (buf[end - 1] == '\r' || buf[end - 1] == '\n'))
+            end--;
+
+        // Find MSH.7, if needed
+        int skipStart = end;
+        int skipEnd = end;
+        if (excludeTimestamp) {
+            final int[] timestamp = HL7Fingerprint.findMSHField(buf, off, end, TIMESTAMP_FIELD);
+            if (timestamp != null) {
+                skipStart = timestamp[0];
+                skipEnd = timestamp[1];
+            }
+        }
+
+        // Hash
+        final Hasher hasher = new Hasher();
+        hasher.update(buf, off, skipStart - off);
+        hasher.update(buf, skipEnd, end - skipEnd);
+        hasher.update((byte)HL7Message.SEGMENT_TERMINATOR);
+        return hasher.finish();
+    }
+
+    /**
+     * Get the most significant 64 bits of this fingerprint.
+     *
+     * @return most significant bits
+     */
+    public long getMostSignificantBits() {
+        return this.msb;
+    }
+
+    /**
+     * Get the least significant 64 bits of this fingerprint.
+     *
+     * @return least significant bits
+     */
+    public long getLeastSignificantBits() {
+        return this.lsb;
+    }
+
+    /**
+     * Get this fingerprint as 32 hexadecimal digits.
+     */
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", this.msb, this.lsb);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof HL7Fingerprint))
+            return false;
+        final HL7Fingerprint that = (HL7Fingerprint)obj;
+        return this.msb == that.msb && this.lsb == that.lsb;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int)this.lsb;
+    }
+
+    /**
+     * Find a field in the MSH segment at the start of an encoded message, without decoding anything.
+     *
+     * @param buf buffer containing the encoded message
+     * @param off offset of the message in {@code buf}
+     * @param end end of the message in {@code buf}
+     * @param index field index; must be at least three
+     * @return start and end offsets of the encoded field, or null if the message does not start with an MSH segment
+     *  or the MSH segment does not contain field {@code index}
+     */
+    static int[] findMSHField(byte[] buf, int off, int end, int index) {
+        if (end - off <= 3 || buf[off] != 'M' || buf[off + 1] != 'S' || buf[off + 2] != 'H')
+            return null;
+        final byte fieldSep = buf[off + 3];
+        int field = 2;
+        int start = -1;
+        int i;
+        for (i = off + 4; i < end && buf[i] != '\r' && buf[i] != '\n'; i++) {
+            if (buf[i] != fieldSep)
+                continue;
+            if (++field == index)
+                start = i + 1;
+            else if (field > index)
+                break;
+        }
+        return start != -1 ? new int[] { start, i } : null;
+    }
+
+// Hasher
+
+    /**
+     * Incremental MurmurHash3 x64 128-bit hash of bytes, or of the UTF-8 encoding of characters.
+     */
+    static final class Hasher implements Appendable {
+
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+
+        private long h1;
+        private long h2;
+        private long k1;                                    // pending block bytes 0-7
+        private long k2;                                    // pending block bytes 8-15
+        private int pos;                                    // number of pending block bytes
+        private long length;
+        private char highSurrogate;
+
+        void update(byte b) {
+            if (this.pos < 8)
+                this.k1 |= (b & 0xffL) << (this.pos << 3);
+            else
+                this.k2 |= (b & 0xffL) << ((this.pos - 8) << 3);
+            this.length++;
+            if (++this.pos == 16)
+                this.block();
+        }
+
+        void update(byte[] buf, int off, int len) {
+            final int end = off + len;
+            while (off < end && this.pos != 0)
+                this.update(buf[off++]);
+            while (end - off >= 16) {
+                this.k1 = Hasher.getLong(buf, off);
+                this.k2 = Hasher.getLong(buf, off + 8);
+                this.length += 16;
+                this.block();
+                off += 16;
+            }
+            while (off < end)
+                this.update(buf[off++]);
+        }
+
+        @Override
+        public Hasher append(char ch) {
+            if (this.highSurrogate != 0) {
+                final char high = this.highSurrogate;
+                this.highSurrogate = 0;
+                if (Character.isLowSurrogate(ch)) {
+                    this.encode(Character.toCodePoint(high, ch));
+                    return this;
+                }
+                this.update((byte)'?');
+            }
+            if (Character.isHighSurrogate(ch))
+                this.highSurrogate = ch;
+            else
+                this.encode(Character.isLowSurrogate(ch) ? '?' : ch);
+            return this;
+        }
+
+        @Override
+        public Hasher append(CharSequence csq) {
+            return csq != null ? this.append(csq, 0, csq.length()) : this.append("null");
+        }
+
+        @Override
+        public Hasher append(CharSequence csq, int start, int end) {
+            if (csq == null)
+                return this.append("null", start, end);
+            for (int i = start; i < end; i++)
+                this.append(csq.charAt(i));
+            return this;
+        }
+
+        HL7Fingerprint finish() {
+            if (this.highSurrogate != 0) {
+                this.highSurrogate = 0;
+                this.update((byte)'?');
+            }
+            long h1 = this.h1;
+            long h2 = this.h2;
+            if (this.pos > 8)
+                h2 ^= Long.rotateLeft(this.k2 * C2, 33) * C1;
+            if (this.pos > 0)
+                h1 ^= Long.rotateLeft(this.k1 * C1, 31) * C2;
+            h1 ^= this.length;
+            h2 ^= this.length;
+            h1 += h2;
+            h2 += h1;
+            h1 = Hasher.fmix(h1);
+            h2 = Hasher.fmix(h2);
+            h1 += h2;
+            h2 += h1;
+            return new HL7Fingerprint(h1, h2);
+        }
+
+        private void encode(int cp) {
+            if (cp < 0x80)
+                this.update((byte)cp);
+            else if (cp < 0x800) {
+                this.update((byte)(0xc0 | (cp >> 6)));
+                this.update((byte)(0x80 | (cp & 0x3f)));
+            } else if (cp < 0x10000) {
+                this.update((byte)(0xe0 | (cp >> 12)));
+                this.update((byte)(0x80 | ((cp >> 6) & 0x3f)));
+                this.update((byte)(0x80 | (cp & 0x3f)));
+            } else {
+                this.update((byte)(0xf0 | (cp >> 18)));
+                this.update((byte)(0x80 | ((cp >> 12) & 0x3f)));
+                this.update((byte)(0x80 | ((cp >> 6) & 0x3f)));
+                this.update((byte)(0x80 | (cp & 0x3f)));
+            }
+        }
+
+        private void block() {
+            this.h1 ^= Long.rotateLeft(this.k1 * C1, 31) * C2;
+            this.h1 = (Long.rotateLeft(this.h1, 27) + this.h2) * 5 + 0x52dce729;
+            this.h2 ^= Long.rotateLeft(this.k2 * C2, 33) * C1;
+            this.h2 = (Long.rotateLeft(this.h2, 31) + this.h1) * 5 + 0x38495ab5;
+            this.k1 = 0;
+            this.k2 = 0;
+            this.pos = 0;
+        }
+
+        private static long fmix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+
+        private static long getLong(byte[] buf, int off) {
+            return (buf[off] & 0xffL)
+              | (buf[off + 1] & 0xffL) << 8
+              | (buf[off + 2] & 0xffL) << 16
+              | (buf[off + 3] & 0xffL) << 24
+              | (buf[off + 4] & 0xffL) << 32
+              | (buf[off + 5] & 0xffL) << 40
+              | (buf[off + 6] & 0xffL) << 48
+              | (buf[off + 7] & 0xffL) << 56;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One occurrence of a segment group in an {@link HL7GroupView}.
+ *
+ * @see HL7GroupDefinition
+ */
+public final class HL7Group {
+
+    private final HL7GroupDefinition definition;
+    private final HL7Group parent;
+    private final int position;
+    private final HL7Segment leader;
+    private final ArrayList<HL7Group> children = new ArrayList<>(0);
+    private final ArrayList<HL7Segment> members = new ArrayList<>(0);
+    private final List<HL7Group> childrenView = Collections.unmodifiableList(this.children);
+    private final List<HL7Segment> membersView = Collections.unmodifiableList(this.members);
+
+    HL7Group(HL7GroupDefinition definition, HL7Group parent, int position, HL7Segment leader) {
+        this.definition = definition;
+        this.parent = parent;
+        this.position = position;
+        this.leader = leader;
+        if (parent != null)
+            parent.children.add(this);
+    }
+
+    /**
+     * Get the definition of this group.
+     *
+     * @return group definition
+     */
+    public HL7GroupDefinition getDefinition() {
+        return this.definition;
+    }
+
+    /**
+     * Get the group containing this group.
+     *
+     * @return parent group, or null if this is a top-level group
+     */
+    public HL7Group getParent() {
+        return this.parent;
+    }
+
+    /**
+     * Get the position of the leader segment in the message.
+     *
+     * @return index of the leader segment in {@link HL7Message#getSegments}
+     */
+    public int getPosition() {
+        return this.position;
+    }
+
+    /**
+     * Get the segment that starts this group.
+     *
+     * @return leader segment
+     */
+    public HL7Segment getLeader() {
+        return this.leader;
+    }
+
+    /**
+     * Get the groups nested directly within this group, in message order.
+     *
+     * @return unmodifiable list of child groups
+     */
+    public List<HL7Group> getChildren() {
+        return this.childrenView;
+    }
+
+    /**
+     * Get the member segments of this group, in message order. This does not include the leader segment,
+     * nor any segments in nested groups.
+     *
+     * @return unmodifiable list of member segments
+     */
+    public List<HL7Segment> getMembers() {
+        return this.membersView;
+    }
+
+    @Override
+    public String toString() {
+        return this.definition.getLeader() + "@" + this.position;
+    }
+
+    void addMember(HL7Segment segment) {
+        this.members.add(segment);
+    }
+
+    void trim() {
+        this.children.trimToSize();
+        this.members.trimToSize();
+    }
+}
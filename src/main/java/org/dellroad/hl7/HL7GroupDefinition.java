@@ -0,0 +1,166 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Declarative definition of a segment group, for use with {@link HL7GroupView}.
+ *
+ * <p>
+ * A group starts with its <i>leader</i> segment, which is followed by any number of its children, in any order.
+ * Each child is itself defined by an {@link HL7GroupDefinition}: a child definition having no children of its own
+ * is simply a member segment of the group, while a child definition having children is a nested group.
+ * For example, an order with observations, where notes may follow the order or any observation:
+ * <blockquote><pre>
+ * new HL7GroupDefinition("ORC",
+ *   new HL7GroupDefinition("OBR",
+ *     HL7GroupDefinition.of("OBX", "NTE"),
+ *     new HL7GroupDefinition("NTE")))
+ * </pre></blockquote>
+ *
+ * <p>
+ * Instances are immutable and may be shared by multiple threads.
+ */
+public final class HL7GroupDefinition {
+
+    private final String leader;
+    private final int leaderId;
+    private final List<HL7GroupDefinition> children;
+
+    /**
+     * Constructor.
+     *
+     * @param leader name of the segment that starts the group
+     * @param children child definitions; definitions without children of their own define member segments
+     * @throws IllegalArgumentException if any parameter is null or contains a null element
+     * @throws IllegalArgumentException if {@code leader} is not a valid segment name
+     * @throws IllegalArgumentException if two children have the same leader
+     */
+    public HL7GroupDefinition(String leader, HL7GroupDefinition... children) {
+        if (leader == null)
+            throw new IllegalArgumentException("null leader");
+        if (children == null)
+            throw new IllegalArgumentException("null children");
+        this.leader = leader;
+        this.leaderId = HL7SegmentId.of(leader);
+        if (this.leaderId == HL7SegmentId.INVALID)
+            throw new IllegalArgumentException("invalid segment name `" + leader + "'");
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] == null)
+                throw new IllegalArgumentException("null child");
+            for (int j = 0; j < i; j++) {
+                if (children[j].leaderId == children[i].leaderId)
+                    throw new IllegalArgumentException("duplicate child `" + children[i].leader + "'");
+            }
+        }
+        this.children = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(children)));
+    }
+
+    /**
+     * Create a group definition whose children are all member segments.
+     *
+     * @param leader name of the segment that starts the group
+     * @param members names of the member segments
+     * @return group definition
+     * @throws IllegalArgumentException if any parameter is null or contains a null element
+     * @throws IllegalArgumentException if any name is not a valid segment name
+     * @throws IllegalArgumentException if {@code members} contains duplicates
+     */
+    public static HL7GroupDefinition of(String leader, String... members) {
+        if (members == null)
+            throw new IllegalArgumentException("null members");
+        final HL7GroupDefinition[] children = new HL7GroupDefinition[members.length];
+        for (int i = 0; i < members.length; i++)
+            children[i] = new HL7GroupDefinition(members[i]);
+        return new HL7GroupDefinition(leader, children);
+    }
+
+    /**
+     * Get the name of the segment that starts the group.
+     *
+     * @return leader segment name
+     */
+    public String getLeader() {
+        return this.leader;
+    }
+
+    /**
+     * Get the {@linkplain HL7SegmentId packed identifier} of the segment that starts the group.
+     *
+     * @return leader segment identifier
+     */
+    public int getLeaderId() {
+        return this.leaderId;
+    }
+
+    /**
+     * Get the child definitions.
+     *
+     * @return unmodifiable list of child definitions
+     */
+    public List<HL7GroupDefinition> getChildren() {
+        return this.children;
+    }
+
+    /**
+     * Determine whether this definition has any children, i.e., it defines a group rather than a member segment.
+     *
+     * @return true if this definition has children
+     */
+    public boolean isGroup() {
+        return !this.children.isEmpty();
+    }
+
+    /**
+     * Returns this definition in a compact form, e.g., {@code ORC[OBR[OBX[NTE],NTE]]}.
+     */
+    @Override
+    public String toString() {
+        if (this.children.isEmpty())
+            return this.leader;
+        final StringBuilder buf = new StringBuilder(this.leader).append('[');
+        for (int i = 0; i < this.children.size(); i++) {
+            if (i > 0)
+                buf.append(',');
+            buf.append(this.children.get(i));
+        }
+        return buf.append(']').toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
+        if (obj == null || obj.getClass() != getClass())
+            return false;
+        final HL7GroupDefinition that = (HL7GroupDefinition)obj;
+        return this.leaderId == that.leaderId && this.children.equals(that.children);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.leaderId * 31 + this.children.hashCode();
+    }
+
+    /**
+     * Find the child definition with the given leader.
+     *
+     * @param id packed leader segment name
+     * @return matching child, or null if none
+     */
+    HL7GroupDefinition getChild(int id) {
+        for (int i = 0; i < this.children.size(); i++) {
+            final HL7GroupDefinition child = this.children.get(i);
+            if (child.leaderId == id)
+                return child;
+        }
+        return null;
+    }
+}
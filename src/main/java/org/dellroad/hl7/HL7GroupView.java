@@ -0,0 +1,197 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hierarchical view of the segments in an {@link HL7Message}, organized into groups according to one or more
+ * {@link HL7GroupDefinition}s, for example, orders with their observations, or a patient with their visit.
+ *
+ * <p>
+ * The view is built in a single pass over the segments. Each segment is first matched against the children
+ * of the innermost open group, then against the children of each enclosing group in turn (closing any groups nested
+ * inside the one that matches), and finally against the top-level definitions (closing all open groups). A segment
+ * matching a child definition that has children of its own starts a new nested group; a segment matching a child
+ * definition without children becomes a member of the matching group. Segments that match nothing are not part of
+ * any group, and do not close any open groups.
+ *
+ * <p>
+ * Once built, the children of any group, and the group containing any segment, are available in constant time.
+ *
+ * <p>
+ * Instances are obtained via {@link HL7Message#getGroupView HL7Message.getGroupView()}. A view reflects the segments
+ * at the time it was built and is not updated if the message is modified afterward; however, the message will
+ * build a new view as necessary.
+ */
+public final class HL7GroupView {
+
+    private final HL7SegmentList segments;
+    private final long version;
+    private final List<HL7GroupDefinition> definitions;
+    private final List<HL7Group> groups;
+    private final List<HL7Group> allGroups;
+    private final HL7Group[] leaders;
+    private final HL7Group[] parents;
+
+    /**
+     * Constructor.
+     *
+     * @param segments message segments
+     * @param definitions top-level group definitions
+     * @throws IllegalArgumentException if {@code definitions} is null or contains a null element
+     * @throws IllegalArgumentException if two top-level definitions have the same leader
+     */
+    HL7GroupView(HL7SegmentList segments, HL7GroupDefinition[] definitions) {
+        if (definitions == null)
+            throw new IllegalArgumentException("null definitions");
+        for (int i = 0; i < definitions.length; i++) {
+            if (definitions[i] == null)
+                throw new IllegalArgumentException("null definition");
+            for (int j = 0; j < i; j++) {
+                if (definitions[j].getLeaderId() == definitions[i].getLeaderId())
+                    throw new IllegalArgumentException("duplicate definition `" + definitions[i].getLeader() + "'");
+            }
+        }
+        this.segments = segments;
+        this.version = segments.getVersion();
+        this.definitions = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(definitions)));
+
+        // Scan segments, maintaining a stack of open groups
+        final int size = segments.size();
+        final ArrayList<HL7Group> topLevel = new ArrayList<>();
+        final ArrayList<HL7Group> all = new ArrayList<>();
+        final ArrayList<HL7Group> open = new ArrayList<>();
+        this.leaders = new HL7Group[size];
+        this.parents = new HL7Group[size];
+    scan:
+        for (int i = 0; i < size; i++) {
+            final HL7Segment segment = segments.get(i);
+            if (segment == null)
+                continue;
+            segments.track(segment);
+            final int id = segment.getId();
+            if (id == HL7SegmentId.INVALID)
+                continue;
+
+            // Try open groups, innermost first
+            for (int depth = open.size() - 1; depth >= 0; depth--) {
+                final HL7Group parent = open.get(depth);
+                final HL7GroupDefinition child = parent.getDefinition().getChild(id);
+                if (child == null)
+                    continue;
+                open.subList(depth + 1, open.size()).clear();
+                this.parents[i] = parent;
+                if (child.isGroup()) {
+                    final HL7Group group = new HL7Group(child, parent, i, segment);
+                    this.leaders[i] = group;
+                    all.add(group);
+                    open.add(group);
+                } else
+                    parent.addMember(segment);
+                continue scan;
+            }
+
+            // Try top-level definitions
+            for (HL7GroupDefinition definition : definitions) {
+                if (definition.getLeaderId() != id)
+                    continue;
+                final HL7Group group = new HL7Group(definition, null, i, segment);
+                this.leaders[i] = group;
+                topLevel.add(group);
+                all.add(group);
+                open.clear();
+                open.add(group);
+                break;
+            }
+        }
+        for (HL7Group group : all)
+            group.trim();
+        topLevel.trimToSize();
+        all.trimToSize();
+        this.groups = Collections.unmodifiableList(topLevel);
+        this.allGroups = Collections.unmodifiableList(all);
+    }
+
+    /**
+     * Get the top-level group definitions from which this view was built.
+     *
+     * @return unmodifiable list of top-level definitions
+     */
+    public List<HL7GroupDefinition> getDefinitions() {
+        return this.definitions;
+    }
+
+    /**
+     * Get the top-level groups, in message order.
+     *
+     * @return unmodifiable list of top-level groups
+     */
+    public List<HL7Group> getGroups() {
+        return this.groups;
+    }
+
+    /**
+     * Get all groups at any level whose leader segment has the given name, in message order.
+     *
+     * @param leader leader segment name, e.g., "OBR"
+     * @return matching groups, possibly empty
+     * @throws IllegalArgumentException if {@code leader} is null
+     */
+    public List<HL7Group> getGroups(String leader) {
+        final int id = HL7SegmentId.of(leader);
+        final ArrayList<HL7Group> list = new ArrayList<>();
+        for (HL7Group group : this.allGroups) {
+            if (group.getDefinition().getLeaderId() == id)
+                list.add(group);
+        }
+        return list;
+    }
+
+    /**
+     * Get the group started by the segment at the given position.
+     *
+     * @param segnum segment index in {@link HL7Message#getSegments}
+     * @return group whose leader is the segment at {@code segnum}, or null if that segment does not start a group
+     * @throws IllegalArgumentException if {@code segnum} is out of range
+     */
+    public HL7Group getGroup(int segnum) {
+        this.checkPosition(segnum);
+        return this.leaders[segnum];
+    }
+
+    /**
+     * Get the group containing the segment at the given position. For a group's leader segment,
+     * this is the group enclosing that group.
+     *
+     * @param segnum segment index in {@link HL7Message#getSegments}
+     * @return innermost group containing the segment at {@code segnum}, or null if none
+     * @throws IllegalArgumentException if {@code segnum} is out of range
+     */
+    public HL7Group getParent(int segnum) {
+        this.checkPosition(segnum);
+        return this.parents[segnum];
+    }
+
+    /**
+     * Determine whether this view still reflects the given segment list.
+     *
+     * @param list message segments
+     * @return true if {@code list} is the list from which this view was built and neither it nor the names
+     *  of its segments have been modified since
+     */
+    boolean isCurrent(HL7SegmentList list) {
+        return list == this.segments && this.version == list.getVersion();
+    }
+
+    private void checkPosition(int segnum) {
+        if (segnum < 0 || segnum >= this.leaders.length)
+            throw new IllegalArgumentException("segnum=" + segnum);
+    }
+}
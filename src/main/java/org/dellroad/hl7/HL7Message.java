@@ -5,31 +5,53 @@
 
 package org.dellroad.hl7;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Represents an HL7 message.
+ *
+ * <p>
+ * Instances are not thread safe, unless {@linkplain #freeze frozen}.
  */
-@SuppressWarnings("serial")
 public class HL7Message implements Serializable {
 
+    // Same as computed for version 1.3.2, which serialized messages using default serialization; see readObject()
+    private static final long serialVersionUID = -4202791620014820059L;
+
     /**
      * The character that separates segments in an HL7 message.
      */
     public static final char SEGMENT_TERMINATOR = '\r';
 
-    private static final Pattern FIELD_NAME_PATTERN = Pattern.compile("([\\p{Alnum}]{3})\\.[0-9]+");
-
-    private static final Pattern VALUE_NAME_PATTERN = Pattern.compile("(" + FIELD_NAME_PATTERN + ")(\\.([0-9]+)(\\.([0-9]+))?)?");
-
     /**
      * The segments in this message. This list always contains at least
      * one element, namely the {@link MSHSegment}.
      */
     protected final HL7SegmentList segments;
 
+    // Most recently built group view, if any
+    private transient HL7GroupView groupView;
+
+    // Original text from which this message was parsed, if retained, its length excluding trailing carriage returns,
+    // and the version of the segment list at that time
+    private transient CharSequence text;
+    private transient int textLength;
+    private transient long textVersion;
+
+    // Frozen state and cached hash code
+    private transient boolean frozen;
+    private transient int hash;
+
     /**
      * Construct a new HL7 message containing only the given MSH segment.
      *
@@ -39,6 +61,15 @@ public class HL7Message implements Serializable {
         this.segments = new HL7SegmentList(msh);
     }
 
+    /**
+     * Construct a message containing the given segments.
+     *
+     * @param segments message segments
+     */
+    HL7Message(HL7SegmentList segments) {
+        this.segments = segments;
+    }
+
     /**
      * Construct an empty HL7 message.
      *
@@ -61,6 +92,31 @@ public class HL7Message implements Serializable {
         this(HL7Seps.DEFAULT);
     }
 
+    /**
+     * Copy constructor.
+     *
+     * <p>
+     * Each segment is copied via {@link MSHSegment#MSHSegment(MSHSegment)} or {@link HL7Segment#HL7Segment(HL7Segment)};
+     * the copies share field storage with the original segments until modified, so this constructor takes time
+     * proportional to the number of segments. Subsequent changes to either message do not affect the other.
+     * The copy is never {@linkplain #freeze frozen}, so this is also how to obtain a modifiable copy of a frozen message.
+     *
+     * @param msg message to copy
+     * @throws IllegalArgumentException if {@code msg} is null
+     */
+    public HL7Message(HL7Message msg) {
+        if (msg == null)
+            throw new IllegalArgumentException("null msg");
+        final HL7SegmentList list = msg.segments;
+        this.segments = new HL7SegmentList(new MSHSegment(msg.getMSHSegment()));
+        this.segments.ensureCapacity(list.size());
+        for (int i = 1; i < list.size(); i++) {
+            final HL7Segment segment = list.get(i);
+            this.segments.add(segment instanceof MSHSegment ? new MSHSegment((MSHSegment)segment) :
+              segment != null ? new HL7Segment(segment) : null);
+        }
+    }
+
     /**
      * Parsing constructor. Constructs an HL7 message by parsing the given string.
      * Segments must be separated with a carriage return character.
@@ -69,23 +125,98 @@ public class HL7Message implements Serializable {
      * @throws HL7ContentException if the string is invalid
      */
     public HL7Message(String msg) throws HL7ContentException {
+        this(msg, false);
+    }
 
-        // Eliminate trailing CR's
-        int len = msg.length();
-        while (len > 0 && msg.charAt(len - 1) == SEGMENT_TERMINATOR)
-            msg = msg.substring(0, --len);
+    /**
+     * Parsing constructor with optional lazy field decoding.
+     * Segments must be separated with a carriage return character.
+     *
+     * <p>
+     * In lazy mode, the MSH segment is fully decoded but all other segments are parsed
+     * {@linkplain HL7Segment#HL7Segment(String, HL7Seps, boolean) lazily}: only their names are validated,
+     * and their fields are decoded when first accessed. This is much cheaper for messages that are mostly
+     * passed through, or from which only a few fields are read.
+     *
+     * <p>
+     * Lazy segments and their fields are views into {@code msg}; no characters are copied until actually requested.
+     * Therefore, in lazy mode, {@code msg} must not change afterward.
+     *
+     * @param msg encoded message
+     * @param lazy true to decode non-MSH segment fields on demand, false to decode everything now
+     * @throws HL7ContentException if the string is invalid
+     */
+    public HL7Message(CharSequence msg, boolean lazy) throws HL7ContentException {
+        this.segments = new HL7Parser().parse(msg, lazy);
+        this.initText(msg);
+    }
 
-        // Split message into segments
-        int[] segs = HL7Util.find(msg, SEGMENT_TERMINATOR);
+    /**
+     * Parsing constructor taking encoded bytes.
+     * Segments must be separated with a carriage return character.
+     *
+     * <p>
+     * If {@code charset} is {@link java.nio.charset.StandardCharsets#ISO_8859_1 ISO-8859-1} or
+     * {@link java.nio.charset.StandardCharsets#US_ASCII US-ASCII}, the bytes are tokenized directly, without first
+     * decoding the entire message into a {@link String}; only the individual values are decoded. In lazy mode, this
+     * decoding is deferred until each value is actually accessed, and lazy segments refer directly to {@code buf},
+     * which therefore must not change afterward. Other character encodings are decoded up front.
+     *
+     * @param buf encoded message
+     * @param off offset of the message in {@code buf}
+     * @param len length of the message in {@code buf}
+     * @param charset character encoding
+     * @param lazy true to decode non-MSH segment fields on demand, false to decode everything now
+     * @throws HL7ContentException if the message is invalid
+     * @throws IndexOutOfBoundsException if {@code off} and/or {@code len} are invalid
+     * @see #HL7Message(CharSequence, boolean)
+     */
+    public HL7Message(byte[] buf, int off, int len, Charset charset, boolean lazy) throws HL7ContentException {
+        this(ByteCharSequence.wrap(buf, off, len, charset), lazy);
+    }
 
-        // Get MSH segment with message-specific separator characters
-        MSHSegment msh = new MSHSegment(msg.substring(0, segs[0]));
-        this.segments = new HL7SegmentList(msh);
-        HL7Seps seps = msh.getHL7Seps();
+    /**
+     * Parsing constructor that only decodes the fields named in the given {@link HL7Projection}.
+     * Segments must be separated with a carriage return character.
+     *
+     * <p>
+     * Unless {@code projection} is {@linkplain HL7Projection#isReadOnly read-only}, all other fields are retained
+     * as views into {@code msg}, exactly as in {@linkplain #HL7Message(CharSequence, boolean) lazy mode}, and
+     * {@code msg} must not change afterward; {@link #toString()} reproduces {@code msg} exactly (minus any trailing
+     * carriage returns). In read-only mode, everything else is discarded.
+     *
+     * @param msg encoded message
+     * @param projection the fields to decode
+     * @throws HL7ContentException if the string is invalid
+     * @throws IllegalArgumentException if {@code projection} is null
+     */
+    public HL7Message(CharSequence msg, HL7Projection projection) throws HL7ContentException {
+        if (projection == null)
+            throw new IllegalArgumentException("null projection");
+        this.segments = new HL7Parser().parse(msg, projection);
+        this.initText(msg);
+    }
 
-        // Add subsequent segments
-        for (int i = 0; i < segs.length - 1; i++)
-            this.segments.add(new HL7Segment(msg.substring(segs[i] + 1, segs[i + 1]), seps));
+    /**
+     * Parsing constructor taking encoded bytes that only decodes the fields named in the given {@link HL7Projection}.
+     * Segments must be separated with a carriage return character.
+     *
+     * <p>
+     * Character encodings are handled as with {@link #HL7Message(byte[], int, int, Charset, boolean)}.
+     * Unless {@code projection} is {@linkplain HL7Projection#isReadOnly read-only}, {@code buf} must not change afterward.
+     *
+     * @param buf encoded message
+     * @param off offset of the message in {@code buf}
+     * @param len length of the message in {@code buf}
+     * @param charset character encoding
+     * @param projection the fields to decode
+     * @throws HL7ContentException if the message is invalid
+     * @throws IllegalArgumentException if {@code projection} is null
+     * @throws IndexOutOfBoundsException if {@code off} and/or {@code len} are invalid
+     * @see #HL7Message(CharSequence, HL7Projection)
+     */
+    public HL7Message(byte[] buf, int off, int len, Charset charset, HL7Projection projection) throws HL7ContentException {
+        this(ByteCharSequence.wrap(buf, off, len, charset), projection);
     }
 
     /**
@@ -113,6 +244,10 @@ public class HL7Message implements Serializable {
     /**
      * Get the first occurrence of a <code>segname</code> segment in this message.
      *
+     * <p>
+     * This method uses the segment name index maintained by {@link HL7SegmentList}, so it takes logarithmic time
+     * in the number of {@code segname} segments, rather than linear time in the total number of segments.
+     *
      * @param segname segment name, e.g., "PV1"
      * @param segnum starting segment index to start search;
      *  index zero refers to the MSH segment
@@ -122,10 +257,22 @@ public class HL7Message implements Serializable {
     public HL7Segment findSegment(String segname, int segnum) {
         if (segnum < 0)
             throw new IllegalArgumentException("segnum=" + segnum);
-        for (int i = segnum; i < this.segments.size(); i++) {
-            HL7Segment seg = this.segments.get(i);
-            if (seg.getName().equals(segname))
-                return seg;
+        final int[] positions = this.segments.positionsOf(segname);
+        int i = Arrays.binarySearch(positions, segnum);
+        if (i < 0)
+            i = ~i;
+        if (i == positions.length)
+            return null;
+        final HL7Segment seg = this.segments.get(positions[i]);
+        if (seg.hasName(segname))
+            return seg;
+
+        // The index is out of date, e.g., a segment was renamed; fall back to a linear search
+        this.segments.invalidateIndex();
+        for (i = segnum; i < this.segments.size(); i++) {
+            final HL7Segment candidate = this.segments.get(i);
+            if (candidate.hasName(segname))
+                return candidate;
         }
         return null;
     }
@@ -143,6 +290,54 @@ public class HL7Message implements Serializable {
         return this.findSegment(segname, 0);
     }
 
+    /**
+     * Get all occurrences of <code>segname</code> segments in this message, in order.
+     *
+     * <p>
+     * The returned list is a read-only view that supports constant time random access, e.g., {@code get(n)} returns the
+     * {@code n}'th occurrence (zero-based). It is only valid until the next change to this message's
+     * {@linkplain #getSegments segment list}.
+     *
+     * @param segname segment name, e.g., "OBX"
+     * @return matching segments, possibly empty
+     */
+    public List<HL7Segment> findSegments(String segname) {
+        return this.segments.segmentsAt(this.segments.positionsOf(segname));
+    }
+
+    /**
+     * Count the occurrences of <code>segname</code> segments in this message.
+     *
+     * @param segname segment name, e.g., "OBX"
+     * @return number of matching segments
+     */
+    public int countSegments(String segname) {
+        return this.segments.positionsOf(segname).length;
+    }
+
+    /**
+     * Get a hierarchical view of the segments in this message, organized into groups according to the given definitions.
+     *
+     * <p>
+     * The view is built on demand and cached; the cached view is returned by subsequent invocations with equal definitions,
+     * until this message's {@linkplain #getSegments segment list} is modified or one of its segments is
+     * {@linkplain HL7Segment#setName renamed}.
+     *
+     * @param definitions top-level group definitions
+     * @return group view
+     * @throws IllegalArgumentException if {@code definitions} is null or contains a null element
+     * @throws IllegalArgumentException if two of {@code definitions} have the same leader
+     * @see HL7GroupView
+     */
+    public HL7GroupView getGroupView(HL7GroupDefinition... definitions) {
+        if (definitions == null)
+            throw new IllegalArgumentException("null definitions");
+        HL7GroupView view = this.groupView;
+        if (view == null || !view.isCurrent(this.segments) || !view.getDefinitions().equals(Arrays.asList(definitions)))
+            this.groupView = view = new HL7GroupView(this.segments, definitions);
+        return view;
+    }
+
     /**
      * Find a field by HL7 name. The name is of the form XYZ.N where
      * "XYZ" is the segment name and "N" is the field number.
@@ -152,23 +347,13 @@ public class HL7Message implements Serializable {
      * @return named HL7 field, or <code>null</code> if the named field doesn't exist in this message
      * @throws IllegalArgumentException if name is not properly formatted
      * @throws IllegalArgumentException if segnum is negative
+     * @see HL7Path
      */
     public HL7Field getField(String name, int segnum) {
-
-        // Check parameters
-        Matcher matcher = FIELD_NAME_PATTERN.matcher(name);
-        if (!matcher.matches())
-            throw new IllegalArgumentException("invalid name `" + name + "'");
-        int fieldIndex;
-        try {
-            fieldIndex = Integer.parseInt(name.substring(4), 10);
-        } catch (NumberFormatException e) {
+        final HL7Path path = HL7Path.cached(name);
+        if (!path.isFieldPath())
             throw new IllegalArgumentException("invalid name `" + name + "'");
-        }
-
-        // Find segment, then field
-        HL7Segment seg = this.findSegment(name.substring(0, 3), segnum);
-        return seg != null ? seg.getField(fieldIndex) : null;
+        return path.getField(this, segnum);
     }
 
     /**
@@ -198,41 +383,12 @@ public class HL7Message implements Serializable {
      * @param repeat repeat index (starting from zero)
      * @return named HL7 value, or <code>null</code> if the named value doesn't exist in this message
      * @throws IllegalArgumentException if name is not properly formatted
-     * @throws IllegalArgumentException if "M" or "L" is negative
+     * @throws IllegalArgumentException if "M" or "L" is zero
      * @throws IllegalArgumentException if segnum or repeat is negative
+     * @see HL7Path
      */
     public String get(String name, int segnum, int repeat) {
-
-        // Find field first
-        Matcher matcher = VALUE_NAME_PATTERN.matcher(name);
-        if (!matcher.matches())
-            throw new IllegalArgumentException("invalid name `" + name + "'");
-        HL7Field field = this.getField(matcher.group(1), segnum);
-        if (field == null)
-            return null;
-
-        // Get component and subcomponent indicies
-        int component = 0;
-        String value = matcher.group(4);
-        if (value != null) {
-            try {
-                component = Integer.parseInt(value, 10) - 1;
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException("invalid component index `" + value + "'");
-            }
-        }
-        int subcomponent = 0;
-        value = matcher.group(6);
-        if (value != null) {
-            try {
-                subcomponent = Integer.parseInt(value, 10) - 1;
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException("invalid subcomponent index `" + value + "'");
-            }
-        }
-
-        // Return value (if any)
-        return field.get(repeat, component, subcomponent);
+        return HL7Path.cached(name).get(this, segnum, repeat);
     }
 
     /**
@@ -255,19 +411,75 @@ public class HL7Message implements Serializable {
         if (obj == null || obj.getClass() != getClass())
             return false;
         final HL7Message that = (HL7Message)obj;
+        if (this.frozen && that.frozen && this.hash != that.hash)
+            return false;
         return this.segments.equals(that.segments);
     }
 
     @Override
     public int hashCode() {
+        if (this.frozen)
+            return this.hash;
         return this.segments.hashCode();
     }
 
+    /**
+     * Make this message immutable.
+     *
+     * <p>
+     * This {@linkplain HL7Segment#freeze freezes} every segment and {@linkplain HL7SegmentList#freeze the segment list},
+     * decoding any lazily parsed fields and computing the hash codes of the message, its segments, and their fields.
+     * Afterward, any attempt to modify the message results in an {@link IllegalStateException}, {@link #hashCode}
+     * returns the cached value, and {@link #equals equals()} compares cached hash codes before comparing content.
+     *
+     * <p>
+     * Once safely published (e.g., via a {@code final} field, a {@code volatile} variable, or a concurrent collection),
+     * a frozen message may be read by any number of threads at the same time without copying it. The only internal state
+     * updated afterward is the cached {@linkplain #getGroupView group view}, which consists of immutable objects.
+     * Use the {@linkplain #HL7Message(HL7Message) copy constructor} to obtain a modifiable copy.
+     *
+     * <p>
+     * Does nothing if this message is already frozen.
+     *
+     * @return this instance
+     */
+    public HL7Message freeze() {
+        if (this.frozen)
+            return this;
+        for (HL7Segment segment : this.segments) {
+            if (segment != null)
+                segment.freeze();
+        }
+        this.segments.freeze();
+        this.hash = this.segments.hashCode();
+        this.frozen = true;
+        return this;
+    }
+
+    /**
+     * Determine whether this message is {@linkplain #freeze frozen}.
+     *
+     * @return true if this message can no longer be modified
+     */
+    public boolean isFrozen() {
+        return this.frozen;
+    }
+
     /**
      * Convert this message into a string by concatenating the segments in string form, each terminated with a carriage return.
+     *
+     * <p>
+     * If this message was parsed from text that it retains (see {@link HL7Segment}) and no segment has been added, removed,
+     * replaced, or modified since, then the original text is returned, plus a trailing carriage return if needed.
+     * Otherwise, unmodified segments are still copied from the original text, and only modified segments are re-encoded.
+     * The same applies to {@link #toString(HL7Seps)} and the {@code writeTo()} methods, when the separators
+     * are the original ones.
      */
     @Override
     public String toString() {
+        final CharSequence original = this.getCleanText(null);
+        if (original != null)
+            return this.cleanTextToString(original);
         return this.toString(getMSHSegment().getHL7Seps());
     }
 
@@ -279,12 +491,220 @@ public class HL7Message implements Serializable {
      * @return string encoding of this message
      */
     public String toString(HL7Seps seps) {
-        StringBuilder buf = new StringBuilder();
-        for (HL7Segment segment : this.segments) {
-            segment.append(buf, seps);
-            buf.append(SEGMENT_TERMINATOR);
+        final CharSequence original = this.getCleanText(seps);
+        if (original != null)
+            return this.cleanTextToString(original);
+        final StringBuilder buf = new StringBuilder(this.segments.size() * 80);
+        try {
+            this.writeSegments(buf, seps, SEGMENT_TERMINATOR);
+        } catch (IOException e) {
+            throw new RuntimeException("impossible", e);
         }
         return buf.toString();
     }
-}
 
+    /**
+     * Write this message, using the separators defined by its MSH segment, to the given output.
+     * Each segment is terminated with a carriage return.
+     *
+     * <p>
+     * The output is identical to {@link #toString()}, but no intermediate {@link String} is built.
+     * If {@code out} is a {@link Writer}, characters are written to it in large chunks; the writer is not flushed.
+     *
+     * @param out destination
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if {@code out} is null
+     */
+    public void writeTo(Appendable out) throws IOException {
+        this.writeTo(out, getMSHSegment().getHL7Seps(), SEGMENT_TERMINATOR);
+    }
+
+    /**
+     * Write this message, using the supplied separators instead of the ones defined by the MSH segment, to the given output.
+     * Each segment is terminated with a carriage return.
+     *
+     * @param out destination
+     * @param seps HL7 separator characters
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if either parameter is null
+     * @see #toString(HL7Seps)
+     */
+    public void writeTo(Appendable out, HL7Seps seps) throws IOException {
+        this.writeTo(out, seps, SEGMENT_TERMINATOR);
+    }
+
+    /**
+     * Write this message, using the supplied separators and segment terminator, to the given output.
+     *
+     * @param out destination
+     * @param seps HL7 separator characters
+     * @param terminator segment terminator character
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if {@code out} or {@code seps} is null
+     */
+    public void writeTo(Appendable out, HL7Seps seps, char terminator) throws IOException {
+        if (out == null)
+            throw new IllegalArgumentException("null out");
+        if (seps == null)
+            throw new IllegalArgumentException("null seps");
+        final CharSequence original = terminator == SEGMENT_TERMINATOR ? this.getCleanText(seps) : null;
+        if (out instanceof Writer) {
+            final Writer writer = (Writer)out;
+            if (original instanceof String) {
+                writer.write((String)original, 0, this.textLength);
+                writer.write(SEGMENT_TERMINATOR);
+                return;
+            }
+            final ChunkedOutput chunked = new ChunkedOutput(writer);
+            this.write(chunked, original, seps, terminator);
+            chunked.finish();
+        } else
+            this.write(out, original, seps, terminator);
+    }
+
+    /**
+     * Encode this message, using the separators defined by its MSH segment, to the given output stream.
+     * Characters that cannot be encoded are replaced with the character set's default replacement.
+     *
+     * @param output destination
+     * @param charset character encoding
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if either parameter is null
+     * @see #writeTo(OutputStream, CharsetEncoder)
+     */
+    public void writeTo(OutputStream output, Charset charset) throws IOException {
+        if (charset == null)
+            throw new IllegalArgumentException("null charset");
+        this.writeTo(output, charset.newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+
+    /**
+     * Encode this message, using the separators defined by its MSH segment, to the given output stream
+     * using the supplied encoder. Each segment is terminated with a carriage return.
+     *
+     * <p>
+     * Characters are encoded in chunks directly into the output stream; no intermediate {@link String}
+     * is built. The encoder is {@linkplain CharsetEncoder#reset reset} first, so the same encoder may be reused
+     * for any number of messages (but not concurrently). The output stream is not flushed.
+     *
+     * @param output destination
+     * @param encoder character encoder
+     * @throws java.nio.charset.CharacterCodingException if {@code encoder} reports an encoding error
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if either parameter is null
+     */
+    public void writeTo(OutputStream output, CharsetEncoder encoder) throws IOException {
+        if (output == null)
+            throw new IllegalArgumentException("null output");
+        if (encoder == null)
+            throw new IllegalArgumentException("null encoder");
+        final ChunkedOutput chunked = new ChunkedOutput(output, encoder);
+        final CharSequence original = this.getCleanText(null);
+        this.write(chunked, original, original == null ? getMSHSegment().getHL7Seps() : null, SEGMENT_TERMINATOR);
+        chunked.finish();
+    }
+
+    /**
+     * Get the original text from which this message was parsed, if it is retained and this message has not been modified
+     * since, i.e., encoding this message using {@code seps} and {@link #SEGMENT_TERMINATOR} would reproduce it exactly
+     * (up to {@link #getCleanTextLength}, followed by one {@link #SEGMENT_TERMINATOR}).
+     *
+     * <p>
+     * The original text is retained by messages parsed in lazy mode, messages parsed from a {@link String},
+     * and messages parsed using a projection that is not read-only. Adding, removing, or replacing any segment,
+     * or modifying any segment, causes this method to return null from then on.
+     *
+     * @param seps separators, or null for the separators defined by the MSH segment
+     * @return original text, or null if not retained or not reproduced exactly
+     */
+    CharSequence getCleanText(HL7Seps seps) {
+        if (this.text == null || this.textVersion != this.segments.getVersion())
+            return null;
+        if (seps == null && (seps = this.getMSHSegment().getLineSeps()) == null)
+            return null;
+        for (HL7Segment segment : this.segments) {
+            if (segment == null || !segment.hasLine(seps) || segment.overridesAppend())
+                return null;
+        }
+        return this.text;
+    }
+
+    /**
+     * Get the length of the original text, excluding any trailing {@link #SEGMENT_TERMINATOR}s.
+     *
+     * @return original text length
+     * @see #getCleanText
+     */
+    int getCleanTextLength() {
+        return this.textLength;
+    }
+
+    private void initText(CharSequence msg) {
+        if (this.getMSHSegment().getLineSeps() == null)        // parser did not retain the original text
+            return;
+        this.text = msg;
+        this.textLength = HL7Parser.trimEnd(msg);
+        this.textVersion = this.segments.getVersion();
+    }
+
+    private String cleanTextToString(CharSequence original) {
+        if (original instanceof String && original.length() == this.textLength + 1)
+            return (String)original;
+        return new StringBuilder(this.textLength + 1)
+          .append(original, 0, this.textLength)
+          .append(SEGMENT_TERMINATOR)
+          .toString();
+    }
+
+    private void write(Appendable out, CharSequence original, HL7Seps seps, char terminator) throws IOException {
+        if (original != null) {
+            out.append(original, 0, this.textLength);
+            out.append(SEGMENT_TERMINATOR);
+        } else
+            this.writeSegments(out, seps, terminator);
+    }
+
+    private void writeSegments(Appendable out, HL7Seps seps, char terminator) throws IOException {
+        for (HL7Segment segment : this.segments) {
+            segment.encode(out, seps);
+            out.append(terminator);
+        }
+    }
+
+    // Instances of this class (but not subclasses, which use default serialization) are serialized in HL7BinaryCodec form
+    private Object writeReplace() {
+        return new SerializationProxy(this);
+    }
+
+    // Instances serialized by version 1.3.2 and earlier, and subclass instances, use the default form
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+        if (this.segments == null || this.segments.isEmpty() || !(this.segments.get(0) instanceof MSHSegment))
+            throw new InvalidObjectException("invalid segment list");
+    }
+
+// SerializationProxy
+
+    /**
+     * Serialized form of an {@link HL7Message}.
+     */
+    @SuppressWarnings("serial")
+    private static final class SerializationProxy implements Serializable {
+
+        private final byte[] data;
+
+        SerializationProxy(HL7Message msg) {
+            this.data = HL7BinaryCodec.encode(msg);
+        }
+
+        private Object readResolve() throws InvalidObjectException {
+            try {
+                return HL7BinaryCodec.decode(this.data);
+            } catch (HL7ContentException e) {
+                throw (InvalidObjectException)new InvalidObjectException("invalid encoded message").initCause(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.util.Arrays;
+
+/**
+ * {@link HL7ContentHandler} that builds {@link HL7Message}s.
+ *
+ * <p>
+ * This is how {@link HL7Message#HL7Message(String)} works. Instances expect events in the order generated by {@link HL7Parser}
+ * and may be reused for multiple messages, but are not thread safe.
+ */
+public final class HL7MessageBuilder implements HL7ContentHandler {
+
+    private static final int INITIAL_SCRATCH_LENGTH = 4;
+
+    // Scratch space for the field currently being built
+    private String[] subs = new String[INITIAL_SCRATCH_LENGTH];
+    private String[][] comps = new String[INITIAL_SCRATCH_LENGTH][];
+    private String[][][] reps = new String[INITIAL_SCRATCH_LENGTH][][];
+    private int numSubs;
+    private int numComps;
+    private int numReps;
+    private boolean inField;
+
+    // Message being built
+    private HL7Seps seps;
+    private HL7SegmentList segments;
+    private HL7Segment segment;
+    private boolean msh;
+    private HL7Message message;
+
+    /**
+     * Get the most recently completed message.
+     *
+     * @return parsed message, or null if no message has been completed yet
+     */
+    public HL7Message getMessage() {
+        return this.message;
+    }
+
+    /**
+     * Get the segments of the message currently being built, or the most recently completed message.
+     *
+     * @return message segments, or null if no message has been started yet
+     */
+    HL7SegmentList getSegments() {
+        return this.segments;
+    }
+
+// HL7ContentHandler
+
+    @Override
+    public void startMessage(HL7Seps seps) {
+        this.seps = seps;
+        this.segments = null;
+        this.message = null;
+    }
+
+    @Override
+    public boolean startSegment(CharSequence name) {
+        if (this.segments == null) {
+            final MSHSegment mshSegment = new MSHSegment(this.seps);
+            this.segments = new HL7SegmentList(mshSegment);
+            this.segment = mshSegment;
+            this.msh = true;
+            return true;
+        }
+        this.segment = new HL7Segment();
+        this.segment.fields.add(this.nameField(name));
+        if (HL7Segment.isPlain(name, 0, name.length(), this.seps))
+            this.segment.initId(HL7SegmentId.of(name, 0, name.length()));
+        this.msh = false;
+        return true;
+    }
+
+    @Override
+    public void field(int index) {
+        this.endField();
+        this.inField = !this.msh || index > 2;                  // MSH.1 and MSH.2 are set by MSHSegment already
+    }
+
+    @Override
+    public void repeat(int index) {
+        if (index > 0 && this.inField) {
+            this.addComp();
+            this.addRep();
+        }
+    }
+
+    @Override
+    public void component(int index) {
+        if (index > 0 && this.inField)
+            this.addComp();
+    }
+
+    @Override
+    public void subComponent(int index, CharSequence value) {
+        if (!this.inField)
+            return;
+        if (this.numSubs == this.subs.length)
+            this.subs = Arrays.copyOf(this.subs, this.numSubs * 2);
+        this.subs[this.numSubs++] = value.toString();
+    }
+
+    @Override
+    public void endSegment() {
+        this.endField();
+        if (!this.msh)
+            this.segments.add(this.segment);
+        this.segment = null;
+    }
+
+    @Override
+    public void endMessage() {
+        this.message = new HL7Message(this.segments);
+    }
+
+// Internal methods
+
+    private void endField() {
+        if (!this.inField)
+            return;
+        this.segment.fields.add(this.buildField());
+        this.inField = false;
+    }
+
+    private HL7Field buildField() {
+        if (this.numReps == 0 && this.numComps == 0 && this.numSubs == 1) {
+            this.numSubs = 0;
+            return this.subs[0].isEmpty() ? HL7Field.EMPTY : new HL7Field(this.subs[0]);
+        }
+        this.addComp();
+        this.addRep();
+        final HL7Field field = new HL7Field(Arrays.copyOf(this.reps, this.numReps), false);
+        this.numReps = 0;
+        return field;
+    }
+
+    private void addComp() {
+        if (this.numComps == this.comps.length)
+            this.comps = Arrays.copyOf(this.comps, this.numComps * 2);
+        this.comps[this.numComps++] = Arrays.copyOf(this.subs, this.numSubs);
+        this.numSubs = 0;
+    }
+
+    private void addRep() {
+        if (this.numReps == this.reps.length)
+            this.reps = Arrays.copyOf(this.reps, this.numReps * 2);
+        this.reps[this.numReps++] = Arrays.copyOf(this.comps, this.numComps);
+        this.numComps = 0;
+    }
+
+    // The segment name is normally three plain characters, but we must handle it like any other field
+    private HL7Field nameField(CharSequence name) {
+        final String string = name.toString();
+        return HL7Segment.isPlain(string, 0, string.length(), this.seps) ? new HL7Field(string) : new HL7Field(string, this.seps);
+    }
+}
@@ -0,0 +1,504 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.nio.charset.Charset;
+
+/**
+ * Single-pass, "push" style HL7 message parser.
+ *
+ * <p>
+ * This class walks the encoded message exactly once, using a small state machine that tracks where the current segment,
+ * field, repeat, component, and sub-component begin, and reports each of them to an {@link HL7ContentHandler} as the
+ * separators go by. No object tree is built unless the handler builds one; {@link HL7MessageBuilder} is the handler that
+ * builds {@link HL7Message}s. Handlers that only need a few values can skip uninteresting segments entirely, and
+ * allocate almost nothing otherwise.
+ *
+ * <p>
+ * Compare to the original approach (still available via {@link #parseBySplitting parseBySplitting()}), which splits the
+ * message into segments, then each segment into fields, then each field into repeats, components, and sub-components,
+ * with every split being a separate {@link HL7Util#find HL7Util.find()} pass that allocates an array. The result is
+ * identical to what the original approach produces, including error behavior.
+ *
+ * <p>
+ * Optionally, the parser can stop after finding segment boundaries and leave the fields to be decoded on demand;
+ * see {@link HL7Segment#HL7Segment(String, HL7Seps, boolean)}. In that case, no characters are copied at all; segments
+ * and fields refer directly to the original message text until their values are actually requested. Similarly, an
+ * {@link HL7Projection} decodes only a few named fields and leaves the rest of the message as raw text.
+ *
+ * <p>
+ * Instances are not thread safe.
+ */
+public final class HL7Parser {
+
+    private final Leaf leaf = new Leaf();
+    private int fieldEnd;
+
+    /**
+     * Parse an HL7 message, reporting its contents to the given handler.
+     * Segments must be separated with a carriage return character; trailing carriage returns are ignored.
+     *
+     * @param msg encoded message
+     * @param handler callback interface
+     * @throws HL7ContentException if the message is invalid
+     * @throws HL7ContentException if thrown by {@code handler}
+     * @throws IllegalArgumentException if either parameter is null
+     */
+    public void parse(CharSequence msg, HL7ContentHandler handler) throws HL7ContentException {
+        if (msg == null)
+            throw new IllegalArgumentException("null msg");
+        if (handler == null)
+            throw new IllegalArgumentException("null handler");
+
+        // Parse the MSH segment
+        final int end = HL7Parser.trimEnd(msg);
+        final HL7Seps seps = MSHSegment.parseHL7Seps(msg, HL7Parser.segmentEnd(msg, 0, end));
+        int posn = this.parseMSH(msg, end, seps, handler);
+
+        // Parse subsequent segments
+        final char fieldSep = seps.getFieldSep();
+        while (posn < end) {
+            final int start = posn + 1;
+            int nameEnd = start;
+            while (nameEnd < end) {
+                final char ch = msg.charAt(nameEnd);
+                if (ch == fieldSep || ch == HL7Message.SEGMENT_TERMINATOR)
+                    break;
+                nameEnd++;
+            }
+            HL7Parser.checkSegmentName(msg, start, nameEnd);
+            if (!handler.startSegment(this.leaf.set(msg, start, nameEnd)))
+                posn = HL7Parser.segmentEnd(msg, nameEnd, end);
+            else if (nameEnd < end && msg.charAt(nameEnd) == fieldSep)
+                posn = this.parseFields(msg, nameEnd + 1, end, 1, seps, handler);
+            else
+                posn = nameEnd;
+            handler.endSegment();
+        }
+        handler.endMessage();
+    }
+
+    /**
+     * Parse an HL7 message from its encoded bytes, reporting its contents to the given handler.
+     * Segments must be separated with a carriage return character; trailing carriage returns are ignored.
+     *
+     * <p>
+     * If {@code charset} is {@link java.nio.charset.StandardCharsets#ISO_8859_1 ISO-8859-1} or
+     * {@link java.nio.charset.StandardCharsets#US_ASCII US-ASCII}, the bytes are tokenized directly, and only
+     * values containing escape sequences, or on which {@link CharSequence#toString toString()} is invoked, are ever
+     * decoded into {@link String}s. Other character encodings are decoded up front.
+     *
+     * @param buf encoded message
+     * @param off offset of the message in {@code buf}
+     * @param len length of the message in {@code buf}
+     * @param charset character encoding
+     * @param handler callback interface
+     * @throws HL7ContentException if the message is invalid
+     * @throws HL7ContentException if thrown by {@code handler}
+     * @throws IllegalArgumentException if any parameter is null
+     * @throws IndexOutOfBoundsException if {@code off} and/or {@code len} are invalid
+     */
+    public void parse(byte[] buf, int off, int len, Charset charset, HL7ContentHandler handler) throws HL7ContentException {
+        this.parse(HL7Util.decode(buf, off, len, charset), handler);
+    }
+
+    /**
+     * Parse an HL7 message into segments.
+     *
+     * <p>
+     * In lazy mode, the returned segments (other than MSH) refer directly to {@code msg}, which must not change afterward.
+     *
+     * <p>
+     * In lazy mode, every segment also retains its original text, so that it can be copied verbatim until modified.
+     * If {@code msg} is a {@link String} (and therefore immutable), the same is true in non-lazy mode, except for segments
+     * whose text would not be reproduced exactly by re-encoding their fields, i.e., segments containing escape sequences
+     * or control characters.
+     *
+     * @param msg string-encoded message
+     * @param lazy true to defer decoding the fields of segments other than MSH until accessed; see {@link HL7Segment}
+     * @return message segments
+     * @throws HL7ContentException if the string is invalid
+     */
+    HL7SegmentList parse(CharSequence msg, boolean lazy) throws HL7ContentException {
+        final HL7MessageBuilder builder = new HL7MessageBuilder();
+
+        // Parse everything eagerly?
+        if (!lazy) {
+            this.parse(msg, builder);
+            final HL7SegmentList segments = builder.getSegments();
+            if (msg instanceof String) {
+                final int end = HL7Parser.trimEnd(msg);
+                final HL7Seps seps = MSHSegment.parseHL7Seps(msg, HL7Parser.segmentEnd(msg, 0, end));
+                int posn = -1;
+                for (HL7Segment segment : segments) {
+                    final int start = posn + 1;
+                    posn = HL7Parser.segmentEnd(msg, start, end);
+                    final int check = start == 0 ? Math.min(MSHSegment.headerLength(seps), posn) : start;     // skip MSH.1, MSH.2
+                    if (HL7Parser.isCanonical(msg, check, posn, seps))
+                        segment.initLine(msg, start, posn, seps);
+                }
+            }
+            return segments;
+        }
+
+        // Parse the MSH segment
+        final int end = HL7Parser.trimEnd(msg);
+        final int mshEnd = HL7Parser.segmentEnd(msg, 0, end);
+        final HL7Seps seps = MSHSegment.parseHL7Seps(msg, mshEnd);
+        int posn = this.parseMSH(msg, end, seps, builder);
+        final HL7SegmentList segments = builder.getSegments();
+        segments.get(0).initLine(msg, 0, mshEnd, seps);
+
+        // Find subsequent segments
+        while (posn < end) {
+            final int start = posn + 1;
+            posn = HL7Parser.segmentEnd(msg, start, end);
+            segments.add(new HL7Segment(msg, start, posn, seps));
+        }
+        return segments;
+    }
+
+    /**
+     * Parse an HL7 message into segments, decoding only the fields named in the given projection.
+     *
+     * <p>
+     * Unless the projection is read-only, the returned segments and their undecoded fields refer directly
+     * to {@code msg}, which must not change afterward.
+     *
+     * @param msg string-encoded message
+     * @param projection the fields to decode
+     * @return message segments
+     * @throws HL7ContentException if the string is invalid
+     */
+    HL7SegmentList parse(CharSequence msg, HL7Projection projection) throws HL7ContentException {
+        final boolean readOnly = projection.isReadOnly();
+
+        // Parse the MSH segment; MSH.1 and MSH.2 are implied by the separators
+        final int end = HL7Parser.trimEnd(msg);
+        final int mshEnd = HL7Parser.segmentEnd(msg, 0, end);
+        final HL7Seps seps = MSHSegment.parseHL7Seps(msg, mshEnd);
+        final MSHSegment msh = new MSHSegment(seps);
+        final int fieldSep23 = MSHSegment.headerLength(seps);
+        if (fieldSep23 < mshEnd)
+            this.projectFields(msh, msg, fieldSep23 + 1, mshEnd, 3, seps, projection.getFieldIndexes(msg, 0, 3), readOnly);
+        if (!readOnly)
+            msh.initLine(msg, 0, mshEnd, seps);
+        final HL7SegmentList segments = new HL7SegmentList(msh);
+
+        // Parse subsequent segments
+        final char fieldSep = seps.getFieldSep();
+        int posn = mshEnd;
+        while (posn < end) {
+            final int start = posn + 1;
+            posn = HL7Parser.segmentEnd(msg, start, end);
+            int nameEnd = HL7Util.indexOf(msg, fieldSep, start, posn);
+            if (nameEnd == -1)
+                nameEnd = posn;
+            HL7Parser.checkSegmentName(msg, start, nameEnd);
+            final int[] indexes = projection.getFieldIndexes(msg, start, nameEnd);
+
+            // Retain the segment as raw text, decoding only the projected fields
+            if (!readOnly) {
+                final HL7Segment segment = new HL7Segment(msg, start, posn, seps);
+                if (indexes != null) {
+                    for (int index : indexes) {
+                        final HL7Field field = segment.getField(index);
+                        if (field == null)
+                            break;
+                        field.decode();
+                    }
+                }
+                segments.add(segment);
+                continue;
+            }
+
+            // Keep only the projected fields
+            if (indexes == null)
+                continue;
+            final HL7Segment segment = new HL7Segment();
+            segment.fields.add(HL7Field.decodeField(msg, start, nameEnd, seps));
+            if (nameEnd < posn)
+                this.projectFields(segment, msg, nameEnd + 1, posn, 1, seps, indexes, true);
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * Add fields up to the end of a segment, decoding only the projected ones.
+     *
+     * @param segment segment to which the fields are added
+     * @param text encoded text
+     * @param start starting offset of the first field
+     * @param end ending offset of the segment
+     * @param index field number of the first field
+     * @param seps separators
+     * @param indexes sorted indexes of the fields to decode, or null for none
+     * @param readOnly true to replace other fields with {@link HL7Field#EMPTY} (omitting trailing ones),
+     *  false to retain them as raw text
+     */
+    private void projectFields(HL7Segment segment, CharSequence text, int start, int end, int index, HL7Seps seps,
+      int[] indexes, boolean readOnly) {
+        final char fieldSep = seps.getFieldSep();
+        final int numIndexes = indexes != null ? indexes.length : 0;
+        int next = 0;
+        while (next < numIndexes && indexes[next] < index)
+            next++;
+        for (int posn = start; posn <= end; index++) {
+            if (readOnly && next == numIndexes)
+                break;
+            int fieldEnd = HL7Util.indexOf(text, fieldSep, posn, end);
+            if (fieldEnd == -1)
+                fieldEnd = end;
+            final boolean projected = next < numIndexes && indexes[next] == index;
+            if (projected)
+                next++;
+            if (!readOnly) {
+                final HL7Field field = new HL7Field(text, posn, fieldEnd, seps);
+                if (projected)
+                    field.decode();
+                segment.fields.add(field);
+            } else if (projected) {
+                while (segment.fields.size() < index)
+                    segment.fields.add(HL7Field.EMPTY);
+                segment.fields.add(HL7Field.decodeField(text, posn, fieldEnd, seps));
+            }
+            posn = fieldEnd + 1;
+        }
+    }
+
+    /**
+     * Parse the MSH segment, after {@link MSHSegment#parseHL7Seps MSHSegment.parseHL7Seps()} has succeeded.
+     *
+     * @return offset of the MSH segment terminator, or {@code end}
+     */
+    private int parseMSH(CharSequence msg, int end, HL7Seps seps, HL7ContentHandler handler) throws HL7ContentException {
+        handler.startMessage(seps);
+        final int fieldSep23 = MSHSegment.headerLength(seps);
+        int posn;
+        if (handler.startSegment(this.leaf.set(msg, 0, 3))) {
+            this.singleton(msg, 3, 4, 1, handler);
+            this.singleton(msg, 4, fieldSep23, 2, handler);
+            posn = fieldSep23 < end && msg.charAt(fieldSep23) != HL7Message.SEGMENT_TERMINATOR ?
+              this.parseFields(msg, fieldSep23 + 1, end, 3, seps, handler) : fieldSep23;
+        } else
+            posn = HL7Parser.segmentEnd(msg, fieldSep23, end);
+        handler.endSegment();
+        return posn;
+    }
+
+    // Report a field with no structure, i.e., MSH.1 or MSH.2
+    private void singleton(CharSequence text, int start, int end, int index, HL7ContentHandler handler)
+      throws HL7ContentException {
+        handler.field(index);
+        handler.repeat(0);
+        handler.component(0);
+        handler.subComponent(0, this.leaf.set(text, start, end));
+    }
+
+    /**
+     * Parse fields up to the next segment terminator.
+     *
+     * @param text encoded text
+     * @param start starting offset of the first field
+     * @param end ending offset of the text
+     * @param index field number of the first field
+     * @param seps separators
+     * @param handler callback interface
+     * @return offset of the segment terminator, or {@code end}
+     * @throws HL7ContentException if thrown by {@code handler}
+     */
+    private int parseFields(CharSequence text, int start, int end, int index, HL7Seps seps, HL7ContentHandler handler)
+      throws HL7ContentException {
+        final char fieldSep = seps.getFieldSep();
+        int posn = start;
+        while (true) {
+            this.parseField(text, posn, end, index++, seps, handler);
+            posn = this.fieldEnd;
+            if (posn == end || text.charAt(posn) != fieldSep)
+                return posn;
+            posn++;
+        }
+    }
+
+    /**
+     * Parse a single field.
+     *
+     * <p>
+     * The field ends at the first field separator, segment terminator, or {@code end}, whichever comes first.
+     *
+     * @param text encoded text
+     * @param start starting offset of the field
+     * @param end maximum ending offset of the field
+     * @param index field number
+     * @param seps separators
+     * @param handler callback interface
+     * @throws HL7ContentException if thrown by {@code handler}
+     */
+    private void parseField(CharSequence text, int start, int end, int index, HL7Seps seps, HL7ContentHandler handler)
+      throws HL7ContentException {
+
+        // Get separators
+        final char fieldSep = seps.getFieldSep();
+        final char repSep = seps.getRepSep();
+        final char compSep = seps.getCompSep();
+        final char subSep = seps.getSubSep();
+        final char escChar = seps.getEscChar();
+        final boolean hasSubSep = seps.hasSubcomponentSeparator();
+        final boolean hasEscChar = seps.hasEscapeCharacter();
+
+        // Start field
+        handler.field(index);
+        handler.repeat(0);
+        handler.component(0);
+
+        // Scan characters, reporting sub-components, components, and repeats as we go
+        int repnum = 0;
+        int compnum = 0;
+        int subnum = 0;
+        int leafStart = start;
+        boolean escaped = false;
+        int i;
+        for (i = start; i < end; i++) {
+            final char ch = text.charAt(i);
+            if (ch == fieldSep || ch == HL7Message.SEGMENT_TERMINATOR)
+                break;
+            if (ch == compSep || ch == repSep) {
+                this.subComponent(text, leafStart, i, subnum, escaped, seps, handler);
+                leafStart = i + 1;
+                escaped = false;
+                subnum = 0;
+                if (ch == repSep) {
+                    compnum = 0;
+                    handler.repeat(++repnum);
+                } else
+                    compnum++;
+                handler.component(compnum);
+            } else if (hasSubSep && ch == subSep) {
+                this.subComponent(text, leafStart, i, subnum++, escaped, seps, handler);
+                leafStart = i + 1;
+                escaped = false;
+            } else if (hasEscChar && ch == escChar)
+                escaped = true;
+        }
+
+        // Close off the field
+        this.subComponent(text, leafStart, i, subnum, escaped, seps, handler);
+        this.fieldEnd = i;
+    }
+
+    /**
+     * Parse a message using the original approach, by first splitting it into segments, then parsing each segment
+     * using {@link HL7Segment#HL7Segment(String, HL7Seps)}.
+     *
+     * <p>
+     * Retained for comparison with {@link #parse parse()}.
+     *
+     * @param msg string-encoded message
+     * @return parsed message
+     * @throws HL7ContentException if the string is invalid
+     */
+    static HL7Message parseBySplitting(String msg) throws HL7ContentException {
+
+        // Eliminate trailing CR's
+        int len = msg.length();
+        while (len > 0 && msg.charAt(len - 1) == HL7Message.SEGMENT_TERMINATOR)
+            msg = msg.substring(0, --len);
+
+        // Split message into segments
+        int[] segs = HL7Util.find(msg, HL7Message.SEGMENT_TERMINATOR);
+
+        // Get MSH segment with message-specific separator characters
+        MSHSegment msh = new MSHSegment(msg.substring(0, segs[0]));
+        HL7Message message = new HL7Message(msh);
+        HL7Seps seps = msh.getHL7Seps();
+
+        // Add subsequent segments
+        for (int i = 0; i < segs.length - 1; i++)
+            message.getSegments().add(new HL7Segment(msg.substring(segs[i] + 1, segs[i + 1]), seps));
+        return message;
+    }
+
+    private void subComponent(CharSequence text, int start, int end, int index, boolean escaped, HL7Seps seps,
+      HL7ContentHandler handler) throws HL7ContentException {
+        handler.subComponent(index, escaped ?
+          seps.unescape(text.subSequence(start, end).toString()) : this.leaf.set(text, start, end));
+    }
+
+    // Strip trailing CR's
+    static int trimEnd(CharSequence msg) {
+        int end = msg.length();
+        while (end > 0 && msg.charAt(end - 1) == HL7Message.SEGMENT_TERMINATOR)
+            end--;
+        return end;
+    }
+
+    // Find the next segment terminator, or end
+    static int segmentEnd(CharSequence text, int start, int end) {
+        final int posn = HL7Util.indexOf(text, HL7Message.SEGMENT_TERMINATOR, start, end);
+        return posn != -1 ? posn : end;
+    }
+
+    // Determine whether re-encoding the decoded fields of a segment would reproduce its text exactly
+    private static boolean isCanonical(CharSequence text, int start, int end, HL7Seps seps) {
+        final char escChar = seps.hasEscapeCharacter() ? seps.getEscChar() : '\u0000';
+        for (int i = start; i < end; i++) {
+            final char ch = text.charAt(i);
+            if (ch < 0x0020 || ch == escChar)
+                return false;
+        }
+        return true;
+    }
+
+    // This mirrors the check in HL7Segment, which is applied to the field before it is decoded
+    static void checkSegmentName(CharSequence text, int start, int end) throws HL7ContentException {
+        if (end - start != 3)
+            throw new HL7ContentException("invalid segment name `" + text.subSequence(start, end) + "'");
+    }
+
+// Leaf
+
+    /**
+     * Reusable {@link CharSequence} view of a value; avoids allocating a view object for every value reported.
+     */
+    private static final class Leaf implements CharSequence {
+
+        private CharSequence text;
+        private int start;
+        private int end;
+
+        Leaf set(CharSequence text, int start, int end) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return this.end - this.start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= this.end - this.start)
+                throw new IndexOutOfBoundsException("index=" + index);
+            return this.text.charAt(this.start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to < from || to > this.end - this.start)
+                throw new IndexOutOfBoundsException("from=" + from + ", to=" + to);
+            return this.text.subSequence(this.start + from, this.start + to);
+        }
+
+        @Override
+        public String toString() {
+            return this.text.subSequence(this.start, this.end).toString();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compiled HL7 value name of the form {@code XYZ.N[.M[.L]]}, where {@code XYZ} is the segment name, {@code N} is the
+ * field number, {@code M} is the optional component number, and {@code L} is the optional subcomponent number;
+ * for example, {@code PID.3.1.2}.
+ *
+ * <p>
+ * Compiling a path once via {@link #compile compile()} and then using it repeatedly is more efficient than passing
+ * the name to {@link HL7Message#get(String)} or {@link HL7Message#getField(String)}, because no parsing or allocation
+ * is required to perform a lookup. Those methods use a bounded cache of compiled paths internally.
+ *
+ * <p>
+ * Instances are immutable and may be shared by multiple threads.
+ */
+public final class HL7Path {
+
+    private static final int CACHE_SIZE = 1024;
+    private static final ConcurrentHashMap<String, HL7Path> CACHE = new ConcurrentHashMap<>();
+
+    private final String path;
+    private final String segmentName;
+    private final int segmentId;
+    private final int fieldIndex;
+    private final int compIndex;
+    private final int subIndex;
+    private final boolean fieldPath;
+
+    private HL7Path(String path, String segmentName, int fieldIndex, int compIndex, int subIndex, boolean fieldPath) {
+        this.path = path;
+        this.segmentName = segmentName;
+        this.segmentId = HL7SegmentId.of(segmentName);
+        this.fieldIndex = fieldIndex;
+        this.compIndex = compIndex;
+        this.subIndex = subIndex;
+        this.fieldPath = fieldPath;
+    }
+
+    /**
+     * Compile an HL7 value name.
+     *
+     * <p>
+     * If either of {@code M} or {@code L} are not given, they are assumed to be {@code 1}.
+     *
+     * @param path HL7 value name, e.g., "PV1.3", "MSH.9.1", "ZZZ.3.2.1"
+     * @return compiled path
+     * @throws IllegalArgumentException if {@code path} is null or not properly formatted
+     * @throws IllegalArgumentException if "M" or "L" is zero
+     */
+    public static HL7Path compile(String path) {
+        if (path == null)
+            throw new IllegalArgumentException("null path");
+
+        // Parse segment name
+        if (path.length() < 5 || path.charAt(3) != '.')
+            throw new IllegalArgumentException("invalid name `" + path + "'");
+        for (int i = 0; i < 3; i++) {
+            final char ch = path.charAt(i);
+            if (!((ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9')))
+                throw new IllegalArgumentException("invalid name `" + path + "'");
+        }
+
+        // Parse indexes
+        final int[] indexes = new int[] { 0, 1, 1 };
+        int count = 0;
+        int posn = 4;
+        while (true) {
+            final int start = posn;
+            while (posn < path.length() && path.charAt(posn) >= '0' && path.charAt(posn) <= '9')
+                posn++;
+            if (posn == start || count == indexes.length)
+                throw new IllegalArgumentException("invalid name `" + path + "'");
+            try {
+                indexes[count++] = Integer.parseInt(path.substring(start, posn), 10);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid name `" + path + "'");
+            }
+            if (posn == path.length())
+                break;
+            if (path.charAt(posn++) != '.')
+                throw new IllegalArgumentException("invalid name `" + path + "'");
+        }
+        if (indexes[1] == 0)
+            throw new IllegalArgumentException("invalid component index in `" + path + "'");
+        if (indexes[2] == 0)
+            throw new IllegalArgumentException("invalid subcomponent index in `" + path + "'");
+        return new HL7Path(path, path.substring(0, 3), indexes[0], indexes[1] - 1, indexes[2] - 1, count == 1);
+    }
+
+    /**
+     * Get the segment name.
+     *
+     * @return segment name, e.g., "PID"
+     */
+    public String getSegmentName() {
+        return this.segmentName;
+    }
+
+    /**
+     * Get the {@linkplain HL7SegmentId packed identifier} of the segment name.
+     *
+     * @return segment identifier
+     */
+    public int getSegmentId() {
+        return this.segmentId;
+    }
+
+    /**
+     * Get the field number {@code N}.
+     *
+     * @return field index, where zero refers to the segment name
+     */
+    public int getFieldIndex() {
+        return this.fieldIndex;
+    }
+
+    /**
+     * Get the component index, i.e., {@code M - 1}.
+     *
+     * @return zero-based component index
+     */
+    public int getComponentIndex() {
+        return this.compIndex;
+    }
+
+    /**
+     * Get the sub-component index, i.e., {@code L - 1}.
+     *
+     * @return zero-based sub-component index
+     */
+    public int getSubComponentIndex() {
+        return this.subIndex;
+    }
+
+    /**
+     * Determine whether this path names a field, i.e., it is of the form {@code XYZ.N}.
+     *
+     * @return true if neither {@code M} nor {@code L} is given
+     */
+    public boolean isFieldPath() {
+        return this.fieldPath;
+    }
+
+    /**
+     * Find the field named by this path in the given message. Any component and subcomponent numbers are ignored.
+     *
+     * @param msg HL7 message
+     * @param segnum starting segment index (zero to start from MSH segment)
+     * @return named HL7 field, or <code>null</code> if the named field doesn't exist in {@code msg}
+     * @throws IllegalArgumentException if {@code msg} is null
+     * @throws IllegalArgumentException if segnum is negative
+     */
+    public HL7Field getField(HL7Message msg, int segnum) {
+        if (msg == null)
+            throw new IllegalArgumentException("null msg");
+        final HL7Segment seg = msg.findSegment(this.segmentName, segnum);
+        return seg != null ? seg.getField(this.fieldIndex) : null;
+    }
+
+    /**
+     * Convenience method. Equivalent to:
+     *  <blockquote>
+     *  <code>getField(msg, 0)</code>
+     *  </blockquote>
+     *
+     * @param msg HL7 message
+     * @return named HL7 field, or <code>null</code> if the named field doesn't exist in {@code msg}
+     * @throws IllegalArgumentException if {@code msg} is null
+     */
+    public HL7Field getField(HL7Message msg) {
+        return this.getField(msg, 0);
+    }
+
+    /**
+     * Find the string value named by this path in the given message.
+     *
+     * @param msg HL7 message
+     * @param segnum starting segment index
+     * @param repeat repeat index (starting from zero)
+     * @return named HL7 value, or <code>null</code> if the named value doesn't exist in {@code msg}
+     * @throws IllegalArgumentException if {@code msg} is null
+     * @throws IllegalArgumentException if segnum or repeat is negative
+     */
+    public String get(HL7Message msg, int segnum, int repeat) {
+        final HL7Field field = this.getField(msg, segnum);
+        return field != null ? field.get(repeat, this.compIndex, this.subIndex) : null;
+    }
+
+    /**
+     * Convenience method. Equivalent to:
+     *  <blockquote>
+     *  <code>get(msg, 0, 0)</code>
+     *  </blockquote>
+     *
+     * @param msg HL7 message
+     * @return named HL7 value, or <code>null</code> if the named value doesn't exist in {@code msg}
+     * @throws IllegalArgumentException if {@code msg} is null
+     */
+    public String get(HL7Message msg) {
+        return this.get(msg, 0, 0);
+    }
+
+    /**
+     * Returns the original name from which this instance was compiled.
+     */
+    @Override
+    public String toString() {
+        return this.path;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
+        if (obj == null || obj.getClass() != getClass())
+            return false;
+        final HL7Path that = (HL7Path)obj;
+        return this.path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.path.hashCode();
+    }
+
+    /**
+     * Compile an HL7 value name, using a bounded cache of previously compiled paths.
+     *
+     * @param path HL7 value name
+     * @return compiled path
+     * @throws IllegalArgumentException if {@code path} is null or invalid
+     */
+    static HL7Path cached(String path) {
+        if (path == null)
+            throw new IllegalArgumentException("null path");
+        HL7Path compiled = CACHE.get(path);
+        if (compiled == null) {
+            compiled = HL7Path.compile(path);
+            if (CACHE.size() >= CACHE_SIZE)
+                CACHE.clear();
+            CACHE.put(path, compiled);
+        }
+        return compiled;
+    }
+}
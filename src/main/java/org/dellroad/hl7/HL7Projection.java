@@ -0,0 +1,135 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A precompiled set of fields, such as <code>{ MSH.3, MSH.9, MSH.10, PID.3, PV1.19 }</code>, to be decoded
+ * when parsing a message via {@link HL7Message#HL7Message(CharSequence, HL7Projection)}.
+ *
+ * <p>
+ * When a message is parsed with a projection, only the named fields are decoded; every other field is stored as raw,
+ * undecoded text, and segments whose names do not appear in the projection are not even split into fields. The parsed
+ * message is otherwise normal and is still converted back into the identical original text by
+ * {@link HL7Message#toString()}. Fields that are not part of the projection are still accessible, but are decoded
+ * (on demand) when accessed.
+ *
+ * <p>
+ * In <i>read-only</i> mode, everything not named in the projection is dropped instead: segments whose names do not
+ * appear in the projection are omitted, and fields that are not part of the projection are replaced by
+ * {@link HL7Field#EMPTY} (trailing ones are omitted entirely). This saves memory, and the result retains no reference
+ * to the original message text, but of course the result can no longer be converted back into the original text.
+ *
+ * <p>
+ * Instances are immutable and may be shared by multiple threads.
+ */
+public final class HL7Projection {
+
+    private final boolean readOnly;
+    private final int[] segmentIds;
+    private final int[][] fieldIndexes;
+
+    /**
+     * Constructor.
+     *
+     * @param fieldNames names of fields to decode, e.g., "PID.3"
+     * @throws IllegalArgumentException if any name is null or not properly formatted
+     * @throws IllegalArgumentException if any field index is zero
+     */
+    public HL7Projection(String... fieldNames) {
+        this(false, fieldNames);
+    }
+
+    /**
+     * Constructor with optional read-only mode.
+     *
+     * @param readOnly true to discard everything not named in the projection, false to retain it as raw text
+     * @param fieldNames names of fields to decode, e.g., "PID.3"
+     * @throws IllegalArgumentException if {@code fieldNames} or any name in it is null
+     * @throws IllegalArgumentException if any name is not properly formatted
+     * @throws IllegalArgumentException if any field index is zero
+     */
+    public HL7Projection(boolean readOnly, String... fieldNames) {
+        if (fieldNames == null)
+            throw new IllegalArgumentException("null fieldNames");
+        final LinkedHashMap<Integer, TreeSet<Integer>> map = new LinkedHashMap<>();
+        for (String name : fieldNames) {
+            if (name == null)
+                throw new IllegalArgumentException("null name");
+            final HL7Path path = HL7Path.compile(name);
+            if (!path.isFieldPath() || path.getFieldIndex() == 0)
+                throw new IllegalArgumentException("invalid name `" + name + "'");
+            map.computeIfAbsent(path.getSegmentId(), segmentId -> new TreeSet<>()).add(path.getFieldIndex());
+        }
+        this.readOnly = readOnly;
+        this.segmentIds = new int[map.size()];
+        this.fieldIndexes = new int[map.size()][];
+        int i = 0;
+        for (Map.Entry<Integer, TreeSet<Integer>> entry : map.entrySet()) {
+            this.segmentIds[i] = entry.getKey();
+            this.fieldIndexes[i] = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+            i++;
+        }
+    }
+
+    /**
+     * Determine whether this instance is in read-only mode.
+     *
+     * @return true if everything not named in this projection is discarded, false if it is retained as raw text
+     */
+    public boolean isReadOnly() {
+        return this.readOnly;
+    }
+
+    /**
+     * Determine whether this projection includes the named field.
+     *
+     * @param segmentName segment name, e.g., "PID"
+     * @param index field index
+     * @return true if the field is included
+     * @throws IllegalArgumentException if {@code segmentName} is null
+     */
+    public boolean includes(String segmentName, int index) {
+        if (segmentName == null)
+            throw new IllegalArgumentException("null segmentName");
+        final int[] indexes = this.getFieldIndexes(segmentName, 0, segmentName.length());
+        return indexes != null && Arrays.binarySearch(indexes, index) >= 0;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder();
+        buf.append(this.readOnly ? "read-only " : "").append('{');
+        for (int i = 0; i < this.segmentIds.length; i++) {
+            for (int index : this.fieldIndexes[i]) {
+                buf.append(buf.charAt(buf.length() - 1) == '{' ? " " : ", ");
+                buf.append(HL7SegmentId.toName(this.segmentIds[i])).append('.').append(index);
+            }
+        }
+        return buf.append(" }").toString();
+    }
+
+    /**
+     * Get the indexes of the fields to decode in segments with the given name.
+     *
+     * @param text encoded text
+     * @param start starting offset of the segment name in {@code text}
+     * @param end ending offset of the segment name in {@code text}
+     * @return sorted field indexes, or null if no fields from the named segment are included
+     */
+    int[] getFieldIndexes(CharSequence text, int start, int end) {
+        final int id = HL7SegmentId.of(text, start, end);
+        for (int i = 0; i < this.segmentIds.length; i++) {
+            if (this.segmentIds[i] == id)
+                return this.fieldIndexes[i];
+        }
+        return null;
+    }
+}
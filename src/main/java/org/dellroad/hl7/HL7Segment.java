@@ -5,22 +5,84 @@
 
 package org.dellroad.hl7;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Represents one segment in an HL7 message.
+ *
+ * <p>
+ * Segments parsed in <i>lazy</i> mode (see {@link #HL7Segment(String, HL7Seps, boolean)}) retain the original encoded
+ * segment text and decode each field only when it is first accessed. The retained text is not copied from the message;
+ * lazy segments and their fields are views into the original message text. Until a lazy segment is modified, {@link #append append()}
+ * with the original separators copies the original text verbatim rather than re-encoding the fields. Because lazy decoding
+ * updates internal state, lazy instances are not safe for concurrent access by multiple threads, even when only reading.
+ * Segments of messages parsed non-lazily from a {@link String} retain their original text in the same way, unless
+ * it contains escape sequences or control characters.
+ *
+ * <p>
+ * Fields are immutable, so copies made via {@link #HL7Segment(HL7Segment)} share them with the original. In fact, a copy
+ * shares the original's entire list of fields (or original text, for lazy segments) until the copy is modified, so
+ * copying a segment takes constant time.
+ *
+ * <p>
+ * A segment may be {@linkplain #freeze frozen}, after which it can no longer be modified, its hash code is cached,
+ * and it is safe for concurrent access by multiple threads (once safely published), even if it was parsed lazily.
+ * Copies of a frozen segment are not frozen.
+ *
+ * <p>
+ * Subclasses that access {@link #fields} directly must invoke {@link #decodeFields} first, and {@link #markModified}
+ * before making any changes.
  */
-@SuppressWarnings("serial")
 public class HL7Segment implements Serializable {
 
+    // Same as version 1.3.2
+    private static final long serialVersionUID = -1828590364465362407L;
+
     /**
      * The fields comprising this segment.
      */
     protected final ArrayList<HL7Field> fields = new ArrayList<HL7Field>();
 
+    // Lazy mode state; the fields are not in "fields" until decodeFields() is invoked, and "line" is retained until modified.
+    // Copies of non-lazy segments are also in lazy mode, with "line" null and "lineFields" shared with the original.
+    private transient boolean lazy;
+    private transient CharSlice line;
+    private transient HL7Seps lineSeps;
+    private transient int[] lineFieldSeps;
+    private transient HL7Field[] lineFields;
+
+    // Snapshot of "fields" shared with copies of this instance; discarded when modified
+    private transient volatile HL7Field[] snapshot;
+
+    // Cached packed segment name; zero if not computed yet
+    private transient int id;
+
+    // List most recently indexing this segment by name, to be notified if it is renamed
+    private transient HL7SegmentList owner;
+
+    // Whether each subclass overrides append(), which predates writeTo()
+    private static final ClassValue<Boolean> OVERRIDES_APPEND = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("append", StringBuilder.class, HL7Seps.class).getDeclaringClass() != HL7Segment.class;
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("impossible", e);
+            }
+        }
+    };
+
+    // Frozen state and cached hash code
+    private transient boolean frozen;
+    private transient int hash;
+
     /**
-     * Constructor for {@link MSHSegment} use only.
+     * Constructor for {@link MSHSegment} and {@link HL7Parser} use only.
      */
     HL7Segment() {
     }
@@ -60,17 +122,61 @@ public class HL7Segment implements Serializable {
      * @throws HL7ContentException if the segment name is invalid
      */
     public HL7Segment(String line, HL7Seps seps) throws HL7ContentException {
-        this.parseAndAddFields(line, seps);
+        this(line, seps, false);
+    }
+
+    /**
+     * Constructor that parses a segment line, optionally in lazy mode.
+     *
+     * <p>
+     * In lazy mode, only the segment name is validated by this constructor; each field is decoded
+     * from {@code line} the first time it is accessed.
+     *
+     * @param line segment line
+     * @param seps separator and escape characters
+     * @param lazy true to decode fields on demand, false to decode all fields now
+     * @throws HL7ContentException if the segment name is invalid
+     */
+    public HL7Segment(String line, HL7Seps seps, boolean lazy) throws HL7ContentException {
+        if (!lazy) {
+            this.parseAndAddFields(line, seps);
+            return;
+        }
+        this.initLazy(line, 0, line.length(), seps);
+    }
+
+    /**
+     * Lazy constructor for {@link HL7Parser} use. The segment text is not copied, so {@code text} must not change afterward.
+     *
+     * @param text encoded text
+     * @param start starting offset of the segment in {@code text} (inclusive)
+     * @param end ending offset of the segment in {@code text} (exclusive)
+     * @param seps separator and escape characters
+     * @throws HL7ContentException if the segment name is invalid
+     */
+    HL7Segment(CharSequence text, int start, int end, HL7Seps seps) throws HL7ContentException {
+        this.initLazy(text, start, end, seps);
     }
 
     /**
      * Copy constructor.
      *
+     * <p>
+     * The new instance shares the fields of {@code segment} until it is modified; subsequent changes to either
+     * instance do not affect the other.
+     *
      * @param segment segment to copy
      */
     public HL7Segment(HL7Segment segment) {
-        for (HL7Field field : segment.getFields())
-            this.appendField(new HL7Field(field));
+        this.id = segment.id;
+        this.lazy = true;
+        if (segment.line != null && !(segment instanceof MSHSegment)) {     // MSH fields can't be decoded from the line
+            this.line = segment.line;
+            this.lineSeps = segment.lineSeps;
+            this.lineFieldSeps = segment.lineFieldSeps;
+            return;
+        }
+        this.lineFields = segment.lazy ? segment.lineFields : segment.snapshot();
     }
 
     /**
@@ -83,7 +189,39 @@ public class HL7Segment implements Serializable {
      * @return name of this segment
      */
     public String getName() {
-        return this.fields.get(0).get(0, 0, 0);
+        return this.getField(0).get(0, 0, 0);
+    }
+
+    /**
+     * Get the {@linkplain HL7SegmentId packed identifier} corresponding to the name of this segment.
+     * Equivalent to:
+     * <blockquote>
+     * <code>HL7SegmentId.of(getName())</code>
+     * </blockquote>
+     * but computed only once.
+     *
+     * @return packed segment name, or {@link HL7SegmentId#INVALID} if the name cannot be packed
+     */
+    public int getId() {
+        if (this.id == 0)
+            this.id = HL7SegmentId.of(this.getName());
+        return this.id;
+    }
+
+    /**
+     * Determine whether this segment has the given name. Equivalent to {@code getName().equals(name)},
+     * but avoids decoding the name when possible.
+     *
+     * @param name segment name
+     * @return true if this segment's name is {@code name}
+     */
+    boolean hasName(String name) {
+        if (name == null)
+            return false;
+        final int thisId = this.getId();
+        if (thisId != HL7SegmentId.INVALID)
+            return thisId == HL7SegmentId.of(name, 0, name.length());
+        return this.getName().equals(name);
     }
 
     /**
@@ -94,11 +232,34 @@ public class HL7Segment implements Serializable {
      */
     public void setName(String name) throws HL7ContentException {
         this.checkSegmentName(name);
+        this.markModified();
         HL7Field field = new HL7Field(name);
         if (this.fields.isEmpty())
             this.fields.add(field);
-        else
+        else {
             this.fields.set(0, field);
+            if (this.owner != null)
+                this.owner.segmentRenamed();
+        }
+        this.id = HL7SegmentId.of(name);
+    }
+
+    /**
+     * Register the list to be notified if this segment is {@linkplain #setName renamed}. Only one list is notified;
+     * if another list was registered, it is notified now instead, so that it registers itself again when necessary.
+     *
+     * <p>
+     * Does nothing if this segment is frozen, as it can't be renamed.
+     *
+     * @param list list containing this segment
+     */
+    void setOwner(HL7SegmentList list) {
+        final HL7SegmentList previous = this.owner;
+        if (previous == list || this.frozen)
+            return;
+        this.owner = list;
+        if (previous != null)
+            previous.segmentRenamed();
     }
 
     /**
@@ -107,6 +268,8 @@ public class HL7Segment implements Serializable {
      * @return number of fields in this segment
      */
     public int getNumFields() {
+        if (this.lazy)
+            return this.lazyNumFields();
         return this.fields.size();
     }
 
@@ -119,6 +282,7 @@ public class HL7Segment implements Serializable {
     public void appendField(HL7Field field) {
         if (field == null)
             throw new IllegalArgumentException("field is null");
+        this.markModified();
         this.fields.add(field);
     }
 
@@ -139,6 +303,7 @@ public class HL7Segment implements Serializable {
             throw new IllegalArgumentException("field is null");
         if (index < 1)
             throw new IllegalArgumentException("index=" + index);
+        this.markModified();
         while (this.fields.size() < index + 1)
             this.fields.add(HL7Field.EMPTY);
         this.fields.set(index, field);
@@ -168,6 +333,8 @@ public class HL7Segment implements Serializable {
     public HL7Field getField(int index) {
         if (index < 0)
             throw new IllegalArgumentException("index=" + index);
+        if (this.lazy)
+            return this.lineField(index);
         if (index >= this.fields.size())
             return null;
         return this.fields.get(index);
@@ -179,6 +346,9 @@ public class HL7Segment implements Serializable {
      * @return all fields in this segment
      */
     public HL7Field[] getFields() {
+        if (this.lazy && this.line == null)
+            return this.lineFields.clone();
+        this.decodeFields();
         return this.fields.toArray(new HL7Field[this.fields.size()]);
     }
 
@@ -192,28 +362,96 @@ public class HL7Segment implements Serializable {
     public void trimTo(int size) {
         if (size < 1)
             throw new IllegalArgumentException("size < 1");
-        while (size < this.fields.size())
-            this.fields.remove(this.fields.size() - 1);
-        this.fields.trimToSize();
+        if (size < this.getNumFields()) {
+            this.markModified();
+            while (size < this.fields.size())
+                this.fields.remove(this.fields.size() - 1);
+        }
+        if (!this.frozen)
+            this.fields.trimToSize();
     }
 
     /**
      * Append string encoding of this segment to the provided buffer.
      *
+     * <p>
+     * The implementation in this class invokes {@link #writeTo writeTo()}, which subclasses should override instead.
+     * However, subclasses that override this method are still encoded using it by {@link HL7Message}.
+     *
      * @param buf string buffer
      * @param seps HL7 separator and escape characters
      */
     public void append(StringBuilder buf, HL7Seps seps) {
-        boolean first = true;
-        for (HL7Field field : this.fields) {
-            if (first)
-                first = false;
-            else
-                buf.append(seps.getFieldSep());
-            field.append(buf, seps);
+        try {
+            this.writeTo(buf, seps);
+        } catch (IOException e) {
+            throw new RuntimeException("impossible", e);
         }
     }
 
+    /**
+     * Write the encoding of this segment, using the given separator and escape characters, to the given output.
+     * The segment terminator is not included.
+     *
+     * <p>
+     * Each field is written separately, so if {@code out} is a {@link java.io.Writer}, it should be buffered.
+     *
+     * @param out destination
+     * @param seps HL7 separator and escape characters
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(Appendable out, HL7Seps seps) throws IOException {
+        if (this.writeLine(out, seps))
+            return;
+        if (this.lazy) {
+            final int numFields = this.lazyNumFields();
+            for (int i = 0; i < numFields; i++) {
+                if (i > 0)
+                    out.append(seps.getFieldSep());
+                this.lineField(i).writeTo(out, seps);
+            }
+            return;
+        }
+        final int numFields = this.fields.size();
+        for (int i = 0; i < numFields; i++) {
+            if (i > 0)
+                out.append(seps.getFieldSep());
+            this.fields.get(i).writeTo(out, seps);
+        }
+    }
+
+    /**
+     * Write the encoding of this segment as part of a message. Equivalent to {@link #writeTo writeTo()},
+     * unless this instance's class overrides {@link #append append()}, in which case that method is used.
+     *
+     * @param out destination
+     * @param seps HL7 separator and escape characters
+     * @throws IOException if an I/O error occurs
+     */
+    void encode(Appendable out, HL7Seps seps) throws IOException {
+        if (!this.overridesAppend()) {
+            this.writeTo(out, seps);
+            return;
+        }
+        if (out instanceof StringBuilder) {
+            this.append((StringBuilder)out, seps);
+            return;
+        }
+        final StringBuilder buf = new StringBuilder();
+        this.append(buf, seps);
+        out.append(buf);
+    }
+
+    /**
+     * Determine whether this instance's class overrides {@link #append append()}, in which case it must be
+     * encoded using that method rather than by copying its original text.
+     *
+     * @return true if {@link #append append()} is overridden
+     */
+    boolean overridesAppend() {
+        return OVERRIDES_APPEND.get(this.getClass());
+    }
+
     /**
      * Convert to a string using the provided separators.
      *
@@ -236,15 +474,229 @@ public class HL7Segment implements Serializable {
 
     @Override
     public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
         if (obj == null || obj.getClass() != getClass())
             return false;
         HL7Segment that = (HL7Segment)obj;
-        return this.fields.equals(that.fields);
+        if (this.frozen && that.frozen && this.hash != that.hash)
+            return false;
+        if (this.line != null && that.line != null && this.line.contentEquals(that.line) && this.lineSeps.equals(that.lineSeps))
+            return true;
+        return this.fieldList().equals(that.fieldList());
     }
 
     @Override
     public int hashCode() {
-        return this.fields.hashCode();
+        if (this.frozen)
+            return this.hash;
+        return this.fieldList().hashCode();
+    }
+
+    /**
+     * Make this segment immutable.
+     *
+     * <p>
+     * All fields are decoded, and the hash code of the segment and of each field is computed and cached.
+     * Afterward, any attempt to modify this segment results in an {@link IllegalStateException}, and no method
+     * updates its internal state, so (once safely published) this segment may be shared by multiple threads.
+     *
+     * <p>
+     * Does nothing if this segment is already frozen.
+     *
+     * @return this instance
+     */
+    public HL7Segment freeze() {
+        if (this.frozen)
+            return this;
+        this.decodeFields();
+        this.fields.trimToSize();
+        for (HL7Field field : this.fields)
+            field.freeze();
+        this.getId();
+        this.snapshot();
+        this.hash = this.fields.hashCode();
+        this.frozen = true;
+        return this;
+    }
+
+    /**
+     * Determine whether this segment is {@linkplain #freeze frozen}.
+     *
+     * @return true if this segment can no longer be modified
+     */
+    public boolean isFrozen() {
+        return this.frozen;
+    }
+
+    /**
+     * Decode all fields of a lazy instance into {@link #fields}. Does nothing if this instance is not in lazy mode,
+     * or all fields have already been decoded.
+     *
+     * <p>
+     * The original segment text is retained, so {@link #append append()} can still use it.
+     */
+    protected void decodeFields() {
+        if (!this.lazy)
+            return;
+        final int numFields = this.lazyNumFields();
+        this.fields.ensureCapacity(numFields);
+        for (int i = 0; i < numFields; i++)
+            this.fields.add(this.lineField(i));
+        this.lazy = false;
+        this.lineFieldSeps = null;
+        this.lineFields = null;
+    }
+
+    /**
+     * Decode all fields (if necessary) and discard the original segment text in preparation for modifying {@link #fields}.
+     *
+     * @throws IllegalStateException if this segment is {@linkplain #freeze frozen}
+     */
+    protected void markModified() {
+        if (this.frozen)
+            throw new IllegalStateException("segment is frozen");
+        this.decodeFields();
+        this.line = null;
+        this.lineSeps = null;
+        this.snapshot = null;
+        this.id = 0;
+    }
+
+    /**
+     * Retain the original text of a segment parsed in non-lazy mode, so that it can be copied verbatim until modified.
+     * The text is not copied, so {@code text} must not change afterward.
+     *
+     * @param text encoded text
+     * @param start starting offset of the segment in {@code text} (inclusive)
+     * @param end ending offset of the segment in {@code text} (exclusive)
+     * @param seps separator and escape characters
+     */
+    void initLine(CharSequence text, int start, int end, HL7Seps seps) {
+        this.line = new CharSlice(text, start, end);
+        this.lineSeps = seps;
+    }
+
+    /**
+     * Determine whether this segment is unmodified since it was parsed with the given separators, in which case
+     * its encoding using {@code seps} is the original text.
+     *
+     * @param seps separator and escape characters
+     * @return true if the original text is retained and was encoded with {@code seps}
+     */
+    boolean hasLine(HL7Seps seps) {
+        return this.line != null && this.lineSeps.equals(seps);
+    }
+
+    /**
+     * Get the separators with which this segment's original text was encoded.
+     *
+     * @return original separators, or null if the original text is not retained
+     */
+    HL7Seps getLineSeps() {
+        return this.lineSeps;
+    }
+
+    /**
+     * Copy the original text of this segment to the given output, if retained and encoded with the given separators.
+     *
+     * @param out destination
+     * @param seps separator and escape characters
+     * @return true if the original text was written, false if nothing was written
+     * @throws IOException if an I/O error occurs
+     */
+    boolean writeLine(Appendable out, HL7Seps seps) throws IOException {
+        if (!this.hasLine(seps))
+            return false;
+        this.line.appendTo(out);
+        return true;
+    }
+
+    private void initLazy(CharSequence text, int start, int end, HL7Seps seps) throws HL7ContentException {
+        int nameEnd = HL7Util.indexOf(text, seps.getFieldSep(), start, end);
+        if (nameEnd == -1)
+            nameEnd = end;
+        if (nameEnd - start != 3)
+            HL7Parser.checkSegmentName(text, start, nameEnd);
+        if (HL7Segment.isPlain(text, start, nameEnd, seps))
+            this.id = HL7SegmentId.of(text, start, nameEnd);
+        this.lazy = true;
+        this.line = new CharSlice(text, start, end);
+        this.lineSeps = seps;
+    }
+
+    private int lazyNumFields() {
+        return this.line != null ? this.lineFieldSeps().length : this.lineFields.length;
+    }
+
+    private int[] lineFieldSeps() {
+        if (this.lineFieldSeps == null)
+            this.lineFieldSeps = HL7Util.find(this.line.getText(), this.lineSeps.getFieldSep(),
+              this.line.getStart(), this.line.getEnd());
+        return this.lineFieldSeps;
+    }
+
+    private HL7Field lineField(int index) {
+        if (this.line == null)
+            return index < this.lineFields.length ? this.lineFields[index] : null;
+        final int[] fieldSeps = this.lineFieldSeps();
+        if (index >= fieldSeps.length)
+            return null;
+        if (this.lineFields == null)
+            this.lineFields = new HL7Field[fieldSeps.length];
+        HL7Field field = this.lineFields[index];
+        if (field == null) {
+            final int start = index > 0 ? fieldSeps[index - 1] + 1 : this.line.getStart();
+            field = new HL7Field(this.line.getText(), start, fieldSeps[index], this.lineSeps);
+            this.lineFields[index] = field;
+        }
+        return field;
+    }
+
+    // Get the fields without decoding them into "fields" if they are shared with another instance
+    private List<HL7Field> fieldList() {
+        if (this.lazy && this.line == null)
+            return Arrays.asList(this.lineFields);
+        this.decodeFields();
+        return this.fields;
+    }
+
+    // Get the fields of a non-lazy instance as an array that will never be modified, for sharing with copies
+    private HL7Field[] snapshot() {
+        HL7Field[] array = this.snapshot;
+        if (array == null)
+            this.snapshot = array = this.fields.toArray(new HL7Field[this.fields.size()]);
+        return array;
+    }
+
+    /**
+     * Initialize the cached packed segment name for {@link HL7MessageBuilder}.
+     *
+     * @param id packed segment name
+     */
+    void initId(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Determine whether an encoded value contains no separator or escape characters, i.e., needs no decoding.
+     */
+    static boolean isPlain(CharSequence text, int start, int end, HL7Seps seps) {
+        for (int i = start; i < end; i++) {
+            final char ch = text.charAt(i);
+            if (ch == seps.getCompSep()
+              || ch == seps.getRepSep()
+              || (seps.hasSubcomponentSeparator() && ch == seps.getSubSep())
+              || (seps.hasEscapeCharacter() && ch == seps.getEscChar()))
+                return false;
+        }
+        return true;
+    }
+
+    // Lazy instances are serialized in decoded form
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        this.decodeFields();
+        output.defaultWriteObject();
     }
 
     /**
@@ -0,0 +1,162 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+/**
+ * Packed integer segment identifiers.
+ *
+ * <p>
+ * Segment names are three characters, so each name can be packed into an {@code int}, one character per byte,
+ * e.g., {@code "OBX"} becomes {@code ('O' << 16) | ('B' << 8) | 'X'}. Such identifiers are compared and hashed without
+ * any {@link String} operations, and because the constants in this class are compile-time constants, they may be used
+ * directly as {@code case} labels:
+ * <blockquote><pre>
+ * for (HL7Segment segment : msg.getSegments()) {
+ *     switch (segment.getId()) {
+ *     case HL7SegmentId.PID:
+ *         ...
+ *         break;
+ *     case HL7SegmentId.OBX:
+ *         ...
+ *         break;
+ *     default:
+ *         if (HL7SegmentId.isCustom(segment.getId()))
+ *             ...
+ *         break;
+ *     }
+ * }
+ * </pre></blockquote>
+ *
+ * <p>
+ * Names that are not exactly three characters, each having a character code from 1 to 255 (inclusive), have no
+ * identifier; for those, {@link #INVALID} is used.
+ *
+ * @see HL7Segment#getId
+ */
+public final class HL7SegmentId {
+
+    /** Identifier value used for names that cannot be packed. */
+    public static final int INVALID = -1;
+
+    /** Message acknowledgment segment. */
+    public static final int MSA = ('M' << 16) | ('S' << 8) | 'A';
+    /** Message header segment. */
+    public static final int MSH = ('M' << 16) | ('S' << 8) | 'H';
+    /** Error segment. */
+    public static final int ERR = ('E' << 16) | ('R' << 8) | 'R';
+    /** Event type segment. */
+    public static final int EVN = ('E' << 16) | ('V' << 8) | 'N';
+    /** Patient identification segment. */
+    public static final int PID = ('P' << 16) | ('I' << 8) | 'D';
+    /** Patient additional demographic segment. */
+    public static final int PD1 = ('P' << 16) | ('D' << 8) | '1';
+    /** Next of kin segment. */
+    public static final int NK1 = ('N' << 16) | ('K' << 8) | '1';
+    /** Patient visit segment. */
+    public static final int PV1 = ('P' << 16) | ('V' << 8) | '1';
+    /** Patient visit additional information segment. */
+    public static final int PV2 = ('P' << 16) | ('V' << 8) | '2';
+    /** Merge patient information segment. */
+    public static final int MRG = ('M' << 16) | ('R' << 8) | 'G';
+    /** Allergy information segment. */
+    public static final int AL1 = ('A' << 16) | ('L' << 8) | '1';
+    /** Diagnosis segment. */
+    public static final int DG1 = ('D' << 16) | ('G' << 8) | '1';
+    /** Procedures segment. */
+    public static final int PR1 = ('P' << 16) | ('R' << 8) | '1';
+    /** Guarantor segment. */
+    public static final int GT1 = ('G' << 16) | ('T' << 8) | '1';
+    /** Insurance segment. */
+    public static final int IN1 = ('I' << 16) | ('N' << 8) | '1';
+    /** Common order segment. */
+    public static final int ORC = ('O' << 16) | ('R' << 8) | 'C';
+    /** Observation request segment. */
+    public static final int OBR = ('O' << 16) | ('B' << 8) | 'R';
+    /** Observation/result segment. */
+    public static final int OBX = ('O' << 16) | ('B' << 8) | 'X';
+    /** Notes and comments segment. */
+    public static final int NTE = ('N' << 16) | ('T' << 8) | 'E';
+    /** Specimen segment. */
+    public static final int SPM = ('S' << 16) | ('P' << 8) | 'M';
+    /** Transcription document header segment. */
+    public static final int TXA = ('T' << 16) | ('X' << 8) | 'A';
+    /** Scheduling activity information segment. */
+    public static final int SCH = ('S' << 16) | ('C' << 8) | 'H';
+    /** Financial transaction segment. */
+    public static final int FT1 = ('F' << 16) | ('T' << 8) | '1';
+
+    private static final int NAME_LENGTH = 3;
+
+    private HL7SegmentId() {
+    }
+
+    /**
+     * Get the identifier corresponding to a segment name.
+     *
+     * @param name segment name, e.g., "OBX"
+     * @return packed identifier, or {@link #INVALID} if {@code name} cannot be packed
+     * @throws IllegalArgumentException if {@code name} is null
+     */
+    public static int of(CharSequence name) {
+        if (name == null)
+            throw new IllegalArgumentException("null name");
+        return HL7SegmentId.of(name, 0, name.length());
+    }
+
+    /**
+     * Get the identifier corresponding to the segment name in a region of text.
+     *
+     * @param text text containing the segment name
+     * @param start starting offset of the name (inclusive)
+     * @param end ending offset of the name (exclusive)
+     * @return packed identifier, or {@link #INVALID} if the name cannot be packed
+     */
+    static int of(CharSequence text, int start, int end) {
+        if (end - start != NAME_LENGTH)
+            return INVALID;
+        int id = 0;
+        for (int i = start; i < end; i++) {
+            final char ch = text.charAt(i);
+            if (ch == 0 || ch > 0xff)
+                return INVALID;
+            id = (id << 8) | ch;
+        }
+        return id;
+    }
+
+    /**
+     * Get the segment name corresponding to an identifier.
+     *
+     * @param id packed identifier
+     * @return segment name
+     * @throws IllegalArgumentException if {@code id} is not a valid identifier
+     */
+    public static String toName(int id) {
+        if (!HL7SegmentId.isValid(id))
+            throw new IllegalArgumentException("invalid segment id " + id);
+        return new String(new char[] { (char)(id >> 16), (char)((id >> 8) & 0xff), (char)(id & 0xff) });
+    }
+
+    /**
+     * Determine whether the given value is a valid identifier.
+     *
+     * @param id packed identifier
+     * @return true if {@code id} corresponds to some segment name
+     */
+    public static boolean isValid(int id) {
+        return (id & 0xff000000) == 0 && (id & 0xff0000) != 0 && (id & 0xff00) != 0 && (id & 0xff) != 0;
+    }
+
+    /**
+     * Determine whether the given identifier is that of a custom ("Z") segment, e.g., {@code ZPI}.
+     *
+     * @param id packed identifier
+     * @return true if {@code id} is valid and its name starts with {@code Z}
+     */
+    public static boolean isCustom(int id) {
+        return HL7SegmentId.isValid(id) && (id >> 16) == 'Z';
+    }
+}
@@ -5,7 +5,16 @@
 
 package org.dellroad.hl7;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 /**
  * List of {@link HL7Segment} objects that requires there to always be an initial MSH segment.
@@ -19,10 +28,35 @@ import java.util.ArrayList;
  *
  * <p>
  * Note we do not enforce the other segments to be anything, not even non-null.
+ *
+ * <p>
+ * To support {@link HL7Message#findSegment HL7Message.findSegment()} and friends, this class maintains an index from
+ * segment name to positions in the list. The index is built on demand and discarded whenever the list is modified,
+ * including via {@link #subList subList()} views, or one of its segments is {@linkplain HL7Segment#setName renamed}.
+ *
+ * <p>
+ * Once {@linkplain #freeze frozen}, any attempt to modify the list also results in an {@link IllegalStateException},
+ * and the index is never rebuilt.
  */
-@SuppressWarnings("serial")
 public final class HL7SegmentList extends ArrayList<HL7Segment> {
 
+    // Same as version 1.3.2
+    private static final long serialVersionUID = 8727641966899843639L;
+
+    private static final int[] NO_POSITIONS = new int[0];
+
+    // Segment name index; discarded by set() and ignored if this list's version has changed since it was built
+    private transient Index index;
+
+    // Number of set() invocations, which (unlike other modifications) do not change modCount
+    private transient int sets;
+
+    // Number of notifications from indexed segments that have been renamed
+    private transient int renames;
+
+    // Whether modifications are disallowed
+    private transient boolean frozen;
+
     /**
      * Constructor.
      *
@@ -40,8 +74,33 @@ public final class HL7SegmentList extends ArrayList<HL7Segment> {
         throw new IllegalStateException("list can't be empty");
     }
 
+    @Override
+    public boolean add(HL7Segment segment) {
+        this.checkNotFrozen();
+        return super.add(segment);
+    }
+
+    @Override
+    public void add(int index, HL7Segment segment) {
+        this.checkNotFrozen();
+        super.add(index, segment);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends HL7Segment> segments) {
+        this.checkNotFrozen();
+        return super.addAll(segments);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends HL7Segment> segments) {
+        this.checkNotFrozen();
+        return super.addAll(index, segments);
+    }
+
     @Override
     public HL7Segment remove(int index) {
+        this.checkNotFrozen();
         if (index == 0 && !(this.get(0) instanceof MSHSegment))
             throw new IllegalStateException("can't remove initial MSH");
         return super.remove(index);
@@ -49,6 +108,7 @@ public final class HL7SegmentList extends ArrayList<HL7Segment> {
 
     @Override
     public boolean remove(Object obj) {
+        this.checkNotFrozen();
         if (obj != null && obj.equals(get(0)))
             throw new IllegalStateException("can't remove initial MSH");
         return super.remove(obj);
@@ -56,16 +116,295 @@ public final class HL7SegmentList extends ArrayList<HL7Segment> {
 
     @Override
     protected void removeRange(int fromIndex, int toIndex) {
+        this.checkNotFrozen();
         if (fromIndex <= 0 && toIndex > 0 && !(this.get(0) instanceof MSHSegment))
             throw new IllegalStateException("can't remove initial MSH");
         super.removeRange(fromIndex, toIndex);
     }
 
+    @Override
+    public boolean removeAll(Collection<?> segments) {
+        this.checkNotFrozen();
+        return super.removeAll(segments);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> segments) {
+        this.checkNotFrozen();
+        return super.retainAll(segments);
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super HL7Segment> filter) {
+        this.checkNotFrozen();
+        return super.removeIf(filter);
+    }
+
+    @Override
+    public void replaceAll(UnaryOperator<HL7Segment> operator) {
+        this.checkNotFrozen();
+        super.replaceAll(operator);
+    }
+
+    @Override
+    public void sort(Comparator<? super HL7Segment> comparator) {
+        this.checkNotFrozen();
+        super.sort(comparator);
+    }
+
     @Override
     public HL7Segment set(int index, HL7Segment segment) {
+        this.checkNotFrozen();
         if (index == 0 && !(segment instanceof MSHSegment))
             throw new IllegalStateException("can't replace initial MSH segment with non-MSH segment");
+        this.index = null;
+        this.sets++;
         return super.set(index, segment);
     }
-}
 
+    @Override
+    public void ensureCapacity(int minCapacity) {
+        this.checkNotFrozen();
+        super.ensureCapacity(minCapacity);
+    }
+
+    @Override
+    public void trimToSize() {
+        this.checkNotFrozen();
+        super.trimToSize();
+    }
+
+    @Override
+    public List<HL7Segment> subList(int fromIndex, int toIndex) {
+        final List<HL7Segment> list = new SubList(super.subList(fromIndex, toIndex), fromIndex);
+        return this.frozen ? Collections.unmodifiableList(list) : list;
+    }
+
+    /**
+     * Clone this list. The clone is never {@linkplain #freeze frozen}.
+     */
+    @Override
+    public HL7SegmentList clone() {
+        final HL7SegmentList clone = (HL7SegmentList)super.clone();
+        clone.index = null;
+        clone.frozen = false;
+        return clone;
+    }
+
+    /**
+     * Disallow any further modifications to this list.
+     *
+     * <p>
+     * The segment name index is built now and not updated afterward, so it is safe for concurrent lookups by multiple threads.
+     * This does not freeze the segments in the list (see {@link HL7Message#freeze}), but any segment renamed afterward
+     * continues to be indexed under its previous name.
+     */
+    public void freeze() {
+        if (this.frozen)
+            return;
+        this.frozen = true;
+        this.index = new Index(this);
+    }
+
+    /**
+     * Determine whether this list is {@linkplain #freeze frozen}.
+     *
+     * @return true if this list can no longer be modified
+     */
+    public boolean isFrozen() {
+        return this.frozen;
+    }
+
+    /**
+     * Get the positions of all segments with the given name.
+     *
+     * @param name segment name
+     * @return positions in increasing order; the caller must not modify this array
+     */
+    int[] positionsOf(String name) {
+        Index current = this.index;
+        if (!this.frozen && (current == null || !current.isCurrent(this)))
+            this.index = current = new Index(this);
+        final int[] positions = current.positions.get(name);
+        return positions != null ? positions : NO_POSITIONS;
+    }
+
+    /**
+     * Get a view of the segments at the given positions.
+     *
+     * @param positions positions returned by {@link #positionsOf positionsOf()}
+     * @return read-only view that is only valid until this list is modified
+     */
+    List<HL7Segment> segmentsAt(int[] positions) {
+        return new Occurrences(this, positions);
+    }
+
+    /**
+     * Get a value that changes whenever this list is modified, including via {@link #set set()}, or one of its segments
+     * that has been {@linkplain #track tracked} is renamed.
+     *
+     * @return modification version
+     */
+    long getVersion() {
+        return ((long)(this.sets + this.renames) << 32) | (this.modCount & 0xffffffffL);
+    }
+
+    /**
+     * Arrange to be notified if the given segment, which is in this list, is {@linkplain HL7Segment#setName renamed}.
+     *
+     * <p>
+     * Does nothing if this list is {@linkplain #freeze frozen}, as its version never changes.
+     *
+     * @param segment segment in this list
+     */
+    void track(HL7Segment segment) {
+        if (!this.frozen)
+            segment.setOwner(this);
+    }
+
+    /**
+     * Notification that a segment tracked by this list may have been renamed. Ignored if this list is frozen.
+     */
+    void segmentRenamed() {
+        if (!this.frozen)
+            this.renames++;
+    }
+
+    /**
+     * Discard the segment name index, because it has been found to be out of date. Ignored if this list is frozen.
+     */
+    void invalidateIndex() {
+        if (!this.frozen)
+            this.index = null;
+    }
+
+    private void checkNotFrozen() {
+        if (this.frozen)
+            throw new IllegalStateException("list is frozen");
+    }
+
+// Index
+
+    /**
+     * Immutable segment name index.
+     */
+    private static final class Index {
+
+        final long version;
+        final HashMap<String, int[]> positions = new HashMap<>();
+
+        Index(HL7SegmentList list) {
+            this.version = list.getVersion();
+
+            // Count occurrences of each name
+            final int size = list.size();
+            final String[] names = new String[size];
+            final HashMap<String, int[]> counts = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                final HL7Segment segment = list.get(i);
+                if (segment == null)
+                    continue;
+                list.track(segment);
+                names[i] = segment.getName();
+                counts.computeIfAbsent(names[i], name -> new int[1])[0]++;
+            }
+
+            // Record positions
+            for (int i = 0; i < size; i++) {
+                if (names[i] == null)
+                    continue;
+                final int[] count = counts.get(names[i]);
+                final int[] array = this.positions.computeIfAbsent(names[i], name -> new int[count[0]]);
+                array[array.length - count[0]--] = i;
+            }
+        }
+
+        boolean isCurrent(HL7SegmentList list) {
+            return this.version == list.getVersion();
+        }
+    }
+
+// Occurrences
+
+    /**
+     * Read-only view of the segments at certain positions.
+     */
+    private static final class Occurrences extends AbstractList<HL7Segment> implements RandomAccess {
+
+        private final HL7SegmentList list;
+        private final int[] positions;
+
+        Occurrences(HL7SegmentList list, int[] positions) {
+            this.list = list;
+            this.positions = positions;
+        }
+
+        @Override
+        public HL7Segment get(int index) {
+            return this.list.get(this.positions[index]);
+        }
+
+        @Override
+        public int size() {
+            return this.positions.length;
+        }
+    }
+
+// SubList
+
+    /**
+     * Sub-list view that replaces elements via {@link HL7SegmentList#set HL7SegmentList.set()},
+     * which {@link ArrayList}'s own sub-list views bypass.
+     */
+    private final class SubList extends AbstractList<HL7Segment> implements RandomAccess {
+
+        private final List<HL7Segment> list;
+        private final int offset;
+
+        SubList(List<HL7Segment> list, int offset) {
+            this.list = list;
+            this.offset = offset;
+        }
+
+        @Override
+        public HL7Segment get(int index) {
+            return this.list.get(index);
+        }
+
+        @Override
+        public int size() {
+            return this.list.size();
+        }
+
+        @Override
+        public HL7Segment set(int index, HL7Segment segment) {
+            final HL7Segment previous = this.list.get(index);
+            HL7SegmentList.this.set(this.offset + index, segment);
+            return previous;
+        }
+
+        @Override
+        public void add(int index, HL7Segment segment) {
+            this.list.add(index, segment);
+            this.modCount++;
+        }
+
+        @Override
+        public HL7Segment remove(int index) {
+            final HL7Segment segment = this.list.remove(index);
+            this.modCount++;
+            return segment;
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            this.list.subList(fromIndex, toIndex).clear();
+            this.modCount++;
+        }
+
+        @Override
+        public List<HL7Segment> subList(int fromIndex, int toIndex) {
+            return new SubList(this.list.subList(fromIndex, toIndex), this.offset + fromIndex);
+        }
+    }
+}
@@ -5,14 +5,17 @@
 
 package org.dellroad.hl7;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
  * Container for the HL7 separator and escape characters for an HL7 message.
  */
-@SuppressWarnings("serial")
 public final class HL7Seps implements Serializable {
 
+    // Same as version 1.3.2
+    private static final long serialVersionUID = -8393819901877828815L;
+
     /** The default field separator character. */
     public static final char DEFAULT_FIELD_SEPARATOR = '|';
     /** The default component separator character. */
@@ -185,33 +188,61 @@ public final class HL7Seps implements Serializable {
      * @param buf buffer to append to
      */
     public void escape(String value, StringBuilder buf) {
+        try {
+            this.escape(value, (Appendable)buf);
+        } catch (IOException e) {
+            throw new RuntimeException("impossible", e);
+        }
+    }
+
+    /**
+     * Escape instances of any separator or escape character within the given string, and write the result to the given output.
+     *
+     * <p>
+     * If some character needs to be escaped but there is no escape character defined, the character is silently elided.
+     *
+     * @param value the String to escape
+     * @param out destination
+     * @throws IOException if an I/O error occurs
+     */
+    public void escape(String value, Appendable out) throws IOException {
         final int length = value.length();
-        final StringBuilder escapeCode = new StringBuilder();
+        int start = 0;
         for (int i = 0; i < length; i++) {
             final char ch = value.charAt(i);
-            escapeCode.setLength(0);
+            final char code;
             if (ch == this.fieldSep)
-                escapeCode.append(FIELD_SEPARATOR_ESCAPE);
+                code = FIELD_SEPARATOR_ESCAPE;
             else if (ch == this.repSep)
-                escapeCode.append(REPEAT_SEPARATOR_ESCAPE);
+                code = REPEAT_SEPARATOR_ESCAPE;
             else if (ch == this.compSep)
-                escapeCode.append(COMPONENT_SEPARATOR_ESCAPE);
+                code = COMPONENT_SEPARATOR_ESCAPE;
             else if (ch == this.subSep && this.subSep != '\u0000')
-                escapeCode.append(SUBCOMPONENT_SEPARATOR_ESCAPE);
+                code = SUBCOMPONENT_SEPARATOR_ESCAPE;
             else if (ch == this.escChar && this.escChar != '\u0000')
-                escapeCode.append(ESCAPE_CHARACTER_ESCAPE);
+                code = ESCAPE_CHARACTER_ESCAPE;
             else if (ch < 0x0020)
-                escapeCode.append(String.format("%c%02x", HEX_DATA_ESCAPE, (int)ch));
-            else {
-                buf.append(ch);
+                code = HEX_DATA_ESCAPE;
+            else
                 continue;
+
+            // Write unescaped characters so far, then the escape (if possible)
+            out.append(value, start, i);
+            start = i + 1;
+            if (this.escChar == '\u0000')
+                continue;
+            out.append(this.escChar);
+            out.append(code);
+            if (code == HEX_DATA_ESCAPE) {
+                out.append(Character.forDigit(ch >> 4, 16));
+                out.append(Character.forDigit(ch & 0xf, 16));
             }
-            if (this.escChar != '\u0000' && escapeCode.length() > 0) {
-                buf.append(this.escChar);
-                buf.append(escapeCode);
-                buf.append(this.escChar);
-            }
+            out.append(this.escChar);
         }
+        if (start == 0)
+            out.append(value);
+        else
+            out.append(value, start, length);
     }
 
     /**
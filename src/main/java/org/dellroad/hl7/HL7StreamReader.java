@@ -0,0 +1,492 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * "Pull" style HL7 parser, modeled on {@link javax.xml.stream.XMLStreamReader}.
+ *
+ * <p>
+ * Each invocation of {@link #next} advances to the next event and returns its type. For each message, the events are
+ * the same as those reported to an {@link HL7ContentHandler} by {@link HL7Parser}:
+ * {@link #MESSAGE_START}, then for each segment {@link #SEGMENT_START}, followed by {@link #FIELD}, {@link #REPEAT},
+ * {@link #COMPONENT}, and {@link #SUBCOMPONENT} events for its contents, then {@link #SEGMENT_END}; and finally
+ * {@link #MESSAGE_END}. After the last message, {@link #END_OF_INPUT} is returned.
+ *
+ * <p>
+ * Nothing is decoded until it is requested, and {@link #skipSegment} and {@link #skipField} jump ahead without decoding
+ * anything at all, so a filter can stop reading as soon as it has made its decision.
+ *
+ * <p>
+ * This class reads a single message given as a {@link CharSequence}; instances that read from files and LLP streams are
+ * available from {@link org.dellroad.hl7.io.HL7FileReader#toStreamReader} and
+ * {@link org.dellroad.hl7.llp.LLPInputStream#toStreamReader}. Subclasses may read other sources by overriding
+ * {@link #readMessageText}.
+ *
+ * <p>
+ * Instances are not thread safe.
+ */
+public class HL7StreamReader implements Closeable {
+
+    /**
+     * Initial state, before {@link #next} has been invoked.
+     */
+    public static final int START_OF_INPUT = 0;
+
+    /**
+     * Start of a message. The separators are available from {@link #getHL7Seps}.
+     */
+    public static final int MESSAGE_START = 1;
+
+    /**
+     * Start of a segment. The segment name is available from {@link #getText}.
+     */
+    public static final int SEGMENT_START = 2;
+
+    /**
+     * Start of a field. The field number is available from {@link #getFieldIndex}.
+     */
+    public static final int FIELD = 3;
+
+    /**
+     * Start of a repeat within the current field. The repeat number is available from {@link #getRepeatIndex}.
+     */
+    public static final int REPEAT = 4;
+
+    /**
+     * Start of a component within the current repeat. The component number is available from {@link #getComponentIndex}.
+     */
+    public static final int COMPONENT = 5;
+
+    /**
+     * A sub-component. The sub-component number is available from {@link #getSubComponentIndex},
+     * and its value from {@link #getText} or {@link #getTextCharacters}.
+     */
+    public static final int SUBCOMPONENT = 6;
+
+    /**
+     * End of a segment.
+     */
+    public static final int SEGMENT_END = 7;
+
+    /**
+     * End of a message.
+     */
+    public static final int MESSAGE_END = 8;
+
+    /**
+     * No more messages.
+     */
+    public static final int END_OF_INPUT = 9;
+
+    private CharSequence single;
+
+    // Current message
+    private CharSequence text;
+    private int end;
+    private HL7Seps seps;
+    private int fieldSep23;
+
+    // Current position
+    private int event;
+    private int posn;
+    private int segStart;
+    private int nameEnd;
+    private boolean msh;
+    private int fieldIndex;
+    private int repIndex;
+    private int compIndex;
+    private int subIndex;
+    private int leafStart;
+    private int leafEnd;
+    private char leafTerm;
+    private boolean escaped;
+    private boolean fieldSkipped;
+    private boolean segmentSkipped;
+
+    /**
+     * Constructor for reading a single message.
+     *
+     * @param msg encoded message; segments must be separated with a carriage return character
+     * @throws IllegalArgumentException if {@code msg} is null
+     */
+    public HL7StreamReader(CharSequence msg) {
+        if (msg == null)
+            throw new IllegalArgumentException("null msg");
+        this.single = msg;
+    }
+
+    /**
+     * Constructor for subclasses that override {@link #readMessageText}.
+     */
+    protected HL7StreamReader() {
+    }
+
+    /**
+     * Read the text of the next message.
+     *
+     * <p>
+     * The returned text must remain unchanged until the next invocation of this method.
+     *
+     * <p>
+     * The implementation in {@link HL7StreamReader} returns the message given to the constructor the first time,
+     * and null thereafter.
+     *
+     * @return encoded message, or null if there are no more messages
+     * @throws IOException if an I/O error occurs
+     * @throws HL7ContentException if a malformed message is read
+     */
+    protected CharSequence readMessageText() throws IOException, HL7ContentException {
+        final CharSequence msg = this.single;
+        this.single = null;
+        return msg;
+    }
+
+    /**
+     * Determine whether there are more events.
+     *
+     * @return false if the current event is {@link #END_OF_INPUT}, otherwise true
+     */
+    public boolean hasNext() {
+        return this.event != END_OF_INPUT;
+    }
+
+    /**
+     * Advance to the next event.
+     *
+     * @return the new event type
+     * @throws NoSuchElementException if the current event is {@link #END_OF_INPUT}
+     * @throws HL7ContentException if the message is invalid
+     * @throws IOException if an I/O error occurs reading the next message
+     */
+    public int next() throws IOException, HL7ContentException {
+        if (this.fieldSkipped) {
+            this.fieldSkipped = false;
+            return this.afterLeaf();
+        }
+        if (this.segmentSkipped) {
+            this.segmentSkipped = false;
+            return this.event = SEGMENT_END;
+        }
+        switch (this.event) {
+        case START_OF_INPUT:
+        case MESSAGE_END:
+            return this.startMessage();
+        case MESSAGE_START:
+            this.segStart = 0;
+            this.nameEnd = 3;
+            this.msh = true;
+            return this.event = SEGMENT_START;
+        case SEGMENT_START:
+            if (this.msh)
+                return this.field(1);
+            if (this.nameEnd < this.end && this.text.charAt(this.nameEnd) == this.seps.getFieldSep()) {
+                this.posn = this.nameEnd + 1;
+                return this.field(1);
+            }
+            this.posn = this.nameEnd;
+            return this.event = SEGMENT_END;
+        case FIELD:
+            return this.repeat(0);
+        case REPEAT:
+            return this.component(0);
+        case COMPONENT:
+            return this.subComponent(0);
+        case SUBCOMPONENT:
+            return this.afterLeaf();
+        case SEGMENT_END:
+            return this.startSegment();
+        case END_OF_INPUT:
+            throw new NoSuchElementException();
+        default:
+            throw new RuntimeException("internal error");
+        }
+    }
+
+    /**
+     * Get the current event type.
+     *
+     * @return current event type
+     */
+    public int getEventType() {
+        return this.event;
+    }
+
+    /**
+     * Get the separators for the current message.
+     *
+     * @return current message separator and escape characters
+     * @throws IllegalStateException if not currently within a message
+     */
+    public HL7Seps getHL7Seps() {
+        if (this.event == START_OF_INPUT || this.event == END_OF_INPUT)
+            throw new IllegalStateException("not within a message");
+        return this.seps;
+    }
+
+    /**
+     * Get the name of the current segment.
+     *
+     * @return current segment name
+     * @throws IllegalStateException if not currently within a segment
+     */
+    public String getSegmentName() {
+        this.checkWithinSegment();
+        return this.text.subSequence(this.segStart, this.nameEnd).toString();
+    }
+
+    /**
+     * Get the current field number (one-based, as in {@code PID.3}).
+     *
+     * @return current field number
+     * @throws IllegalStateException if not currently within a field
+     */
+    public int getFieldIndex() {
+        this.checkWithin(FIELD);
+        return this.fieldIndex;
+    }
+
+    /**
+     * Get the current repeat number (zero-based).
+     *
+     * @return current repeat number
+     * @throws IllegalStateException if not currently within a repeat
+     */
+    public int getRepeatIndex() {
+        this.checkWithin(REPEAT);
+        return this.repIndex;
+    }
+
+    /**
+     * Get the current component number (zero-based).
+     *
+     * @return current component number
+     * @throws IllegalStateException if not currently within a component
+     */
+    public int getComponentIndex() {
+        this.checkWithin(COMPONENT);
+        return this.compIndex;
+    }
+
+    /**
+     * Get the current sub-component number (zero-based).
+     *
+     * @return current sub-component number
+     * @throws IllegalStateException if the current event is not {@link #SUBCOMPONENT}
+     */
+    public int getSubComponentIndex() {
+        this.checkWithin(SUBCOMPONENT);
+        return this.subIndex;
+    }
+
+    /**
+     * Get the text associated with the current event, which is the segment name for {@link #SEGMENT_START},
+     * or the decoded (i.e., unescaped) value for {@link #SUBCOMPONENT}.
+     *
+     * @return current text
+     * @throws IllegalStateException if the current event is not {@link #SEGMENT_START} or {@link #SUBCOMPONENT}
+     */
+    public String getText() {
+        return this.getTextCharacters().toString();
+    }
+
+    /**
+     * Get the text associated with the current event as a {@link CharSequence}.
+     *
+     * <p>
+     * This is the same as {@link #getText}, except that no characters are copied unless the value contains escape
+     * sequences. The returned sequence refers to the current message text, so it is only valid until the next message.
+     *
+     * @return current text
+     * @throws IllegalStateException if the current event is not {@link #SEGMENT_START} or {@link #SUBCOMPONENT}
+     */
+    public CharSequence getTextCharacters() {
+        if (this.fieldSkipped || this.segmentSkipped)
+            throw new IllegalStateException("text is not available after skipping");
+        switch (this.event) {
+        case SEGMENT_START:
+            return new CharSlice(this.text, this.segStart, this.nameEnd);
+        case SUBCOMPONENT:
+            return this.escaped ?
+              this.seps.unescape(this.text.subSequence(this.leafStart, this.leafEnd).toString()) :
+              new CharSlice(this.text, this.leafStart, this.leafEnd);
+        default:
+            throw new IllegalStateException("no text for the current event");
+        }
+    }
+
+    /**
+     * Skip the remainder of the current segment without decoding it. The next invocation of {@link #next} will
+     * return {@link #SEGMENT_END}.
+     *
+     * @throws IllegalStateException if not currently within a segment, or the current event is {@link #SEGMENT_END}
+     */
+    public void skipSegment() {
+        this.checkWithinSegment();
+        if (this.event == SEGMENT_END)
+            throw new IllegalStateException("already at the end of the segment");
+        this.fieldSkipped = false;
+        this.segmentSkipped = true;
+        this.posn = HL7Parser.segmentEnd(this.text, this.nameEnd, this.end);
+    }
+
+    /**
+     * Skip the remainder of the current field without decoding it. The next invocation of {@link #next} will
+     * return {@link #FIELD} for the following field, or {@link #SEGMENT_END}.
+     *
+     * @throws IllegalStateException if not currently within a field
+     */
+    public void skipField() {
+        this.checkWithin(FIELD);
+        if (this.segmentSkipped)
+            throw new IllegalStateException("segment has been skipped");
+        this.fieldSkipped = true;
+        if (this.msh && this.fieldIndex <= 2) {
+            this.setMSHLeaf();
+            return;
+        }
+        final char fieldSep = this.seps.getFieldSep();
+        int i = this.event == SUBCOMPONENT ? this.leafEnd : this.posn;
+        while (i < this.end) {
+            final char ch = this.text.charAt(i);
+            if (ch == fieldSep || ch == HL7Message.SEGMENT_TERMINATOR)
+                break;
+            i++;
+        }
+        this.leafEnd = i;
+        this.leafTerm = i < this.end ? this.text.charAt(i) : HL7Message.SEGMENT_TERMINATOR;
+    }
+
+    /**
+     * Close this instance.
+     *
+     * <p>
+     * The implementation in {@link HL7StreamReader} does nothing.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+    }
+
+// Internal methods
+
+    private int startMessage() throws IOException, HL7ContentException {
+        this.text = this.readMessageText();
+        if (this.text == null) {
+            this.seps = null;
+            return this.event = END_OF_INPUT;
+        }
+        this.end = HL7Parser.trimEnd(this.text);
+        this.seps = MSHSegment.parseHL7Seps(this.text, HL7Parser.segmentEnd(this.text, 0, this.end));
+        this.fieldSep23 = MSHSegment.headerLength(this.seps);
+        return this.event = MESSAGE_START;
+    }
+
+    private int startSegment() throws HL7ContentException {
+        if (this.posn >= this.end)
+            return this.event = MESSAGE_END;
+        final char fieldSep = this.seps.getFieldSep();
+        this.segStart = this.posn + 1;
+        int i = this.segStart;
+        while (i < this.end) {
+            final char ch = this.text.charAt(i);
+            if (ch == fieldSep || ch == HL7Message.SEGMENT_TERMINATOR)
+                break;
+            i++;
+        }
+        HL7Parser.checkSegmentName(this.text, this.segStart, i);
+        this.nameEnd = i;
+        this.msh = false;
+        return this.event = SEGMENT_START;
+    }
+
+    private int field(int index) {
+        this.fieldIndex = index;
+        return this.event = FIELD;
+    }
+
+    private int repeat(int index) {
+        this.repIndex = index;
+        return this.event = REPEAT;
+    }
+
+    private int component(int index) {
+        this.compIndex = index;
+        return this.event = COMPONENT;
+    }
+
+    private int subComponent(int index) {
+        this.subIndex = index;
+        this.escaped = false;
+        if (this.msh && this.fieldIndex <= 2) {
+            this.setMSHLeaf();
+            return this.event = SUBCOMPONENT;
+        }
+        final char fieldSep = this.seps.getFieldSep();
+        final char repSep = this.seps.getRepSep();
+        final char compSep = this.seps.getCompSep();
+        final char subSep = this.seps.getSubSep();
+        final char escChar = this.seps.getEscChar();
+        final boolean hasSubSep = this.seps.hasSubcomponentSeparator();
+        final boolean hasEscChar = this.seps.hasEscapeCharacter();
+        int i;
+        for (i = this.posn; i < this.end; i++) {
+            final char ch = this.text.charAt(i);
+            if (ch == fieldSep || ch == HL7Message.SEGMENT_TERMINATOR || ch == compSep || ch == repSep
+              || (hasSubSep && ch == subSep))
+                break;
+            if (hasEscChar && ch == escChar)
+                this.escaped = true;
+        }
+        this.leafStart = this.posn;
+        this.leafEnd = i;
+        this.leafTerm = i < this.end ? this.text.charAt(i) : HL7Message.SEGMENT_TERMINATOR;
+        return this.event = SUBCOMPONENT;
+    }
+
+    // MSH.1 and MSH.2 are not parsed like other fields
+    private void setMSHLeaf() {
+        if (this.fieldIndex == 1) {
+            this.leafStart = 3;
+            this.leafEnd = 4;
+            this.leafTerm = this.seps.getFieldSep();
+        } else {
+            this.leafStart = 4;
+            this.leafEnd = this.fieldSep23;
+            this.leafTerm = this.fieldSep23 < this.end ? this.text.charAt(this.fieldSep23) : HL7Message.SEGMENT_TERMINATOR;
+        }
+    }
+
+    private int afterLeaf() {
+        final char term = this.leafTerm;
+        this.posn = this.leafEnd + 1;
+        if (term == this.seps.getFieldSep())
+            return this.field(this.fieldIndex + 1);
+        if (term == this.seps.getRepSep())
+            return this.repeat(this.repIndex + 1);
+        if (term == this.seps.getCompSep())
+            return this.component(this.compIndex + 1);
+        if (this.seps.hasSubcomponentSeparator() && term == this.seps.getSubSep())
+            return this.subComponent(this.subIndex + 1);
+        this.posn = this.leafEnd;
+        return this.event = SEGMENT_END;
+    }
+
+    private void checkWithinSegment() {
+        if (this.event < SEGMENT_START || this.event > SEGMENT_END)
+            throw new IllegalStateException("not within a segment");
+    }
+
+    private void checkWithin(int level) {
+        if (this.event < level || this.event >= SEGMENT_END)
+            throw new IllegalStateException("not within a " + (level == FIELD ? "field" : level == REPEAT ? "repeat" :
+              level == COMPONENT ? "component" : "sub-component"));
+    }
+}
@@ -5,11 +5,19 @@
 
 package org.dellroad.hl7;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
 /**
  * Utility methods.
  */
 public final class HL7Util {
 
+    // SWAR constants
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOWS = 0x7f7f7f7f7f7f7f7fL;
+
     private HL7Util() {
     }
 
@@ -54,6 +62,39 @@ public final class HL7Util {
      *  greater than the length of <code>value</code>
      */
     public static int[] find(String value, char sep, int start, int end) {
+        return HL7Util.find((CharSequence)value, sep, start, end);
+    }
+
+    /**
+     * Find all occurrences of the separator character in a sub-sequence.
+     *
+     * <p>
+     * Sequences returned by the byte-oriented parser (see {@link HL7Message#HL7Message(byte[], int, int,
+     * java.nio.charset.Charset, boolean)}) are searched eight bytes at a time using {@link #find(byte[], byte, int, int)}.
+     *
+     * @param value entire character sequence
+     * @param sep separator character to search for
+     * @param start starting index of sub-sequence to search (inclusive)
+     * @param end ending index of sub-sequence to search (exclusive)
+     * @return indexes of all occurrences of <code>sep</code>, in order, plus one extra index equal to <code>end</code>
+     * @throws IndexOutOfBoundsException if <code>start</code> is less than zero or <code>end</code> is
+     *  greater than the length of <code>value</code>
+     */
+    public static int[] find(CharSequence value, char sep, int start, int end) {
+
+        // Search bytes directly if possible
+        if (value instanceof ByteCharSequence && ((ByteCharSequence)value).isSingleByte(sep)) {
+            final ByteCharSequence bytes = (ByteCharSequence)value;
+            if (start < 0 || end > bytes.length())
+                throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + bytes.length());
+            final int offset = bytes.getOffset();
+            final int[] positions = HL7Util.find(bytes.getBytes(), (byte)sep, offset + start, offset + end);
+            if (offset != 0) {
+                for (int i = 0; i < positions.length; i++)
+                    positions[i] -= offset;
+            }
+            return positions;
+        }
 
         // Count occurrences
         int count = 0;
@@ -79,5 +120,162 @@ public final class HL7Util {
         positions[count] = end;
         return positions;
     }
-}
 
+    /**
+     * Find the first occurrence of a character in a sub-sequence.
+     *
+     * <p>
+     * Sequences returned by the byte-oriented parser (see {@link HL7Message#HL7Message(byte[], int, int,
+     * java.nio.charset.Charset, boolean)}) are searched eight bytes at a time using {@link #indexOf(byte[], byte, int, int)}.
+     *
+     * @param value entire character sequence
+     * @param ch character to search for
+     * @param start starting index of sub-sequence to search (inclusive)
+     * @param end ending index of sub-sequence to search (exclusive)
+     * @return index of the first occurrence of {@code ch}, or -1 if not found
+     * @throws IndexOutOfBoundsException if <code>start</code> is less than zero or <code>end</code> is
+     *  greater than the length of <code>value</code>
+     */
+    public static int indexOf(CharSequence value, char ch, int start, int end) {
+        if (start < 0 || end > value.length())
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + value.length());
+        if (value instanceof ByteCharSequence && ((ByteCharSequence)value).isSingleByte(ch)) {
+            final ByteCharSequence bytes = (ByteCharSequence)value;
+            final int offset = bytes.getOffset();
+            final int index = HL7Util.indexOf(bytes.getBytes(), (byte)ch, offset + start, offset + end);
+            return index != -1 ? index - offset : -1;
+        }
+        if (value instanceof String) {
+            final int index = ((String)value).indexOf(ch, start);
+            return index < end ? index : -1;
+        }
+        for (int i = start; i < end; i++) {
+            if (value.charAt(i) == ch)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Get a {@link CharSequence} containing the characters encoded in the given bytes.
+     *
+     * <p>
+     * If {@code charset} is {@link java.nio.charset.StandardCharsets#ISO_8859_1 ISO-8859-1} or
+     * {@link java.nio.charset.StandardCharsets#US_ASCII US-ASCII}, then the bytes are not decoded up front; instead, the
+     * returned sequence is a view of {@code buf} (which therefore must not change) that decodes each character as accessed.
+     * Otherwise, the bytes are decoded into a {@link String}.
+     *
+     * @param buf encoded characters
+     * @param off offset in {@code buf}
+     * @param len number of bytes
+     * @param charset character encoding
+     * @return decoded characters
+     * @throws IllegalArgumentException if {@code buf} or {@code charset} is null
+     * @throws IndexOutOfBoundsException if {@code off} and/or {@code len} are invalid
+     */
+    public static CharSequence decode(byte[] buf, int off, int len, Charset charset) {
+        if (buf == null)
+            throw new IllegalArgumentException("null buf");
+        if (charset == null)
+            throw new IllegalArgumentException("null charset");
+        return ByteCharSequence.wrap(buf, off, len, charset);
+    }
+
+    /**
+     * Find all occurrences of a byte value in a byte array range.
+     *
+     * <p>
+     * Like {@link #indexOf(byte[], byte, int, int)}, this method examines eight bytes at a time.
+     *
+     * @param buf byte array
+     * @param value byte value to search for
+     * @param start starting index of range to search (inclusive)
+     * @param end ending index of range to search (exclusive)
+     * @return indexes of all occurrences of <code>value</code>, in order, plus one extra index equal to <code>end</code>
+     * @throws IndexOutOfBoundsException if <code>start</code> is less than zero or <code>end</code> is
+     *  greater than the length of <code>buf</code>
+     */
+    public static int[] find(byte[] buf, byte value, int start, int end) {
+        if (start < 0 || end > buf.length)
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + buf.length);
+        final ByteBuffer words = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+        final long pattern = ONES * (value & 0xff);
+        final int last = end - 8;
+
+        // Count occurrences
+        int count = 0;
+        int i;
+        for (i = start; i <= last; i += 8)
+            count += Long.bitCount(HL7Util.matches(words.getLong(i), pattern));
+        for (; i < end; i++) {
+            if (buf[i] == value)
+                count++;
+        }
+
+        // Allocate array and record them
+        final int[] positions = new int[count + 1];
+        int j = 0;
+        for (i = start; j < count && i <= last; i += 8) {
+            for (long matches = HL7Util.matches(words.getLong(i), pattern); matches != 0; matches &= matches - 1)
+                positions[j++] = i + (Long.numberOfTrailingZeros(matches) >>> 3);
+        }
+        for (; j < count; i++) {
+            if (buf[i] == value)
+                positions[j++] = i;
+        }
+
+        // Done
+        positions[count] = end;
+        return positions;
+    }
+
+    /**
+     * Find the first occurrence of a byte value in a byte array range.
+     *
+     * <p>
+     * This method examines eight bytes at a time (SWAR, or "SIMD within a register"): each group of eight bytes is read as a
+     * {@code long} and XOR'd with the target value repeated in every byte position, and then the zero bytes in the result
+     * are located using a few arithmetic operations. This is typically several times faster than a byte-at-a-time loop
+     * when the target value is not close to {@code start}.
+     *
+     * @param buf byte array
+     * @param value byte value to search for
+     * @param start starting index of range to search (inclusive)
+     * @param end ending index of range to search (exclusive)
+     * @return index of the first occurrence of {@code value}, or -1 if not found
+     * @throws IndexOutOfBoundsException if <code>start</code> is less than zero or <code>end</code> is
+     *  greater than the length of <code>buf</code>
+     */
+    public static int indexOf(byte[] buf, byte value, int start, int end) {
+        if (start < 0 || end > buf.length)
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + buf.length);
+        int i = start;
+        if (end - i >= 8) {
+            final ByteBuffer words = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+            final long pattern = ONES * (value & 0xff);
+            for (final int last = end - 8; i <= last; i += 8) {
+                final long matches = HL7Util.matches(words.getLong(i), pattern);
+                if (matches != 0)
+                    return i + (Long.numberOfTrailingZeros(matches) >>> 3);
+            }
+        }
+        while (i < end) {
+            if (buf[i] == value)
+                return i;
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Compare eight bytes at once.
+     *
+     * @param word eight bytes, little-endian
+     * @param pattern target byte value repeated in all eight byte positions
+     * @return a mask having the high bit set in exactly those byte positions that match
+     */
+    private static long matches(long word, long pattern) {
+        final long x = word ^ pattern;
+        return ~(((x & LOWS) + LOWS) | x | LOWS);
+    }
+}
@@ -5,6 +5,7 @@
 
 package org.dellroad.hl7;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -15,9 +16,11 @@ import java.util.Date;
  * This subclass does not allow accessing MSH.1 or MSH.2 except
  * indirectly via {@link #getHL7Seps} and {@link #setHL7Seps setHL7Seps()}.
  */
-@SuppressWarnings("serial")
 public class MSHSegment extends HL7Segment {
 
+    // Same as version 1.3.2
+    private static final long serialVersionUID = -3016084520251744974L;
+
     /** Default processing ID. */
     public static final String DEFAULT_PROCESSING_ID = "P";
     /** Default HL7 version. */
@@ -34,6 +37,9 @@ public class MSHSegment extends HL7Segment {
     private static final String ACK = "ACK";
     private static final HL7Field ACK_MSH_9 = new HL7Field(ACK);
     private static final HL7Field ACK_MSA_1 = new HL7Field("AA");
+    private static final HL7Path MSH_9 = HL7Path.compile("MSH.9");
+    private static final HL7Path MSA_1 = HL7Path.compile("MSA.1");
+    private static final HL7Path MSA_2 = HL7Path.compile("MSA.2");
 
     /**
      * Parsing constructor.
@@ -44,33 +50,14 @@ public class MSHSegment extends HL7Segment {
     public MSHSegment(String line) throws HL7ContentException {
 
         // Parse "MSH", MSH.1, and MSH.2
-        if (!line.startsWith(MSH_SEGMENT_NAME))
-            throw new HL7ContentException("MSH segment does not start with `" + MSH_SEGMENT_NAME + "'").setContent(line);
+        final HL7Seps seps = MSHSegment.parseHL7Seps(line, line.length());
         this.fields.add(new HL7Field(MSH_SEGMENT_NAME));
-        if (line.length() < 6)
-            throw new HL7ContentException("MSH segment is truncated").setContent(line);
-        char fieldSep = line.charAt(3);
-        char repSep = line.charAt(5);
-        char compSep = line.charAt(4);
-        char subSep = '\u0000';
-        char escChar = '\u0000';
-        int fieldSep23 = 6;
-        if (line.length() >= 7 && line.charAt(6) != fieldSep) {
-            fieldSep23++;
-            escChar = line.charAt(6);
-            if (line.length() >= 8 && line.charAt(7) != fieldSep) {
-                fieldSep23++;
-                subSep = line.charAt(7);
-            }
-        }
-        HL7Seps seps = new HL7Seps(fieldSep, compSep, repSep, escChar, subSep);
         this.setHL7Seps(seps);
 
         // Parse remaining fields (if any)
+        final int fieldSep23 = MSHSegment.headerLength(seps);
         if (fieldSep23 == line.length())
             return;
-        if (line.charAt(fieldSep23) != fieldSep)
-            throw new HL7ContentException("bogus extra characters in MSH.2").setContent(line);
         this.parseAndAddFields(line.substring(fieldSep23 + 1), seps);
     }
 
@@ -363,33 +350,118 @@ public class MSHSegment extends HL7Segment {
      * @throws IllegalArgumentException if {@code ack} is null
      */
     public boolean isACK(HL7Message ack) throws HL7ContentException {
-        if (ack == null)
-            throw new IllegalArgumentException("null ack");
+        return this.isResponse(ack)
+          && ACK.equals(MSH_9.get(ack))
+          && ACK_MSA_1.equals(MSA_1.getField(ack));
+    }
+
+    /**
+     * Check whether the given message is a response to this MSH, i.e., whether its MSA.2 matches this MSH's
+     * control ID (MSH.10) and its processing ID (MSH.11) matches this MSH's.
+     *
+     * <p>
+     * Unlike {@link #isACK isACK()}, this method does not check the message type or acknowlegement code, so it also
+     * matches negative acknowlegements (e.g., "AE" and "AR") and application responses.
+     *
+     * @param response putative response to this message
+     * @return true if {@code response} is a response to this MSH
+     * @throws HL7ContentException if the required fields are not present in this instance
+     * @throws IllegalArgumentException if {@code response} is null
+     */
+    public boolean isResponse(HL7Message response) throws HL7ContentException {
+        if (response == null)
+            throw new IllegalArgumentException("null response");
         HL7Field controlID = this.getControlID();
         HL7Field procID = this.getProcessingID();
         if (controlID == null || procID == null)
             throw new HL7ContentException("insufficient fields for ACK'ing");
-        MSHSegment ackMSH = ack.getMSHSegment();
-        return ACK.equals(ack.getField("MSH.9").get(0, 0, 0))
-          && controlID.equals(ack.getField("MSA.2"))
-          && procID.equals(ackMSH.getProcessingID())
-          && ACK_MSA_1.equals(ack.getField("MSA.1"));
+        return controlID.equals(MSHSegment.getResponseControlID(response))
+          && procID.equals(response.getMSHSegment().getProcessingID());
     }
 
     /**
-     * Append string encoding of this segment to the provided buffer.
+     * Get the control ID of the message to which the given message responds, i.e., its MSA.2 field.
+     *
+     * @param response response message
+     * @return the MSA.2 field of {@code response}, or null if it has none
+     * @throws IllegalArgumentException if {@code response} is null
+     */
+    public static HL7Field getResponseControlID(HL7Message response) {
+        if (response == null)
+            throw new IllegalArgumentException("null response");
+        return MSA_2.getField(response);
+    }
+
+    /**
+     * Parse the segment name, MSH.1, and MSH.2 at the start of an encoded MSH segment.
      *
      * <p>
-     * This overridden version ensures that MSH.1 and MSH.2 are not escaped.
+     * On success, the returned separators determine the offset of the field separator that follows MSH.2
+     * (see {@link #headerLength headerLength()}); that offset is either {@code end} or the offset of a field separator.
+     *
+     * @param text encoded text starting with an MSH segment
+     * @param end end of the MSH segment in {@code text}
+     * @return separators defined by MSH.1 and MSH.2
+     * @throws HL7ContentException if the MSH segment or its separators are invalid
+     */
+    static HL7Seps parseHL7Seps(CharSequence text, int end) throws HL7ContentException {
+        for (int i = 0; i < MSH_SEGMENT_NAME.length(); i++) {
+            if (i >= end || text.charAt(i) != MSH_SEGMENT_NAME.charAt(i)) {
+                throw new HL7ContentException("MSH segment does not start with `" + MSH_SEGMENT_NAME + "'")
+                  .setContent(text.subSequence(0, end).toString());
+            }
+        }
+        if (end < 6)
+            throw new HL7ContentException("MSH segment is truncated").setContent(text.subSequence(0, end).toString());
+        final char fieldSep = text.charAt(3);
+        final char repSep = text.charAt(5);
+        final char compSep = text.charAt(4);
+        char subSep = '\u0000';
+        char escChar = '\u0000';
+        if (end >= 7 && text.charAt(6) != fieldSep) {
+            escChar = text.charAt(6);
+            if (end >= 8 && text.charAt(7) != fieldSep)
+                subSep = text.charAt(7);
+        }
+        final HL7Seps seps = new HL7Seps(fieldSep, compSep, repSep, escChar, subSep);
+        final int fieldSep23 = MSHSegment.headerLength(seps);
+        if (fieldSep23 < end && text.charAt(fieldSep23) != fieldSep)
+            throw new HL7ContentException("bogus extra characters in MSH.2").setContent(text.subSequence(0, end).toString());
+        return seps;
+    }
+
+    /**
+     * Get the length of the encoded segment name, MSH.1, and MSH.2 for the given separators.
+     *
+     * @param seps separators
+     * @return offset of the field separator following MSH.2 in an encoded MSH segment
+     */
+    static int headerLength(HL7Seps seps) {
+        int length = 6;
+        if (seps.hasEscapeCharacter()) {
+            length++;
+            if (seps.hasSubcomponentSeparator())
+                length++;
+        }
+        return length;
+    }
+
+    /**
+     * Write the encoding of this segment to the given output.
+     *
+     * <p>
+     * This overridden version ensures that MSH.1 and MSH.2 are not escaped, and are consistent with {@code seps}.
      */
     @Override
-    public void append(StringBuilder buf, HL7Seps seps) {
-        HL7Field[] fields = this.fields.toArray(new HL7Field[this.fields.size()]);
-        buf.append(fields[0]);
-        buf.append(seps);
-        for (int i = 3; i < fields.length; i++) {
-            buf.append(seps.getFieldSep());
-            fields[i].append(buf, seps);
+    public void writeTo(Appendable out, HL7Seps seps) throws IOException {
+        if (this.writeLine(out, seps))
+            return;
+        final int numFields = this.getNumFields();
+        this.getField(0).writeTo(out, seps);
+        out.append(seps.toString());
+        for (int i = 3; i < numFields; i++) {
+            out.append(seps.getFieldSep());
+            this.getField(i).writeTo(out, seps);
         }
     }
 
@@ -406,11 +478,7 @@ public class MSHSegment extends HL7Segment {
     public String toString(HL7Seps seps) {
         if (seps == null)
             throw new IllegalArgumentException("null seps");
-        if (seps.equals(getHL7Seps()))
-            return super.toString(seps);
-        MSHSegment copy = new MSHSegment(this);
-        copy.setHL7Seps(seps);
-        return copy.toString();
+        return super.toString(seps);
     }
 
     @Override
@@ -15,10 +15,12 @@ import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 
 import org.dellroad.hl7.HL7ContentException;
+import org.dellroad.hl7.HL7ContentHandler;
 import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.HL7MessageBuilder;
+import org.dellroad.hl7.HL7Parser;
 import org.dellroad.hl7.HL7Reader;
-import org.dellroad.hl7.HL7Segment;
-import org.dellroad.hl7.HL7Seps;
+import org.dellroad.hl7.HL7StreamReader;
 import org.dellroad.hl7.MSHSegment;
 
 /**
@@ -40,6 +42,9 @@ public class HL7FileReader implements HL7Reader, Closeable {
      */
     protected final BufferedReader reader;
 
+    private final HL7Parser parser = new HL7Parser();
+    private final StringBuilder buf = new StringBuilder();
+
     private String nextLine;
     private boolean closed;
 
@@ -74,20 +79,67 @@ public class HL7FileReader implements HL7Reader, Closeable {
      * @throws IOException if an error occurs on the underlying stream
      */
     public HL7Message readMessage() throws IOException, HL7ContentException {
+        final HL7MessageBuilder builder = new HL7MessageBuilder();
+        this.readMessage(builder);
+        return builder.getMessage();
+    }
+
+    /**
+     * Read next message from the underlying stream and report its contents to the given handler,
+     * without building an {@link HL7Message}.
+     *
+     * @param handler callback interface
+     * @throws EOFException if there is no more input
+     * @throws HL7ContentException if a malformed message is read
+     * @throws HL7ContentException if thrown by {@code handler}
+     * @throws IOException if an error occurs on the underlying stream
+     * @throws IllegalArgumentException if {@code handler} is null
+     */
+    public void readMessage(HL7ContentHandler handler) throws IOException, HL7ContentException {
+        if (handler == null)
+            throw new IllegalArgumentException("null handler");
+        if (this.readMessageText() == null)
+            throw new EOFException();
+        this.parser.parse(this.buf, handler);
+    }
+
+    /**
+     * Create an {@link HL7StreamReader} that reads messages from this instance.
+     *
+     * <p>
+     * Closing the returned {@link HL7StreamReader} closes this instance.
+     *
+     * @return pull parser reading from this instance
+     */
+    public HL7StreamReader toStreamReader() {
+        return new HL7StreamReader() {
+            @Override
+            protected CharSequence readMessageText() throws IOException {
+                return HL7FileReader.this.readMessageText();
+            }
+
+            @Override
+            public void close() throws IOException {
+                HL7FileReader.this.close();
+            }
+        };
+    }
+
+    // Read the lines of the next message into this.buf, separated by carriage returns
+    private CharSequence readMessageText() throws IOException {
         String line = nextLine();
         if (line == null)
-            throw new EOFException();
-        MSHSegment msh = new MSHSegment(line);
-        HL7Seps seps = msh.getHL7Seps();
-        HL7Message message = new HL7Message(msh);
+            return null;
+        this.buf.setLength(0);
+        this.buf.append(line);
         while ((line = nextLine()) != null) {
             if (line.startsWith(MSHSegment.MSH_SEGMENT_NAME)) {
                 this.pushback(line);
                 break;
             }
-            message.getSegments().add(new HL7Segment(line, seps));
+            this.buf.append(HL7Message.SEGMENT_TERMINATOR).append(line);
         }
-        return message;
+        return this.buf;
     }
 
     /**
@@ -14,8 +14,6 @@ import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 
 import org.dellroad.hl7.HL7Message;
-import org.dellroad.hl7.HL7Segment;
-import org.dellroad.hl7.HL7Seps;
 import org.dellroad.hl7.HL7Writer;
 
 /**
@@ -118,11 +116,7 @@ public class HL7FileWriter implements HL7Writer, Closeable {
      * Write the given message to the underlying output (and then flush it).
      */
     public void writeMessage(HL7Message message) throws IOException {
-        HL7Seps seps = message.getMSHSegment().getHL7Seps();
-        for (HL7Segment segment : message.getSegments()) {
-            this.writer.write(segment.toString(seps));
-            this.writer.write(this.eos);
-        }
+        message.writeTo(this.writer, message.getMSHSegment().getHL7Seps(), this.eos);
         if (this.eom != '\0')
             this.writer.write(this.eom);
         this.writer.flush();
@@ -0,0 +1,28 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import org.dellroad.hl7.HL7Message;
+
+/**
+ * Callback interface for processing messages received by an {@link LLPServer}.
+ */
+@FunctionalInterface
+public interface HL7MessageHandler {
+
+    /**
+     * Process a received message.
+     *
+     * <p>
+     * This method may be invoked concurrently by multiple threads, each handling a different connection;
+     * messages received on the same connection are handled one at a time, in order.
+     *
+     * @param msg received message
+     * @return response to send, or null to send an automatically generated acknowlegement
+     * @throws Exception if the message could not be processed; no response is sent, and the connection is closed
+     */
+    HL7Message handleMessage(HL7Message msg) throws Exception;
+}
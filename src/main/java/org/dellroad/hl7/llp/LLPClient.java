@@ -0,0 +1,491 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.dellroad.hl7.HL7ContentException;
+import org.dellroad.hl7.HL7Field;
+import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.MSHSegment;
+
+/**
+ * Sends HL7 messages over an LLP connection, pipelining up to a configurable number of messages at a time.
+ *
+ * <p>
+ * {@link #sendAsync sendAsync()} writes a message and returns a {@link CompletableFuture} that completes with the
+ * receiver's response. Up to {@linkplain #setMaxInFlight a configurable number} of messages may be awaiting responses at
+ * any time; when the limit is reached, {@link #sendAsync sendAsync()} blocks until a response arrives. Against receivers
+ * that handle pipelined messages, this avoids paying a full round trip per message.
+ *
+ * <p>
+ * Responses are matched to messages by comparing the response's MSA.2 to the message's control ID (MSH.10), as determined
+ * by {@link MSHSegment#isResponse MSHSegment.isResponse()}, so the control IDs of outstanding messages must be distinct.
+ * Futures are completed with whatever response is received, whether or not it's a positive acknowlegement; use
+ * {@link MSHSegment#isACK MSHSegment.isACK()} to check. In {@linkplain #setOrdered ordered mode}, each response must
+ * answer the oldest outstanding message; a response that answers a later message is a protocol error. In unordered mode,
+ * responses may arrive in any order.
+ *
+ * <p>
+ * A message whose response does not arrive within its timeout has its future completed exceptionally with a
+ * {@link TimeoutException}, and no longer counts against the in-flight limit; if the response arrives later, it is discarded.
+ * Any I/O or protocol error closes the connection and completes all outstanding futures exceptionally.
+ *
+ * <p>
+ * Futures are completed by an internal thread that reads responses, so dependent actions that may block or take
+ * significant time should be run asynchronously.
+ *
+ * <p>
+ * Instances must be configured before they are {@linkplain #connect connected}. Instances are thread safe once connected.
+ */
+public class LLPClient implements Closeable {
+
+    /** Default maximum message length. */
+    public static final int DEFAULT_MAX_LENGTH = LLPServer.DEFAULT_MAX_LENGTH;
+
+    /** Default maximum number of messages awaiting responses. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
+    /** Default response timeout in milliseconds. */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    private static final ScheduledThreadPoolExecutor TIMER;
+
+    static {
+        TIMER = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "LLPClient timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final InetSocketAddress address;
+
+    // Outstanding requests in the order sent; also the lock for state changes
+    private final LinkedHashMap<HL7Field, Request> pending = new LinkedHashMap<>();
+
+    // Configuration
+    private CharsetDecoder charsetDecoder = CharsetDecoder.fixed(StandardCharsets.ISO_8859_1);
+    private int maxLength = DEFAULT_MAX_LENGTH;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private long timeout = DEFAULT_TIMEOUT;
+    private int connectTimeout;
+    private boolean ordered;
+
+    // Runtime state
+    private Socket socket;
+    private LLPOutputStream output;
+    private IOException closedException;
+
+    /**
+     * Constructor.
+     *
+     * @param address remote address to connect to
+     * @throws IllegalArgumentException if {@code address} is null
+     */
+    public LLPClient(InetSocketAddress address) {
+        if (address == null)
+            throw new IllegalArgumentException("null address");
+        this.address = address;
+    }
+
+    /**
+     * Get the remote address of this instance.
+     *
+     * @return remote address
+     */
+    public InetSocketAddress getAddress() {
+        return this.address;
+    }
+
+// Configuration
+
+    /**
+     * Configure the {@link CharsetDecoder} used for outgoing messages and incoming responses.
+     * Default is {@link CharsetDecoder#fixed CharsetDecoder.fixed}{@code (}{@link StandardCharsets#ISO_8859_1}{@code )}.
+     *
+     * @param charsetDecoder determines the character encoding of each message
+     * @throws IllegalArgumentException if {@code charsetDecoder} is null
+     * @throws IllegalStateException if this instance has been connected
+     */
+    public void setCharsetDecoder(CharsetDecoder charsetDecoder) {
+        if (charsetDecoder == null)
+            throw new IllegalArgumentException("null charsetDecoder");
+        synchronized (this.pending) {
+            this.checkNotConnected();
+            this.charsetDecoder = charsetDecoder;
+        }
+    }
+
+    /**
+     * Configure the maximum allowed incoming response length. Default is {@link #DEFAULT_MAX_LENGTH}.
+     *
+     * @param maxLength maximum response length
+     * @throws IllegalArgumentException if {@code maxLength} is negative
+     * @throws IllegalStateException if this instance has been connected
+     */
+    public void setMaxLength(int maxLength) {
+        if (maxLength < 0)
+            throw new IllegalArgumentException("maxLength is negative");
+        synchronized (this.pending) {
+            this.checkNotConnected();
+            this.maxLength = maxLength;
+        }
+    }
+
+    /**
+     * Configure the maximum number of messages that may be awaiting responses at any time.
+     * Default is {@link #DEFAULT_MAX_IN_FLIGHT}, i.e., no pipelining.
+     *
+     * @param maxInFlight maximum number of outstanding messages
+     * @throws IllegalArgumentException if {@code maxInFlight} is not positive
+     * @throws IllegalStateException if this instance has been connected
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0)
+            throw new IllegalArgumentException("maxInFlight=" + maxInFlight);
+        synchronized (this.pending) {
+            this.checkNotConnected();
+            this.maxInFlight = maxInFlight;
+        }
+    }
+
+    /**
+     * Configure the default response timeout, measured from when the message is sent. Default is {@link #DEFAULT_TIMEOUT}.
+     *
+     * @param timeout response timeout in milliseconds, or zero for none
+     * @throws IllegalArgumentException if {@code timeout} is negative
+     * @throws IllegalStateException if this instance has been connected
+     */
+    public void setTimeout(long timeout) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("timeout is negative");
+        synchronized (this.pending) {
+            this.checkNotConnected();
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * Configure the connect timeout. Default is zero, meaning no timeout.
+     *
+     * @param connectTimeout connect timeout in milliseconds, or zero for none
+     * @throws IllegalArgumentException if {@code connectTimeout} is negative
+     * @throws IllegalStateException if this instance has been connected
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        if (connectTimeout < 0)
+            throw new IllegalArgumentException("connectTimeout is negative");
+        synchronized (this.pending) {
+            this.checkNotConnected();
+            this.connectTimeout = connectTimeout;
+        }
+    }
+
+    /**
+     * Configure whether responses must arrive in the same order as the messages they answer. Default is false.
+     *
+     * @param ordered true to require responses in order, false to allow responses in any order
+     * @throws IllegalStateException if this instance has been connected
+     */
+    public void setOrdered(boolean ordered) {
+        synchronized (this.pending) {
+            this.checkNotConnected();
+            this.ordered = ordered;
+        }
+    }
+
+// Lifecycle
+
+    /**
+     * Connect to the remote address.
+     *
+     * @throws IOException if the connection fails
+     * @throws IllegalStateException if this instance has already been connected
+     */
+    public void connect() throws IOException {
+        final Socket newSocket = new Socket();
+        final LLPInputStream input;
+        synchronized (this.pending) {
+            this.checkNotConnected();
+            try {
+                newSocket.connect(this.address, this.connectTimeout);
+                newSocket.setTcpNoDelay(true);
+                input = new LLPInputStream(newSocket.getInputStream(), this.charsetDecoder, this.maxLength);
+                this.output = new LLPOutputStream(newSocket.getOutputStream(), this.charsetDecoder);
+            } catch (IOException e) {
+                newSocket.close();
+                throw e;
+            }
+            this.socket = newSocket;
+        }
+        final Thread reader = new Thread(() -> this.readResponses(input), "LLPClient[" + this.address + "] reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Determine whether this instance is connected and has not been closed or failed.
+     *
+     * @return true if this instance is open
+     */
+    public boolean isOpen() {
+        synchronized (this.pending) {
+            return this.socket != null && this.closedException == null;
+        }
+    }
+
+    /**
+     * Get the number of messages currently awaiting responses.
+     *
+     * @return number of outstanding messages
+     */
+    public int getNumOutstanding() {
+        synchronized (this.pending) {
+            return this.pending.size();
+        }
+    }
+
+    /**
+     * Close the connection. Outstanding futures are completed exceptionally.
+     * Does nothing if this instance is already closed.
+     */
+    @Override
+    public void close() {
+        this.fail(new IOException("connection closed"));
+    }
+
+// Sending
+
+    /**
+     * Send a message using the {@linkplain #setTimeout default timeout}.
+     *
+     * @param msg message to send
+     * @return future response to {@code msg}
+     * @throws IllegalArgumentException if {@code msg} is null
+     * @throws IllegalStateException if this instance has not been connected
+     * @see #sendAsync(HL7Message, long)
+     */
+    public CompletableFuture<HL7Message> sendAsync(HL7Message msg) {
+        final long defaultTimeout;
+        synchronized (this.pending) {
+            defaultTimeout = this.timeout;
+        }
+        return this.sendAsync(msg, defaultTimeout);
+    }
+
+    /**
+     * Send a message.
+     *
+     * <p>
+     * This method blocks while the maximum number of messages are awaiting responses. All errors are reported through
+     * the returned future: if {@code msg} has no control ID (MSH.10) or processing ID (MSH.11), or the same control ID
+     * as another outstanding message, it completes with an {@link HL7ContentException}; if the connection fails or is
+     * closed, it completes with an {@link IOException}; if no response arrives within {@code timeout} milliseconds,
+     * it completes with a {@link TimeoutException}; and if the current thread is interrupted while waiting to send,
+     * it completes with an {@link InterruptedException} (and the thread's interrupt status is set).
+     *
+     * @param msg message to send
+     * @param timeout response timeout in milliseconds, or zero for none
+     * @return future response to {@code msg}
+     * @throws IllegalArgumentException if {@code msg} is null
+     * @throws IllegalArgumentException if {@code timeout} is negative
+     * @throws IllegalStateException if this instance has not been connected
+     */
+    public CompletableFuture<HL7Message> sendAsync(HL7Message msg, long timeout) {
+        if (msg == null)
+            throw new IllegalArgumentException("null msg");
+        if (timeout < 0)
+            throw new IllegalArgumentException("timeout is negative");
+        final CompletableFuture<HL7Message> future = new CompletableFuture<>();
+
+        // Check the fields needed to match responses
+        final MSHSegment msh = msg.getMSHSegment();
+        if (msh.getControlID() == null) {
+            future.completeExceptionally(new HL7ContentException("message has no control ID (MSH.10)"));
+            return future;
+        }
+        if (msh.getProcessingID() == null) {
+            future.completeExceptionally(new HL7ContentException("message has no processing ID (MSH.11)"));
+            return future;
+        }
+        final Request request = new Request(new MSHSegment(msh), future);
+
+        // Send message; the output lock preserves the order of messages in this.pending
+        final LLPOutputStream out;
+        synchronized (this.pending) {
+            if (this.socket == null)
+                throw new IllegalStateException("not connected");
+            out = this.output;
+        }
+        synchronized (out) {
+
+            // Wait for room in the window and register request
+            synchronized (this.pending) {
+                try {
+                    while (this.closedException == null && this.pending.size() >= this.maxInFlight)
+                        this.pending.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    future.completeExceptionally(e);
+                    return future;
+                }
+                if (this.closedException != null) {
+                    future.completeExceptionally(new IOException("connection is closed", this.closedException));
+                    return future;
+                }
+                if (this.pending.containsKey(request.controlID)) {
+                    future.completeExceptionally(new HL7ContentException("another message with control ID \""
+                      + request.controlID + "\" is already outstanding"));
+                    return future;
+                }
+                this.pending.put(request.controlID, request);
+            }
+
+            // Write message
+            try {
+                out.writeMessage(msg);
+            } catch (IOException e) {
+                this.fail(e);
+                return future;
+            }
+        }
+
+        // Schedule timeout
+        if (timeout > 0) {
+            request.timer = TIMER.schedule(() -> this.timeout(request, timeout), timeout, TimeUnit.MILLISECONDS);
+            if (future.isDone())
+                request.timer.cancel(false);
+        }
+        return future;
+    }
+
+// Internal methods
+
+    private void checkNotConnected() {
+        if (this.socket != null)
+            throw new IllegalStateException("already connected");
+        if (this.closedException != null)
+            throw new IllegalStateException("closed");
+    }
+
+    private void readResponses(LLPInputStream input) {
+        try {
+            while (true) {
+                final HL7Message response = input.readMessage();
+                final HL7Field controlID = MSHSegment.getResponseControlID(response);
+                final Request request;
+                HL7ContentException error = null;
+                synchronized (this.pending) {
+                    final Request candidate = controlID != null ? this.pending.get(controlID) : null;
+                    if (candidate == null)
+                        continue;                                           // unknown, or the message has timed out
+                    try {
+                        if (!candidate.msh.isResponse(response))
+                            continue;
+                    } catch (HL7ContentException e) {
+                        error = e;                                          // only that message is affected
+                    }
+                    if (error == null && this.ordered && candidate != this.pending.values().iterator().next()) {
+                        throw new LLPException("response to message with control ID \""
+                          + controlID + "\" received out of order");
+                    }
+                    this.pending.remove(controlID);
+                    this.pending.notifyAll();
+                    request = candidate;
+                }
+                if (error != null)
+                    request.fail(error);
+                else
+                    request.complete(response);
+            }
+        } catch (EOFException e) {
+            this.fail(new EOFException("connection closed by peer"));
+        } catch (IOException e) {
+            this.fail(e);
+        } catch (HL7ContentException e) {
+            this.fail(new IOException("invalid response received", e));
+        }
+    }
+
+    private void timeout(Request request, long timeout) {
+        synchronized (this.pending) {
+            if (this.pending.get(request.controlID) != request)
+                return;
+            this.pending.remove(request.controlID);
+            this.pending.notifyAll();
+        }
+        request.future.completeExceptionally(new TimeoutException("no response received within " + timeout + "ms"));
+    }
+
+    private void fail(IOException e) {
+        final ArrayList<Request> failed;
+        final Socket oldSocket;
+        synchronized (this.pending) {
+            if (this.closedException != null)
+                return;
+            this.closedException = e;
+            oldSocket = this.socket;
+            failed = new ArrayList<>(this.pending.values());
+            this.pending.clear();
+            this.pending.notifyAll();
+        }
+        if (oldSocket != null) {
+            try {
+                oldSocket.close();
+            } catch (IOException e2) {
+                // ignore
+            }
+        }
+        for (Request request : failed)
+            request.fail(e);
+    }
+
+// Request
+
+    private static final class Request {
+
+        final MSHSegment msh;                                   // copy, in case the caller modifies the message
+        final HL7Field controlID;
+        final CompletableFuture<HL7Message> future;
+        volatile ScheduledFuture<?> timer;
+
+        Request(MSHSegment msh, CompletableFuture<HL7Message> future) {
+            this.msh = msh;
+            this.controlID = msh.getControlID();
+            this.future = future;
+        }
+
+        void complete(HL7Message response) {
+            this.cancelTimer();
+            this.future.complete(response);
+        }
+
+        void fail(Throwable t) {
+            this.cancelTimer();
+            this.future.completeExceptionally(t);
+        }
+
+        private void cancelTimer() {
+            final ScheduledFuture<?> scheduledTimer = this.timer;
+            if (scheduledTimer != null)
+                scheduledTimer.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,487 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.HL7Path;
+
+/**
+ * Distributes outgoing HL7 messages across a pool of {@link LLPClient} connections to one or more receivers (endpoints).
+ *
+ * <p>
+ * Each endpoint has a fixed number of connection slots, which are connected when the pool is {@linkplain #start started}
+ * and reconnected on demand when a message is next routed to a slot whose connection has closed or failed. By default,
+ * each message is sent on the connection with the fewest outstanding messages among all available endpoints.
+ *
+ * <p>
+ * If a {@linkplain #setStickyKey sticky key} is configured, messages having the same (non-empty) key value are always
+ * sent on the same connection for as long as the set of available endpoints doesn't change; for example, using PID.3
+ * preserves the relative order of messages for each patient when the receiver processes each connection in order.
+ *
+ * <p>
+ * An endpoint is ejected, i.e., no longer chosen for new messages, when a connection to it cannot be established or
+ * when it fails a {@linkplain #checkHealth health check}; it is re-admitted when it passes a later health check, or
+ * when a connection to it is established because no other endpoint was available.
+ * Health checks are performed periodically on all endpoints.
+ *
+ * <p>
+ * Instances must be configured before they are {@linkplain #start started}. Instances are thread safe once started.
+ */
+public class LLPConnectionPool implements Closeable {
+
+    /** Default number of connections per endpoint. */
+    public static final int DEFAULT_CONNECTIONS_PER_ENDPOINT = 2;
+
+    /** Default health check interval in milliseconds. */
+    public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 10000;
+
+    private final List<Endpoint> endpoints;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    // Configuration
+    private int connectionsPerEndpoint = DEFAULT_CONNECTIONS_PER_ENDPOINT;
+    private int maxInFlight = LLPClient.DEFAULT_MAX_IN_FLIGHT;
+    private long timeout = LLPClient.DEFAULT_TIMEOUT;
+    private int connectTimeout;
+    private long healthCheckInterval = DEFAULT_HEALTH_CHECK_INTERVAL;
+    private HL7Path stickyKey;
+
+    // Runtime state
+    private ScheduledThreadPoolExecutor executor;
+    private volatile boolean started;
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param addresses endpoint addresses
+     * @throws IllegalArgumentException if {@code addresses} is null, empty, or contains a null element
+     */
+    public LLPConnectionPool(List<InetSocketAddress> addresses) {
+        if (addresses == null)
+            throw new IllegalArgumentException("null addresses");
+        if (addresses.isEmpty())
+            throw new IllegalArgumentException("empty addresses");
+        this.endpoints = new ArrayList<>(addresses.size());
+        for (InetSocketAddress address : addresses) {
+            if (address == null)
+                throw new IllegalArgumentException("null address");
+            this.endpoints.add(new Endpoint(address));
+        }
+    }
+
+// Configuration
+
+    /**
+     * Configure the number of connections to each endpoint. Default is {@link #DEFAULT_CONNECTIONS_PER_ENDPOINT}.
+     *
+     * @param connectionsPerEndpoint number of connections per endpoint
+     * @throws IllegalArgumentException if {@code connectionsPerEndpoint} is not positive
+     * @throws IllegalStateException if this instance has been started
+     */
+    public synchronized void setConnectionsPerEndpoint(int connectionsPerEndpoint) {
+        if (connectionsPerEndpoint <= 0)
+            throw new IllegalArgumentException("connectionsPerEndpoint=" + connectionsPerEndpoint);
+        this.checkNotStarted();
+        this.connectionsPerEndpoint = connectionsPerEndpoint;
+    }
+
+    /**
+     * Configure the maximum number of outstanding messages per connection. Default is {@link LLPClient#DEFAULT_MAX_IN_FLIGHT}.
+     *
+     * @param maxInFlight maximum number of outstanding messages per connection
+     * @throws IllegalArgumentException if {@code maxInFlight} is not positive
+     * @throws IllegalStateException if this instance has been started
+     * @see LLPClient#setMaxInFlight
+     */
+    public synchronized void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0)
+            throw new IllegalArgumentException("maxInFlight=" + maxInFlight);
+        this.checkNotStarted();
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Configure the response timeout. Default is {@link LLPClient#DEFAULT_TIMEOUT}.
+     *
+     * @param timeout response timeout in milliseconds, or zero for none
+     * @throws IllegalArgumentException if {@code timeout} is negative
+     * @throws IllegalStateException if this instance has been started
+     * @see LLPClient#setTimeout
+     */
+    public synchronized void setTimeout(long timeout) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("timeout is negative");
+        this.checkNotStarted();
+        this.timeout = timeout;
+    }
+
+    /**
+     * Configure the connect timeout, which also applies to the default {@linkplain #checkHealth health check}.
+     * Default is zero, meaning no timeout.
+     *
+     * @param connectTimeout connect timeout in milliseconds, or zero for none
+     * @throws IllegalArgumentException if {@code connectTimeout} is negative
+     * @throws IllegalStateException if this instance has been started
+     */
+    public synchronized void setConnectTimeout(int connectTimeout) {
+        if (connectTimeout < 0)
+            throw new IllegalArgumentException("connectTimeout is negative");
+        this.checkNotStarted();
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Configure the interval between health checks. Default is {@link #DEFAULT_HEALTH_CHECK_INTERVAL}.
+     *
+     * <p>
+     * When health checks are disabled, ejected endpoints are only retried when no endpoint is available.
+     *
+     * @param healthCheckInterval health check interval in milliseconds, or zero to disable health checks
+     * @throws IllegalArgumentException if {@code healthCheckInterval} is negative
+     * @throws IllegalStateException if this instance has been started
+     */
+    public synchronized void setHealthCheckInterval(long healthCheckInterval) {
+        if (healthCheckInterval < 0)
+            throw new IllegalArgumentException("healthCheckInterval is negative");
+        this.checkNotStarted();
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    /**
+     * Configure the message value that determines sticky routing, e.g., {@code HL7Path.compile("PID.3")}.
+     * Default is null, meaning no sticky routing.
+     *
+     * @param stickyKey path to the routing key in each message, or null for none
+     * @throws IllegalStateException if this instance has been started
+     */
+    public synchronized void setStickyKey(HL7Path stickyKey) {
+        this.checkNotStarted();
+        this.stickyKey = stickyKey;
+    }
+
+// Lifecycle
+
+    /**
+     * Start this instance. Connects all connection slots, ejecting endpoints that can't be connected to,
+     * and starts periodic health checks.
+     *
+     * @throws IllegalStateException if this instance has already been started
+     */
+    public synchronized void start() {
+        this.checkNotStarted();
+        for (Endpoint endpoint : this.endpoints) {
+            endpoint.slots = new Slot[this.connectionsPerEndpoint];
+            for (int i = 0; i < endpoint.slots.length; i++)
+                endpoint.slots[i] = new Slot(endpoint);
+        }
+        this.started = true;
+        for (Endpoint endpoint : this.endpoints) {
+            for (Slot slot : endpoint.slots) {
+                try {
+                    slot.connect();
+                } catch (IOException e) {
+                    endpoint.available = false;
+                    break;
+                }
+            }
+        }
+        if (this.healthCheckInterval > 0) {
+            this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                final Thread thread = new Thread(runnable, "LLPConnectionPool health checker");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor.scheduleWithFixedDelay(this::checkEndpoints,
+              this.healthCheckInterval, this.healthCheckInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get the endpoints that are currently available, i.e., not ejected.
+     *
+     * @return available endpoint addresses
+     */
+    public List<InetSocketAddress> getAvailableEndpoints() {
+        final ArrayList<InetSocketAddress> list = new ArrayList<>(this.endpoints.size());
+        for (Endpoint endpoint : this.endpoints) {
+            if (endpoint.available)
+                list.add(endpoint.address);
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Get the number of pooled connections that are currently open.
+     *
+     * @return number of open connections
+     */
+    public int getNumOpenConnections() {
+        if (!this.started)
+            return 0;
+        int count = 0;
+        for (Endpoint endpoint : this.endpoints) {
+            for (Slot slot : endpoint.slots) {
+                final LLPClient client = slot.client;
+                if (client != null && client.isOpen())
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Close all connections and stop health checks. Outstanding futures are completed exceptionally.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!this.started || this.closed)
+                return;
+            this.closed = true;
+            if (this.executor != null)
+                this.executor.shutdownNow();
+        }
+        for (Endpoint endpoint : this.endpoints) {
+            for (Slot slot : endpoint.slots)
+                slot.close();
+        }
+    }
+
+// Sending
+
+    /**
+     * Send a message on the connection chosen for it.
+     *
+     * <p>
+     * If the chosen connection needs to be (re)connected and that fails, its endpoint is ejected and another connection
+     * is chosen. If no endpoint is available, ejected endpoints are tried as a last resort; if none of those can be
+     * connected either, the returned future completes with an {@link IOException}. Once connected, the message is sent
+     * as by {@link LLPClient#sendAsync(HL7Message) LLPClient.sendAsync()}, which may block; messages that fail are not
+     * retried.
+     *
+     * @param msg message to send
+     * @return future response to {@code msg}
+     * @throws IllegalArgumentException if {@code msg} is null
+     * @throws IllegalStateException if this instance has not been started, or has been closed
+     */
+    public CompletableFuture<HL7Message> sendAsync(HL7Message msg) {
+        if (msg == null)
+            throw new IllegalArgumentException("null msg");
+        if (!this.started || this.closed)
+            throw new IllegalStateException(this.closed ? "closed" : "not started");
+        final String key = this.stickyKey != null ? this.stickyKey.get(msg) : null;
+        IOException error = null;
+        for (int attempt = 0; attempt < this.endpoints.size(); attempt++) {
+            final Slot slot = key != null && !key.isEmpty() ? this.selectSticky(key) : this.selectLeastOutstanding();
+            if (slot == null)
+                break;
+            final LLPClient client;
+            try {
+                client = slot.connect();
+            } catch (IOException e) {
+                slot.endpoint.available = false;
+                error = e;
+                continue;
+            }
+            return client.sendAsync(msg);
+        }
+
+        // As a last resort, try reconnecting to ejected endpoints
+        for (Endpoint endpoint : this.endpoints) {
+            if (endpoint.available)
+                continue;
+            final LLPClient client;
+            try {
+                client = this.slotFor(endpoint, key).connect();
+            } catch (IOException e) {
+                error = e;
+                continue;
+            }
+            endpoint.available = true;
+            return client.sendAsync(msg);
+        }
+        final CompletableFuture<HL7Message> future = new CompletableFuture<>();
+        future.completeExceptionally(new IOException("no endpoints are available", error));
+        return future;
+    }
+
+// Subclass hooks
+
+    /**
+     * Create a new, unconnected client for the given endpoint.
+     *
+     * <p>
+     * The implementation in {@link LLPConnectionPool} creates an {@link LLPClient} configured with this instance's
+     * in-flight limit, response timeout, and connect timeout, with ordered mode enabled if a sticky key is configured.
+     * Subclasses may override to further configure the client.
+     *
+     * @param address endpoint address
+     * @return new client
+     */
+    protected LLPClient createClient(InetSocketAddress address) {
+        final LLPClient client = new LLPClient(address);
+        client.setMaxInFlight(this.maxInFlight);
+        client.setTimeout(this.timeout);
+        client.setConnectTimeout(this.connectTimeout);
+        client.setOrdered(this.stickyKey != null);
+        return client;
+    }
+
+    /**
+     * Determine whether an endpoint is healthy.
+     *
+     * <p>
+     * The implementation in {@link LLPConnectionPool} checks that a TCP connection to the endpoint can be established
+     * within the {@linkplain #setConnectTimeout connect timeout} (or five seconds if none). Subclasses may override,
+     * e.g., to send a test message.
+     *
+     * @param address endpoint address
+     * @return true if the endpoint is healthy
+     */
+    protected boolean checkHealth(InetSocketAddress address) {
+        try (Socket socket = new Socket()) {
+            socket.connect(address, this.connectTimeout > 0 ? this.connectTimeout : 5000);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+// Internal methods
+
+    private void checkNotStarted() {
+        if (this.started)
+            throw new IllegalStateException("already started");
+    }
+
+    private void checkEndpoints() {
+        for (Endpoint endpoint : this.endpoints) {
+            if (this.closed)
+                return;
+            endpoint.available = this.checkHealth(endpoint.address);
+        }
+    }
+
+    // Choose the connection with the fewest outstanding messages, starting from a rotating position to break ties
+    private Slot selectLeastOutstanding() {
+        final int numSlots = this.endpoints.size() * this.connectionsPerEndpoint;
+        final int offset = Math.floorMod(this.rotation.getAndIncrement(), numSlots);
+        Slot best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < numSlots && bestLoad > 0; i++) {
+            final int index = (offset + i) % numSlots;
+            final Endpoint endpoint = this.endpoints.get(index / this.connectionsPerEndpoint);
+            if (!endpoint.available)
+                continue;
+            final Slot slot = endpoint.slots[index % this.connectionsPerEndpoint];
+            final int load = slot.getLoad();
+            if (load < bestLoad) {
+                best = slot;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    // Choose the available endpoint by rendezvous hashing, so keys only move when their endpoint is ejected, then a slot
+    private Slot selectSticky(String key) {
+        final int keyHash = LLPConnectionPool.mix(key.hashCode());
+        Endpoint best = null;
+        int bestWeight = 0;
+        for (Endpoint endpoint : this.endpoints) {
+            if (!endpoint.available)
+                continue;
+            final int weight = LLPConnectionPool.mix(keyHash ^ endpoint.address.hashCode());
+            if (best == null || weight > bestWeight) {
+                best = endpoint;
+                bestWeight = weight;
+            }
+        }
+        return best != null ? this.slotFor(best, key) : null;
+    }
+
+    // Choose the slot for the given key (if any) within an endpoint
+    private Slot slotFor(Endpoint endpoint, String key) {
+        if (key == null || key.isEmpty())
+            return endpoint.slots[Math.floorMod(this.rotation.getAndIncrement(), endpoint.slots.length)];
+        return endpoint.slots[Math.floorMod(LLPConnectionPool.mix(key.hashCode()), endpoint.slots.length)];
+    }
+
+    // MurmurHash3 32-bit finalizer
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+// Endpoint
+
+    private static final class Endpoint {
+
+        final InetSocketAddress address;
+        Slot[] slots;
+        volatile boolean available = true;
+
+        Endpoint(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+// Slot
+
+    private final class Slot {
+
+        final Endpoint endpoint;
+        volatile LLPClient client;
+
+        Slot(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        // Get the number of outstanding messages; disconnected slots count as idle
+        int getLoad() {
+            final LLPClient currentClient = this.client;
+            return currentClient != null && currentClient.isOpen() ? currentClient.getNumOutstanding() : 0;
+        }
+
+        // Get the connected client, (re)connecting if necessary
+        synchronized LLPClient connect() throws IOException {
+            if (this.client != null && this.client.isOpen())
+                return this.client;
+            if (LLPConnectionPool.this.closed)
+                throw new IOException("pool is closed");
+            if (this.client != null) {
+                this.client.close();
+                this.client = null;
+            }
+            final LLPClient newClient = LLPConnectionPool.this.createClient(this.endpoint.address);
+            newClient.connect();
+            this.client = newClient;
+            return newClient;
+        }
+
+        synchronized void close() {
+            if (this.client != null)
+                this.client.close();
+        }
+    }
+}
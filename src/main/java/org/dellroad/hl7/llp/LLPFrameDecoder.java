@@ -0,0 +1,282 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.dellroad.hl7.HL7ContentException;
+import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.HL7Util;
+
+/**
+ * Incrementally decodes HL7 messages framed in the "lower layer protocol" (LLP) from {@link ByteBuffer}s,
+ * for use with non-blocking I/O.
+ *
+ * <p>
+ * Input may arrive in arbitrary pieces: each invocation of {@link #decode decode()} consumes bytes from the given buffer
+ * until either a complete frame has been decoded, or the buffer is exhausted, in which case the partial frame is retained
+ * until the next invocation. Frames are returned as {@link ByteBuffer}s containing the message without the framing bytes.
+ * When a frame lies entirely within the input buffer, the returned buffer is a slice of the input buffer, so no bytes
+ * are copied.
+ *
+ * <p>
+ * Framing errors and messages that are too long are handled exactly as by {@link LLPInputStream}: the same input is
+ * consumed before the {@link LLPException} is thrown, and {@link #skip} may be used afterward to resynchronize.
+ *
+ * <p>
+ * Instances are not thread safe.
+ */
+public class LLPFrameDecoder {
+
+    private static final int MIN_BUFLEN = 1024;
+    private static final int MAX_BUFLEN = 16 * 1024;
+
+    // Decoder states
+    private static final int STATE_START = 0;                   // expecting LEADING_BYTE
+    private static final int STATE_CONTENT = 1;                 // reading message, looking for TRAILING_BYTE_0
+    private static final int STATE_TRAILER = 2;                 // expecting TRAILING_BYTE_1
+    private static final int STATE_SKIP = 3;                    // skipping input, looking for TRAILING_BYTE_0
+    private static final int STATE_SKIP_TRAILER = 4;            // skipping input, hoping for TRAILING_BYTE_1
+
+    private final CharsetDecoder charsetDecoder;
+    private final int maxLength;
+
+    private int state;
+
+    // Message bytes received so far, if the message did not arrive in a single piece
+    private byte[] buf = new byte[MIN_BUFLEN];
+    private int len;
+
+    /**
+     * Constructor for when {@link StandardCharsets#ISO_8859_1} character encoding is to be used for all messages.
+     *
+     * <p>
+     * Equivalent to:
+     * {@link #LLPFrameDecoder(CharsetDecoder, int) LLPFrameDecoder}{@code (}{@link CharsetDecoder#fixed
+     *  CharsetDecoder.fixed}{@code (}{@link StandardCharsets#ISO_8859_1 StandardCharsets.ISO_8859_1}{@code ), maxLength)}.
+     *
+     * @param maxLength maximum allowed message length
+     * @throws IllegalArgumentException if maxLength is negative
+     */
+    public LLPFrameDecoder(int maxLength) {
+        this(CharsetDecoder.fixed(StandardCharsets.ISO_8859_1), maxLength);
+    }
+
+    /**
+     * Primary constructor.
+     *
+     * @param charsetDecoder determines the character encoding for each incoming message
+     * @param maxLength maximum allowed message length
+     * @throws IllegalArgumentException if {@code charsetDecoder} is null
+     * @throws IllegalArgumentException if maxLength is negative
+     */
+    public LLPFrameDecoder(CharsetDecoder charsetDecoder, int maxLength) {
+        if (charsetDecoder == null)
+            throw new IllegalArgumentException("null charsetDecoder");
+        if (maxLength < 0)
+            throw new IllegalArgumentException("maxLength is negative");
+        this.charsetDecoder = charsetDecoder;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Get the maximum allowed message length.
+     *
+     * @return maximum message length
+     */
+    public int getMaxLength() {
+        return this.maxLength;
+    }
+
+    /**
+     * Consume input until the next complete frame has been decoded, or the input is exhausted.
+     *
+     * <p>
+     * If a frame is returned, the position of {@code input} is just past its final framing byte, and any remaining input
+     * has not been examined. The returned buffer is only valid until the next invocation of any method of this instance,
+     * and, if the frame arrived in a single piece, until {@code input} is modified.
+     *
+     * @param input input bytes
+     * @return the message in the next complete frame, or null if more input is needed
+     * @throws LLPException if illegal framing byte(s) are read, or the message is too long
+     * @throws IllegalArgumentException if {@code input} is null
+     */
+    public ByteBuffer decode(ByteBuffer input) throws LLPException {
+        if (input == null)
+            throw new IllegalArgumentException("null input");
+        while (input.hasRemaining()) {
+            switch (this.state) {
+            case STATE_START:
+                LLPFrameDecoder.check(LLPConstants.LEADING_BYTE, input.get());
+                if (this.buf.length > MAX_BUFLEN)
+                    this.buf = new byte[MIN_BUFLEN];
+                this.len = 0;
+                this.state = STATE_CONTENT;
+                break;
+            case STATE_CONTENT:
+            {
+                final int start = input.position();
+                final int limit = input.limit();
+                final int trailer = LLPFrameDecoder.indexOfTrailer(input, start, limit);
+                final int count = (trailer != -1 ? trailer : limit) - start;
+                if (count > this.maxLength - this.len) {
+                    input.position(start + (this.maxLength - this.len) + 1);     // consume up to the first excess byte
+                    this.state = STATE_START;
+                    throw new LLPException("message is too long (greater than " + this.maxLength + " bytes)");
+                }
+
+                // Did the whole frame arrive at once?
+                if (this.len == 0 && trailer != -1 && trailer + 1 < limit) {
+                    input.position(trailer + 1);
+                    this.state = STATE_START;
+                    LLPFrameDecoder.check(LLPConstants.TRAILING_BYTE_1, input.get());
+                    final ByteBuffer frame = input.duplicate();
+                    frame.limit(trailer).position(start);
+                    return frame.slice();
+                }
+
+                // Save this piece
+                this.append(input, start, count);
+                input.position(start + count);
+                if (trailer != -1) {
+                    input.get();
+                    this.state = STATE_TRAILER;
+                }
+                break;
+            }
+            case STATE_TRAILER:
+                this.state = STATE_START;
+                LLPFrameDecoder.check(LLPConstants.TRAILING_BYTE_1, input.get());
+                return ByteBuffer.wrap(this.buf, 0, this.len);
+            case STATE_SKIP:
+            {
+                final int trailer = LLPFrameDecoder.indexOfTrailer(input, input.position(), input.limit());
+                if (trailer == -1) {
+                    input.position(input.limit());
+                    break;
+                }
+                input.position(trailer + 1);
+                this.state = STATE_SKIP_TRAILER;
+                break;
+            }
+            case STATE_SKIP_TRAILER:
+                this.state = input.get() == LLPConstants.TRAILING_BYTE_1 ? STATE_START : STATE_SKIP;
+                break;
+            default:
+                throw new RuntimeException("internal error");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Consume input until the next complete frame has been decoded, or the input is exhausted, and parse the message.
+     *
+     * <p>
+     * The returned message does not refer to {@code input} or to any buffer of this instance.
+     *
+     * @param input input bytes
+     * @return the next complete message, or null if more input is needed
+     * @throws LLPException if illegal framing byte(s) are read, or the message is too long
+     * @throws HL7ContentException if a malformed message is read
+     * @throws IllegalArgumentException if {@code input} is null
+     * @see #decode decode()
+     */
+    public HL7Message decodeMessage(ByteBuffer input) throws LLPException, HL7ContentException {
+        final ByteBuffer frame = this.decode(input);
+        if (frame == null)
+            return null;
+
+        // Get bytes
+        final byte[] bytes;
+        final int off;
+        final int length = frame.remaining();
+        if (frame.hasArray()) {
+            bytes = frame.array();
+            off = frame.arrayOffset() + frame.position();
+        } else {
+            bytes = new byte[length];
+            off = 0;
+            frame.duplicate().get(bytes);
+        }
+
+        // Parse message
+        final Charset charset = this.charsetDecoder.charsetForIncomingMessage(bytes, off, length);
+        if (charset == null)
+            throw new LLPException("null character encoding returned by CharsetDecoder");
+        try {
+            return new HL7Message(bytes, off, length, charset, false);
+        } catch (HL7ContentException e) {
+            throw e.setContent(new String(bytes, off, length, charset));
+        }
+    }
+
+    /**
+     * Discard input through the end of the current frame. This method can be used (for example) to skip over the remaining
+     * portion of a badly framed message that resulted in a {@link LLPException} in an attempt to salvage the connection.
+     *
+     * <p>
+     * Subsequent invocations of {@link #decode decode()} will discard input through the next occurrence of a
+     * {@link LLPConstants#TRAILING_BYTE_0} byte followed immediately by a {@link LLPConstants#TRAILING_BYTE_1} byte,
+     * and then resume decoding frames.
+     */
+    public void skip() {
+        this.state = STATE_SKIP;
+        this.len = 0;
+    }
+
+    /**
+     * Discard any partially received frame and return to the initial state.
+     */
+    public void reset() {
+        this.state = STATE_START;
+        this.len = 0;
+    }
+
+    /**
+     * Determine whether this instance has consumed part, but not all, of a frame (or is {@linkplain #skip skipping} one).
+     * This is useful for detecting a connection that closes in the middle of a frame.
+     *
+     * @return true if a partial frame has been received
+     */
+    public boolean hasPartialFrame() {
+        return this.state != STATE_START;
+    }
+
+    private void append(ByteBuffer input, int start, int count) {
+        if (this.len + count > this.buf.length) {
+            final byte[] newbuf = new byte[Math.max(this.len + count, (int)Math.min((long)this.buf.length * 2, this.maxLength))];
+            System.arraycopy(this.buf, 0, newbuf, 0, this.len);
+            this.buf = newbuf;
+        }
+        final ByteBuffer source = input.duplicate();
+        source.position(start);
+        source.get(this.buf, this.len, count);
+        this.len += count;
+    }
+
+    private static int indexOfTrailer(ByteBuffer input, int start, int limit) {
+        if (input.hasArray()) {
+            final int base = input.arrayOffset();
+            final int index = HL7Util.indexOf(input.array(), (byte)LLPConstants.TRAILING_BYTE_0, base + start, base + limit);
+            return index != -1 ? index - base : -1;
+        }
+        for (int i = start; i < limit; i++) {
+            if (input.get(i) == LLPConstants.TRAILING_BYTE_0)
+                return i;
+        }
+        return -1;
+    }
+
+    private static void check(int expected, byte actual) throws LLPException {
+        if ((actual & 0xff) != expected) {
+            throw new LLPException("expected to read " + String.format("0x%02x", expected)
+              + " but read " + String.format("0x%02x", actual & 0xff) + " instead");
+        }
+    }
+}
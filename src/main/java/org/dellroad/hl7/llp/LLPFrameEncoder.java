@@ -0,0 +1,129 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.dellroad.hl7.HL7ByteEncoder;
+import org.dellroad.hl7.HL7Message;
+
+/**
+ * Encodes HL7 messages into frames using the "lower layer protocol" (LLP), for use with non-blocking I/O.
+ *
+ * <p>
+ * Each frame is encoded into a reused buffer, which the caller may write out incrementally, e.g., to a non-blocking
+ * {@link java.nio.channels.SocketChannel}, or encoded directly into a caller-supplied {@link ByteBuffer}.
+ *
+ * <p>
+ * Instances are not thread safe.
+ */
+public class LLPFrameEncoder {
+
+    private final CharsetDecoder charsetDecoder;
+
+    // Encoder for the most recently used character encoding
+    private HL7ByteEncoder encoder;
+
+    /**
+     * Constructor for when {@link StandardCharsets#ISO_8859_1} character encoding is to be used for all messages.
+     *
+     * <p>
+     * Equivalent to: {@link #LLPFrameEncoder(Charset)
+     *  LLPFrameEncoder}{@code (}{@link StandardCharsets#ISO_8859_1 StandardCharsets.ISO_8859_1}{@code )}.
+     */
+    public LLPFrameEncoder() {
+        this(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Constructor for when a fixed character encoding is to be used for all messages.
+     *
+     * @param charset character encoding for all messages
+     * @throws IllegalArgumentException if {@code charset} is null
+     */
+    public LLPFrameEncoder(Charset charset) {
+        this(CharsetDecoder.fixed(charset));
+    }
+
+    /**
+     * Primary constructor.
+     *
+     * @param charsetDecoder determines the character encoding to use for each outgoing message
+     * @throws IllegalArgumentException if {@code charsetDecoder} is null
+     */
+    public LLPFrameEncoder(CharsetDecoder charsetDecoder) {
+        if (charsetDecoder == null)
+            throw new IllegalArgumentException("null charsetDecoder");
+        this.charsetDecoder = charsetDecoder;
+    }
+
+    /**
+     * Encode a message into a complete frame, including framing bytes.
+     *
+     * <p>
+     * The returned buffer is backed by an array owned by this instance; it has position zero and limit equal to the length
+     * of the frame, and is only valid until the next message is encoded.
+     *
+     * @param message message to encode
+     * @return encoded frame
+     * @throws LLPException if the {@link CharsetDecoder} returns null
+     * @throws IllegalArgumentException if {@code message} is null
+     */
+    public ByteBuffer encode(HL7Message message) throws LLPException {
+        if (message == null)
+            throw new IllegalArgumentException("null message");
+        final HL7ByteEncoder byteEncoder = this.encoderFor(message);
+
+        // Encode message, leaving room for the framing bytes
+        final int length = byteEncoder.encode(message, 1, 2);
+        final byte[] buf = byteEncoder.getBuffer();
+        buf[0] = (byte)LLPConstants.LEADING_BYTE;
+        buf[1 + length] = (byte)LLPConstants.TRAILING_BYTE_0;
+        buf[2 + length] = (byte)LLPConstants.TRAILING_BYTE_1;
+        return ByteBuffer.wrap(buf, 0, length + 3);
+    }
+
+    /**
+     * Encode a message into a complete frame, including framing bytes, in the given buffer starting at its current position.
+     *
+     * <p>
+     * On return, the buffer's position is just past the encoded frame.
+     *
+     * @param message message to encode
+     * @param dest destination buffer
+     * @return length of the encoded frame
+     * @throws LLPException if the {@link CharsetDecoder} returns null
+     * @throws BufferOverflowException if {@code dest} does not have enough room remaining; its position is not changed
+     * @throws java.nio.ReadOnlyBufferException if {@code dest} is read-only
+     * @throws IllegalArgumentException if either parameter is null
+     */
+    public int encode(HL7Message message, ByteBuffer dest) throws LLPException {
+        if (dest == null)
+            throw new IllegalArgumentException("null dest");
+        final ByteBuffer frame = this.encode(message);
+        final int length = frame.remaining();
+        if (length > dest.remaining())
+            throw new BufferOverflowException();
+        dest.put(frame);
+        return length;
+    }
+
+    private HL7ByteEncoder encoderFor(HL7Message message) throws LLPException {
+
+        // Get character encoding
+        final Charset charset = this.charsetDecoder.charsetForOutgoingMessage(message);
+        if (charset == null)
+            throw new LLPException("null character encoding returned by CharsetDecoder");
+
+        // Get encoder, reusing the previous one if possible
+        if (this.encoder == null || !charset.equals(this.encoder.getCharset()))
+            this.encoder = new HL7ByteEncoder(charset);
+        return this.encoder;
+    }
+}
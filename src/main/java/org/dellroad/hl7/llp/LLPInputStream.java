@@ -5,7 +5,6 @@
 
 package org.dellroad.hl7.llp;
 
-import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
@@ -14,26 +13,49 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
 import org.dellroad.hl7.HL7ContentException;
+import org.dellroad.hl7.HL7ContentHandler;
 import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.HL7Parser;
 import org.dellroad.hl7.HL7Reader;
+import org.dellroad.hl7.HL7StreamReader;
+import org.dellroad.hl7.HL7Util;
 
 /**
  * Reads HL7 messages framed in the "lower layer protocol" (LLP).
  *
  * <p>
+ * Messages encoded in {@link StandardCharsets#ISO_8859_1} or {@link StandardCharsets#US_ASCII} are parsed directly from
+ * the received bytes, without first decoding the entire message into a {@link String}.
+ * Optionally, messages may be parsed in lazy mode; see {@link HL7Message#HL7Message(byte[], int, int, Charset, boolean)}.
+ *
+ * <p>
+ * Input is read from the underlying stream in large chunks into an internal read-ahead buffer, so the underlying stream
+ * need not be buffered. Each frame's trailer is located by scanning the read-ahead buffer eight bytes at a time
+ * (see {@link HL7Util#indexOf(byte[], byte, int, int)}), and the message is copied out in bulk; any bytes following
+ * the trailer are retained for the next message.
+ *
+ * <p>
  * Instances are not thread safe.
  */
 public class LLPInputStream implements HL7Reader, Closeable {
 
     private static final int MIN_BUFLEN = 1024;
     private static final int MAX_BUFLEN = 16 * 1024;
+    private static final int READ_AHEAD_SIZE = 8192;
 
-    private final BufferedInputStream inputStream;
+    private final InputStream inputStream;
     private final CharsetDecoder charsetDecoder;
     private final int maxLength;
+    private final boolean lazy;
+    private final HL7Parser parser = new HL7Parser();
 
     private byte[] buf = new byte[MIN_BUFLEN];
 
+    // Read-ahead buffer; unconsumed input is at offsets inputPos (inclusive) through inputLimit (exclusive)
+    private final byte[] input = new byte[READ_AHEAD_SIZE];
+    private int inputPos;
+    private int inputLimit;
+
     /**
      * Constructor for when {@link StandardCharsets#ISO_8859_1} character encoding is to be used for all messages.
      *
@@ -65,7 +87,12 @@ public class LLPInputStream implements HL7Reader, Closeable {
     }
 
     /**
-     * Primary constructor.
+     * Constructor.
+     *
+     * <p>
+     * Equivalent to:
+     * {@link #LLPInputStream(InputStream, CharsetDecoder, int, boolean)
+     *  LLPInputStream}{@code (input, charsetDecoder, maxLength, false)}.
      *
      * @param input underlying input stream
      * @param maxLength maximum allowed message length
@@ -74,15 +101,35 @@ public class LLPInputStream implements HL7Reader, Closeable {
      * @throws IllegalArgumentException if maxLength is negative
      */
     public LLPInputStream(InputStream input, CharsetDecoder charsetDecoder, int maxLength) {
+        this(input, charsetDecoder, maxLength, false);
+    }
+
+    /**
+     * Primary constructor.
+     *
+     * <p>
+     * In lazy mode, the fields of segments other than MSH are not decoded until accessed, and each returned message
+     * retains its own receive buffer. Lazily parsed messages are not safe for concurrent access by multiple threads.
+     *
+     * @param input underlying input stream
+     * @param maxLength maximum allowed message length
+     * @param charsetDecoder determines the character encoding for each incoming message
+     * @param lazy true to parse messages in lazy mode
+     * @throws IllegalArgumentException if any parameter is null
+     * @throws IllegalArgumentException if maxLength is negative
+     * @see HL7Message#HL7Message(byte[], int, int, Charset, boolean)
+     */
+    public LLPInputStream(InputStream input, CharsetDecoder charsetDecoder, int maxLength, boolean lazy) {
         if (input == null)
             throw new IllegalArgumentException("null input");
         if (charsetDecoder == null)
             throw new IllegalArgumentException("null charsetDecoder");
         if (maxLength < 0)
             throw new IllegalArgumentException("maxLength is negative");
-        this.inputStream = new BufferedInputStream(input);
+        this.inputStream = input;
         this.charsetDecoder = charsetDecoder;
         this.maxLength = maxLength;
+        this.lazy = lazy;
     }
 
     /**
@@ -95,46 +142,137 @@ public class LLPInputStream implements HL7Reader, Closeable {
      */
     public HL7Message readMessage() throws IOException, HL7ContentException {
 
+        // Read frame
+        final int len = this.readFrame();
+        if (len == -1)
+            throw new EOFException();
+        final Charset charset = this.charsetForFrame(len);
+
+        // Lazy messages refer to the buffer, so they get to keep it
+        final byte[] msgBuf = this.buf;
+        if (this.lazy)
+            this.buf = new byte[Math.min(msgBuf.length, MAX_BUFLEN)];
+        else if (this.buf.length > MAX_BUFLEN)
+            this.buf = new byte[MIN_BUFLEN];
+
+        // Return parsed message
+        try {
+            return new HL7Message(msgBuf, 0, len, charset, this.lazy);
+        } catch (HL7ContentException e) {
+            throw e.setContent(new String(msgBuf, 0, len, charset));
+        }
+    }
+
+    /**
+     * Read next message from the underlying stream and report its contents to the given handler,
+     * without building an {@link HL7Message}.
+     *
+     * <p>
+     * The {@link CharSequence}s reported to {@code handler} refer to this instance's receive buffer, which is reused
+     * for the next message.
+     *
+     * @param handler callback interface
+     * @throws EOFException if there is no more input
+     * @throws HL7ContentException if a malformed message is read
+     * @throws HL7ContentException if thrown by {@code handler}
+     * @throws LLPException if illegal framing byte(s) are read from the underlying stream, or the message is too long
+     * @throws IOException if an error occurs on the underlying stream
+     * @throws IllegalArgumentException if {@code handler} is null
+     */
+    public void readMessage(HL7ContentHandler handler) throws IOException, HL7ContentException {
+        if (handler == null)
+            throw new IllegalArgumentException("null handler");
+
+        // Read frame
+        final int len = this.readFrame();
+        if (len == -1)
+            throw new EOFException();
+        final Charset charset = this.charsetForFrame(len);
+
+        // Parse message
+        try {
+            this.parser.parse(this.buf, 0, len, charset, handler);
+        } catch (HL7ContentException e) {
+            throw e.setContent(new String(this.buf, 0, len, charset));
+        } finally {
+            if (this.buf.length > MAX_BUFLEN)
+                this.buf = new byte[MIN_BUFLEN];
+        }
+    }
+
+    /**
+     * Create an {@link HL7StreamReader} that reads messages from this instance.
+     *
+     * <p>
+     * The returned {@link HL7StreamReader} decodes each message directly from this instance's receive buffer, which is reused
+     * for the next message. Closing the returned {@link HL7StreamReader} closes this instance.
+     *
+     * @return pull parser reading from this instance
+     */
+    public HL7StreamReader toStreamReader() {
+        return new HL7StreamReader() {
+            @Override
+            protected CharSequence readMessageText() throws IOException {
+                final LLPInputStream input = LLPInputStream.this;
+                if (input.buf.length > MAX_BUFLEN)
+                    input.buf = new byte[MIN_BUFLEN];
+                final int len = input.readFrame();
+                if (len == -1)
+                    return null;
+                return HL7Util.decode(input.buf, 0, len, input.charsetForFrame(len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                LLPInputStream.this.close();
+            }
+        };
+    }
+
+    // Read the next frame into this.buf and return its length, or -1 if there is no more input
+    private int readFrame() throws IOException {
+
         // Read leading byte
-        this.readByte(LLPConstants.LEADING_BYTE);
+        if (!this.readByte(LLPConstants.LEADING_BYTE, true))
+            return -1;
 
         // Read message until first trailing byte
         int len = 0;
         while (true) {
-            int ch;
-            if ((ch = this.inputStream.read()) == -1)
+            if (this.inputPos == this.inputLimit && !this.fill())
                 throw new EOFException();
-            if (ch == LLPConstants.TRAILING_BYTE_0)
-                break;
-            if (len >= this.maxLength)
+            final int start = this.inputPos;
+            final int trailer = HL7Util.indexOf(this.input, (byte)LLPConstants.TRAILING_BYTE_0, start, this.inputLimit);
+            final int count = (trailer != -1 ? trailer : this.inputLimit) - start;
+            if (count > this.maxLength - len) {
+                this.inputPos = start + (this.maxLength - len) + 1;         // consume up to the first excess byte
                 throw new LLPException("message is too long (greater than " + this.maxLength + " bytes)");
-            if (len == this.buf.length) {
-                byte[] newbuf = new byte[this.buf.length * 2];
+            }
+            if (len + count > this.buf.length) {
+                byte[] newbuf = new byte[Math.max(len + count, (int)Math.min((long)this.buf.length * 2, Integer.MAX_VALUE - 8))];
                 System.arraycopy(this.buf, 0, newbuf, 0, len);
                 this.buf = newbuf;
             }
-            this.buf[len++] = (byte)ch;
+            System.arraycopy(this.input, start, this.buf, len, count);
+            len += count;
+            if (trailer != -1) {
+                this.inputPos = trailer + 1;
+                break;
+            }
+            this.inputPos = this.inputLimit;
         }
 
         // Read second trailing byte
-        this.readByte(LLPConstants.TRAILING_BYTE_1);
+        this.readByte(LLPConstants.TRAILING_BYTE_1, false);
+        return len;
+    }
 
-        // Determine the character set
+    // Determine the character set of the frame in this.buf
+    private Charset charsetForFrame(int len) throws LLPException {
         final Charset charset = this.charsetDecoder.charsetForIncomingMessage(this.buf, 0, len);
         if (charset == null)
             throw new LLPException("null character encoding returned by CharsetDecoder");
-
-        // Extract message text
-        final String text = new String(buf, 0, len, charset);
-        if (this.buf.length > MAX_BUFLEN)
-            this.buf = new byte[MIN_BUFLEN];
-
-        // Return parsed message
-        try {
-            return new HL7Message(text);
-        } catch (HL7ContentException e) {
-            throw e.setContent(text);
-        }
+        return charset;
     }
 
     /**
@@ -149,31 +287,45 @@ public class LLPInputStream implements HL7Reader, Closeable {
      * @throws IOException if an error occurs on the underlying stream
      */
     public void skip() throws IOException {
-        int state = 0;
         while (true) {
-            int ch = this.inputStream.read();
-            if (ch == -1)
+            if (this.inputPos == this.inputLimit && !this.fill())
                 throw new EOFException();
-            if (state == 0) {
-                if (ch == LLPConstants.TRAILING_BYTE_0)
-                    state = 1;
-            } else {
-                if (ch == LLPConstants.TRAILING_BYTE_1)
-                    return;
-                state = 0;
+            final int trailer = HL7Util.indexOf(this.input, (byte)LLPConstants.TRAILING_BYTE_0, this.inputPos, this.inputLimit);
+            if (trailer == -1) {
+                this.inputPos = this.inputLimit;
+                continue;
             }
+            this.inputPos = trailer + 1;
+            if (this.inputPos == this.inputLimit && !this.fill())
+                throw new EOFException();
+            if (this.input[this.inputPos++] == LLPConstants.TRAILING_BYTE_1)
+                return;
         }
     }
 
-    private void readByte(int value) throws IOException {
-        int ch;
-        if ((ch = this.inputStream.read()) == -1)
+    private boolean readByte(int value, boolean eofOk) throws IOException {
+        if (this.inputPos == this.inputLimit && !this.fill()) {
+            if (eofOk)
+                return false;
             throw new EOFException();
+        }
+        final int ch = this.input[this.inputPos++] & 0xff;
         if (ch != value) {
             String expected = String.format("0x%02x", value);
             String actual = String.format("0x%02x", ch);
             throw new LLPException("expected to read " + expected + " but read " + actual + " instead");
         }
+        return true;
+    }
+
+    // Refill the (empty) read-ahead buffer from the underlying stream; returns false on EOF
+    private boolean fill() throws IOException {
+        final int count = this.inputStream.read(this.input, 0, this.input.length);
+        if (count <= 0)
+            return false;
+        this.inputPos = 0;
+        this.inputLimit = count;
+        return true;
     }
 
     /**
@@ -5,17 +5,14 @@
 
 package org.dellroad.hl7.llp;
 
-import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
 import org.dellroad.hl7.HL7Message;
-import org.dellroad.hl7.HL7Segment;
-import org.dellroad.hl7.HL7Seps;
 import org.dellroad.hl7.HL7Writer;
 
 /**
@@ -26,8 +23,8 @@ import org.dellroad.hl7.HL7Writer;
  */
 public class LLPOutputStream implements HL7Writer, Closeable {
 
-    private final BufferedOutputStream outputStream;
-    private final CharsetDecoder charsetDecoder;
+    private final OutputStream outputStream;
+    private final LLPFrameEncoder encoder;
 
     /**
      * Constructor for when {@link StandardCharsets#ISO_8859_1} character encoding is to be used for all messages.
@@ -64,40 +61,20 @@ public class LLPOutputStream implements HL7Writer, Closeable {
     public LLPOutputStream(OutputStream output, CharsetDecoder charsetDecoder) {
         if (output == null)
             throw new IllegalArgumentException("null output");
-        if (charsetDecoder == null)
-            throw new IllegalArgumentException("null charsetDecoder");
-        this.outputStream = new BufferedOutputStream(output);
-        this.charsetDecoder = charsetDecoder;
+        this.encoder = new LLPFrameEncoder(charsetDecoder);
+        this.outputStream = output;
     }
 
     /**
      * Write a message using HL7 LLP framing and flush the underlying output.
+     *
+     * <p>
+     * The framed message is encoded into a reused buffer by an {@link LLPFrameEncoder} and written to the underlying output
+     * in a single operation.
      */
     public void writeMessage(HL7Message message) throws IOException {
-
-        // Write start byte
-        this.outputStream.write(LLPConstants.LEADING_BYTE);
-
-        // Get character encoding
-        final Charset charset = this.charsetDecoder.charsetForOutgoingMessage(message);
-        if (charset == null)
-            throw new LLPException("null character encoding returned by CharsetDecoder");
-
-        // Write message segments
-        final OutputStreamWriter writer = new OutputStreamWriter(this.outputStream, charset);
-        final HL7Seps seps = message.getMSHSegment().getHL7Seps();
-        final StringBuilder buf = new StringBuilder();
-        for (HL7Segment segment : message.getSegments()) {
-            segment.append(buf, seps);
-            buf.append(HL7Message.SEGMENT_TERMINATOR);
-            writer.write(buf.toString());
-            buf.setLength(0);
-        }
-        writer.flush();
-
-        // Write stop bytes
-        this.outputStream.write(LLPConstants.TRAILING_BYTE_0);
-        this.outputStream.write(LLPConstants.TRAILING_BYTE_1);
+        final ByteBuffer frame = this.encoder.encode(message);
+        this.outputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
         this.outputStream.flush();
     }
 
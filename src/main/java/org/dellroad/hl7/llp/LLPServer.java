@@ -0,0 +1,439 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dellroad.hl7.HL7ContentException;
+import org.dellroad.hl7.HL7DuplicateFilter;
+import org.dellroad.hl7.HL7Message;
+
+/**
+ * Accepts LLP connections and dispatches the received messages to an {@link HL7MessageHandler}.
+ *
+ * <p>
+ * Each connection is serviced by its own thread, which reads messages using an {@link LLPInputStream}, passes each one to
+ * the handler, and writes the handler's response, or if the handler returns null, an acknowlegement created by
+ * {@link #createACK createACK()}, using an {@link LLPOutputStream}. When running on Java 21 or later, connections are
+ * serviced by virtual threads by default; otherwise, and if {@linkplain #setVirtualThreads disabled}, they are serviced by
+ * a pool of platform threads whose size limits the number of concurrent connections. Connections accepted while the pool
+ * is exhausted are closed immediately.
+ *
+ * <p>
+ * Connections that are idle for longer than the {@linkplain #setReadTimeout read timeout} are closed. If a
+ * {@linkplain #setDuplicateFilter duplicate filter} is configured, the acknowlegements of retransmitted messages are
+ * replayed without invoking the handler.
+ *
+ * <p>
+ * {@link #stop stop()} shuts the server down gracefully: it stops accepting connections and stops reading new messages,
+ * but waits (up to a time limit) for messages already received to be handled and answered before closing connections.
+ *
+ * <p>
+ * Instances must be configured before they are {@linkplain #start started}. Errors that occur on a connection, which
+ * always result in the connection being closed, are reported to {@link #handleException handleException()}.
+ */
+public class LLPServer implements Closeable {
+
+    /** Default maximum message length. */
+    public static final int DEFAULT_MAX_LENGTH = 16 * 1024 * 1024;
+
+    /** Default maximum number of connections when using platform threads. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 100;
+
+    private final InetSocketAddress address;
+    private final HL7MessageHandler handler;
+    private final AtomicLong serialNumber = new AtomicLong();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+    // Configuration
+    private CharsetDecoder charsetDecoder = CharsetDecoder.fixed(StandardCharsets.ISO_8859_1);
+    private int maxLength = DEFAULT_MAX_LENGTH;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int readTimeout;
+    private boolean virtualThreads = true;
+    private HL7DuplicateFilter duplicateFilter;
+
+    // Runtime state
+    private ServerSocketChannel serverChannel;
+    private ExecutorService executor;
+    private Thread acceptor;
+    private volatile boolean stopping;
+
+    /**
+     * Constructor.
+     *
+     * @param address local address to listen on; use port zero to choose any available port
+     * @param handler message handler
+     * @throws IllegalArgumentException if either parameter is null
+     */
+    public LLPServer(InetSocketAddress address, HL7MessageHandler handler) {
+        if (address == null)
+            throw new IllegalArgumentException("null address");
+        if (handler == null)
+            throw new IllegalArgumentException("null handler");
+        this.address = address;
+        this.handler = handler;
+    }
+
+// Configuration
+
+    /**
+     * Configure the {@link CharsetDecoder} used for incoming and outgoing messages.
+     * Default is {@link CharsetDecoder#fixed CharsetDecoder.fixed}{@code (}{@link StandardCharsets#ISO_8859_1}{@code )}.
+     *
+     * @param charsetDecoder determines the character encoding of each message
+     * @throws IllegalArgumentException if {@code charsetDecoder} is null
+     * @throws IllegalStateException if this instance has been started
+     */
+    public synchronized void setCharsetDecoder(CharsetDecoder charsetDecoder) {
+        if (charsetDecoder == null)
+            throw new IllegalArgumentException("null charsetDecoder");
+        this.checkNotStarted();
+        this.charsetDecoder = charsetDecoder;
+    }
+
+    /**
+     * Configure the maximum allowed incoming message length. Default is {@link #DEFAULT_MAX_LENGTH}.
+     *
+     * @param maxLength maximum message length
+     * @throws IllegalArgumentException if {@code maxLength} is negative
+     * @throws IllegalStateException if this instance has been started
+     */
+    public synchronized void setMaxLength(int maxLength) {
+        if (maxLength < 0)
+            throw new IllegalArgumentException("maxLength is negative");
+        this.checkNotStarted();
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Configure the maximum number of concurrent connections, i.e., the size of the thread pool, when not using
+     * virtual threads. Default is {@link #DEFAULT_MAX_CONNECTIONS}.
+     *
+     * @param maxConnections maximum number of concurrent connections
+     * @throws IllegalArgumentException if {@code maxConnections} is not positive
+     * @throws IllegalStateException if this instance has been started
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0)
+            throw new IllegalArgumentException("maxConnections=" + maxConnections);
+        this.checkNotStarted();
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Configure the read timeout, after which idle connections are closed. Default is zero, meaning no timeout.
+     *
+     * @param readTimeout read timeout in milliseconds, or zero for none
+     * @throws IllegalArgumentException if {@code readTimeout} is negative
+     * @throws IllegalStateException if this instance has been started
+     */
+    public synchronized void setReadTimeout(int readTimeout) {
+        if (readTimeout < 0)
+            throw new IllegalArgumentException("readTimeout is negative");
+        this.checkNotStarted();
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Configure whether to service connections using virtual threads, if available (i.e., on Java 21 or later).
+     * Default is true. Virtual threads do not limit the number of concurrent connections.
+     *
+     * @param virtualThreads true to use virtual threads if available, false to always use a bounded pool of platform threads
+     * @throws IllegalStateException if this instance has been started
+     */
+    public synchronized void setVirtualThreads(boolean virtualThreads) {
+        this.checkNotStarted();
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Configure a filter for detecting retransmitted messages, whose original responses are then replayed without invoking
+     * the handler. Default is null, meaning every message is passed to the handler.
+     *
+     * @param duplicateFilter duplicate message filter for parsed messages, or null for none
+     * @throws IllegalStateException if this instance has been started
+     */
+    public synchronized void setDuplicateFilter(HL7DuplicateFilter duplicateFilter) {
+        this.checkNotStarted();
+        this.duplicateFilter = duplicateFilter;
+    }
+
+// Lifecycle
+
+    /**
+     * Start accepting connections.
+     *
+     * @throws IOException if the server socket cannot be bound
+     * @throws IllegalStateException if this instance has already been started
+     */
+    public synchronized void start() throws IOException {
+        this.checkNotStarted();
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.bind(this.address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.serverChannel = channel;
+        this.executor = this.createExecutor();
+        this.acceptor = new Thread(this::acceptConnections, "LLPServer[" + this.getLocalAddress() + "] acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    /**
+     * Get the local address on which this instance is accepting connections.
+     *
+     * @return local socket address
+     * @throws IllegalStateException if this instance has not been started
+     */
+    public synchronized InetSocketAddress getLocalAddress() {
+        if (this.serverChannel == null)
+            throw new IllegalStateException("not started");
+        return (InetSocketAddress)this.serverChannel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Get the number of currently open connections.
+     *
+     * @return number of connections
+     */
+    public int getNumConnections() {
+        return this.connections.size();
+    }
+
+    /**
+     * Stop this server gracefully.
+     *
+     * <p>
+     * No more connections are accepted, and no more messages are read, but messages already received are handled and
+     * answered. Connections are closed as soon as they are idle; any still busy after {@code timeout} milliseconds
+     * are closed forcibly. Does nothing if this instance is not started or already stopped.
+     *
+     * @param timeout maximum time to wait for busy connections, in milliseconds
+     * @return true if all connections finished gracefully, false if any were closed forcibly
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public boolean stop(long timeout) throws InterruptedException {
+        synchronized (this) {
+            if (this.serverChannel == null || this.stopping)
+                return true;
+            this.stopping = true;
+        }
+
+        // Stop accepting connections
+        try {
+            this.serverChannel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        this.acceptor.join();
+
+        // Stop reading messages and wait for connections to finish
+        for (Connection connection : this.connections)
+            connection.shutdownInput();
+        this.executor.shutdown();
+        if (this.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+            return true;
+        for (Connection connection : this.connections)
+            connection.close();
+        this.executor.shutdownNow();
+        return false;
+    }
+
+    /**
+     * Stop this server immediately, closing all connections.
+     *
+     * <p>
+     * Equivalent to {@link #stop stop}{@code (0)}.
+     */
+    @Override
+    public void close() {
+        try {
+            this.stop(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+// Subclass hooks
+
+    /**
+     * Create an acknowlegement of a message for which the handler returned null.
+     *
+     * <p>
+     * The implementation in {@link LLPServer} invokes {@link org.dellroad.hl7.MSHSegment#createACK createACK()} with
+     * consecutive serial numbers starting from one.
+     *
+     * @param msg received message
+     * @return acknowlegement of {@code msg}
+     * @throws HL7ContentException if {@code msg} is missing required fields
+     */
+    protected HL7Message createACK(HL7Message msg) throws HL7ContentException {
+        return msg.getMSHSegment().createACK(this.serialNumber.incrementAndGet());
+    }
+
+    /**
+     * Handle an error that has caused a connection to be closed, or a connection to be rejected.
+     *
+     * <p>
+     * Normal closes, such as the peer closing the connection, the read timeout expiring,
+     * or this server being stopped, are not reported. The implementation in {@link LLPServer} does nothing.
+     *
+     * @param peer remote address, or null if unknown
+     * @param e the error
+     */
+    protected void handleException(SocketAddress peer, Exception e) {
+    }
+
+// Internal methods
+
+    private void checkNotStarted() {
+        if (this.serverChannel != null)
+            throw new IllegalStateException("already started");
+    }
+
+    private ExecutorService createExecutor() {
+        if (this.virtualThreads) {
+            try {
+                return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // not available before Java 21
+            }
+        }
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final String prefix = "LLPServer[" + this.getLocalAddress() + "] connection ";
+        return new ThreadPoolExecutor(this.maxConnections, this.maxConnections, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void acceptConnections() {
+        while (true) {
+            final SocketChannel channel;
+            try {
+                channel = this.serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (this.stopping)
+                    return;
+                this.handleException(null, e);
+                continue;
+            }
+            final Connection connection = new Connection(channel);
+            try {
+                this.executor.execute(connection);
+            } catch (RejectedExecutionException e) {
+                if (!this.stopping)
+                    this.handleException(connection.peer, e);
+                connection.close();
+            }
+        }
+    }
+
+// Connection
+
+    private final class Connection implements Runnable {
+
+        final SocketChannel channel;
+        final SocketAddress peer;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.peer = channel.socket().getRemoteSocketAddress();
+        }
+
+        @Override
+        public void run() {
+            final LLPServer server = LLPServer.this;
+            server.connections.add(this);
+            try {
+                if (server.stopping)
+                    return;
+                this.channel.socket().setSoTimeout(server.readTimeout);
+                this.channel.socket().setTcpNoDelay(true);
+                final LLPInputStream input = new LLPInputStream(this.channel.socket().getInputStream(),
+                  server.charsetDecoder, server.maxLength);
+                final LLPOutputStream output = new LLPOutputStream(this.channel.socket().getOutputStream(), server.charsetDecoder);
+                while (true) {
+
+                    // Read next message
+                    final HL7Message msg;
+                    try {
+                        msg = input.readMessage();
+                    } catch (EOFException | SocketTimeoutException e) {
+                        return;
+                    } catch (IOException e) {
+                        if (!server.stopping)
+                            server.handleException(this.peer, e);
+                        return;
+                    }
+
+                    // Handle message
+                    HL7Message response = server.duplicateFilter != null ? server.duplicateFilter.getACK(msg) : null;
+                    if (response == null) {
+                        response = server.handler.handleMessage(msg);
+                        if (response == null)
+                            response = server.createACK(msg);
+                        if (server.duplicateFilter != null)
+                            server.duplicateFilter.putACK(msg, response);
+                    }
+
+                    // Send response
+                    output.writeMessage(response);
+                }
+            } catch (Exception e) {
+                if (!server.stopping || !(e instanceof IOException))
+                    server.handleException(this.peer, e);
+            } finally {
+                this.close();
+                server.connections.remove(this);
+            }
+        }
+
+        void shutdownInput() {
+            try {
+                this.channel.shutdownInput();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        void close() {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
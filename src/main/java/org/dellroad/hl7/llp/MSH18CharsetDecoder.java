@@ -15,6 +15,7 @@ import java.util.regex.Pattern;
 
 import org.dellroad.hl7.HL7ContentException;
 import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.HL7Util;
 import org.dellroad.hl7.MSHSegment;
 
 /**
@@ -60,14 +61,9 @@ public class MSH18CharsetDecoder implements CharsetDecoder {
             throw new IllegalArgumentException("null buf");
 
         // Find the end of the MSH segment
-        int end = off;
-        while (true) {
-            if (end == off + len)
-                return this.defaultCharset;
-            if (buf[end] == (byte)HL7Message.SEGMENT_TERMINATOR)
-                break;
-            end++;
-        }
+        final int end = HL7Util.indexOf(buf, (byte)HL7Message.SEGMENT_TERMINATOR, off, off + len);
+        if (end == -1)
+            return this.defaultCharset;
 
         // Try to parse MSH header as plain ASCII
         final MSHSegment msh;
@@ -0,0 +1,80 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Compares {@link HL7BinaryCodec} with default Java serialization of the segment list (which is how {@link HL7Message}s
+ * were serialized before {@link HL7BinaryCodec} was added), for a 40 segment message.
+ *
+ * <p>
+ * This is not a unit test; run it by hand, e.g.:
+ * <blockquote><code>
+ * java -cp target/classes:target/test-classes org.dellroad.hl7.HL7BinaryCodecBenchmark
+ * </code></blockquote>
+ */
+public final class HL7BinaryCodecBenchmark {
+
+    private static final int REPS = 20000;
+
+    private static int sink;
+
+    private HL7BinaryCodecBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final String text = SampleMessages.oru(36);
+        final HL7Message msg = new HL7Message(text);
+        final byte[] encoded = HL7BinaryCodec.encode(msg);
+        final byte[] serialized = HL7BinaryCodecBenchmark.serialize(msg.getSegments());
+        System.out.println(String.format("text: %d bytes, HL7BinaryCodec: %d bytes, serialization: %d bytes",
+          text.length(), encoded.length, serialized.length));
+        for (int round = 0; round < 5; round++) {
+            System.out.println(String.format("round=%d", round));
+            HL7BinaryCodecBenchmark.run("  encode, HL7BinaryCodec ", () -> HL7BinaryCodec.encode(msg).length);
+            HL7BinaryCodecBenchmark.run("  encode, serialization  ",
+              () -> HL7BinaryCodecBenchmark.serialize(msg.getSegments()).length);
+            HL7BinaryCodecBenchmark.run("  decode, HL7BinaryCodec ", () -> HL7BinaryCodec.decode(encoded).getSegments().size());
+            HL7BinaryCodecBenchmark.run("  decode, serialization  ",
+              () -> ((HL7SegmentList)HL7BinaryCodecBenchmark.deserialize(serialized)).size());
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    private static void run(String label, Task task) throws Exception {
+        final long start = System.nanoTime();
+        int result = 0;
+        for (int i = 0; i < REPS; i++)
+            result += task.run();
+        final long elapsed = System.nanoTime() - start;
+        sink += result;
+        System.out.println(String.format("%s %8.2f us", label, elapsed / 1000.0 / REPS));
+    }
+
+    private static byte[] serialize(Object obj) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(buf)) {
+            output.writeObject(obj);
+        }
+        return buf.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return input.readObject();
+        }
+    }
+
+    private interface Task {
+        int run() throws Exception;
+    }
+}
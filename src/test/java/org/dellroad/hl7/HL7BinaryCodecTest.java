@@ -0,0 +1,170 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+
+public class HL7BinaryCodecTest extends Input1Test {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (HL7Message msg : this.messages()) {
+            final byte[] data = HL7BinaryCodec.encode(msg);
+            final HL7Message copy = HL7BinaryCodec.decode(data);
+            assertEquals(copy, msg);
+            assertEquals(copy.toString(), msg.toString());
+            assertEquals(copy.getMSHSegment().getHL7Seps(), msg.getMSHSegment().getHL7Seps());
+            assertEquals(HL7BinaryCodec.encode(copy), data);
+            assert data.length < msg.toString().length() : data.length + " >= " + msg.toString().length();
+
+            // Java serialization uses the same encoding
+            final byte[] serialized = this.serialize(msg);
+            assert serialized.length < data.length + 200 : serialized.length;
+            assertEquals(this.deserialize(serialized), msg);
+            if (msg.getSegments().size() > 1)
+                assertEquals(this.deserialize(this.serialize(msg.getSegments().get(1))), msg.getSegments().get(1));
+        }
+    }
+
+    @Test
+    public void testLegacySerialization() throws Exception {
+        final HL7Message[] msgs;
+        try (ObjectInputStream input = new ObjectInputStream(HL7BinaryCodecTest.class.getResourceAsStream("legacy-messages.ser"))) {
+            msgs = (HL7Message[])input.readObject();
+        }
+        assertEquals(msgs.length, 2);
+        assertEquals(msgs[0], this.msg1);
+        assertEquals(msgs[1], this.msg2);
+        assertEquals(msgs[0].toString(), this.msg1.toString());
+        assertEquals(msgs[1].findSegment("PID", 0), this.msg2.findSegment("PID", 0));
+
+        // Deserialized messages behave normally, and are re-serialized in the current form
+        msgs[1].getMSHSegment().setControlID(new HL7Field("X"));
+        msgs[1].getSegments().get(1).setName("ZZZ");
+        assert msgs[1].findSegment("ZZZ", 0) != null;
+        assertEquals(this.deserialize(this.serialize(msgs[1])), msgs[1]);
+    }
+
+    @Test
+    public void testByteBuffer() throws HL7ContentException {
+        for (boolean direct : new boolean[] { false, true }) {
+            final ByteBuffer buf = direct ? ByteBuffer.allocateDirect(8192) : ByteBuffer.allocate(8192);
+            buf.put((byte)0x42);
+            final HL7Message[] messages = this.messages();
+            for (HL7Message msg : messages)
+                HL7BinaryCodec.encode(msg, buf);
+            buf.flip();
+            assertEquals(buf.get(), 0x42);
+            for (HL7Message msg : messages)
+                assertEquals(HL7BinaryCodec.decode(buf), msg);
+            assert !buf.hasRemaining();
+
+            // Insufficient room
+            buf.clear();
+            buf.position(buf.limit() - 10);
+            try {
+                HL7BinaryCodec.encode(this.msg1, buf);
+                assert false;
+            } catch (BufferOverflowException e) {
+                // expected
+            }
+            assertEquals(buf.position(), buf.limit() - 10);
+        }
+    }
+
+    @Test
+    public void testSpecialCases() throws HL7ContentException {
+        final HL7Message msg = new HL7Message(new HL7Seps('|', '^', '~'));
+        msg.getMSHSegment().setField(5, new HL7Field(new String[] { "a", "", "a" }));
+        msg.getMSHSegment().setField(7, new HL7Field(new String[][][] { { { "x", "" }, { "y" } }, { { "" } } }));
+        final HL7Segment segment = new HL7Segment("ZZZ");
+        segment.setField(1, "caf\u00e9 \u4e2d\u6587 \ud83d\ude00");
+        segment.setField(2, new String(new char[100]).replace('\u0000', 'q'));
+        segment.setField(3, new String(new char[100]).replace('\u0000', 'q'));
+        msg.getSegments().add(segment);
+        msg.getSegments().add(null);
+        msg.getSegments().add(new MSHSegment(new HL7Seps(':', ';', '!', '$', '%')));
+        final HL7Message copy = HL7BinaryCodec.decode(HL7BinaryCodec.encode(msg));
+        assertEquals(copy.getSegments().size(), 4);
+        assertEquals(copy.getSegments().get(2), null);
+        copy.getSegments().set(2, segment);
+        msg.getSegments().set(2, segment);
+        assertEquals(copy, msg);
+        assertEquals(((MSHSegment)copy.getSegments().get(3)).getHL7Seps(), new HL7Seps(':', ';', '!', '$', '%'));
+        assertEquals(copy.getMSHSegment().getHL7Seps(), new HL7Seps('|', '^', '~'));
+    }
+
+    @Test
+    public void testInvalid() throws HL7ContentException {
+        final byte[] data = HL7BinaryCodec.encode(this.msg1);
+        for (int len = 0; len < data.length; len++) {
+            try {
+                HL7BinaryCodec.decode(data, 0, len);
+                assert false : "len=" + len;
+            } catch (HL7ContentException e) {
+                // expected
+            }
+        }
+        final byte[] extra = Arrays.copyOf(data, data.length + 1);
+        final byte[] version = data.clone();
+        version[0] = 99;
+        final byte[] huge = new byte[] { 1, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, 0x07 };
+        final byte[] overflow = new byte[] { 1, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, 0x01 };
+        final byte[] noMSH = new byte[] { 1, 1, 0 };
+        for (byte[] bogus : new byte[][] { extra, version, huge, overflow, noMSH }) {
+            try {
+                HL7BinaryCodec.decode(bogus);
+                assert false : Arrays.toString(bogus);
+            } catch (HL7ContentException e) {
+                // expected
+            }
+        }
+
+        // Randomly corrupted input either decodes or fails cleanly
+        final Random random = new Random(1234);
+        for (int i = 0; i < 1000; i++) {
+            final byte[] corrupt = data.clone();
+            corrupt[1 + random.nextInt(corrupt.length - 1)] = (byte)random.nextInt();
+            try {
+                HL7BinaryCodec.decode(corrupt);
+            } catch (HL7ContentException e) {
+                // expected
+            }
+        }
+    }
+
+    private byte[] serialize(Object obj) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(buf)) {
+            output.writeObject(obj);
+        }
+        return buf.toByteArray();
+    }
+
+    private Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return input.readObject();
+        }
+    }
+
+    private HL7Message[] messages() throws HL7ContentException {
+        return new HL7Message[] {
+            this.msg1, this.msg2, new HL7Message(this.msg1.toString(), true), new HL7Message(this.msg2.toString(), true),
+            new HL7Message(this.msg2.toString(), new HL7Projection("PID.3")), new HL7Message()
+        };
+    }
+}
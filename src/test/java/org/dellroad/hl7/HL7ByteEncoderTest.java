@@ -0,0 +1,122 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+
+public class HL7ByteEncoderTest extends Input1Test {
+
+    @Test(dataProvider = "charsets")
+    public void testEncode(Charset charset) throws HL7ContentException {
+
+        // Include unmappable characters, a surrogate pair, and lone surrogates
+        final HL7Message big = new HL7Message(this.msg1.toString());
+        final HL7Segment segment = new HL7Segment("ZZZ");
+        segment.setField(1, "caf\u00e9 \u4e2d \ud83d\ude00 \ud83d \ude00 \u00ff");
+        big.getSegments().add(segment);
+        final StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            value.append((char)('a' + i % 26));
+        final HL7Segment segment2 = new HL7Segment("ZZZ");
+        segment2.setField(2, value.toString());
+        big.getSegments().add(segment2);
+
+        final HL7ByteEncoder encoder = new HL7ByteEncoder(charset);
+        assertEquals(encoder.getCharset(), charset);
+        for (HL7Message msg : new HL7Message[] { this.msg1, big, this.msg2, this.msg1 }) {
+            final byte[] expected = msg.toString().getBytes(charset);
+
+            // Internal buffer
+            final int length = encoder.encode(msg);
+            assertEquals(Arrays.copyOf(encoder.getBuffer(), length), expected);
+            assertEquals(encoder.toByteArray(msg), expected);
+
+            // Reserved space
+            assertEquals(encoder.encode(msg, 3, 5), expected.length);
+            assert encoder.getBuffer().length >= 3 + expected.length + 5;
+            assertEquals(Arrays.copyOfRange(encoder.getBuffer(), 3, 3 + expected.length), expected);
+
+            // Byte buffer
+            final ByteBuffer buf = ByteBuffer.allocate(expected.length + 1);
+            buf.put((byte)0);
+            assertEquals(encoder.encode(msg, buf), expected.length);
+            assertEquals(buf.position(), expected.length + 1);
+            assertEquals(Arrays.copyOfRange(buf.array(), 1, buf.position()), expected);
+            buf.position(2);
+            try {
+                encoder.encode(msg, buf);
+                assert false;
+            } catch (BufferOverflowException e) {
+                assertEquals(buf.position(), 2);
+            }
+        }
+    }
+
+    @Test
+    public void testOriginalBytes() throws HL7ContentException {
+        final byte[] bytes = "MSH|^~\\&|A|B\rPID|1||\u00e9\\X0D\\x".getBytes(StandardCharsets.ISO_8859_1);
+        final byte[] expected = Arrays.copyOf(bytes, bytes.length + 1);
+        expected[bytes.length] = '\r';
+
+        // Original bytes are copied
+        final HL7Message msg = new HL7Message(bytes, 0, bytes.length, StandardCharsets.ISO_8859_1, true);
+        assertEquals(new HL7ByteEncoder(StandardCharsets.ISO_8859_1).toByteArray(msg), expected);
+
+        // But not if they would be decoded differently
+        final HL7Message ascii = new HL7Message(bytes, 0, bytes.length, StandardCharsets.US_ASCII, true);
+        assertEquals(new HL7ByteEncoder(StandardCharsets.US_ASCII).toByteArray(ascii),
+          ascii.toString().getBytes(StandardCharsets.US_ASCII));
+        assertEquals(new HL7ByteEncoder(StandardCharsets.UTF_8).toByteArray(msg), msg.toString().getBytes(StandardCharsets.UTF_8));
+
+        // Or the message was modified
+        msg.getSegments().get(1).setField(1, "2");
+        assertEquals(new HL7ByteEncoder(StandardCharsets.ISO_8859_1).toByteArray(msg),
+          msg.toString().getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(msg.toString(), "MSH|^~\\&|A|B\rPID|2||\u00e9\\X0D\\x\r");
+    }
+
+    @Test
+    public void testBogus() {
+        final HL7ByteEncoder encoder = new HL7ByteEncoder(StandardCharsets.US_ASCII);
+        try {
+            encoder.encode(null);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            encoder.encode(this.msg1, -1, 0);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new HL7ByteEncoder(null);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @DataProvider(name = "charsets")
+    public Object[][] getCharsets() {
+        return new Object[][] {
+            { StandardCharsets.US_ASCII },
+            { StandardCharsets.ISO_8859_1 },
+            { StandardCharsets.UTF_8 },
+            { StandardCharsets.UTF_16 },
+            { Charset.forName("windows-1252") },
+        };
+    }
+}
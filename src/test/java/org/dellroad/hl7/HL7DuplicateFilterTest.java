@@ -0,0 +1,112 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.nio.charset.StandardCharsets;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+
+public class HL7DuplicateFilterTest extends Input1Test {
+
+    @Test
+    public void testMessages() throws HL7ContentException {
+        final HL7DuplicateFilter filter = new HL7DuplicateFilter(10, 60000, true);
+        assertEquals(filter.getACK(this.msg1), null);
+
+        // Record an ACK and replay it
+        final HL7Message ack = this.msg1.getMSHSegment().createACK(1);
+        filter.putACK(this.msg1, ack);
+        assert !ack.isFrozen();
+        final HL7Message replay = filter.getACK(this.msg1);
+        assert replay.isFrozen();
+        assertEquals(replay, ack);
+        assert filter.getACK(new HL7Message(this.msg1.toString())) == replay;
+        assert filter.getACK(this.msg2) == replay;                              // same message, different separators
+
+        // Retransmissions may have a new timestamp, but not a new control ID or content
+        final HL7Message retransmit = new HL7Message(this.msg1);
+        retransmit.getMSHSegment().setTimestamp(new HL7Field("20240101000000"));
+        assert filter.getACK(retransmit) == replay;
+        assertEquals(new HL7DuplicateFilter(10, 60000, false).getACK(retransmit), null);
+        retransmit.getMSHSegment().setControlID(new HL7Field("123"));
+        assertEquals(filter.getACK(retransmit), null);
+        final HL7Message modified = new HL7Message(this.msg1);
+        modified.getSegments().get(2).setField(1, "2");
+        assertEquals(filter.getACK(modified), null);
+
+        // Frozen ACKs are not copied
+        final HL7Message ack2 = modified.getMSHSegment().createACK(2).freeze();
+        filter.putACK(modified, ack2);
+        assert filter.getACK(modified) == ack2;
+        assertEquals(filter.size(), 2);
+        filter.clear();
+        assertEquals(filter.size(), 0);
+        assertEquals(filter.getACK(this.msg1), null);
+    }
+
+    @Test
+    public void testBytes() throws HL7ContentException {
+        final HL7DuplicateFilter filter = new HL7DuplicateFilter(10, 60000, true);
+        final byte[] bytes1 = "MSH|^~\\&|A|B|C|D|2024|||42|P|2.3\rPID|1\r".getBytes(StandardCharsets.US_ASCII);
+        final byte[] bytes2 = "MSH|^~\\&|A|B|C|D|2025|||42|P|2.3\rPID|1\r".getBytes(StandardCharsets.US_ASCII);
+        final byte[] bytes3 = "MSH|^~\\&|A|B|C|D|2024|||43|P|2.3\rPID|1\r".getBytes(StandardCharsets.US_ASCII);
+        final HL7Message ack = new HL7Message(new String(bytes1, StandardCharsets.US_ASCII)).getMSHSegment().createACK(1);
+        assertEquals(filter.getACK(bytes1, 0, bytes1.length), null);
+        filter.putACK(bytes1, 0, bytes1.length, ack);
+        assertEquals(filter.getACK(bytes1, 0, bytes1.length), ack);
+        assertEquals(filter.getACK(bytes2, 0, bytes2.length), ack);
+        assertEquals(filter.getACK(bytes3, 0, bytes3.length), null);
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+
+        // By size
+        final HL7DuplicateFilter filter = new HL7DuplicateFilter(3, 60000, false);
+        final HL7Message[] msgs = new HL7Message[5];
+        for (int i = 0; i < msgs.length; i++) {
+            msgs[i] = new HL7Message(this.msg1);
+            msgs[i].getMSHSegment().setControlID(new HL7Field("" + i));
+            filter.putACK(msgs[i], msgs[i].getMSHSegment().createACK(i));
+        }
+        assertEquals(filter.size(), 3);
+        for (int i = 0; i < msgs.length; i++)
+            assertEquals(filter.getACK(msgs[i]) != null, i >= 2, "msg #" + i);
+
+        // Repeated ACKs for the same message count toward the limit
+        for (int i = 0; i < 3; i++)
+            filter.putACK(msgs[4], msgs[4].getMSHSegment().createACK(i));
+        assertEquals(filter.size(), 1);
+
+        // By age
+        final HL7DuplicateFilter filter2 = new HL7DuplicateFilter(100, 50, false);
+        filter2.putACK(msgs[0], msgs[0].getMSHSegment().createACK(0));
+        assert filter2.getACK(msgs[0]) != null;
+        Thread.sleep(100);
+        assertEquals(filter2.getACK(msgs[0]), null);
+        filter2.putACK(msgs[1], msgs[1].getMSHSegment().createACK(1));
+        assertEquals(filter2.size(), 1);
+    }
+
+    @Test
+    public void testBogus() {
+        for (int[] params : new int[][] { { 0, 1 }, { 1, 0 }, { -1, 1 } }) {
+            try {
+                new HL7DuplicateFilter(params[0], params[1], false);
+                assert false;
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            new HL7DuplicateFilter(1, 1, false).putACK(this.msg1, null);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -5,9 +5,15 @@
 
 package org.dellroad.hl7;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Random;
 
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -25,6 +31,9 @@ public class HL7FieldTest {
         testEmpty(new HL7Field(new String[][][] { { { null } } }));
         testEmpty(new HL7Field(new String[][][] { { { "" } } }));
         testEmpty(new HL7Field("", HL7Seps.DEFAULT));
+        testEmpty(new HL7Field("a||b", 2, 2, HL7Seps.DEFAULT));
+        testEmpty(new HL7Field("\\Zfoo\\", 0, 6, HL7Seps.DEFAULT));
+        assert !new HL7Field("a|b", 0, 1, HL7Seps.DEFAULT).isEmpty();
     }
 
     public void testEmpty(HL7Field empty) {
@@ -64,6 +73,7 @@ public class HL7FieldTest {
         assert array[0].length == 1;
         assert array[0][0].length == 1;
         assertEquals(array[0][0][0], value);
+        this.checkEquivalent(field, new HL7Field(new String[][][] { { { value } } }));
     }
 
     @DataProvider(name = "simpleValues")
@@ -90,6 +100,8 @@ public class HL7FieldTest {
             assert repeat[0][0] == values[i];
         }
         assertEquals(field.toString(), encoded);
+        this.checkEquivalent(field, new HL7Field(array));
+        this.checkEquivalent(field, new HL7Field(encoded, HL7Seps.DEFAULT));
     }
 
     @DataProvider(name = "repeatedValues")
@@ -111,7 +123,7 @@ public class HL7FieldTest {
     }
 
     @Test(dataProvider = "complexValues")
-    public void testComplex(String value, String[][][] parse) {
+    public void testComplex(String value, String[][][] parse) throws HL7ContentException {
 
         // Test parse
         HL7Field field = new HL7Field(value, HL7Seps.DEFAULT);
@@ -125,6 +137,154 @@ public class HL7FieldTest {
 
         // They should be equivalent
         assertEquals(field, field2);
+        this.checkEquivalent(field, field2);
+
+        // Test view
+        final String text = "X|" + value + "|Y";
+        HL7Field view = new HL7Field(text, 2, text.length() - 2, HL7Seps.DEFAULT);
+        this.checkView(view, parse);
+        assertEquals(view, field);
+        assertEquals(field, view);
+        assertEquals(view, new HL7Field(view));
+        assertEquals(view.hashCode(), field.hashCode());
+        assertEquals(view.toString(), value);
+        final HL7Seps seps = new HL7Seps(':', ';', '!', '$', '%');
+        assertEquals(view.toString(seps), field.toString(seps));
+        assert Arrays.deepEquals(view.getValue(), parse);
+        this.checkView(view, parse);
+    }
+
+    @Test
+    public void testViewDecoding() throws HL7ContentException {
+        final Random random = new Random(5678);
+        final String alphabet = "ab^~&\\FSTE|";
+        for (String header : new String[] { "MSH|^~\\&|A", "MSH|^~\\|A", "MSH|^~|A" }) {
+            final HL7Seps seps = MSHSegment.parseHL7Seps(header, header.length());
+            for (int i = 0; i < 1000; i++) {
+                final StringBuilder buf = new StringBuilder("ZZZ|");
+                for (int j = random.nextInt(12); j > 0; j--)
+                    buf.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                final String text = header + "\r" + buf;
+
+                // Views must decode the same way as the parser
+                final HL7Segment expected = new HL7Message(text).getSegments().get(1);
+                final HL7Segment lazy = new HL7Message(text, true).getSegments().get(1);
+                assertEquals(lazy.getNumFields(), expected.getNumFields(), text);
+                for (int j = 1; j < expected.getNumFields(); j++) {
+                    assert Arrays.deepEquals(lazy.getField(j).getValue(), expected.getField(j).getValue()) : text;
+                    assertEquals(lazy.getField(j), expected.getField(j), text);
+                }
+                final HL7Field field = HL7Field.decodeField(buf, 4, buf.length(), seps);
+                assertEquals(field, expected.getField(1), text);
+            }
+        }
+    }
+
+    @Test
+    public void testViewNoCopy() {
+        final String text = "X|abc^d\\F\\e|Y";
+        final HL7Field view = new HL7Field(text, 2, text.length() - 2, HL7Seps.DEFAULT);
+        assert !(view.getCharSequence(0, 0, 0) instanceof String);
+        assertEquals(view.getCharSequence(0, 0, 0).toString(), "abc");
+        assertEquals(view.getCharSequence(0, 1, 0), "d|e");
+    }
+
+    @Test
+    public void testLayouts() throws IOException, ClassNotFoundException {
+        final String[][][] array = { { { "a" } }, { { "b", "c" } } };
+        final HL7Field[] fields = {
+          new HL7Field("a"), new HL7Field(new String[] { "a", "b" }), new HL7Field(array)
+        };
+        for (HL7Field field : fields) {
+            this.checkEquivalent(field, new HL7Field(field));
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            try (ObjectOutputStream output = new ObjectOutputStream(buf)) {
+                output.writeObject(field);
+            }
+            final HL7Field copy;
+            try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(buf.toByteArray()))) {
+                copy = (HL7Field)input.readObject();
+            }
+            this.checkEquivalent(field, copy);
+        }
+        assert !fields[0].equals(fields[1]);
+        assert !fields[1].equals(fields[0]);
+        assert !fields[1].equals(fields[2]);
+        assert !fields[2].equals(fields[1]);
+
+        // Copies are independent of the original
+        final String[] repeats = { "x", "y" };
+        final HL7Field field = new HL7Field(repeats);
+        final HL7Field copy = new HL7Field(field);
+        repeats[0] = "z";
+        assertEquals(copy.get(0, 0, 0), "x");
+        final HL7Field field2 = new HL7Field(array);
+        final HL7Field copy2 = new HL7Field(field2);
+        array[1][0][1] = "z";
+        assertEquals(copy2.get(1, 0, 1), "c");
+        assertEquals(field2.get(1, 0, 1), "z");
+
+        // Nulls are replaced without modifying the caller's array
+        final String[] nulls = { "x", null };
+        assertEquals(new HL7Field(nulls).get(1, 0, 0), "");
+        assert nulls[1] == null;
+    }
+
+    @Test
+    public void testLegacySerialization() throws IOException, ClassNotFoundException {
+        final HL7Field[] expected = {
+          new HL7Field("abc"), new HL7Field(""), new HL7Field(new String[] { "r1", "r2" }),
+          new HL7Field("a^b&c~d^^e", HL7Seps.DEFAULT)
+        };
+        final HL7Field[] fields;
+        try (ObjectInputStream input = new ObjectInputStream(HL7FieldTest.class.getResourceAsStream("legacy-fields.ser"))) {
+            fields = (HL7Field[])input.readObject();
+        }
+        assertEquals(fields.length, expected.length);
+        for (int i = 0; i < fields.length; i++)
+            this.checkEquivalent(expected[i], fields[i]);
+    }
+
+    // Verify two fields are equal and indistinguishable
+    private void checkEquivalent(HL7Field field1, HL7Field field2) {
+        assertEquals(field1, field2);
+        assertEquals(field2, field1);
+        assertEquals(field1.hashCode(), field2.hashCode());
+        assertEquals(field1.hashCode(), Arrays.deepHashCode(field1.getValue()));
+        assert Arrays.deepEquals(field1.getValue(), field2.getValue());
+        assertEquals(field1.toString(), field2.toString());
+        assertEquals(field1.isEmpty(), field2.isEmpty());
+        this.checkView(field2, field1.getValue());
+    }
+
+    private void checkView(HL7Field view, String[][][] parse) {
+        for (int i = 0; i <= parse.length; i++) {
+            final int numComps = i < parse.length ? parse[i].length : 1;
+            for (int j = 0; j <= numComps; j++) {
+                final int numSubs = i < parse.length && j < numComps ? parse[i][j].length : 1;
+                for (int k = 0; k <= numSubs; k++) {
+                    final String expected = i < parse.length && j < numComps && k < numSubs ? parse[i][j][k] : null;
+                    assertEquals(view.get(i, j, k), expected, "get(" + i + ", " + j + ", " + k + ")");
+                    final CharSequence actual = view.getCharSequence(i, j, k);
+                    assertEquals(actual != null ? actual.toString() : null, expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNoSubcomponentSeparator() throws HL7ContentException {
+        HL7Seps seps = new HL7Seps('|', '^', '~', '\\');
+        HL7Field field = new HL7Field("ab^c&d^e\\F\\~f", seps);
+        assert Arrays.deepEquals(field.getValue(), new String[][][] {
+            { { "ab" }, { "c&d" }, { "e|" } }, { { "f" } }
+          });
+        assertEquals(field.toString(seps), "ab^c&d^e\\F\\~f");
+        HL7Field view = new HL7Field("ab^c&d^e\\F\\~f", 0, 13, seps);
+        assertEquals(view.get(0, 1, 0), "c&d");
+        assertEquals(view.get(0, 1, 1), null);
+        assertEquals(view.get(0, 2, 0), "e|");
+        assertEquals(view, field);
     }
 
     @DataProvider(name = "complexValues")
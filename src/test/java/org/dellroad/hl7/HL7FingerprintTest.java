@@ -0,0 +1,91 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.nio.charset.StandardCharsets;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+
+public class HL7FingerprintTest extends Input1Test {
+
+    @Test
+    public void testHash() {
+
+        // Reference MurmurHash3 x64 128-bit value
+        final byte[] bytes = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.US_ASCII);
+        final HL7Fingerprint.Hasher hasher = new HL7Fingerprint.Hasher();
+        hasher.update(bytes, 0, 5);
+        hasher.update(bytes, 5, bytes.length - 5);
+        final HL7Fingerprint fingerprint = hasher.finish();
+        assertEquals(fingerprint.toString(), "e34bbc7bbc071b6c7a433ca9c49a9347");
+        assertEquals(fingerprint, new HL7Fingerprint(0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L));
+        assertEquals(fingerprint.getMostSignificantBits(), 0xe34bbc7bbc071b6cL);
+        assertEquals(fingerprint.getLeastSignificantBits(), 0x7a433ca9c49a9347L);
+
+        // Characters are hashed as UTF-8
+        final String text = "caf\u00e9 \u4e2d \ud83d\ude00 \ud83d \ude00 x";
+        final byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        final HL7Fingerprint.Hasher bytesHasher = new HL7Fingerprint.Hasher();
+        bytesHasher.update(utf8, 0, utf8.length);
+        assertEquals(new HL7Fingerprint.Hasher().append(text).finish(), bytesHasher.finish());
+    }
+
+    @Test
+    public void testMessage() throws HL7ContentException {
+
+        // Canonical form
+        final String text = this.msg1.toString(HL7Seps.DEFAULT);
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        final HL7Fingerprint fingerprint = HL7Fingerprint.of(this.msg1);
+        assertEquals(HL7Fingerprint.of(new HL7Message(text)), fingerprint);
+        assertEquals(HL7Fingerprint.of(new HL7Message(this.msg1.toString(), true)), fingerprint);
+        assertEquals(HL7Fingerprint.of(bytes, 0, bytes.length, false), fingerprint);
+        assertEquals(HL7Fingerprint.of(bytes, 0, bytes.length - 1, false), fingerprint);
+        assertEquals(HL7Fingerprint.of(this.msg2), fingerprint);                  // same message, different separators
+        final byte[] padded = (" " + text + "\r\n").getBytes(StandardCharsets.UTF_8);
+        assertEquals(HL7Fingerprint.of(padded, 1, padded.length - 1, false), fingerprint);
+        assertNotEquals(HL7Fingerprint.of(bytes, 0, bytes.length, true), fingerprint);
+
+        // Timestamp exclusion
+        final HL7Message retransmit = new HL7Message(this.msg1);
+        retransmit.getMSHSegment().setTimestamp(new HL7Field("20240101000000"));
+        final byte[] retransmitBytes = retransmit.toString(HL7Seps.DEFAULT).getBytes(StandardCharsets.UTF_8);
+        assertNotEquals(HL7Fingerprint.of(retransmit), fingerprint);
+        assertNotEquals(HL7Fingerprint.of(retransmitBytes, 0, retransmitBytes.length, false), fingerprint);
+        final HL7Fingerprint fingerprint2 = HL7Fingerprint.of(this.msg1, true);
+        assertEquals(HL7Fingerprint.of(retransmit, true), fingerprint2);
+        assertEquals(HL7Fingerprint.of(bytes, 0, bytes.length, true), fingerprint2);
+        assertEquals(HL7Fingerprint.of(retransmitBytes, 0, retransmitBytes.length, true), fingerprint2);
+        retransmit.getMSHSegment().setControlID(new HL7Field("123"));
+        assertNotEquals(HL7Fingerprint.of(retransmit, true), fingerprint2);
+
+        // MSH.7 is the last field
+        final byte[] shortBytes = "MSH|^~\\&|A|B|C|D|2024\rPID|1\r".getBytes(StandardCharsets.US_ASCII);
+        final HL7Message shortMsg = new HL7Message("MSH|^~\\&|A|B|C|D|1999\rPID|1\r");
+        assertEquals(HL7Fingerprint.of(shortBytes, 0, shortBytes.length, true), HL7Fingerprint.of(shortMsg, true));
+        assertNotEquals(HL7Fingerprint.of(shortBytes, 0, shortBytes.length, false), HL7Fingerprint.of(shortMsg, false));
+    }
+
+    @Test
+    public void testBogus() {
+        try {
+            HL7Fingerprint.of((HL7Message)null);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            HL7Fingerprint.of(new byte[10], 5, 6, false);
+            assert false;
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        final byte[] junk = "MS".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(HL7Fingerprint.of(junk, 0, junk.length, true), HL7Fingerprint.of(junk, 0, junk.length, false));
+    }
+}
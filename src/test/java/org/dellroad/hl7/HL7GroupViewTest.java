@@ -0,0 +1,184 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+public class HL7GroupViewTest {
+
+    private static final HL7GroupDefinition PATIENT = HL7GroupDefinition.of("PID", "PD1", "NTE", "PV1", "PV2");
+    private static final HL7GroupDefinition ORDER = new HL7GroupDefinition("ORC",
+      new HL7GroupDefinition("OBR",
+        HL7GroupDefinition.of("OBX", "NTE"),
+        new HL7GroupDefinition("NTE")));
+
+    private static final String MESSAGE = "MSH|^~\\&|LAB|HOSP|||20080101||ORU^R01|123|P|2.3\r"
+      + "PID|1||1234\r"       // 1
+      + "PV1|1|I\r"           // 2
+      + "ORC|RE\r"            // 3
+      + "OBR|1||A\r"          // 4
+      + "NTE|1||obr note\r"   // 5
+      + "OBX|1|NM|GLU\r"      // 6
+      + "NTE|1||obx note\r"   // 7
+      + "ZZZ|custom\r"        // 8
+      + "OBX|2|NM|NA\r"       // 9
+      + "OBR|2||B\r"          // 10
+      + "OBX|1|NM|K\r"        // 11
+      + "ORC|RE\r"            // 12
+      + "OBR|3||C\r"          // 13
+      + "PV1|1|O\r";          // 14
+
+    @Test
+    public void testDefinition() {
+        assertEquals(ORDER.toString(), "ORC[OBR[OBX[NTE],NTE]]");
+        assertEquals(ORDER, new HL7GroupDefinition("ORC",
+          new HL7GroupDefinition("OBR", HL7GroupDefinition.of("OBX", "NTE"), new HL7GroupDefinition("NTE"))));
+        assertEquals(ORDER.hashCode(), new HL7GroupDefinition("ORC",
+          new HL7GroupDefinition("OBR", HL7GroupDefinition.of("OBX", "NTE"), new HL7GroupDefinition("NTE"))).hashCode());
+        assert !ORDER.equals(PATIENT);
+        assert PATIENT.isGroup();
+        assert !PATIENT.getChildren().get(0).isGroup();
+        assertEquals(PATIENT.getLeaderId(), HL7SegmentId.PID);
+        for (String[] names : new String[][] { { "PIDX" }, { "PID", "NTE", "NTE" }, { "PID", null } }) {
+            try {
+                HL7GroupDefinition.of(names[0], Arrays.copyOfRange(names, 1, names.length));
+                assert false : Arrays.asList(names);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testView() throws HL7ContentException {
+        final HL7Message msg = new HL7Message(MESSAGE);
+        final HL7GroupView view = msg.getGroupView(PATIENT, ORDER);
+        this.check(view, msg);
+        assertSame(msg.getGroupView(PATIENT, ORDER), view);
+        assertSame(msg.getGroupView(HL7GroupDefinition.of("PID", "PD1", "NTE", "PV1", "PV2"), ORDER), view);
+
+        // Lazily parsed messages group the same way
+        this.check(new HL7Message(MESSAGE, true).getGroupView(PATIENT, ORDER), msg);
+
+        // Different definitions
+        final HL7GroupView orders = msg.getGroupView(ORDER);
+        assertNotSame(orders, view);
+        assertEquals(orders.getGroups().size(), 2);
+        assertNull(orders.getGroup(1));
+        assertNull(orders.getParent(2));
+
+        // Modifications invalidate the cached view
+        final HL7GroupView view2 = msg.getGroupView(PATIENT, ORDER);
+        assertSame(msg.getGroupView(PATIENT, ORDER), view2);
+        msg.getSegments().set(8, new HL7Segment("NTE"));
+        final HL7GroupView view3 = msg.getGroupView(PATIENT, ORDER);
+        assertNotSame(view3, view2);
+        assertEquals(view3.getGroup(6).getMembers().size(), 2);
+        msg.getSegments().remove(14);
+        final HL7GroupView view4 = msg.getGroupView(PATIENT, ORDER);
+        assertNotSame(view4, view3);
+        assertEquals(view4.getGroups().get(0).getMembers().size(), 1);
+
+        // So do in-place renames and replacements via sub-lists
+        assertEquals(view4.getGroup(6).getMembers().size(), 2);
+        msg.getSegments().get(8).setName("ZZZ");
+        final HL7GroupView view5 = msg.getGroupView(PATIENT, ORDER);
+        assertNotSame(view5, view4);
+        assertEquals(view5.getGroup(6).getMembers().size(), 1);
+        msg.getSegments().subList(8, 9).set(0, new HL7Segment("NTE"));
+        final HL7GroupView view6 = msg.getGroupView(PATIENT, ORDER);
+        assertNotSame(view6, view5);
+        assertEquals(view6.getGroup(6).getMembers().size(), 2);
+
+        // Renaming another message's segments does not
+        final HL7Message other = new HL7Message(msg);
+        other.getGroupView(PATIENT, ORDER);
+        other.getSegments().get(8).setName("ZZZ");
+        assertSame(msg.getGroupView(PATIENT, ORDER), view6);
+
+        // Views of frozen messages stay cached
+        final HL7Message frozen = new HL7Message(msg).freeze();
+        final HL7GroupView view7 = frozen.getGroupView(PATIENT, ORDER);
+        other.getSegments().get(8).setName("NTE");
+        assertSame(frozen.getGroupView(PATIENT, ORDER), view7);
+
+        // Bogus arguments
+        try {
+            msg.getGroupView(PATIENT, PATIENT);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            view.getGroup(15);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private void check(HL7GroupView view, HL7Message msg) {
+        final List<HL7Segment> segments = msg.getSegments();
+
+        // Top level: PID, ORC, ORC
+        assertEquals(view.getGroups().size(), 3);
+        final HL7Group patient = view.getGroups().get(0);
+        final HL7Group order1 = view.getGroups().get(1);
+        final HL7Group order2 = view.getGroups().get(2);
+        assertEquals(patient.getPosition(), 1);
+        assertEquals(patient.getLeader(), segments.get(1));
+        assertEquals(patient.getMembers(), segments.subList(2, 3));
+        assertEquals(patient.getChildren().size(), 0);
+        assertNull(patient.getParent());
+        assertEquals(order1.getPosition(), 3);
+        assertEquals(order2.getPosition(), 12);
+
+        // First order: OBR[NTE, OBX[NTE], OBX], OBR[OBX]
+        assertEquals(order1.getChildren().size(), 2);
+        assertEquals(order1.getMembers().size(), 0);
+        final HL7Group obr1 = order1.getChildren().get(0);
+        assertSame(obr1.getParent(), order1);
+        assertEquals(obr1.getPosition(), 4);
+        assertEquals(obr1.getMembers(), segments.subList(5, 6));
+        assertEquals(obr1.getChildren().size(), 2);
+        assertEquals(obr1.getChildren().get(0).getPosition(), 6);
+        assertEquals(obr1.getChildren().get(0).getMembers(), segments.subList(7, 8));
+        assertEquals(obr1.getChildren().get(1).getPosition(), 9);
+        assertEquals(obr1.getChildren().get(1).getMembers().size(), 0);
+        final HL7Group obr2 = order1.getChildren().get(1);
+        assertEquals(obr2.getPosition(), 10);
+        assertEquals(obr2.getChildren().get(0).getPosition(), 11);
+
+        // Second order; trailing PV1 is not grouped
+        assertEquals(order2.getChildren().size(), 1);
+        assertEquals(order2.getChildren().get(0).getPosition(), 13);
+
+        // Leaders and parents
+        final int[] leaders = { -1, 1, -1, 3, 4, -1, 6, -1, -1, 9, 10, 11, 12, 13, -1 };
+        final int[] parents = { -1, -1, 1, -1, 3, 4, 4, 6, -1, 4, 3, 10, -1, 12, -1 };
+        for (int i = 0; i < segments.size(); i++) {
+            final HL7Group group = view.getGroup(i);
+            final HL7Group parent = view.getParent(i);
+            assertEquals(group != null ? group.getPosition() : -1, leaders[i], "segment " + i);
+            assertEquals(parent != null ? parent.getPosition() : -1, parents[i], "segment " + i);
+            if (group != null)
+                assertSame(group.getParent(), parent);
+        }
+
+        // Lookup by leader
+        assertEquals(view.getGroups("OBR").size(), 3);
+        assertEquals(view.getGroups("OBX").size(), 3);
+        assertEquals(view.getGroups("NTE").size(), 0);
+        assertEquals(view.getGroups("OBX").get(2).getPosition(), 11);
+    }
+}
@@ -5,8 +5,17 @@
 
 package org.dellroad.hl7;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -21,6 +30,254 @@ public class HL7MessageTest extends Input1Test {
             assertEquals(new HL7Message(msg.toString()), msg);
     }
 
+    @Test
+    public void testCopyConstructor() throws HL7ContentException {
+        for (HL7Message msg : new HL7Message[] { this.msg1, this.msg2, new HL7Message(this.msg1.toString(), true) }) {
+            final String text = msg.toString();
+            final HL7Message copy = new HL7Message(msg);
+            assertEquals(copy, msg);
+            assertEquals(copy.toString(), text);
+            assert copy.getMSHSegment() != msg.getMSHSegment();
+            copy.getMSHSegment().setControlID(new HL7Field("changed"));
+            copy.getSegments().get(1).setField(1, "changed");
+            copy.getSegments().add(new HL7Segment("ZZZ"));
+            assertEquals(msg.toString(), text);
+            assertEquals(new HL7Message(msg), msg);
+            assertEquals(new HL7Message(copy), copy);
+        }
+    }
+
+    @Test
+    public void testWriteTo() throws IOException, HL7ContentException {
+        for (HL7Message msg : new HL7Message[] { this.msg1, this.msg2, new HL7Message(this.msg1.toString(), true) }) {
+            final String text = msg.toString();
+            final StringBuilder buf = new StringBuilder();
+            msg.writeTo(buf);
+            assertEquals(buf.toString(), text);
+            final StringWriter writer = new StringWriter();
+            msg.writeTo(writer);
+            assertEquals(writer.toString(), text);
+            final CharBuffer charBuf = CharBuffer.allocate(text.length());
+            msg.writeTo(charBuf);
+            assertEquals(charBuf.flip().toString(), text);
+            final StringWriter writer2 = new StringWriter();
+            msg.writeTo(writer2, HL7Seps.DEFAULT, '\n');
+            assertEquals(writer2.toString(), msg.toString(HL7Seps.DEFAULT).replace('\r', '\n'));
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            msg.writeTo(output, StandardCharsets.ISO_8859_1);
+            assertEquals(output.toByteArray(), text.getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @Test
+    public void testWriteToEncoder() throws IOException, HL7ContentException {
+
+        // Build a message spanning several chunks, with surrogate pairs straddling chunk boundaries
+        final HL7Message msg = new HL7Message(this.msg1.toString());
+        final StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 3000; i++)
+            value.append(i % 7 == 0 ? "\ud83d\ude00" : i % 5 == 0 ? "\u00e9" : "x");
+        for (int i = 0; i < 5; i++) {
+            final HL7Segment segment = new HL7Segment("ZZZ");
+            segment.setField(1, "yyyy".substring(0, i) + value);
+            msg.getSegments().add(segment);
+        }
+        final String text = msg.toString();
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        for (int i = 0; i < 2; i++) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            msg.writeTo(output, encoder);
+            assertEquals(output.toByteArray(), text.getBytes(StandardCharsets.UTF_8));
+        }
+        final StringWriter writer = new StringWriter();
+        msg.writeTo(writer);
+        assertEquals(writer.toString(), text);
+
+        // Unmappable characters are replaced, or reported by a strict encoder
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        msg.writeTo(output, StandardCharsets.US_ASCII);
+        assertEquals(output.toByteArray(), text.getBytes(StandardCharsets.US_ASCII));
+        try {
+            msg.writeTo(new ByteArrayOutputStream(), StandardCharsets.US_ASCII.newEncoder());
+            assert false;
+        } catch (CharacterCodingException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCustomAppend() throws IOException, HL7ContentException {
+        final HL7Message msg = new HL7Message(this.msg1.toString(), true);
+        msg.getSegments().add(new CustomSegment());
+        final String text = msg.toString();
+        final char fieldSep = msg.getMSHSegment().getHL7Seps().getFieldSep();
+        assert text.endsWith("\rZZZ" + fieldSep + "custom\r") : text;
+        final StringWriter writer = new StringWriter();
+        msg.writeTo(writer);
+        assertEquals(writer.toString(), text);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        msg.writeTo(output, StandardCharsets.ISO_8859_1);
+        assertEquals(output.toByteArray(), text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    // Overrides append() rather than writeTo()
+    private static class CustomSegment extends HL7Segment {
+
+        CustomSegment() throws HL7ContentException {
+            super("ZZZ");
+        }
+
+        @Override
+        public void append(StringBuilder buf, HL7Seps seps) {
+            super.append(buf, seps);
+            buf.append(seps.getFieldSep()).append("custom");
+        }
+    }
+
+    @Test
+    public void testCleanText() throws IOException, HL7ContentException {
+        final String text = "MSH|^~\\&|A|B\rPID|1||123^^^X~456\rOBX|1|TX|\\X0D\\note\rZZZ|a^b&c\r";
+
+        // Unmodified messages reproduce the original text; lazy ones even reproduce non-canonical escapes
+        for (boolean lazy : new boolean[] { false, true }) {
+            final HL7Message msg = new HL7Message(text, lazy);
+            assert msg.getCleanText(null) == (lazy ? text : null);
+            final HL7Message msg2 = new HL7Message(text.replace("\\X0D\\", ""), lazy);
+            assert msg2.getCleanText(null) != null;
+            assert msg2.toString() == msg2.getCleanText(null);
+            final StringWriter writer = new StringWriter();
+            msg2.writeTo(writer);
+            assertEquals(writer.toString(), msg2.toString());
+            assertEquals(new HL7Message(text.substring(0, text.length() - 1), lazy).toString(), lazy ? text : msg.toString());
+        }
+
+        // Modifying a segment re-encodes only that segment
+        final HL7Message msg = new HL7Message(text, true);
+        msg.getSegments().get(1).setField(3, "789");
+        assert msg.getCleanText(null) == null;
+        assertEquals(msg.toString(), text.replace("123^^^X~456", "789"));
+        final HL7Message msg2 = new HL7Message(text, true);
+        msg2.getMSHSegment().setControlID(new HL7Field("42"));
+        assertEquals(msg2.toString(), text.replace("A|B", "A|B||||||42"));
+
+        // So do list changes and different separators
+        final HL7Message msg3 = new HL7Message(text, true);
+        msg3.getSegments().add(new HL7Segment("NTE"));
+        assert msg3.getCleanText(null) == null;
+        assertEquals(msg3.toString(), text + "NTE\r");
+        msg3.getSegments().remove(4);
+        assert msg3.getCleanText(null) == null;
+        assertEquals(msg3.toString(), text);
+        final HL7Message msg4 = new HL7Message(text, true);
+        final HL7Seps seps = new HL7Seps('#', '^', '~', '\\', '&');
+        assert msg4.getCleanText(seps) == null;
+        assertEquals(msg4.toString(seps), new HL7Message(text).toString(seps));
+        final StringBuilder buf = new StringBuilder();
+        msg4.writeTo(buf, HL7Seps.DEFAULT, '\n');
+        assertEquals(buf.toString(), text.replace('\r', '\n'));
+    }
+
+    @Test
+    public void testFreeze() throws Exception {
+        final String text = "MSH|^~\\&|A|B\rPID|1||123^^^X~456\rOBX|1|TX|a^b&c\rOBX|2|TX|d\rZZZ|x\r";
+        final HL7Message expected = new HL7Message(text);
+
+        // Frozen messages are equal to unfrozen ones, but can't be modified
+        final HL7Message msg = new HL7Message(text, true);
+        assert !msg.isFrozen();
+        final HL7Message frozen = msg.freeze();
+        assert frozen == msg;
+        assert msg.isFrozen() && msg.getSegments().isFrozen() && msg.getMSHSegment().isFrozen();
+        assertEquals(msg, expected);
+        assertEquals(expected, msg);
+        assertEquals(msg.hashCode(), expected.hashCode());
+        assertEquals(msg.getSegments().get(1).hashCode(), expected.getSegments().get(1).hashCode());
+        assert msg.toString() == text;
+        final HL7Message other = new HL7Message(text.replace("ZZZ|x", "ZZZ|y")).freeze();
+        assert !msg.equals(other) && !other.equals(msg);
+        for (Runnable action : new Runnable[] {
+            () -> msg.getSegments().add(msg.getSegments().get(1)),
+            () -> msg.getSegments().remove(4),
+            () -> msg.getSegments().set(4, msg.getSegments().get(1)),
+            () -> msg.getSegments().removeIf(segment -> segment.getName().equals("ZZZ")),
+            () -> msg.getSegments().sort((segment1, segment2) -> 0),
+            () -> msg.getSegments().subList(1, 3).clear(),
+            () -> msg.getSegments().subList(1, 3).set(0, msg.getSegments().get(3)),
+            () -> {
+                final Iterator<HL7Segment> i = msg.getSegments().iterator();
+                i.next();
+                i.next();
+                i.remove();
+            },
+            () -> msg.getSegments().get(1).setField(3, "789"),
+            () -> msg.getSegments().get(1).trimTo(2),
+            () -> msg.getMSHSegment().setControlID(new HL7Field("42")),
+        }) {
+            try {
+                action.run();
+                assert false;
+            } catch (IllegalStateException | UnsupportedOperationException e) {
+                // expected
+            }
+        }
+        assertEquals(msg, expected);
+        assert msg.toString() == text;
+
+        // Field values can't be changed via getValue()
+        final HL7Field field = msg.getField("OBX.3");
+        field.getValue()[0][1][0] = "z";
+        assertEquals(field.get(0, 1, 0), "b");
+        assertEquals(field, expected.getField("OBX.3"));
+
+        // Copies are modifiable
+        final HL7Message copy = new HL7Message(msg);
+        assert !copy.isFrozen() && !copy.getSegments().get(1).isFrozen();
+        copy.getSegments().get(1).setField(3, "789");
+        copy.getSegments().remove(4);
+        assertEquals(msg, expected);
+        assertEquals(copy.toString(), "MSH|^~\\&|A|B\rPID|1||789\rOBX|1|TX|a^b&c\rOBX|2|TX|d\r");
+
+        // Frozen messages may be shared by threads
+        final HashMap<HL7Message, String> map = new HashMap<>();
+        map.put(msg, "foo");
+        assertEquals(map.get(expected), "foo");
+        final HL7Message shared = new HL7Message(text, true).freeze();
+        final ArrayList<Thread> threads = new ArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            final Thread thread = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    if (!"456".equals(shared.get("PID.3", 0, 1))
+                      || !"c".equals(shared.get("OBX.3.2.2"))
+                      || shared.findSegments("OBX").size() != 2
+                      || shared.hashCode() != expected.hashCode()
+                      || !shared.equals(expected)
+                      || !shared.toString().equals(text))
+                        failures.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        // Renaming segments of other messages meanwhile doesn't affect it
+        final HL7Message renamed = new HL7Message(text);
+        for (int j = 0; j < 1000; j++) {
+            renamed.getSegments().get(4).setName(j % 2 == 0 ? "ZZY" : "ZZZ");
+            assertEquals(renamed.countSegments("ZZY"), 1 - j % 2);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(failures.get(), 0);
+
+        // Frozen lists keep the index built when they were frozen, even if their segments are renamed
+        final HL7Message partial = new HL7Message(text);
+        partial.getSegments().freeze();
+        partial.getSegments().get(4).setName("ZZY");
+        assertEquals(partial.countSegments("ZZZ"), 1);
+        assertEquals(partial.findSegment("ZZZ"), null);
+    }
+
     @Test
     public void testFindSegment() {
         assertEquals(this.msg1.findSegment("MSH"), this.msg1.getMSHSegment());
@@ -31,6 +288,111 @@ public class HL7MessageTest extends Input1Test {
         assertEquals(this.msg1.findSegment("ZAX", 6), null);
     }
 
+    @Test
+    public void testSegmentIndex() throws HL7ContentException {
+        final HL7Message msg = new HL7Message(this.msg1.toString(), true);
+        final HL7SegmentList segments = msg.getSegments();
+        this.checkIndex(msg);
+        assertEquals(msg.countSegments("ZAX"), 2);
+        assertEquals(msg.findSegments("ZAX").get(1), segments.get(5));
+        assertEquals(msg.countSegments("OBX"), 0);
+        assert msg.findSegments("OBX").isEmpty();
+
+        // Modify the list in various ways
+        segments.add(2, new HL7Segment("OBX"));
+        this.checkIndex(msg);
+        segments.addAll(new ArrayList<>(segments.subList(1, 4)));
+        this.checkIndex(msg);
+        segments.set(3, new HL7Segment("OBX"));
+        this.checkIndex(msg);
+        segments.remove(2);
+        this.checkIndex(msg);
+        segments.subList(1, 3).clear();
+        this.checkIndex(msg);
+        segments.removeIf(segment -> segment.getName().equals("ZAX"));
+        this.checkIndex(msg);
+        segments.replaceAll(segment -> segment instanceof MSHSegment ? segment : new HL7Segment(segment));
+        this.checkIndex(msg);
+        assertEquals(segments.clone(), segments);
+        this.checkIndex(new HL7Message(segments.clone()));
+
+    }
+
+    @Test
+    public void testSegmentIndexInPlaceChanges() throws HL7ContentException {
+        for (boolean lazy : new boolean[] { false, true }) {
+            final HL7Message msg = new HL7Message(this.msg1.toString(), lazy);
+            final HL7SegmentList segments = msg.getSegments();
+            this.checkIndex(msg);
+
+            // Renamed segments are found under their new name
+            segments.get(1).setName("PV2");
+            assertEquals(msg.findSegment("PV2"), segments.get(1));
+            this.checkIndex(msg);
+
+            // Segments replaced via a sub-list are found
+            final HL7Segment obx = new HL7Segment("OBX");
+            segments.subList(2, 4).set(1, obx);
+            assertEquals(segments.get(3), obx);
+            assertEquals(msg.findSegment("OBX"), obx);
+            this.checkIndex(msg);
+            segments.subList(1, 5).subList(1, 3).set(0, new HL7Segment("OBX"));
+            assertEquals(msg.countSegments("OBX"), 2);
+            this.checkIndex(msg);
+            segments.subList(1, 3).replaceAll(segment -> obx);
+            this.checkIndex(msg);
+            try {
+                segments.subList(0, 2).set(0, obx);
+                assert false;
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            // Renaming another message's segments doesn't affect this message
+            final HL7Message other = new HL7Message(msg);
+            this.checkIndex(other);
+            final long version = segments.getVersion();
+            other.getSegments().get(2).setName("ZAX");
+            assertEquals(segments.getVersion(), version);
+            this.checkIndex(other);
+
+            // Segments in both messages are found after being renamed
+            final HL7Segment shared = new HL7Segment("XXX");
+            segments.add(shared);
+            other.getSegments().add(shared);
+            this.checkIndex(msg);
+            this.checkIndex(other);
+            shared.setName("PV2");
+            this.checkIndex(msg);
+            this.checkIndex(other);
+            shared.setName("EVN");
+            this.checkIndex(other);
+            this.checkIndex(msg);
+        }
+    }
+
+    // Verify findSegment(), findSegments(), and countSegments() agree with a linear search
+    private void checkIndex(HL7Message msg) {
+        final HL7SegmentList segments = msg.getSegments();
+        for (String name : new String[] { "MSH", "EVN", "PID", "PV1", "ZAX", "OBX", "PV2", "XXX" }) {
+            final ArrayList<HL7Segment> expected = new ArrayList<>();
+            for (int i = 0; i < segments.size(); i++) {
+                if (segments.get(i).getName().equals(name))
+                    expected.add(segments.get(i));
+            }
+            assertEquals(msg.findSegments(name), expected, name);
+            assertEquals(msg.countSegments(name), expected.size(), name);
+            for (int i = 0; i <= segments.size(); i++) {
+                HL7Segment first = null;
+                for (int j = i; j < segments.size() && first == null; j++) {
+                    if (segments.get(j).getName().equals(name))
+                        first = segments.get(j);
+                }
+                assert msg.findSegment(name, i) == first : name + " " + i;
+            }
+        }
+    }
+
     @Test(dataProvider = "getFieldData")
     public void testGetField(String field, int segnum, HL7Field value) {
         HL7Field gotten = this.msg2.getField(field, segnum);
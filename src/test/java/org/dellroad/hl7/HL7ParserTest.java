@@ -0,0 +1,260 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+
+public class HL7ParserTest extends Input1Test {
+
+    @Test
+    public void testInput1() throws HL7ContentException {
+        HL7Message[] tests = new HL7Message[] { this.msg1, this.msg2 };
+        for (HL7Message msg : tests) {
+            for (HL7Seps seps : new HL7Seps[] { HL7Seps.DEFAULT, msg.getMSHSegment().getHL7Seps(), new HL7Seps('|', '^', '~') }) {
+                final String text = msg.toString(seps);
+                this.compare(text);
+                assertEquals(new HL7Parser().parse(text, false), HL7Parser.parseBySplitting(text).getSegments());
+            }
+        }
+    }
+
+    @Test
+    public void testEvents() throws HL7ContentException {
+        final StringBuilder buf = new StringBuilder();
+        final HL7ContentHandler handler = new HL7ContentHandler() {
+            @Override
+            public void startMessage(HL7Seps seps) {
+                buf.append("M(").append(seps).append(')');
+            }
+            @Override
+            public boolean startSegment(CharSequence name) {
+                buf.append(" S(").append(name).append(')');
+                return !name.toString().equals("ZZZ");
+            }
+            @Override
+            public void field(int index) {
+                buf.append(" f").append(index);
+            }
+            @Override
+            public void repeat(int index) {
+                buf.append(" r").append(index);
+            }
+            @Override
+            public void component(int index) {
+                buf.append(" c").append(index);
+            }
+            @Override
+            public void subComponent(int index, CharSequence value) {
+                buf.append(" s").append(index).append('=').append(value);
+            }
+            @Override
+            public void endSegment() {
+                buf.append(" E");
+            }
+            @Override
+            public void endMessage() {
+                buf.append(" END");
+            }
+        };
+        new HL7Parser().parse("MSH|^~\\&|A\rZZZ|1|2\rPID||a&\\T\\^b~\rAB1\r", handler);
+        assertEquals(buf.toString(), "M(|^~\\&)"
+          + " S(MSH) f1 r0 c0 s0=| f2 r0 c0 s0=^~\\& f3 r0 c0 s0=A E"
+          + " S(ZZZ) E"
+          + " S(PID) f1 r0 c0 s0= f2 r0 c0 s0=a s1=& c1 s0=b r1 c0 s0= E"
+          + " S(AB1) E"
+          + " END");
+    }
+
+    @Test
+    public void testExtract() throws HL7ContentException {
+        for (HL7Message msg : new HL7Message[] { this.msg1, this.msg2 }) {
+            final ArrayList<String> values = new ArrayList<>();
+            final HL7ContentHandler handler = new HL7ContentHandler() {
+                private int fieldNum;
+                @Override
+                public boolean startSegment(CharSequence name) {
+                    return "PID".contentEquals(name);
+                }
+                @Override
+                public void field(int index) {
+                    this.fieldNum = index;
+                }
+                @Override
+                public void subComponent(int index, CharSequence value) {
+                    if (this.fieldNum == 5)
+                        values.add(value.toString());
+                }
+            };
+            final byte[] bytes = msg.toString().getBytes(StandardCharsets.ISO_8859_1);
+            new HL7Parser().parse(bytes, 0, bytes.length, StandardCharsets.ISO_8859_1, handler);
+            final ArrayList<String> expected = new ArrayList<>();
+            for (HL7Segment segment : msg.getSegments()) {
+                if (segment.getName().equals("PID")) {
+                    for (String[][] rep : segment.getField(5).getValue()) {
+                        for (String[] comp : rep)
+                            expected.addAll(Arrays.asList(comp));
+                    }
+                }
+            }
+            assert !expected.isEmpty();
+            assertEquals(values, expected);
+        }
+    }
+
+    @Test
+    public void testProjection() throws HL7ContentException {
+        final String[] names = { "MSH.3", "MSH.9", "MSH.10", "PID.3", "PV1.19" };
+        final HL7Projection projection = new HL7Projection(names);
+        final HL7Projection readOnly = new HL7Projection(true, names);
+        assert projection.includes("PID", 3);
+        assert !projection.includes("PID", 4);
+        assert !projection.includes("ZZZ", 3);
+        assert readOnly.isReadOnly();
+        assertEquals(projection.toString(), "{ MSH.3, MSH.9, MSH.10, PID.3, PV1.19 }");
+        for (HL7Message msg : new HL7Message[] { this.msg1, this.msg2 }) {
+            final String text = msg.toString();
+            final byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+            final HL7Message projected = new HL7Message(bytes, 0, bytes.length, StandardCharsets.ISO_8859_1, projection);
+            final HL7Message trimmed = new HL7Message(text, readOnly);
+            assertEquals(projected.toString(), text);
+            assertEquals(projected, msg);
+            for (String name : names) {
+                assertEquals(projected.getField(name), msg.getField(name));
+                assertEquals(trimmed.getField(name), msg.getField(name));
+            }
+
+            // Read-only mode keeps only the projected segments and fields
+            for (HL7Segment segment : trimmed.getSegments()) {
+                final HL7Field[] fields = segment.getFields();
+                for (int i = segment instanceof MSHSegment ? 3 : 1; i < fields.length; i++) {
+                    if (!projection.includes(segment.getName(), i))
+                        assertEquals(fields[i], HL7Field.EMPTY);
+                }
+                assert fields.length == 1 || projection.includes(segment.getName(), fields.length - 1);
+            }
+            assertEquals(trimmed.getMSHSegment().getNumFields(), 11);
+            assertEquals(trimmed.getSegments().size(), 1 + msg.getSegments().stream()
+              .filter(segment -> segment.getName().equals("PID") || segment.getName().equals("PV1")).count());
+        }
+        for (String name : new String[] { "PID", "PID.", "PID.0", "PI.3", "PID.3.1", "PID.99999999999" }) {
+            try {
+                new HL7Projection(name);
+                assert false : name;
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(dataProvider = "parseData")
+    public void testParse(String text) {
+        this.compare(text);
+    }
+
+    @Test
+    public void testBytes() throws HL7ContentException {
+        final byte[] bytes = "xxMSH|^~\\&\rPID|caf\u00e9^\\F\\|\u00ff\rZZZ|1xx".getBytes(StandardCharsets.ISO_8859_1);
+        for (Charset charset : new Charset[] { StandardCharsets.ISO_8859_1, StandardCharsets.US_ASCII, StandardCharsets.UTF_8 }) {
+            final HL7Message expected = new HL7Message(new String(bytes, 2, bytes.length - 4, charset));
+            for (boolean lazy : new boolean[] { false, true }) {
+                final HL7Message actual = new HL7Message(bytes, 2, bytes.length - 4, charset, lazy);
+                assertEquals(actual, expected);
+                assertEquals(actual.toString(), expected.toString());
+                assertEquals(actual.getSegments().get(1).getField(1).get(0, 0, 0),
+                  expected.getSegments().get(1).getField(1).get(0, 0, 0));
+            }
+        }
+        assertEquals(new HL7Message(bytes, 2, bytes.length - 4, StandardCharsets.US_ASCII, true)
+          .getSegments().get(1).getField(2).get(0, 0, 0), "\ufffd");
+    }
+
+    @DataProvider(name = "parseData")
+    public Iterator<Object[]> genParseData() {
+        ArrayList<Object[]> list = new ArrayList<Object[]>();
+        list.add(new Object[] { "MSH|^~\\&" });
+        list.add(new Object[] { "MSH|^~\\&|" });
+        list.add(new Object[] { "MSH|^~\\&\r\r\r" });
+        list.add(new Object[] { "MSH|^~\\&|\rPID|" });
+        list.add(new Object[] { "MSH|^~\\&||a|b^c&d~e\\F\\f|\rPID|1|2\rZZZ\r" });
+        list.add(new Object[] { "MSH|^~\rPID|a&b|c\\F\\d" });
+        list.add(new Object[] { "MSH|^~\\\rPID|a&b|c\\F\\d~~^^&&" });
+        list.add(new Object[] { "MSH|^~\\&\rA^B|x" });
+        list.add(new Object[] { "MSH|^~\\&\r\rPID|1" });
+        list.add(new Object[] { "MSH|^~\\&\rPIDX|1" });
+        list.add(new Object[] { "MSH|^~\\&\rP|1" });
+        list.add(new Object[] { "MSH|^~\\&x|1" });
+        list.add(new Object[] { "MSH|^~\\&&|1" });
+        list.add(new Object[] { "MSH|^" });
+        list.add(new Object[] { "MSX|^~\\&" });
+        list.add(new Object[] { "" });
+        list.add(new Object[] { "\r" });
+        return list.iterator();
+    }
+
+    private void compare(String text) {
+        HL7Message expected = null;
+        String expectedError = null;
+        try {
+            expected = HL7Parser.parseBySplitting(text);
+        } catch (HL7ContentException e) {
+            expectedError = e.getMessage();
+        }
+        HL7Message actual = null;
+        String actualError = null;
+        try {
+            actual = new HL7Message(text);
+        } catch (HL7ContentException e) {
+            actualError = e.getMessage();
+        }
+        HL7Message bytes = null;
+        String bytesError = null;
+        try {
+            bytes = new HL7Message(text.getBytes(StandardCharsets.ISO_8859_1), 0, text.length(), StandardCharsets.ISO_8859_1, true);
+        } catch (HL7ContentException e) {
+            bytesError = e.getMessage();
+        }
+        HL7Message lazy = null;
+        String lazyError = null;
+        try {
+            lazy = new HL7Message(text, true);
+        } catch (HL7ContentException e) {
+            lazyError = e.getMessage();
+        }
+        HL7Message projected = null;
+        String projectedError = null;
+        try {
+            projected = new HL7Message(text, new HL7Projection("MSH.3", "MSH.4", "PID.2", "ZZZ.1"));
+        } catch (HL7ContentException e) {
+            projectedError = e.getMessage();
+        }
+        assertEquals(actualError, expectedError);
+        assertEquals(lazyError, expectedError);
+        assertEquals(projectedError, expectedError);
+        assertEquals(bytesError, expectedError);
+        if (expected != null) {
+            assertEquals(actual.toString(), expected.toString());
+            try {
+                assertEquals(new HL7Message(lazy.toString()), expected);
+            } catch (HL7ContentException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (expected != null)
+            assertEquals(projected.toString(), text.substring(0, HL7Parser.trimEnd(text)) + HL7Message.SEGMENT_TERMINATOR);
+        assertEquals(lazy, expected);
+        assertEquals(projected, expected);
+        assertEquals(bytes, expected);
+        assertEquals(actual, expected);
+    }
+}
@@ -0,0 +1,96 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+
+public class HL7PathTest extends Input1Test {
+
+    @Test
+    public void testCompile() {
+        final HL7Path path = HL7Path.compile("PID.3.1.2");
+        assertEquals(path.getSegmentName(), "PID");
+        assertEquals(path.getFieldIndex(), 3);
+        assertEquals(path.getComponentIndex(), 0);
+        assertEquals(path.getSubComponentIndex(), 1);
+        assert !path.isFieldPath();
+        assertEquals(path.toString(), "PID.3.1.2");
+        assertEquals(path, HL7Path.compile("PID.3.1.2"));
+        assertEquals(path.hashCode(), HL7Path.compile("PID.3.1.2").hashCode());
+        assert HL7Path.compile("ZZ1.0").isFieldPath();
+        assertEquals(HL7Path.compile("MSH.9.2").getSubComponentIndex(), 0);
+        for (String name : new String[] {
+          "", "PID", "PID.", "PID.x", "PID.3.", "PID.3..1", "PI.3", "PIDD.3", "P_D.3", "PID.-3", "PID.3.0", "PID.3.1.0",
+          "PID.3.1.2.4", "PID.99999999999", "PID.3 " }) {
+            try {
+                HL7Path.compile(name);
+                assert false : name;
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testLookup() throws HL7ContentException {
+        final String[] names = {
+          "MSH.0", "MSH.3", "MSH.9", "MSH.9.2", "PID.3", "PID.3.4", "PID.5.1.1", "PID.99", "ZAX.1.2.2", "ZAX.1.2.3", "XYZ.1"
+        };
+        for (HL7Message msg : new HL7Message[] { this.msg1, this.msg2 }) {
+            final HL7Message lazy = new HL7Message(msg.toString(), true);
+            for (String name : names) {
+                final HL7Path path = HL7Path.compile(name);
+                for (int segnum = 0; segnum < 3; segnum++) {
+                    for (int repeat = 0; repeat < 3; repeat++) {
+                        final String expected = this.get(msg, name, segnum, repeat);
+                        assertEquals(path.get(msg, segnum, repeat), expected);
+                        assertEquals(path.get(lazy, segnum, repeat), expected);
+                        assertEquals(msg.get(name, segnum, repeat), expected);
+                        assertEquals(lazy.get(name, segnum, repeat), expected);
+                    }
+                }
+                if (path.isFieldPath()) {
+                    assertEquals(msg.getField(name), path.getField(msg));
+                    assertEquals(lazy.getField(name), path.getField(msg));
+                }
+            }
+        }
+        try {
+            this.msg1.getField("PID.3.1");
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLazyNames() throws HL7ContentException {
+        final HL7Message msg = new HL7Message("MSH|^~\\&\rA^B|1\rAB\\|2\rABC|3\rA&B", true);
+        for (HL7Segment segment : msg.getSegments()) {
+            for (String name : new String[] { "A", "AB", "AB\\", "ABC", "A^B", "MSH" })
+                assertEquals(segment.hasName(name), segment.getName().equals(name), segment + " " + name);
+        }
+        assertEquals(msg.findSegment("ABC").getField(1).get(0, 0, 0), "3");
+        assertEquals(msg.findSegment("A").getField(1).get(0, 0, 0), "1");
+    }
+
+    // Look up a value the slow way
+    private String get(HL7Message msg, String name, int segnum, int repeat) {
+        final String[] parts = name.split("\\.");
+        for (int i = segnum; i < msg.getSegments().size(); i++) {
+            final HL7Segment segment = msg.getSegments().get(i);
+            if (!segment.getName().equals(parts[0]))
+                continue;
+            final HL7Field field = segment.getField(Integer.parseInt(parts[1]));
+            if (field == null)
+                return null;
+            return field.get(repeat, parts.length > 2 ? Integer.parseInt(parts[2]) - 1 : 0,
+              parts.length > 3 ? Integer.parseInt(parts[3]) - 1 : 0);
+        }
+        return null;
+    }
+}
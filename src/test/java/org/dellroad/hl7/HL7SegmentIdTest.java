@@ -0,0 +1,58 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+
+public class HL7SegmentIdTest extends Input1Test {
+
+    @Test
+    public void testPacking() {
+        assertEquals(HL7SegmentId.of("MSH"), HL7SegmentId.MSH);
+        assertEquals(HL7SegmentId.of("OBX"), HL7SegmentId.OBX);
+        assertEquals(HL7SegmentId.toName(HL7SegmentId.PV1), "PV1");
+        assertEquals(HL7SegmentId.toName(HL7SegmentId.of("z\u00ff1")), "z\u00ff1");
+        for (String name : new String[] { "", "AB", "ABCD", "AB\u0100", "A\u0000B" })
+            assertEquals(HL7SegmentId.of(name), HL7SegmentId.INVALID, name);
+        assert !HL7SegmentId.isValid(HL7SegmentId.INVALID);
+        assert !HL7SegmentId.isValid(0);
+        assert !HL7SegmentId.isValid(0x410042);
+        assert HL7SegmentId.isCustom(HL7SegmentId.of("ZPI"));
+        assert !HL7SegmentId.isCustom(HL7SegmentId.PID);
+        try {
+            HL7SegmentId.toName(HL7SegmentId.INVALID);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSegmentIds() throws HL7ContentException {
+        for (HL7Message msg : new HL7Message[] { this.msg1, this.msg2 }) {
+            final String text = msg.toString();
+            for (HL7Message copy : new HL7Message[] { msg, new HL7Message(text), new HL7Message(text, true),
+              new HL7Message(text, new HL7Projection("PID.3")), HL7Parser.parseBySplitting(text) }) {
+                for (HL7Segment segment : copy.getSegments())
+                    assertEquals(segment.getId(), HL7SegmentId.of(segment.getName()), segment.getName());
+            }
+        }
+        final HL7Message msg = new HL7Message("MSH|^~\\&\rA^B|1\rABC|2", true);
+        assertEquals(msg.getSegments().get(1).getId(), HL7SegmentId.INVALID);
+        final HL7Segment segment = msg.getSegments().get(2);
+        assertEquals(segment.getId(), HL7SegmentId.of("ABC"));
+        segment.setName("OBX");
+        assertEquals(segment.getId(), HL7SegmentId.OBX);
+        switch (segment.getId()) {
+        case HL7SegmentId.OBX:
+            break;
+        default:
+            assert false;
+            break;
+        }
+    }
+}
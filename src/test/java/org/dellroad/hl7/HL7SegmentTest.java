@@ -24,6 +24,75 @@ public class HL7SegmentTest {
             actual = null;
         }
         assertEquals(actual, expected);
+        HL7Segment lazy;
+        try {
+            lazy = new HL7Segment(line, HL7Seps.DEFAULT, true);
+        } catch (HL7ContentException e) {
+            lazy = null;
+        }
+        assertEquals(lazy, expected);
+    }
+
+    @Test
+    public void testLazy() throws HL7ContentException {
+        final String line = "ZZZ|a^b~c|\\X41\\|";
+        final HL7Segment eager = new HL7Segment(line, HL7Seps.DEFAULT);
+        final HL7Segment lazy = new HL7Segment(line, HL7Seps.DEFAULT, true);
+        assertEquals(lazy.getName(), "ZZZ");
+        assertEquals(lazy.getNumFields(), 4);
+        assertEquals(lazy.getField(2), new HL7Field("A"));
+        assertEquals(lazy.getField(4), null);
+
+        // Unmodified lazy segments copy the original text verbatim
+        assertEquals(lazy.toString(), line);
+        assertEquals(eager.toString(), "ZZZ|a^b~c|A|");
+        assertEquals(lazy.toString(new HL7Seps(':', ';', '!', '$', '%')), "ZZZ:a;b!c:A:");
+
+        // Copies are lazy too
+        final HL7Segment copy = new HL7Segment(lazy);
+        assertEquals(copy.toString(), line);
+        assertEquals(copy, eager);
+
+        // Modifications force decoding, but unmodified fields still copy their original text
+        lazy.setField(3, "foo");
+        assertEquals(lazy.toString(), "ZZZ|a^b~c|\\X41\\|foo");
+        assertEquals(lazy.toString(new HL7Seps(':', ';', '!', '$', '%')), "ZZZ:a;b!c:A:foo");
+        assertEquals(copy.toString(), line);
+        assertEquals(lazy.getFields().length, 4);
+        assertEquals(eager.hashCode(), copy.hashCode());
+    }
+
+    @Test
+    public void testCopy() throws HL7ContentException {
+        final HL7Segment orig = new HL7Segment("ZZZ|a^b~c|d|e", HL7Seps.DEFAULT);
+        orig.setField(3, "f");
+        final HL7Segment copy1 = new HL7Segment(orig);
+        final HL7Segment copy2 = new HL7Segment(orig);
+        final HL7Segment copy3 = new HL7Segment(copy1);
+        for (HL7Segment copy : new HL7Segment[] { copy1, copy2, copy3 }) {
+            assertEquals(copy, orig);
+            assertEquals(copy.hashCode(), orig.hashCode());
+            assertEquals(copy.toString(), "ZZZ|a^b~c|d|f");
+            assertEquals(copy.getNumFields(), 4);
+            assertEquals(copy.getId(), HL7SegmentId.of("ZZZ"));
+            assert copy.getField(1) == orig.getField(1);
+            assertEquals(copy.getField(4), null);
+            assertEquals(copy.getFields(), orig.getFields());
+        }
+
+        // Changes to any instance do not affect the others
+        copy1.setField(2, "x");
+        orig.setField(1, "y");
+        copy2.trimTo(2);
+        copy3.setName("ZZY");
+        assertEquals(orig.toString(), "ZZZ|y|d|f");
+        assertEquals(copy1.toString(), "ZZZ|a^b~c|x|f");
+        assertEquals(copy2.toString(), "ZZZ|a^b~c");
+        assertEquals(copy3.toString(), "ZZY|a^b~c|d|f");
+        assertEquals(new HL7Segment(orig).toString(), "ZZZ|y|d|f");
+        assertEquals(new HL7Segment(copy2).toString(), "ZZZ|a^b~c");
+        copy2.getFields()[1] = null;
+        assertEquals(new HL7Segment(copy2).toString(), "ZZZ|a^b~c");
     }
 
     @DataProvider(name = "getParseData")
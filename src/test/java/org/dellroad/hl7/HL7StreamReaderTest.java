@@ -0,0 +1,177 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.dellroad.hl7.io.HL7FileReader;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+
+public class HL7StreamReaderTest extends Input1Test {
+
+    @Test(dataProvider = "messages")
+    public void testEvents(String text) throws IOException {
+        final StringBuilder expected = new StringBuilder();
+        try {
+            new HL7Parser().parse(text, new Recorder(expected));
+        } catch (HL7ContentException e) {
+            expected.append(" error: ").append(e.getMessage());
+        }
+        final StringBuilder actual = new StringBuilder();
+        final HL7StreamReader reader = new HL7StreamReader(text);
+        try {
+            this.record(reader, actual);
+        } catch (HL7ContentException e) {
+            actual.append(" error: ").append(e.getMessage());
+        }
+        assertEquals(actual.toString(), expected.toString());
+    }
+
+    @Test
+    public void testSkip() throws IOException, HL7ContentException {
+        final HL7StreamReader reader = new HL7StreamReader("MSH|^~\\&|A|B^C\rPID|1|a^b~c|d\rZZZ|x\rPV1|2");
+        final ArrayList<String> values = new ArrayList<>();
+        while (reader.next() != HL7StreamReader.END_OF_INPUT) {
+            switch (reader.getEventType()) {
+            case HL7StreamReader.SEGMENT_START:
+                if (reader.getSegmentName().equals("ZZZ"))
+                    reader.skipSegment();
+                break;
+            case HL7StreamReader.FIELD:
+                if (reader.getSegmentName().equals("MSH") && reader.getFieldIndex() <= 3)
+                    reader.skipField();
+                break;
+            case HL7StreamReader.COMPONENT:
+                if (reader.getSegmentName().equals("PID") && reader.getFieldIndex() == 2 && reader.getComponentIndex() == 1)
+                    reader.skipField();
+                break;
+            case HL7StreamReader.SUBCOMPONENT:
+                values.add(reader.getSegmentName() + "." + reader.getFieldIndex() + "=" + reader.getText());
+                break;
+            default:
+                break;
+            }
+        }
+        assertEquals(values.toString(), "[MSH.4=B, MSH.4=C, PID.1=1, PID.2=a, PID.3=d, PV1.1=2]");
+        assert !reader.hasNext();
+    }
+
+    @Test
+    public void testFileReader() throws IOException, HL7ContentException {
+        final String text = this.msg1.toString().replace('\r', '\n') + "\n" + this.msg2.toString().replace('\r', '\n');
+        final HL7StreamReader reader = new HL7FileReader(new StringReader(text)).toStreamReader();
+        final StringBuilder actual = new StringBuilder();
+        this.record(reader, actual);
+        final StringBuilder expected = new StringBuilder();
+        new HL7Parser().parse(this.msg1.toString(), new Recorder(expected));
+        new HL7Parser().parse(this.msg2.toString(), new Recorder(expected));
+        assertEquals(actual.toString(), expected.toString());
+        reader.close();
+    }
+
+    @DataProvider(name = "messages")
+    public Iterator<Object[]> genMessages() throws HL7ContentException {
+        final ArrayList<Object[]> list = new ArrayList<>();
+        for (Iterator<Object[]> i = new HL7ParserTest().genParseData(); i.hasNext(); )
+            list.add(i.next());
+        list.add(new Object[] { "MSH|^~\\&||a|b^c&d~e\\F\\f|\r\rPID|1" });
+        list.add(new Object[] { new HL7Message("MSH|^~\\&|A").toString(new HL7Seps('|', '^', '~')) + "\rPID|a^b&c|\\T\\" });
+        return list.iterator();
+    }
+
+    // Record events from an HL7StreamReader
+    private void record(HL7StreamReader reader, StringBuilder buf) throws IOException, HL7ContentException {
+        final Recorder recorder = new Recorder(buf);
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+            case HL7StreamReader.MESSAGE_START:
+                recorder.startMessage(reader.getHL7Seps());
+                break;
+            case HL7StreamReader.SEGMENT_START:
+                recorder.startSegment(reader.getTextCharacters());
+                break;
+            case HL7StreamReader.FIELD:
+                recorder.field(reader.getFieldIndex());
+                break;
+            case HL7StreamReader.REPEAT:
+                recorder.repeat(reader.getRepeatIndex());
+                break;
+            case HL7StreamReader.COMPONENT:
+                recorder.component(reader.getComponentIndex());
+                break;
+            case HL7StreamReader.SUBCOMPONENT:
+                recorder.subComponent(reader.getSubComponentIndex(), reader.getTextCharacters());
+                break;
+            case HL7StreamReader.SEGMENT_END:
+                recorder.endSegment();
+                break;
+            case HL7StreamReader.MESSAGE_END:
+                recorder.endMessage();
+                break;
+            case HL7StreamReader.END_OF_INPUT:
+                break;
+            default:
+                throw new RuntimeException("unexpected event " + reader.getEventType());
+            }
+        }
+    }
+
+    // Records events as a string
+    private static class Recorder implements HL7ContentHandler {
+
+        private final StringBuilder buf;
+
+        Recorder(StringBuilder buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public void startMessage(HL7Seps seps) {
+            this.buf.append(" M(").append(seps).append(')');
+        }
+
+        @Override
+        public boolean startSegment(CharSequence name) {
+            this.buf.append(" S(").append(name).append(')');
+            return true;
+        }
+
+        @Override
+        public void field(int index) {
+            this.buf.append(" f").append(index);
+        }
+
+        @Override
+        public void repeat(int index) {
+            this.buf.append(" r").append(index);
+        }
+
+        @Override
+        public void component(int index) {
+            this.buf.append(" c").append(index);
+        }
+
+        @Override
+        public void subComponent(int index, CharSequence value) {
+            this.buf.append(" s").append(index).append('=').append(value);
+        }
+
+        @Override
+        public void endSegment() {
+            this.buf.append(" E");
+        }
+
+        @Override
+        public void endMessage() {
+            this.buf.append(" END");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares byte-at-a-time and char-at-a-time scanning with the SWAR scanning in {@link HL7Util#indexOf(byte[], byte, int, int)}
+ * and {@link HL7Util#find(byte[], byte, int, int)}, on 1KB and 1MB buffers.
+ *
+ * <p>
+ * This is not a unit test; run it by hand, e.g.:
+ * <blockquote><code>
+ * java -cp target/classes:target/test-classes org.dellroad.hl7.HL7UtilBenchmark
+ * </code></blockquote>
+ */
+public final class HL7UtilBenchmark {
+
+    private static final int TOTAL_BYTES = 1 << 30;
+
+    private static int sink;
+
+    private HL7UtilBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        for (int size : new int[] { 1024, 1024 * 1024 }) {
+
+            // Frame: message text followed by the LLP trailer
+            final byte[] frame = HL7UtilBenchmark.message(size);
+            frame[size - 2] = 0x1c;
+            frame[size - 1] = 0x0d;
+
+            // Message: segment splitting and field splitting
+            final byte[] msg = HL7UtilBenchmark.message(size);
+            final CharSequence bytes = ByteCharSequence.wrap(msg, 0, msg.length, StandardCharsets.ISO_8859_1);
+            final String string = new String(msg, StandardCharsets.ISO_8859_1);
+
+            for (int round = 0; round < 3; round++) {
+                System.out.println(String.format("size=%d round=%d", size, round));
+                HL7UtilBenchmark.run("  frame trailer, bytewise", size, () -> HL7UtilBenchmark.scalarIndexOf(frame, (byte)0x1c));
+                HL7UtilBenchmark.run("  frame trailer, SWAR    ", size, () -> HL7Util.indexOf(frame, (byte)0x1c, 0, frame.length));
+                HL7UtilBenchmark.run("  find '|', charwise     ", size, () -> HL7Util.find(string, '|').length);
+                HL7UtilBenchmark.run("  find '|', SWAR         ", size, () -> HL7Util.find(bytes, '|', 0, bytes.length()).length);
+                HL7UtilBenchmark.run("  find CR, charwise      ", size, () -> HL7Util.find(string, '\r').length);
+                HL7UtilBenchmark.run("  find CR, SWAR          ", size, () -> HL7Util.find(bytes, '\r', 0, bytes.length()).length);
+            }
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    private static void run(String label, int size, Task task) {
+        final int reps = Math.max(1, TOTAL_BYTES / size);
+        final long start = System.nanoTime();
+        int result = 0;
+        for (int i = 0; i < reps; i++)
+            result += task.run();
+        final long elapsed = System.nanoTime() - start;
+        sink += result;
+        System.out.println(String.format("%s %8.1f MB/s", label, (double)reps * size * 1000.0 / elapsed));
+    }
+
+    // Roughly 80 byte segments, each with several fields
+    private static byte[] message(int size) {
+        final byte[] segment = "OBX|1|TX|1234^Result^L||Some text value~with a repeat|||N|||F|||20250101120000\r"
+          .getBytes(StandardCharsets.ISO_8859_1);
+        final byte[] msg = new byte[size];
+        for (int i = 0; i < size; i += segment.length)
+            System.arraycopy(segment, 0, msg, i, Math.min(segment.length, size - i));
+        return msg;
+    }
+
+    private static int scalarIndexOf(byte[] buf, byte value) {
+        for (int i = 0; i < buf.length; i++) {
+            if (buf[i] == value)
+                return i;
+        }
+        return -1;
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        int run();
+    }
+}
@@ -5,12 +5,15 @@
 
 package org.dellroad.hl7;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Random;
 
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
 
 public class HL7UtilTest {
 
@@ -20,6 +23,32 @@ public class HL7UtilTest {
         if (end == -1)
             end = value.length();
         assert Arrays.equals(HL7Util.find(value, sep, start, end), result);
+        final CharSequence bytes = ByteCharSequence.wrap(value.getBytes(StandardCharsets.US_ASCII),
+          0, value.length(), StandardCharsets.US_ASCII);
+        assert Arrays.equals(HL7Util.find(bytes, sep, start, end), result);
+    }
+
+    @Test
+    public void testIndexOfBytes() {
+        final Random random = new Random(123);
+        final byte[] values = new byte[] { 0x1c, 0x0d, '|', 0x00, (byte)0x80, (byte)0xff };
+        final byte[] buf = new byte[40];
+        for (int iter = 0; iter < 100; iter++) {
+            for (int i = 0; i < buf.length; i++)
+                buf[i] = random.nextInt(4) == 0 ? values[random.nextInt(values.length)] : (byte)random.nextInt(256);
+            for (byte value : values) {
+                for (int start = 0; start <= buf.length; start++) {
+                    for (int end = start; end <= buf.length; end++) {
+                        int expected = -1;
+                        for (int i = start; i < end && expected == -1; i++) {
+                            if (buf[i] == value)
+                                expected = i;
+                        }
+                        assertEquals(HL7Util.indexOf(buf, value, start, end), expected);
+                    }
+                }
+            }
+        }
     }
 
     @DataProvider(name = "findData")
@@ -12,6 +12,7 @@ import java.util.Iterator;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotSame;
 import static org.testng.Assert.assertTrue;
 
@@ -45,12 +46,26 @@ public class MSHSegmentTest extends Input1Test {
     }
 
     @Test
-    public void testCopyConstructor() {
+    public void testCopyConstructor() throws HL7ContentException {
         MSHSegment msh1 = new MSHSegment();
         msh1.setSendingApplication(new HL7Field("foobar"));
         MSHSegment msh2 = new MSHSegment(msh1);
         assertEquals(msh1, msh2);
         assertEquals("" + msh2.getSendingApplication(), "foobar");
+        msh2.setSendingApplication(new HL7Field("jan"));
+        msh2.setHL7Seps(new HL7Seps(':', ';', '!', '$', '%'));
+        assertEquals(msh1.toString(), "MSH|^~\\&|foobar");
+        assertEquals(msh2.toString(), "MSH:;!$%:jan");
+        assertEquals(new MSHSegment(msh2).toString(), "MSH:;!$%:jan");
+    }
+
+    @Test
+    public void testToStringSeps() throws HL7ContentException {
+        final MSHSegment msh = new MSHSegment("MSH|^~\\&|a^b|c~d|\\F\\");
+        assertEquals(msh.toString(new HL7Seps(':', ';', '!', '$', '%')), "MSH:;!$%:a;b:c!d:|");
+        assertEquals(msh.toString(new HL7Seps('|', '^', '~')), "MSH|^~|a^b|c~d|");
+        assertEquals(msh.toString(HL7Seps.DEFAULT), "MSH|^~\\&|a^b|c~d|\\F\\");
+        assertEquals(msh.getHL7Seps(), HL7Seps.DEFAULT);
     }
 
     @Test(dataProvider = "getParseData")
@@ -134,6 +149,14 @@ public class MSHSegmentTest extends Input1Test {
         // Sometimes ACK MSH.9 also contains MSH.9.2 from original (e.g., "ACK^A08" instead of just "ACK")
         ackmsh.setMessageType(new HL7Field("ACK^A08", HL7Seps.DEFAULT));
         assertTrue(msh.isACK(ack));
+
+        // Negative acknowlegements are responses, but not ACKs
+        ack.getSegments().get(1).setField(1, new HL7Field("AE"));
+        assertFalse(msh.isACK(ack));
+        assertTrue(msh.isResponse(ack));
+        assertEquals(MSHSegment.getResponseControlID(ack), msh.getControlID());
+        ack.getSegments().get(1).setField(2, new HL7Field("other"));
+        assertFalse(msh.isResponse(ack));
     }
 
     @Test
@@ -0,0 +1,32 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7;
+
+/**
+ * Sample messages shared by the benchmarks.
+ */
+public final class SampleMessages {
+
+    private SampleMessages() {
+    }
+
+    /**
+     * Build an ORU^R01 lab result message containing MSH, PID, PV1, and OBR segments followed by the given number
+     * of OBX segments.
+     *
+     * @param observations number of OBX segments
+     * @return encoded message
+     */
+    public static String oru(int observations) {
+        final StringBuilder buf = new StringBuilder("MSH|^~\\&|LAB|HOSP|EMR|HOSP|20250101120000||ORU^R01|12345|P|2.3\r");
+        buf.append("PID|1||123456^^^HOSP^MR||DOE^JOHN^Q||19700101|M|||123 MAIN ST^^ANYTOWN^CA^90210\r");
+        buf.append("PV1|1|I|4WEST^401^A|||||||MED\r");
+        buf.append("OBR|1|A123|B456|CHEM7^Chemistry Panel^L|||20250101110000\r");
+        for (int i = 0; i < observations; i++)
+            buf.append("OBX|" + (i + 1) + "|NM|GLU^Glucose^LN||" + (90 + i) + "|mg/dL|70-110|N|||F|||20250101115900\r");
+        return buf.toString();
+    }
+}
@@ -0,0 +1,114 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.dellroad.hl7.HL7ContentException;
+import org.dellroad.hl7.HL7Field;
+import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.SampleMessages;
+
+/**
+ * Measures {@link LLPClient} throughput for varying in-flight limits against a local receiver that simulates
+ * a high-latency link by delaying each acknowlegement by {@value #LATENCY} milliseconds.
+ *
+ * <p>
+ * This is not a unit test; run it by hand, e.g.:
+ * <blockquote><code>
+ * java -cp target/classes:target/test-classes org.dellroad.hl7.llp.LLPClientBenchmark
+ * </code></blockquote>
+ */
+public final class LLPClientBenchmark {
+
+    private static final int MESSAGES = 1000;
+    private static final int LATENCY = 5;
+    private static final int MAX_LENGTH = 1024 * 1024;
+
+    private static int sink;
+
+    private LLPClientBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final HL7Message template = new HL7Message(SampleMessages.oru(1));
+
+        // Start delaying receiver
+        final ServerSocket server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        final ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor();
+        final Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    final Socket socket = server.accept();
+                    final LLPInputStream input = new LLPInputStream(socket.getInputStream(), MAX_LENGTH);
+                    final LLPOutputStream output = new LLPOutputStream(socket.getOutputStream());
+                    final Thread reader = new Thread(() -> {
+                        try {
+                            while (true) {
+                                final HL7Message ack = input.readMessage().getMSHSegment().createACK(0);
+                                delayer.schedule(() -> {
+                                    try {
+                                        output.writeMessage(ack);
+                                    } catch (IOException e) {
+                                        // client is done
+                                    }
+                                }, LATENCY, TimeUnit.MILLISECONDS);
+                            }
+                        } catch (IOException | HL7ContentException e) {
+                            // client is done
+                        }
+                    });
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            } catch (IOException e) {
+                // server closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        // Run tests
+        int serial = 0;
+        for (int round = 0; round < 3; round++) {
+            System.out.println(String.format("round=%d", round));
+            for (int maxInFlight : new int[] { 1, 4, 16, 64 }) {
+                final int messages = maxInFlight == 1 ? MESSAGES / 10 : MESSAGES;
+                try (LLPClient client = new LLPClient(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()))) {
+                    client.setMaxInFlight(maxInFlight);
+                    client.connect();
+                    final List<CompletableFuture<HL7Message>> futures = new ArrayList<>(messages);
+                    final long start = System.nanoTime();
+                    for (int i = 0; i < messages; i++) {
+                        final HL7Message msg = new HL7Message(template);
+                        msg.getMSHSegment().setControlID(new HL7Field("" + ++serial));
+                        futures.add(client.sendAsync(msg));
+                    }
+                    int result = 0;
+                    for (CompletableFuture<HL7Message> future : futures)
+                        result += future.get().getSegments().size();
+                    final long elapsed = System.nanoTime() - start;
+                    sink += result;
+                    System.out.println(String.format("  maxInFlight=%-3d %10.0f msg/s", maxInFlight, messages * 1e9 / elapsed));
+                }
+            }
+        }
+        delayer.shutdownNow();
+        server.close();
+        if (sink == 42)
+            System.out.println();
+    }
+}
@@ -0,0 +1,236 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.dellroad.hl7.HL7ContentException;
+import org.dellroad.hl7.HL7Field;
+import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.Input1Test;
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class LLPClientTest extends Input1Test {
+
+    private static final int MAX_LENGTH = 1024 * 1024;
+    private static final int TIMEOUT = 10000;
+
+    @Test
+    public void testPipelined() throws Exception {
+        try (LLPServer server = LLPServerTest.newServer(msg -> null)) {
+            server.start();
+            try (LLPClient client = new LLPClient(server.getLocalAddress())) {
+                client.setMaxInFlight(8);
+                client.setOrdered(true);
+                client.connect();
+                final List<HL7Message> msgs = new ArrayList<>();
+                final List<CompletableFuture<HL7Message>> futures = new ArrayList<>();
+                for (int i = 0; i < 50; i++) {
+                    final HL7Message msg = this.withControlID(this.msg1, "" + i);
+                    msgs.add(msg);
+                    futures.add(client.sendAsync(msg));
+                    assertTrue(client.getNumOutstanding() <= 8);
+                }
+                for (int i = 0; i < msgs.size(); i++)
+                    assertTrue(msgs.get(i).getMSHSegment().isACK(futures.get(i).get(TIMEOUT, TimeUnit.MILLISECONDS)));
+                assertEquals(client.getNumOutstanding(), 0);
+                assertTrue(client.isOpen());
+            }
+        }
+    }
+
+    @Test
+    public void testUnordered() throws Exception {
+        try (ReverseServer server = new ReverseServer(3)) {
+            try (LLPClient client = server.newClient(3, false)) {
+                final List<HL7Message> msgs = new ArrayList<>();
+                final List<CompletableFuture<HL7Message>> futures = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    final HL7Message msg = this.withControlID(this.msg1, "X" + i);
+                    msgs.add(msg);
+                    futures.add(client.sendAsync(msg));
+                }
+                for (int i = 0; i < msgs.size(); i++)
+                    assertTrue(msgs.get(i).getMSHSegment().isACK(futures.get(i).get(TIMEOUT, TimeUnit.MILLISECONDS)));
+                assertTrue(client.isOpen());
+            }
+        }
+    }
+
+    @Test
+    public void testOrdered() throws Exception {
+        try (ReverseServer server = new ReverseServer(3)) {
+            try (LLPClient client = server.newClient(3, true)) {
+                final List<CompletableFuture<HL7Message>> futures = new ArrayList<>();
+                for (int i = 0; i < 3; i++)
+                    futures.add(client.sendAsync(this.withControlID(this.msg1, "X" + i)));
+                for (CompletableFuture<HL7Message> future : futures) {
+                    try {
+                        future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+                        fail("expected exception");
+                    } catch (ExecutionException e) {
+                        assertTrue(e.getCause() instanceof LLPException, "wrong exception: " + e.getCause());
+                    }
+                }
+                assertFalse(client.isOpen());
+            }
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        try (ReverseServer server = new ReverseServer(Integer.MAX_VALUE)) {
+            try (LLPClient client = server.newClient(1, true)) {
+                final CompletableFuture<HL7Message> future1 = client.sendAsync(this.withControlID(this.msg1, "T1"), 100);
+                final CompletableFuture<HL7Message> future2 = client.sendAsync(this.withControlID(this.msg1, "T2"), 100);
+                for (CompletableFuture<HL7Message> future : Arrays.asList(future1, future2)) {
+                    try {
+                        future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+                        fail("expected exception");
+                    } catch (ExecutionException e) {
+                        assertTrue(e.getCause() instanceof TimeoutException, "wrong exception: " + e.getCause());
+                    }
+                }
+                assertEquals(client.getNumOutstanding(), 0);
+                assertTrue(client.isOpen());
+            }
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        try (ReverseServer server = new ReverseServer(Integer.MAX_VALUE)) {
+            try (LLPClient client = server.newClient(2, false)) {
+                try {
+                    client.setMaxInFlight(10);
+                    fail("expected exception");
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+
+                // Duplicate control ID
+                final CompletableFuture<HL7Message> future1 = client.sendAsync(this.withControlID(this.msg1, "D"), 0);
+                final CompletableFuture<HL7Message> future2 = client.sendAsync(this.withControlID(this.msg2, "D"), 0);
+                LLPClientTest.assertFailed(future2, HL7ContentException.class);
+                assertFalse(future1.isDone());
+
+                // Missing fields needed to match the response don't affect other messages
+                final HL7Message noProcessingID = this.withControlID(this.msg1, "P");
+                noProcessingID.getMSHSegment().trimTo(11);
+                LLPClientTest.assertFailed(client.sendAsync(noProcessingID, 0), HL7ContentException.class);
+                assertFalse(future1.isDone());
+                assertTrue(client.isOpen());
+
+                // Connection closed by peer
+                server.closeConnections();
+                LLPClientTest.assertFailed(future1, IOException.class);
+                assertFalse(client.isOpen());
+                LLPClientTest.assertFailed(client.sendAsync(this.msg1), IOException.class);
+            }
+        }
+    }
+
+    private HL7Message withControlID(HL7Message msg, String controlID) {
+        final HL7Message copy = new HL7Message(msg);
+        copy.getMSHSegment().setControlID(new HL7Field(controlID));
+        return copy;
+    }
+
+    private static void assertFailed(CompletableFuture<HL7Message> future, Class<? extends Exception> type) throws Exception {
+        try {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("expected exception");
+        } catch (ExecutionException e) {
+            assertTrue(type.isInstance(e.getCause()), "wrong exception: " + e.getCause());
+        }
+    }
+
+// ReverseServer
+
+    // Reads batches of messages, then acknowleges each batch in reverse order
+    private static class ReverseServer implements AutoCloseable {
+
+        private final ServerSocket serverSocket;
+        private final List<Socket> sockets = new ArrayList<>();
+        private final int batchSize;
+
+        ReverseServer(int batchSize) throws IOException {
+            this.batchSize = batchSize;
+            this.serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(this::run);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        LLPClient newClient(int maxInFlight, boolean ordered) throws IOException {
+            final LLPClient client = new LLPClient(
+              new InetSocketAddress(this.serverSocket.getInetAddress(), this.serverSocket.getLocalPort()));
+            client.setMaxInFlight(maxInFlight);
+            client.setOrdered(ordered);
+            client.connect();
+            return client;
+        }
+
+        // Close all connections, after waiting for at least one to be accepted
+        synchronized void closeConnections() throws IOException, InterruptedException {
+            while (this.sockets.isEmpty() && !this.serverSocket.isClosed())
+                this.wait();
+            for (Socket socket : this.sockets)
+                socket.close();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            this.serverSocket.close();
+            for (Socket socket : this.sockets)
+                socket.close();
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    final Socket socket = this.serverSocket.accept();
+                    synchronized (this) {
+                        this.sockets.add(socket);
+                        this.notifyAll();
+                    }
+                    final LLPInputStream input = new LLPInputStream(socket.getInputStream(), MAX_LENGTH);
+                    final LLPOutputStream output = new LLPOutputStream(socket.getOutputStream());
+                    final ArrayList<HL7Message> batch = new ArrayList<>();
+                    try {
+                        while (true) {
+                            batch.add(input.readMessage());
+                            if (batch.size() == this.batchSize) {
+                                for (int i = batch.size() - 1; i >= 0; i--)
+                                    output.writeMessage(batch.get(i).getMSHSegment().createACK(i));
+                                batch.clear();
+                            }
+                        }
+                    } catch (IOException | HL7ContentException e) {
+                        socket.close();
+                    }
+                }
+            } catch (IOException e) {
+                // server closed
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dellroad.hl7.HL7Field;
+import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.HL7Path;
+import org.dellroad.hl7.Input1Test;
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class LLPConnectionPoolTest extends Input1Test {
+
+    private static final int TIMEOUT = 10000;
+    private static final HL7Path PID_3 = HL7Path.compile("PID.3");
+
+    @Test
+    public void testLeastOutstanding() throws Exception {
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger[] counts = new AtomicInteger[3];
+        final List<LLPServer> servers = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            final AtomicInteger count = new AtomicInteger();
+            counts[i] = count;
+            servers.add(LLPServerTest.newServer(msg -> {
+                count.incrementAndGet();
+                proceed.await();
+                return null;
+            }));
+        }
+        try (LLPConnectionPool pool = LLPConnectionPoolTest.newPool(servers)) {
+            pool.setConnectionsPerEndpoint(2);
+            pool.setMaxInFlight(4);
+            pool.start();
+
+            // Fill every connection's window while the servers are stalled
+            final List<HL7Message> msgs = new ArrayList<>();
+            final List<CompletableFuture<HL7Message>> futures = new ArrayList<>();
+            for (int i = 0; i < 3 * 2 * 4; i++) {
+                final HL7Message msg = this.withControlID(this.msg1, "" + i);
+                msgs.add(msg);
+                futures.add(pool.sendAsync(msg));
+            }
+            proceed.countDown();
+            for (int i = 0; i < msgs.size(); i++)
+                assertTrue(msgs.get(i).getMSHSegment().isACK(futures.get(i).get(TIMEOUT, TimeUnit.MILLISECONDS)));
+        } finally {
+            LLPConnectionPoolTest.stopAll(servers);
+        }
+        for (AtomicInteger count : counts)
+            assertEquals(count.get(), 2 * 4);
+    }
+
+    @Test
+    public void testSticky() throws Exception {
+        final Map<String, Integer> routes = new ConcurrentHashMap<>();
+        final AtomicInteger conflicts = new AtomicInteger();
+        final List<LLPServer> servers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final Integer serverIndex = i;
+            servers.add(LLPServerTest.newServer(msg -> {
+                final Integer previous = routes.putIfAbsent(PID_3.get(msg), serverIndex);
+                if (previous != null && !previous.equals(serverIndex))
+                    conflicts.incrementAndGet();
+                return null;
+            }));
+        }
+        try (LLPConnectionPool pool = LLPConnectionPoolTest.newPool(servers)) {
+            pool.setStickyKey(PID_3);
+            pool.setMaxInFlight(8);
+            pool.start();
+            final List<CompletableFuture<HL7Message>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                final HL7Message msg = this.withControlID(this.msg1, "" + i);
+                msg.findSegment("PID", 0).setField(3, new HL7Field("PATIENT" + (i % 20)));
+                futures.add(pool.sendAsync(msg));
+            }
+            for (CompletableFuture<HL7Message> future : futures)
+                future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } finally {
+            LLPConnectionPoolTest.stopAll(servers);
+        }
+        assertEquals(conflicts.get(), 0);
+        assertEquals(routes.size(), 20);
+        assertTrue(new HashMap<>(routes).values().stream().distinct().count() > 1, "all keys routed to one server");
+    }
+
+    @Test
+    public void testEjection() throws Exception {
+        final List<LLPServer> servers = new ArrayList<>();
+        for (int i = 0; i < 2; i++)
+            servers.add(LLPServerTest.newServer(msg -> null));
+        for (LLPServer server : servers)
+            server.start();
+        final List<InetSocketAddress> addresses = Arrays.asList(
+          servers.get(0).getLocalAddress(), servers.get(1).getLocalAddress());
+
+        // Stop the second server before starting the pool
+        servers.get(1).stop(0);
+        try (LLPConnectionPool pool = new LLPConnectionPool(addresses)) {
+            pool.setHealthCheckInterval(50);
+            pool.start();
+            assertEquals(pool.getAvailableEndpoints(), addresses.subList(0, 1));
+            for (int i = 0; i < 10; i++) {
+                final HL7Message msg = this.withControlID(this.msg1, "" + i);
+                assertTrue(msg.getMSHSegment().isACK(pool.sendAsync(msg).get(TIMEOUT, TimeUnit.MILLISECONDS)));
+            }
+
+            // Restart the second server and wait for it to be re-admitted
+            final LLPServer restarted = new LLPServer(addresses.get(1), msg -> null);
+            servers.set(1, restarted);
+            restarted.start();
+            LLPConnectionPoolTest.waitFor(() -> pool.getAvailableEndpoints().size() == 2);
+
+            // Stop the first server and wait for it to be ejected
+            servers.get(0).stop(0);
+            LLPConnectionPoolTest.waitFor(() -> pool.getAvailableEndpoints().equals(addresses.subList(1, 2)));
+            for (int i = 0; i < 10; i++) {
+                final HL7Message msg = this.withControlID(this.msg1, "" + i);
+                assertTrue(msg.getMSHSegment().isACK(pool.sendAsync(msg).get(TIMEOUT, TimeUnit.MILLISECONDS)));
+            }
+
+            // Stop everything
+            servers.get(1).stop(0);
+            LLPConnectionPoolTest.waitFor(() -> pool.getAvailableEndpoints().isEmpty());
+            try {
+                pool.sendAsync(this.msg1).get(TIMEOUT, TimeUnit.MILLISECONDS);
+                fail("expected exception");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException, "wrong exception: " + e.getCause());
+            }
+        } finally {
+            LLPConnectionPoolTest.stopAll(servers);
+        }
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        final LLPServer server = LLPServerTest.newServer(msg -> null);
+        server.setReadTimeout(100);
+        try (LLPConnectionPool pool = LLPConnectionPoolTest.newPool(Arrays.asList(server))) {
+            pool.setConnectionsPerEndpoint(1);
+            pool.setHealthCheckInterval(0);
+            pool.start();
+            assertTrue(this.msg1.getMSHSegment().isACK(pool.sendAsync(this.msg1).get(TIMEOUT, TimeUnit.MILLISECONDS)));
+
+            // Wait for the client to see the server close the idle connection
+            LLPConnectionPoolTest.waitFor(() -> pool.getNumOpenConnections() == 0);
+            assertTrue(this.msg2.getMSHSegment().isACK(pool.sendAsync(this.msg2).get(TIMEOUT, TimeUnit.MILLISECONDS)));
+            assertEquals(pool.getAvailableEndpoints().size(), 1);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testRetryEjected() throws Exception {
+        LLPServer server = LLPServerTest.newServer(msg -> null);
+        server.start();
+        final InetSocketAddress address = server.getLocalAddress();
+        server.stop(0);
+        try (LLPConnectionPool pool = new LLPConnectionPool(Arrays.asList(address))) {
+            pool.setHealthCheckInterval(0);
+            pool.start();
+            assertTrue(pool.getAvailableEndpoints().isEmpty());
+
+            // With health checks disabled, the ejected endpoint is retried when nothing else is available
+            server = new LLPServer(address, msg -> null);
+            server.start();
+            assertTrue(this.msg1.getMSHSegment().isACK(pool.sendAsync(this.msg1).get(TIMEOUT, TimeUnit.MILLISECONDS)));
+            assertEquals(pool.getAvailableEndpoints(), Arrays.asList(address));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private HL7Message withControlID(HL7Message msg, String controlID) {
+        final HL7Message copy = new HL7Message(msg);
+        copy.getMSHSegment().setControlID(new HL7Field(controlID));
+        return copy;
+    }
+
+    // Start the servers and create an unstarted pool connecting to them
+    private static LLPConnectionPool newPool(List<LLPServer> servers) throws IOException {
+        final List<InetSocketAddress> addresses = new ArrayList<>();
+        for (LLPServer server : servers) {
+            server.start();
+            addresses.add(server.getLocalAddress());
+        }
+        return new LLPConnectionPool(addresses);
+    }
+
+    private static void stopAll(List<LLPServer> servers) throws InterruptedException {
+        for (LLPServer server : servers)
+            server.stop(0);
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        while (!condition.test()) {
+            if (System.nanoTime() > deadline)
+                fail("timed out waiting for condition");
+            Thread.sleep(10);
+        }
+    }
+
+    private interface Condition {
+        boolean test();
+    }
+}
@@ -0,0 +1,170 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.dellroad.hl7.HL7ContentException;
+import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.Input1Test;
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+
+public class LLPFrameCodecTest extends Input1Test {
+
+    @Test
+    public void testEncode() throws IOException {
+        final LLPFrameEncoder encoder = new LLPFrameEncoder(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new LLPOutputStream(expected, StandardCharsets.UTF_8).writeMessage(this.msg1);
+        final ByteBuffer frame = encoder.encode(this.msg1);
+        assertEquals(frame.position(), 0);
+        assertEquals(Arrays.copyOf(frame.array(), frame.limit()), expected.toByteArray());
+
+        // Caller-supplied buffer
+        final ByteBuffer dest = ByteBuffer.allocate(frame.limit() + 1);
+        dest.put((byte)0);
+        assertEquals(encoder.encode(this.msg1, dest), expected.size());
+        assertEquals(Arrays.copyOfRange(dest.array(), 1, dest.position()), expected.toByteArray());
+        dest.position(2);
+        try {
+            encoder.encode(this.msg1, dest);
+            assert false;
+        } catch (BufferOverflowException e) {
+            assertEquals(dest.position(), 2);
+        }
+    }
+
+    @Test
+    public void testDecode() throws IOException, HL7ContentException {
+        final LLPFrameEncoder encoder = new LLPFrameEncoder();
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (HL7Message msg : new HL7Message[] { this.msg1, this.msg2, this.msg1 }) {
+            final ByteBuffer frame = encoder.encode(msg);
+            buf.write(frame.array(), 0, frame.limit());
+        }
+        final byte[] bytes = buf.toByteArray();
+
+        // Frames arriving all at once are not copied
+        final LLPFrameDecoder decoder = new LLPFrameDecoder(65536);
+        final ByteBuffer input = ByteBuffer.wrap(bytes.clone());
+        final ByteBuffer frame = decoder.decode(input);
+        assert frame.array() == input.array();
+        assertEquals(frame.remaining(), this.msg1.toString().length());
+        assertEquals(new HL7Message(StandardCharsets.ISO_8859_1.decode(frame).toString()), this.msg1);
+
+        // But decoded messages don't refer to the input
+        final HL7Message msg2 = decoder.decodeMessage(input);
+        final HL7Message msg3 = decoder.decodeMessage(input);
+        assertEquals(decoder.decodeMessage(input), null);
+        Arrays.fill(input.array(), (byte)'x');
+        assertEquals(msg2, this.msg2);
+        assertEquals(msg3, this.msg1);
+        assert !decoder.hasPartialFrame();
+
+        // Frames may arrive in arbitrary pieces, in heap or direct buffers
+        for (int chunk : new int[] { 1, 2, 7, 8192 }) {
+            for (boolean direct : new boolean[] { false, true }) {
+                final Feeder feeder = new Feeder(bytes, chunk, direct);
+                final LLPFrameDecoder decoder2 = new LLPFrameDecoder(this.msg1.toString().length());
+                assertEquals(feeder.next(decoder2), this.msg1);
+                assertEquals(feeder.next(decoder2), this.msg2);
+                assertEquals(feeder.next(decoder2), this.msg1);
+                assertEquals(feeder.next(decoder2), null);
+                assert !decoder2.hasPartialFrame();
+            }
+        }
+    }
+
+    @Test
+    public void testErrors() throws IOException, HL7ContentException {
+        final HL7Message msgA = new HL7Message("MSH|^~\\&|A|B\rPID|1||123\r");
+        final HL7Message msgB = new HL7Message("MSH|^~\\&|C|D\r");
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final LLPOutputStream writer = new LLPOutputStream(buf);
+        writer.writeMessage(msgA);
+        writer.writeMessage(msgB);
+        writer.writeMessage(msgA);
+        buf.write(LLPConstants.LEADING_BYTE);
+        buf.write('M');
+        final byte[] bytes = buf.toByteArray();
+        final int lengthA = msgA.toString().length();
+
+        // Messages that are too long can be skipped, just like with LLPInputStream
+        for (int chunk : new int[] { 1, 2, 7, 8192 }) {
+            final Feeder feeder = new Feeder(bytes, chunk, false);
+            final LLPFrameDecoder decoder = new LLPFrameDecoder(lengthA - 1);
+            for (int i = 0; i < 2; i++) {
+                try {
+                    feeder.next(decoder);
+                    assert false;
+                } catch (LLPException e) {
+                    // expected
+                }
+                decoder.skip();
+                if (i == 0)
+                    assertEquals(feeder.next(decoder), msgB);
+            }
+            assertEquals(feeder.next(decoder), null);
+            assert decoder.hasPartialFrame();
+            decoder.reset();
+            assert !decoder.hasPartialFrame();
+        }
+
+        // Bad framing bytes
+        for (String frame : new String[] { "MSH|^~\\&\u001c\r", "\u000bMSH|^~\\&\u001c\n", "\u000bMSH|^~\\&\u001c" }) {
+            final byte[] bad = frame.getBytes(StandardCharsets.ISO_8859_1);
+            final LLPFrameDecoder decoder = new LLPFrameDecoder(100);
+            try {
+                assertEquals(decoder.decode(ByteBuffer.wrap(bad)), null);
+                decoder.decode(ByteBuffer.wrap(new byte[] { 'x' }));
+                assert false;
+            } catch (LLPException e) {
+                // expected
+            }
+            assert !decoder.hasPartialFrame();
+        }
+    }
+
+    // Delivers bytes to an LLPFrameDecoder in fixed size pieces
+    private static final class Feeder {
+
+        private final byte[] bytes;
+        private final int chunk;
+        private final boolean direct;
+        private ByteBuffer current = ByteBuffer.allocate(0);
+        private int off;
+
+        Feeder(byte[] bytes, int chunk, boolean direct) {
+            this.bytes = bytes;
+            this.chunk = chunk;
+            this.direct = direct;
+        }
+
+        HL7Message next(LLPFrameDecoder decoder) throws IOException, HL7ContentException {
+            while (true) {
+                final HL7Message msg = decoder.decodeMessage(this.current);
+                if (msg != null)
+                    return msg;
+                if (this.off == this.bytes.length)
+                    return null;
+                final int count = Math.min(this.chunk, this.bytes.length - this.off);
+                if (this.direct) {
+                    this.current = ByteBuffer.allocateDirect(count);
+                    this.current.put(this.bytes, this.off, count);
+                    this.current.flip();
+                } else
+                    this.current = ByteBuffer.wrap(this.bytes, this.off, count);
+                this.off += count;
+            }
+        }
+    }
+}
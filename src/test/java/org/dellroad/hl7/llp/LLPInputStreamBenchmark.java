@@ -0,0 +1,112 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.SampleMessages;
+
+/**
+ * Measures {@link LLPInputStream} framing throughput for 2.4KB messages, both from memory and over a loopback socket,
+ * by {@linkplain LLPInputStream#skip skipping} frames (framing only) and by reading messages in lazy mode.
+ *
+ * <p>
+ * This is not a unit test; run it by hand, e.g.:
+ * <blockquote><code>
+ * java -cp target/classes:target/test-classes org.dellroad.hl7.llp.LLPInputStreamBenchmark
+ * </code></blockquote>
+ */
+public final class LLPInputStreamBenchmark {
+
+    private static final int FRAMES = 1000;
+    private static final int REPS = 20;
+    private static final int MAX_LENGTH = 1024 * 1024;
+
+    private static int sink;
+
+    private LLPInputStreamBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final HL7Message msg = new HL7Message(SampleMessages.oru(36));
+        final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        final LLPOutputStream output = new LLPOutputStream(frames);
+        for (int i = 0; i < FRAMES; i++)
+            output.writeMessage(msg);
+        final byte[] data = frames.toByteArray();
+        System.out.println(String.format("%d frames of %d bytes", FRAMES, data.length / FRAMES));
+
+        // Start loopback writer
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final Thread writer = new Thread(() -> {
+            try (Socket socket = server.accept(); OutputStream out = socket.getOutputStream()) {
+                while (true)
+                    out.write(data);
+            } catch (IOException e) {
+                // reader is done
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+        final Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+        final LLPInputStream loopback = new LLPInputStream(socket.getInputStream(), MAX_LENGTH);
+
+        // Run tests
+        for (int round = 0; round < 5; round++) {
+            System.out.println(String.format("round=%d", round));
+            LLPInputStreamBenchmark.run("  skip, memory              ", data.length, () -> {
+                final LLPInputStream input = new LLPInputStream(new ByteArrayInputStream(data), MAX_LENGTH);
+                for (int i = 0; i < FRAMES; i++)
+                    input.skip();
+                return FRAMES;
+            });
+            LLPInputStreamBenchmark.run("  skip, loopback            ", data.length, () -> {
+                for (int i = 0; i < FRAMES; i++)
+                    loopback.skip();
+                return FRAMES;
+            });
+            LLPInputStreamBenchmark.run("  readMessage, lazy, memory ", data.length, () -> {
+                final LLPInputStream input = LLPInputStreamBenchmark.lazy(new ByteArrayInputStream(data));
+                int count = 0;
+                for (int i = 0; i < FRAMES; i++)
+                    count += input.readMessage().getSegments().size();
+                return count;
+            });
+        }
+        socket.close();
+        server.close();
+        if (sink == 42)
+            System.out.println();
+    }
+
+    private static LLPInputStream lazy(InputStream input) {
+        return new LLPInputStream(input, CharsetDecoder.fixed(StandardCharsets.ISO_8859_1), MAX_LENGTH, true);
+    }
+
+    private static void run(String label, int bytes, Task task) throws Exception {
+        final long start = System.nanoTime();
+        int result = 0;
+        for (int i = 0; i < REPS; i++)
+            result += task.run();
+        final long elapsed = System.nanoTime() - start;
+        sink += result;
+        System.out.println(String.format("%s %8.2f us/frame %8.1f MB/s",
+          label, elapsed / 1000.0 / (REPS * FRAMES), (double)bytes * REPS / elapsed * 1000.0));
+    }
+
+    private interface Task {
+        int run() throws Exception;
+    }
+}
@@ -0,0 +1,85 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.SampleMessages;
+
+/**
+ * Measures {@link LLPServer} request/response throughput for 2.4KB messages over loopback connections,
+ * with one or more local clients each sending a message and waiting for the ACK before sending the next.
+ *
+ * <p>
+ * This is not a unit test; run it by hand, e.g.:
+ * <blockquote><code>
+ * java -cp target/classes:target/test-classes org.dellroad.hl7.llp.LLPServerBenchmark
+ * </code></blockquote>
+ */
+public final class LLPServerBenchmark {
+
+    private static final int MESSAGES = 5000;
+    private static final int MAX_LENGTH = 1024 * 1024;
+
+    private static int sink;
+
+    private LLPServerBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final HL7Message msg = new HL7Message(SampleMessages.oru(36));
+
+        // Start server
+        final LLPServer server = new LLPServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), m -> null);
+        server.start();
+        final InetSocketAddress address = server.getLocalAddress();
+
+        // Run tests
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        for (int round = 0; round < 5; round++) {
+            System.out.println(String.format("round=%d", round));
+            for (int clients : new int[] { 1, 4, 16 }) {
+                final List<Future<Integer>> futures = new ArrayList<>(clients);
+                final long start = System.nanoTime();
+                for (int i = 0; i < clients; i++) {
+                    futures.add(executor.submit(() -> {
+                        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+                            socket.setTcpNoDelay(true);
+                            final LLPInputStream input = new LLPInputStream(socket.getInputStream(), MAX_LENGTH);
+                            final LLPOutputStream output = new LLPOutputStream(socket.getOutputStream());
+                            int count = 0;
+                            for (int j = 0; j < MESSAGES / clients; j++) {
+                                output.writeMessage(msg);
+                                count += input.readMessage().getSegments().size();
+                            }
+                            return count;
+                        }
+                    }));
+                }
+                int result = 0;
+                for (Future<Integer> future : futures)
+                    result += future.get();
+                final long elapsed = System.nanoTime() - start;
+                sink += result;
+                final int total = MESSAGES / clients * clients;
+                System.out.println(String.format("  %2d client(s) %10.0f msg/s %8.2f us/msg",
+                  clients, total * 1e9 / elapsed, elapsed / 1000.0 / total));
+            }
+        }
+        executor.shutdown();
+        server.stop(1000);
+        if (sink == 42)
+            System.out.println();
+    }
+}
@@ -0,0 +1,263 @@
+
+/*
+ * Copyright (C) 2008 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.hl7.llp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dellroad.hl7.HL7DuplicateFilter;
+import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.Input1Test;
+import org.testng.annotations.Test;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class LLPServerTest extends Input1Test {
+
+    private static final int MAX_LENGTH = 1024 * 1024;
+    private static final int TIMEOUT = 10000;
+
+    @Test
+    public void testAutoACK() throws Exception {
+        try (LLPServer server = LLPServerTest.newServer(msg -> null)) {
+            server.start();
+            try (Client client = new Client(server)) {
+                for (HL7Message msg : new HL7Message[] { this.msg1, this.msg2, this.msg1 }) {
+                    final HL7Message ack = client.send(msg);
+                    assertTrue(msg.getMSHSegment().isACK(ack));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testHandlerResponse() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        try (LLPServer server = LLPServerTest.newServer(msg -> {
+            count.incrementAndGet();
+            return LLPServerTest.this.msg2;
+        })) {
+            server.start();
+            try (Client client = new Client(server)) {
+                assertEquals(client.send(this.msg1), this.msg2);
+                assertEquals(client.send(this.msg1), this.msg2);
+            }
+        }
+        assertEquals(count.get(), 2);
+    }
+
+    @Test
+    public void testDuplicateFilter() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        try (LLPServer server = LLPServerTest.newServer(msg -> {
+            count.incrementAndGet();
+            return null;
+        })) {
+            server.setDuplicateFilter(new HL7DuplicateFilter(100, 60000, false));
+            server.start();
+            try (Client client = new Client(server)) {
+                final HL7Message ack1 = client.send(this.msg1);
+                final HL7Message ack2 = client.send(this.msg1);
+                assertTrue(this.msg1.getMSHSegment().isACK(ack1));
+                assertEquals(ack2, ack1);
+            }
+            try (Client client = new Client(server)) {
+                assertTrue(this.msg1.getMSHSegment().isACK(client.send(this.msg1)));
+            }
+        }
+        assertEquals(count.get(), 1);
+    }
+
+    @Test
+    public void testHandlerException() throws Exception {
+        final CountDownLatch reported = new CountDownLatch(1);
+        try (LLPServer server = new LLPServer(LLPServerTest.loopback(), msg -> {
+            throw new Exception("oops");
+        }) {
+            @Override
+            protected void handleException(SocketAddress peer, Exception e) {
+                if ("oops".equals(e.getMessage()))
+                    reported.countDown();
+            }
+        }) {
+            server.start();
+            try (Client client = new Client(server)) {
+                client.output.writeMessage(this.msg1);
+                LLPServerTest.assertClosed(client);
+            }
+            assertTrue(reported.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        try (LLPServer server = LLPServerTest.newServer(msg -> null)) {
+            server.setReadTimeout(200);
+            server.start();
+            try (Client client = new Client(server)) {
+                assertTrue(this.msg1.getMSHSegment().isACK(client.send(this.msg1)));
+                final long start = System.nanoTime();
+                LLPServerTest.assertClosed(client);
+                assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+            }
+        }
+    }
+
+    @Test
+    public void testGracefulStop() throws Exception {
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final LLPServer server = LLPServerTest.newServer(msg -> {
+            handling.countDown();
+            proceed.await();
+            return null;
+        });
+        server.start();
+        try (Client client = new Client(server)) {
+            client.output.writeMessage(this.msg1);
+            assertTrue(handling.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            // Stop while the message is being handled
+            final Thread stopper = new Thread(() -> {
+                try {
+                    assertTrue(server.stop(TIMEOUT));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            stopper.start();
+            Thread.sleep(100);
+            assertTrue(stopper.isAlive());
+            proceed.countDown();
+
+            // We should still get the ACK, then the connection should close
+            assertTrue(this.msg1.getMSHSegment().isACK(client.input.readMessage()));
+            LLPServerTest.assertClosed(client);
+            stopper.join(TIMEOUT);
+            assertFalse(stopper.isAlive());
+        }
+        assertEquals(server.getNumConnections(), 0);
+
+        // New connections should be refused
+        try (Socket socket = new Socket(server.getLocalAddress().getAddress(), server.getLocalAddress().getPort())) {
+            fail("expected connection to be refused");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMaxConnections() throws Exception {
+        final CountDownLatch rejected = new CountDownLatch(1);
+        try (LLPServer server = new LLPServer(LLPServerTest.loopback(), msg -> null) {
+            @Override
+            protected void handleException(SocketAddress peer, Exception e) {
+                rejected.countDown();
+            }
+        }) {
+            server.setVirtualThreads(false);
+            server.setMaxConnections(1);
+            server.start();
+            try (Client client1 = new Client(server)) {
+                assertTrue(this.msg1.getMSHSegment().isACK(client1.send(this.msg1)));
+                try (Client client2 = new Client(server)) {
+                    LLPServerTest.assertClosed(client2);
+                }
+                assertTrue(rejected.await(TIMEOUT, TimeUnit.MILLISECONDS));
+                assertTrue(this.msg2.getMSHSegment().isACK(client1.send(this.msg2)));
+            }
+        }
+    }
+
+    @Test
+    public void testConfiguration() throws Exception {
+        try (LLPServer server = LLPServerTest.newServer(msg -> null)) {
+            try {
+                server.getLocalAddress();
+                fail("expected exception");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            try {
+                server.setMaxConnections(0);
+                fail("expected exception");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            server.start();
+            try {
+                server.setReadTimeout(1000);
+                fail("expected exception");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            try {
+                server.start();
+                fail("expected exception");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    static LLPServer newServer(HL7MessageHandler handler) {
+        return new LLPServer(LLPServerTest.loopback(), handler);
+    }
+
+    static InetSocketAddress loopback() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    private static void assertClosed(Client client) throws Exception {
+        try {
+            client.input.readMessage();
+            fail("expected connection to be closed");
+        } catch (EOFException e) {
+            // expected
+        } catch (SocketTimeoutException e) {
+            fail("connection was not closed");
+        } catch (IOException e) {
+            // also possible, e.g., "connection reset"
+        }
+    }
+
+// Client
+
+    static class Client implements AutoCloseable {
+
+        final Socket socket;
+        final LLPInputStream input;
+        final LLPOutputStream output;
+
+        Client(LLPServer server) throws IOException {
+            final InetSocketAddress address = server.getLocalAddress();
+            this.socket = new Socket(address.getAddress(), address.getPort());
+            this.socket.setSoTimeout(TIMEOUT);
+            this.input = new LLPInputStream(this.socket.getInputStream(), MAX_LENGTH);
+            this.output = new LLPOutputStream(this.socket.getOutputStream());
+        }
+
+        HL7Message send(HL7Message msg) throws Exception {
+            this.output.writeMessage(msg);
+            return this.input.readMessage();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.socket.close();
+        }
+    }
+}
@@ -5,14 +5,22 @@
 
 package org.dellroad.hl7.llp;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import org.dellroad.hl7.HL7ContentException;
 import org.dellroad.hl7.HL7Message;
+import org.dellroad.hl7.HL7MessageBuilder;
+import org.dellroad.hl7.HL7StreamReader;
 import org.dellroad.hl7.Input1Test;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
@@ -42,6 +50,22 @@ public class LLPStreamTest extends Input1Test {
         writer.close();
     }
 
+    @Test
+    public void testOutputBytes() throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final LLPOutputStream writer = new LLPOutputStream(buf, StandardCharsets.UTF_8);
+        writer.writeMessage(this.msg1);
+        writer.writeMessage(this.msg2);
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (HL7Message msg : new HL7Message[] { this.msg1, this.msg2 }) {
+            expected.write(LLPConstants.LEADING_BYTE);
+            expected.write(msg.toString().getBytes(StandardCharsets.UTF_8));
+            expected.write(LLPConstants.TRAILING_BYTE_0);
+            expected.write(LLPConstants.TRAILING_BYTE_1);
+        }
+        assertEquals(buf.toByteArray(), expected.toByteArray());
+    }
+
     @Test(dependsOnMethods = { "testOutput" })
     public void testInput() throws IOException, HL7ContentException {
         List<HL7Message> list = readMessages(
@@ -51,6 +75,45 @@ public class LLPStreamTest extends Input1Test {
         assertEquals(list.get(1), this.msg2);
     }
 
+    @Test(dependsOnMethods = { "testOutput" })
+    public void testLazyInput() throws IOException, HL7ContentException {
+        List<HL7Message> list = readMessages(
+          new LLPInputStream(new FileInputStream(this.tempFile), CharsetDecoder.fixed(StandardCharsets.ISO_8859_1), 65536, true));
+        assert list.size() == 2;
+        assertEquals(list.get(0), this.msg1);
+        assertEquals(list.get(1), this.msg2);
+        assertEquals(list.get(0).toString(), this.msg1.toString());
+    }
+
+    @Test(dependsOnMethods = { "testOutput" })
+    public void testHandlerInput() throws IOException, HL7ContentException {
+        final LLPInputStream in = new LLPInputStream(new FileInputStream(this.tempFile), 65536);
+        final HL7MessageBuilder builder = new HL7MessageBuilder();
+        in.readMessage(builder);
+        assertEquals(builder.getMessage(), this.msg1);
+        in.readMessage(builder);
+        assertEquals(builder.getMessage(), this.msg2);
+        in.close();
+    }
+
+    @Test(dependsOnMethods = { "testOutput" })
+    public void testStreamReader() throws IOException, HL7ContentException {
+        final HL7StreamReader reader = new LLPInputStream(new FileInputStream(this.tempFile), 65536).toStreamReader();
+        int messages = 0;
+        int segments = 0;
+        while (reader.next() != HL7StreamReader.END_OF_INPUT) {
+            if (reader.getEventType() == HL7StreamReader.MESSAGE_START)
+                messages++;
+            else if (reader.getEventType() == HL7StreamReader.SEGMENT_START) {
+                segments++;
+                reader.skipSegment();
+            }
+        }
+        reader.close();
+        assertEquals(messages, 2);
+        assertEquals(segments, this.msg1.getSegments().size() + this.msg2.getSegments().size());
+    }
+
     @Test(dependsOnMethods = { "testOutput" })
     public void testMaxLength() throws IOException, HL7ContentException {
         LLPInputStream in = new LLPInputStream(
@@ -62,5 +125,78 @@ public class LLPStreamTest extends Input1Test {
             // success
         }
     }
-}
 
+    @Test
+    public void testFraming() throws IOException, HL7ContentException {
+        final HL7Message msgA = new HL7Message("MSH|^~\\&|A|B\rPID|1||123\r");
+        final HL7Message msgB = new HL7Message("MSH|^~\\&|C|D\r");
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final LLPOutputStream writer = new LLPOutputStream(buf);
+        writer.writeMessage(msgA);
+        writer.writeMessage(msgB);
+        writer.writeMessage(msgA);
+        buf.write(LLPConstants.LEADING_BYTE);
+        buf.write('M');
+        final byte[] bytes = buf.toByteArray();
+        final int lengthA = msgA.toString().length();
+
+        for (int chunk : new int[] { 1, 2, 7, 8192 }) {
+            for (boolean lazy : new boolean[] { false, true }) {
+
+                // Messages may be split across reads arbitrarily, and may be exactly the maximum length
+                final LLPInputStream in = new LLPInputStream(LLPStreamTest.chunked(bytes, chunk),
+                  CharsetDecoder.fixed(StandardCharsets.ISO_8859_1), lengthA, lazy);
+                assertEquals(in.readMessage(), msgA);
+                assertEquals(in.readMessage(), msgB);
+                assertEquals(in.readMessage(), msgA);
+                try {
+                    in.readMessage();
+                    assert false;
+                } catch (EOFException e) {
+                    // expected
+                }
+            }
+
+            // Messages that are too long can be skipped
+            final LLPInputStream in = new LLPInputStream(LLPStreamTest.chunked(bytes, chunk), lengthA - 1);
+            for (int i = 0; i < 2; i++) {
+                try {
+                    in.readMessage();
+                    assert false;
+                } catch (LLPException e) {
+                    // expected
+                }
+                in.skip();
+                if (i == 0)
+                    assertEquals(in.readMessage(), msgB);
+            }
+            try {
+                in.skip();
+                assert false;
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+
+        // Bad framing bytes
+        for (String frame : new String[] { "MSH|^~\\&\u001c\r", "\u000bMSH|^~\\&\u001c\n" }) {
+            final byte[] bad = frame.getBytes(StandardCharsets.ISO_8859_1);
+            try {
+                new LLPInputStream(new ByteArrayInputStream(bad), 100).readMessage();
+                assert false;
+            } catch (LLPException e) {
+                // expected
+            }
+        }
+    }
+
+    // Returns the given bytes at most "chunk" bytes at a time
+    private static InputStream chunked(byte[] bytes, int chunk) {
+        return new FilterInputStream(new ByteArrayInputStream(bytes)) {
+            @Override
+            public int read(byte[] data, int off, int len) throws IOException {
+                return super.read(data, off, Math.min(len, chunk));
+            }
+        };
+    }
+}